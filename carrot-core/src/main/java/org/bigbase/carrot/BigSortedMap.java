@@ -13,16 +13,40 @@
 */
 package org.bigbase.carrot;
 
+import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.logging.log4j.LogManager;
@@ -30,13 +54,20 @@ import org.apache.logging.log4j.Logger;
 import org.bigbase.carrot.compression.Codec;
 import org.bigbase.carrot.compression.CodecFactory;
 import org.bigbase.carrot.compression.CodecType;
+import org.bigbase.carrot.compression.LZ4DictCodec;
+import org.bigbase.carrot.compression.LZ4Frame;
 import org.bigbase.carrot.ops.IncrementDouble;
 import org.bigbase.carrot.ops.IncrementFloat;
 import org.bigbase.carrot.ops.IncrementInt;
 import org.bigbase.carrot.ops.IncrementLong;
 import org.bigbase.carrot.ops.Operation;
 import org.bigbase.carrot.ops.OperationFailedException;
+import org.bigbase.carrot.ops.GetForUpdate;
+import org.bigbase.carrot.ops.ReclaimExpired;
 import org.bigbase.carrot.redis.RedisConf;
+import org.bigbase.carrot.redis.WriteAheadLog;
+import org.bigbase.carrot.redis.cluster.SlotMap;
+import org.bigbase.carrot.redis.util.DataType;
 import org.bigbase.carrot.util.Bytes;
 import org.bigbase.carrot.util.IOUtils;
 import org.bigbase.carrot.util.Key;
@@ -93,35 +124,35 @@ public class BigSortedMap {
   static int maxIndexBlockSize = IndexBlock.MAX_BLOCK_SIZE;
 
   /** This tracks globally allocated memory (overall) */
-  private static AtomicLong globalAllocatedMemory = new AtomicLong(0);
+  private static final LongAdder globalAllocatedMemory = new LongAdder();
 
   /*
    * This tracks global data blocks size (memory allocated for data blocks)
    */
-  private static AtomicLong globalBlockDataSize = new AtomicLong(0);
+  private static final LongAdder globalBlockDataSize = new LongAdder();
 
   /*
    * This tracks global data size in data blocks (data can be allocated outside
    * data blocks)
    */
-  private static AtomicLong globalDataInDataBlocksSize = new AtomicLong(0);
+  private static final LongAdder globalDataInDataBlocksSize = new LongAdder();
 
   /*
    * This tracks global compressed data size in data blocks (data can be allocated outside
    * data blocks)
    */
 
-  private static AtomicLong globalCompressedDataInDataBlocksSize = new AtomicLong(0);
+  private static final LongAdder globalCompressedDataInDataBlocksSize = new LongAdder();
 
   /*
    * This tracks global data size  allocated externally (not in data blocks)
    */
-  private static AtomicLong globalExternalDataSize = new AtomicLong(0);
+  private static final LongAdder globalExternalDataSize = new LongAdder();
 
   /*
    * This tracks global index blocks size (memory allocated for index blocks)
    */
-  private static AtomicLong globalBlockIndexSize = new AtomicLong(0);
+  private static final LongAdder globalBlockIndexSize = new LongAdder();
 
   /*
    * This tracks global data size in index blocks (data can be allocated outside
@@ -132,11 +163,29 @@ public class BigSortedMap {
   /*
    * This tracks global index size (total index size >= total data in index blocks  size)
    */
-  private static AtomicLong globalIndexSize = new AtomicLong(0);
+  private static final LongAdder globalIndexSize = new LongAdder();
+
+  /*
+   * This tracks total number of expired keys reclaimed (lazily or by active expiration)
+   */
+  private static final LongAdder globalExpiredKeys = new LongAdder();
+
+  /*
+   * This tracks total memory of expired keys reclaimed (lazily or by active expiration)
+   */
+  private static final LongAdder globalExpiredBytes = new LongAdder();
 
   /** For system logging versioning */
   private static AtomicLong sequenceID = new AtomicLong(0);
 
+  /** Maximum age of the approximate global allocated memory in ns */
+  static final long APPROX_ALLOCATED_MEMORY_TTL = 1000000;
+
+  /* Approximate global allocated memory and time of its last update (see
+   * getGlobalAllocatedMemoryApprox) */
+  private static volatile long approxAllocatedMemory;
+  private static volatile long approxAllocatedMemoryTime = System.nanoTime();
+
   /** Global memory limit (Long.MAX_VALUE - no limit is default) */
   private static long globalMemoryLimit = Long.MAX_VALUE;
 
@@ -189,6 +238,70 @@ public class BigSortedMap {
         }
       };
 
+  /** Size of a buffer for expired keys collected from an index block */
+  static final int EXPIRED_KEYS_BUFFER_SIZE = 64 * 1024;
+
+  /*
+   * We need this buffer to keep expired keys during active expiration
+   */
+  static ThreadLocal<Long> expiredKeysBuffer =
+      new ThreadLocal<Long>() {
+        @Override
+        protected Long initialValue() {
+          return UnsafeAccess.malloc(EXPIRED_KEYS_BUFFER_SIZE);
+        }
+      };
+
+  static ThreadLocal<ReclaimExpired> reclaimExpired =
+      new ThreadLocal<ReclaimExpired>() {
+        @Override
+        protected ReclaimExpired initialValue() {
+          return new ReclaimExpired();
+        }
+      };
+
+  static ThreadLocal<GetForUpdate> getForUpdate =
+      new ThreadLocal<GetForUpdate>() {
+        @Override
+        protected GetForUpdate initialValue() {
+          return new GetForUpdate();
+        }
+      };
+
+  /* Key of a record, which is reclaimed by active expiration */
+  static ThreadLocal<Key> sweepKey =
+      new ThreadLocal<Key>() {
+        @Override
+        protected Key initialValue() {
+          return new Key(0, 0);
+        }
+      };
+
+  /** Custom allocations of deleted records, which are freed after block lock is released */
+  static final class DetachedAllocs {
+    DataBlock.DeAllocator[] deallocators = new DataBlock.DeAllocator[4];
+    long[] handles = new long[4];
+    int size;
+
+    void add(DataBlock.DeAllocator d, long handle) {
+      if (size == handles.length) {
+        deallocators = Arrays.copyOf(deallocators, 2 * size);
+        handles = Arrays.copyOf(handles, 2 * size);
+      }
+      deallocators[size] = d;
+      handles[size] = handle;
+      size++;
+    }
+  }
+
+  static ThreadLocal<DetachedAllocs> detachedAllocs =
+      new ThreadLocal<DetachedAllocs>() {
+        @Override
+        protected DetachedAllocs initialValue() {
+          return new DetachedAllocs();
+        }
+      };
+
   /**
    * Set global memory limit
    *
@@ -268,17 +381,50 @@ public class BigSortedMap {
    * @return total allocated memory
    */
   public static long getGlobalAllocatedMemory() {
-    return globalAllocatedMemory.get();
+    return globalAllocatedMemory.sum();
+  }
+
+  /**
+   * Get approximate global allocated memory - the exact value computed not more than
+   * APPROX_ALLOCATED_MEMORY_TTL ns ago. This is cheap, use it for memory limit checks on a hot
+   * path.
+   *
+   * @return approximate total allocated memory
+   */
+  public static long getGlobalAllocatedMemoryApprox() {
+    long now = System.nanoTime();
+    if (now - approxAllocatedMemoryTime > APPROX_ALLOCATED_MEMORY_TTL) {
+      approxAllocatedMemory = globalAllocatedMemory.sum();
+      approxAllocatedMemoryTime = now;
+    }
+    return approxAllocatedMemory;
+  }
+
+  /**
+   * Is global memory limit reached. The exact allocated memory is computed only when the
+   * approximate one is close to the limit (within 1/64 of it).
+   *
+   * @return true or false
+   */
+  public static boolean isGlobalMemoryLimitReached() {
+    long limit = globalMemoryLimit;
+    if (getGlobalAllocatedMemoryApprox() < limit - (limit >>> 6)) {
+      return false;
+    }
+    long allocated = globalAllocatedMemory.sum();
+    approxAllocatedMemory = allocated;
+    approxAllocatedMemoryTime = System.nanoTime();
+    return allocated >= limit;
   }
 
   /**
    * Increment global allocated memory
    *
-   * @return global allocated memory after increment
+   * @param incr increment value
    */
-  public static long incrGlobalAllocatedMemory(long incr) {
-    if (isStatsUpdatesDisabled()) return 0;
-    return globalAllocatedMemory.addAndGet(incr);
+  public static void incrGlobalAllocatedMemory(long incr) {
+    if (isStatsUpdatesDisabled()) return;
+    globalAllocatedMemory.add(incr);
   }
 
   /**
@@ -287,17 +433,17 @@ public class BigSortedMap {
    * @return global memory allocated for data blocks
    */
   public static long getGlobalBlockDataSize() {
-    return globalBlockDataSize.get();
+    return globalBlockDataSize.sum();
   }
 
   /**
    * Increment global block data size - memory allocated for data blocks
    *
-   * @return global block data size after increment
+   * @param incr increment value
    */
-  public static long incrGlobalBlockDataSize(long incr) {
-    if (isStatsUpdatesDisabled()) return 0;
-    return globalBlockDataSize.addAndGet(incr);
+  public static void incrGlobalBlockDataSize(long incr) {
+    if (isStatsUpdatesDisabled()) return;
+    globalBlockDataSize.add(incr);
   }
 
   /**
@@ -306,17 +452,17 @@ public class BigSortedMap {
    * @return memory
    */
   public static long getGlobalDataInDataBlockSize() {
-    return globalDataInDataBlocksSize.get();
+    return globalDataInDataBlocksSize.sum();
   }
 
   /**
    * Increment global data in data block size
    *
-   * @return global data in data block size after increment
+   * @param incr increment value
    */
-  public static long incrGlobalDataInDataBlockSize(long incr) {
-    if (isStatsUpdatesDisabled()) return 0;
-    return globalDataInDataBlocksSize.addAndGet(incr);
+  public static void incrGlobalDataInDataBlockSize(long incr) {
+    if (isStatsUpdatesDisabled()) return;
+    globalDataInDataBlocksSize.add(incr);
   }
 
   /**
@@ -325,20 +471,19 @@ public class BigSortedMap {
    * @return memory
    */
   public static long getGlobalBlockIndexSize() {
-    return globalBlockIndexSize.get();
+    return globalBlockIndexSize.sum();
   }
 
   /**
    * Increment global memory allocated for index blocks
    *
    * @param incr increment value
-   * @return memory after increment
    */
-  public static long incrGlobalBlockIndexSize(long incr) {
+  public static void incrGlobalBlockIndexSize(long incr) {
     // We need updates to index during data loading
     // b/c index size will be lesser
     // if (isStatsUpdatesDisabled()) return 0;
-    return globalBlockIndexSize.addAndGet(incr);
+    globalBlockIndexSize.add(incr);
   }
 
   /**
@@ -347,7 +492,7 @@ public class BigSortedMap {
    * @return global data size
    */
   public static long getGlobalDataSize() {
-    return globalExternalDataSize.get() + globalDataInDataBlocksSize.get();
+    return globalExternalDataSize.sum() + globalDataInDataBlocksSize.sum();
   }
 
   /**
@@ -356,18 +501,17 @@ public class BigSortedMap {
    * @return global size of a compressed data
    */
   public static long getGlobalCompressedDataSize() {
-    return globalCompressedDataInDataBlocksSize.get();
+    return globalCompressedDataInDataBlocksSize.sum();
   }
 
   /**
    * Increment global compressed data size
    *
    * @param incr increment value
-   * @return global size of a compressed data after an increment
    */
-  public static long incrGlobalCompressedDataSize(long incr) {
-    if (isStatsUpdatesDisabled()) return 0;
-    return globalCompressedDataInDataBlocksSize.addAndGet(incr);
+  public static void incrGlobalCompressedDataSize(long incr) {
+    if (isStatsUpdatesDisabled()) return;
+    globalCompressedDataInDataBlocksSize.add(incr);
   }
 
   /**
@@ -376,18 +520,17 @@ public class BigSortedMap {
    * @return global size of a compressed data
    */
   public static long getGlobalExternalDataSize() {
-    return globalExternalDataSize.get();
+    return globalExternalDataSize.sum();
   }
 
   /**
    * Increment global external data size. This is external data + external index data
    *
    * @param incr increment value
-   * @return global size of a compressed data after an increment
    */
-  public static long incrGlobalExternalDataSize(long incr) {
-    if (isStatsUpdatesDisabled()) return 0;
-    return globalExternalDataSize.addAndGet(incr);
+  public static void incrGlobalExternalDataSize(long incr) {
+    if (isStatsUpdatesDisabled()) return;
+    globalExternalDataSize.add(incr);
   }
 
   /**
@@ -397,18 +540,35 @@ public class BigSortedMap {
    * @return global index size
    */
   public static long getGlobalIndexSize() {
-    return globalIndexSize.get();
+    return globalIndexSize.sum();
   }
 
   /**
    * Increment global index size
    *
    * @param incr increment value
-   * @return global index size after an increment
    */
-  public static long incrGlobalIndexSize(long incr) {
+  public static void incrGlobalIndexSize(long incr) {
     // if (isStatsUpdatesDisabled()) return 0;
-    return globalIndexSize.addAndGet(incr);
+    globalIndexSize.add(incr);
+  }
+
+  /**
+   * Get total number of reclaimed expired keys
+   *
+   * @return number of expired keys
+   */
+  public static long getGlobalExpiredKeys() {
+    return globalExpiredKeys.sum();
+  }
+
+  /**
+   * Get total memory of reclaimed expired keys
+   *
+   * @return memory in bytes
+   */
+  public static long getGlobalExpiredBytes() {
+    return globalExpiredBytes.sum();
   }
 
   /**
@@ -426,7 +586,7 @@ public class BigSortedMap {
    * @param incr increment value
    * @return global index size after an increment
    */
-//  public static long incrGlobalDataInIndexBlocksSize(long incr) {
+//  public static void incrGlobalDataInIndexBlocksSize(long incr) {
 //    // if (isStatsUpdatesDisabled()) return 0;
 //    return globalDataInIndexBlocksSize.addAndGet(incr);
 //  }
@@ -465,14 +625,15 @@ public class BigSortedMap {
   /** Reset all counters */
   public static void resetStats() {
     // Clear all counters;
-    globalAllocatedMemory.set(0);
-    globalBlockDataSize.set(0);
-    globalBlockIndexSize.set(0);
-    globalCompressedDataInDataBlocksSize.set(0);
-    globalDataInDataBlocksSize.set(0);
+    globalAllocatedMemory.reset();
+    approxAllocatedMemory = 0;
+    globalBlockDataSize.reset();
+    globalBlockIndexSize.reset();
+    globalCompressedDataInDataBlocksSize.reset();
+    globalDataInDataBlocksSize.reset();
     //globalDataInIndexBlocksSize.set(0);
-    globalExternalDataSize.set(0);
-    globalIndexSize.set(0);
+    globalExternalDataSize.reset();
+    globalIndexSize.reset();
   }
   /**
    * Checks if stats updates disabled
@@ -502,35 +663,35 @@ public class BigSortedMap {
   ReentrantReadWriteLock[] indexLocks = new ReentrantReadWriteLock[11113];
 
   /** This tracks instance allocated memory */
-  AtomicLong allocatedMemory = new AtomicLong(0);
+  final LongAdder allocatedMemory = new LongAdder();
 
   /*
    * This tracks instance data blocks size (memory allocated for data blocks)
    */
-  AtomicLong blockDataSize = new AtomicLong(0);
+  final LongAdder blockDataSize = new LongAdder();
 
   /*
    * This tracks instance data size in data blocks (data can be allocated outside
    * data blocks)
    */
-  AtomicLong dataInDataBlocksSize = new AtomicLong(0);
+  final LongAdder dataInDataBlocksSize = new LongAdder();
 
   /*
    * This tracks instance compressed data size in data blocks (data can be allocated outside
    * data blocks)
    */
 
-  AtomicLong compressedDataInDataBlocksSize = new AtomicLong(0);
+  final LongAdder compressedDataInDataBlocksSize = new LongAdder();
 
   /*
    * This tracks instance data size allocated externally (not in data blocks)
    */
-  AtomicLong externalDataSize = new AtomicLong(0);
+  final LongAdder externalDataSize = new LongAdder();
 
   /*
    * This tracks instance index blocks size (memory allocated for index blocks)
    */
-  AtomicLong blockIndexSize = new AtomicLong(0);
+  final LongAdder blockIndexSize = new LongAdder();
 
   /*
    * This tracks instance data size in index blocks (data can be allocated outside
@@ -541,7 +702,7 @@ public class BigSortedMap {
   /*
    * This tracks instance index size (total index size >= total data in index blocks  size)
    */
-  AtomicLong indexSize = new AtomicLong(0);
+  final LongAdder indexSize = new LongAdder();
 
   /** Last snapshot time in ms */
   long lastSnapshotTimestamp;
@@ -549,6 +710,130 @@ public class BigSortedMap {
   /** Snapshot directory */
   String snapshotDir;
 
+  /** Write-ahead log of mutations since the last snapshot */
+  private volatile WriteAheadLog wal;
+
+  /** Hash slots of the store (cluster node), null - store owns all slots */
+  private volatile SlotMap slotMap;
+
+  /** Eviction scan position: first key of the last sampled index block */
+  private volatile byte[] evictionCursor;
+
+  /** Location of an index block's data in a snapshot data file */
+  static final class SnapshotExtent {
+    /* Data file name (in snapshot directory) */
+    final String file;
+    /* Offset in the file */
+    final long offset;
+    /* Length of data */
+    final long length;
+
+    SnapshotExtent(String file, long offset, long length) {
+      this.file = file;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /** State of an index block at a snapshot point: serialized data or its extent in the base */
+  static final class SnapshotBlock {
+    final byte[] data;
+    final SnapshotExtent extent;
+
+    SnapshotBlock(byte[] data, SnapshotExtent extent) {
+      this.data = data;
+      this.extent = extent;
+    }
+  }
+
+  /** Copy-on-write state of a snapshot in progress */
+  static final class SnapshotContext {
+    /* Snapshot epoch */
+    final long epoch;
+    /* Epoch of the base snapshot (incremental snapshot) or -1 (full snapshot) */
+    final long baseEpoch;
+    /* Copies of blocks, which were modified before snapshot saved them */
+    final ConcurrentHashMap<IndexBlock, SnapshotBlock> preserved =
+        new ConcurrentHashMap<IndexBlock, SnapshotBlock>();
+    /* First WAL segment after the snapshot point */
+    long walSegment;
+    /* Number of changes at the snapshot point */
+    long changes;
+    /* Number of index blocks in the snapshot */
+    volatile int blocksTotal;
+    /* Number of index blocks processed */
+    final AtomicLong blocksSaved = new AtomicLong();
+    /* Number of bytes written */
+    final AtomicLong bytesWritten = new AtomicLong();
+    /* Blocks' data are compressed (LZ4 frames) */
+    boolean compressed;
+
+    SnapshotContext(long epoch, long baseEpoch) {
+      this.epoch = epoch;
+      this.baseEpoch = baseEpoch;
+    }
+  }
+
+  /** Snapshot in progress or null */
+  private volatile SnapshotContext snapshotContext;
+
+  /** Epoch of the last started snapshot */
+  private volatile long snapshotEpoch;
+
+  /** Snapshots and FLUSHALL are mutually exclusive */
+  private final Object snapshotLock = new Object();
+
+  /** Epoch of the last successful snapshot or -1 (guarded by snapshotLock) */
+  private long savedEpoch = -1;
+
+  /** Generation of data files of the last incremental snapshot (guarded by snapshotLock) */
+  private int snapshotGeneration;
+
+  /** Number of incremental snapshots since the last full one (guarded by snapshotLock) */
+  private int incrementalSnapshots;
+
+  /** Size of data in the last snapshot (guarded by snapshotLock) */
+  private long snapshotLiveSize;
+
+  /** Total size of data files of the last snapshot (guarded by snapshotLock) */
+  private long snapshotDataSize;
+
+  /** Are data of the last snapshot compressed (guarded by snapshotLock) */
+  private boolean snapshotCompressed;
+
+  /** Number of changes (successful mutating commands) since the store was created */
+  private final LongAdder changes = new LongAdder();
+
+  /** Number of changes at the point of the last successful snapshot */
+  private volatile long snapshotChanges;
+
+  /** Start time of a snapshot in progress or 0 */
+  private volatile long snapshotStartTime;
+
+  /** Status of the last snapshot */
+  private volatile boolean lastSnapshotStatus = true;
+
+  /** Duration of the last snapshot in ms or -1 */
+  private volatile long lastSnapshotDuration = -1;
+
+  /** Number of bytes written by the last snapshot */
+  private volatile long lastSnapshotBytes;
+
+  /** Type of the last snapshot */
+  private volatile boolean lastSnapshotIncremental;
+
+  /** Number of successful snapshots */
+  private final AtomicLong snapshotCount = new AtomicLong();
+
+  /** Snapshot serialization buffer per thread */
+  private static ThreadLocal<ByteBuffer> snapshotBuffer =
+      new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+          return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+      };
+
   /** Little hack */
   private long indexBlockSizeBeforeSnapshot;
 
@@ -634,6 +919,108 @@ public class BigSortedMap {
     this.lastSnapshotTimestamp = timestamp;
   }
 
+  /** Records a change (successful mutating command) */
+  public void incrementChanges() {
+    changes.increment();
+  }
+
+  /**
+   * Returns number of changes since the last successful snapshot
+   *
+   * @return number of changes
+   */
+  public long getChangesSinceLastSnapshot() {
+    return Math.max(0, changes.sum() - snapshotChanges);
+  }
+
+  /**
+   * Is snapshot in progress
+   *
+   * @return true or false
+   */
+  public boolean isSnapshotInProgress() {
+    return snapshotStartTime > 0;
+  }
+
+  /**
+   * Returns duration of a snapshot in progress
+   *
+   * @return duration in ms or -1
+   */
+  public long getCurrentSnapshotDuration() {
+    long start = snapshotStartTime;
+    return start > 0 ? System.currentTimeMillis() - start : -1;
+  }
+
+  /**
+   * Returns progress of a snapshot in progress
+   *
+   * @return progress in percents or -1
+   */
+  public double getSnapshotProgress() {
+    SnapshotContext ctx = this.snapshotContext;
+    if (ctx == null) {
+      return -1;
+    }
+    int total = ctx.blocksTotal;
+    return total > 0 ? ctx.blocksSaved.get() * 100.0 / total : 0;
+  }
+
+  /**
+   * Returns number of bytes written by a snapshot in progress
+   *
+   * @return number of bytes
+   */
+  public long getCurrentSnapshotBytes() {
+    SnapshotContext ctx = this.snapshotContext;
+    return ctx != null ? ctx.bytesWritten.get() : 0;
+  }
+
+  /**
+   * Returns status of the last snapshot
+   *
+   * @return true if the last snapshot succeeded (or there were no snapshots)
+   */
+  public boolean getLastSnapshotStatus() {
+    return lastSnapshotStatus;
+  }
+
+  /**
+   * Returns duration of the last snapshot
+   *
+   * @return duration in ms or -1
+   */
+  public long getLastSnapshotDuration() {
+    return lastSnapshotDuration;
+  }
+
+  /**
+   * Returns number of bytes written by the last snapshot
+   *
+   * @return number of bytes
+   */
+  public long getLastSnapshotBytes() {
+    return lastSnapshotBytes;
+  }
+
+  /**
+   * Was the last snapshot incremental
+   *
+   * @return true or false
+   */
+  public boolean isLastSnapshotIncremental() {
+    return lastSnapshotIncremental;
+  }
+
+  /**
+   * Returns number of successful snapshots
+   *
+   * @return number of snapshots
+   */
+  public long getSnapshotCount() {
+    return snapshotCount.get();
+  }
+
   /**
    * Get snapshot directory for this store
    *
@@ -649,9 +1036,51 @@ public class BigSortedMap {
    * @param dir snapshot directory path
    */
   public void setSnapshotDir(String dir) {
+    synchronized (snapshotLock) {
+      if (dir == null || !dir.equals(this.snapshotDir)) {
+        // Next snapshot in a new directory must be a full one
+        this.savedEpoch = -1;
+      }
+    }
     this.snapshotDir = dir;
   }
 
+  /**
+   * Get write-ahead log
+   *
+   * @return write-ahead log or null
+   */
+  public WriteAheadLog getWAL() {
+    return this.wal;
+  }
+
+  /**
+   * Set write-ahead log for the store
+   *
+   * @param wal write-ahead log
+   */
+  public void setWAL(WriteAheadLog wal) {
+    this.wal = wal;
+  }
+
+  /**
+   * Get hash slots of the store
+   *
+   * @return slot map or null, if the store owns all slots
+   */
+  public SlotMap getSlotMap() {
+    return this.slotMap;
+  }
+
+  /**
+   * Set hash slots of the store (cluster node)
+   *
+   * @param slotMap slot map or null - store owns all slots
+   */
+  public void setSlotMap(SlotMap slotMap) {
+    this.slotMap = slotMap;
+  }
+
   /** Prints memory allocation statistics for the store */
   public void printMemoryAllocationStats() {
     log.debug("Carrot memory allocation statistics [id={}]:", Thread.currentThread().getName());
@@ -677,20 +1106,20 @@ public class BigSortedMap {
    * @return instance allocated memory
    */
   public long getInstanceAllocatedMemory() {
-    return allocatedMemory.get();
+    return allocatedMemory.sum();
   }
 
   /**
    * Increment instance allocated memory
    *
-   * @return allocated memory after increment
+   * @param incr increment value
    */
-  public long incrInstanceAllocatedMemory(long incr) {
-    if (isStatsUpdatesDisabled()) return 0;
+  public void incrInstanceAllocatedMemory(long incr) {
+    if (isStatsUpdatesDisabled()) return;
     // Increment global
     incrGlobalAllocatedMemory(incr);
     // Increment instance
-    return allocatedMemory.addAndGet(incr);
+    allocatedMemory.add(incr);
   }
 
   /**
@@ -699,20 +1128,20 @@ public class BigSortedMap {
    * @return memory allocated for data blocks
    */
   public long getInstanceBlockDataSize() {
-    return blockDataSize.get();
+    return blockDataSize.sum();
   }
 
   /**
    * Increment instance block data size - memory allocated for data blocks
    *
-   * @return block data size after increment
+   * @param incr increment value
    */
-  public long incrInstanceBlockDataSize(long incr) {
+  public void incrInstanceBlockDataSize(long incr) {
     // if (isStatsUpdatesDisabled()) return 0;
     // Increment global
     incrGlobalBlockDataSize(incr);
     // Increment instance
-    return blockDataSize.addAndGet(incr);
+    blockDataSize.add(incr);
   }
 
   /**
@@ -721,19 +1150,19 @@ public class BigSortedMap {
    * @return memory
    */
   public long getInstanceDataInDataBlockSize() {
-    return dataInDataBlocksSize.get();
+    return dataInDataBlocksSize.sum();
   }
 
   /**
    * Increment instance data in data block size
    *
-   * @return data size in data block size after increment
+   * @param incr increment value
    */
-  public long incrInstanceDataInDataBlockSize(long incr) {
-    if (isStatsUpdatesDisabled()) return 0;
+  public void incrInstanceDataInDataBlockSize(long incr) {
+    if (isStatsUpdatesDisabled()) return;
     // Increment global
     incrGlobalDataInDataBlockSize(incr);
-    return dataInDataBlocksSize.addAndGet(incr);
+    dataInDataBlocksSize.add(incr);
   }
 
   /**
@@ -742,21 +1171,20 @@ public class BigSortedMap {
    * @return memory
    */
   public long getInstanceBlockIndexSize() {
-    return blockIndexSize.get();
+    return blockIndexSize.sum();
   }
 
   /**
    * Increment instance memory allocated for index blocks
    *
    * @param incr increment value
-   * @return memory after increment
    */
-  public long incrInstanceBlockIndexSize(long incr) {
+  public void incrInstanceBlockIndexSize(long incr) {
     // if (isStatsUpdatesDisabled()) return 0;
     // Increment global
     incrGlobalBlockIndexSize(incr);
     // Increment instance
-    return blockIndexSize.addAndGet(incr);
+    blockIndexSize.add(incr);
   }
 
   /**
@@ -765,7 +1193,7 @@ public class BigSortedMap {
    * @return data size
    */
   public long getInstanceDataSize() {
-    return externalDataSize.get() + dataInDataBlocksSize.get();
+    return externalDataSize.sum() + dataInDataBlocksSize.sum();
   }
 
   /**
@@ -774,21 +1202,20 @@ public class BigSortedMap {
    * @return size of a compressed data
    */
   public long getInstanceCompressedDataSize() {
-    return compressedDataInDataBlocksSize.get();
+    return compressedDataInDataBlocksSize.sum();
   }
 
   /**
    * Increment instance compressed data size
    *
    * @param incr increment value
-   * @return size of a compressed data after an increment
    */
-  public long incrInstanceCompressedDataSize(long incr) {
-    if (isStatsUpdatesDisabled()) return 0;
+  public void incrInstanceCompressedDataSize(long incr) {
+    if (isStatsUpdatesDisabled()) return;
     // Increment global
     incrGlobalCompressedDataSize(incr);
     // Increment instance
-    return compressedDataInDataBlocksSize.addAndGet(incr);
+    compressedDataInDataBlocksSize.add(incr);
   }
 
   /**
@@ -797,21 +1224,20 @@ public class BigSortedMap {
    * @return size of a compressed data
    */
   public long getInstanceExternalDataSize() {
-    return externalDataSize.get();
+    return externalDataSize.sum();
   }
 
   /**
    * Increment instance external data size
    *
    * @param incr increment value
-   * @return size of a external data after an increment
    */
-  public long incrInstanceExternalDataSize(long incr) {
-    if (isStatsUpdatesDisabled()) return 0;
+  public void incrInstanceExternalDataSize(long incr) {
+    if (isStatsUpdatesDisabled()) return;
     // Increment global
     incrGlobalExternalDataSize(incr);
     // Increment instance
-    return externalDataSize.addAndGet(incr);
+    externalDataSize.add(incr);
   }
 
   /**
@@ -820,21 +1246,20 @@ public class BigSortedMap {
    * @return global index size
    */
   public long getInstanceIndexSize() {
-    return indexSize.get();
+    return indexSize.sum();
   }
 
   /**
    * Increment instance index size
    *
    * @param incr increment value
-   * @return index size after an increment
    */
-  public long incrInstanceIndexSize(long incr) {
+  public void incrInstanceIndexSize(long incr) {
     // if (isStatsUpdatesDisabled()) return 0;
     // Increment global
     incrGlobalIndexSize(incr);
     // Increment instance
-    return indexSize.addAndGet(incr);
+    indexSize.add(incr);
   }
 
   /**
@@ -852,7 +1277,7 @@ public class BigSortedMap {
    * @param incr increment value
    * @return index size after an increment
    */
-//  public long incrInstanceDataInIndexBlocksSize(long incr) {
+//  public void incrInstanceDataInIndexBlocksSize(long incr) {
 //    // if (isStatsUpdatesDisabled()) return 0;
 //    // Increment global
 //    incrGlobalDataInIndexBlocksSize(incr);
@@ -861,13 +1286,13 @@ public class BigSortedMap {
 //  }
 
   private void adjustCountersAfterLoad() {
-    long loaded = blockIndexSize.get();
+    long loaded = blockIndexSize.sum();
     long addj = indexBlockSizeBeforeSnapshot - loaded;
-    allocatedMemory.addAndGet(-addj);
-    loaded = blockDataSize.get();
+    allocatedMemory.add(-addj);
+    loaded = blockDataSize.sum();
 
     addj = dataBlockSizeBeforeSnapshot - loaded;
-    allocatedMemory.addAndGet(-addj);
+    allocatedMemory.add(-addj);
   }
 
   /**
@@ -990,6 +1415,112 @@ public class BigSortedMap {
     int index = (b.hashCode() % locks.length);
     ReentrantReadWriteLock lock = locks[index];
     lock.writeLock().lock();
+    SnapshotContext ctx = this.snapshotContext;
+    if (ctx != null) {
+      preserveForSnapshot(b, ctx);
+    }
+    b.markModified(snapshotEpoch);
+  }
+
+  /**
+   * Copy-on-write: preserves block's content before its first modification during a snapshot, if
+   * snapshot has not saved it yet. Caller holds write lock on the block.
+   *
+   * @param b index block
+   * @param ctx snapshot context
+   */
+  private void preserveForSnapshot(IndexBlock b, SnapshotContext ctx) {
+    long epoch = b.snapshotEpoch;
+    if (epoch >= ctx.epoch || !b.isValid()) {
+      // Block was created after snapshot start or it has been already preserved
+      return;
+    }
+    if (epoch < 0 || !b.compareAndSetSnapshotEpoch(epoch, ctx.epoch)) {
+      // Snapshot thread is saving the block
+      b.waitSnapshotSaved();
+      return;
+    }
+    if (b.isSnapshotClean(ctx.baseEpoch)) {
+      // Base snapshot has the block's data
+      ctx.preserved.put(b, new SnapshotBlock(null, b.snapshotExtent));
+      return;
+    }
+    try {
+      b.readLock(false);
+      ctx.preserved.put(b, new SnapshotBlock(serializeBlock(b), null));
+    } catch (RetryOperationException e) {
+      // Block has been deleted
+    } catch (IOException e) {
+      // Memory channel does not throw
+      log.error("StackTrace: ", e);
+    } finally {
+      b.readUnlock();
+    }
+  }
+
+  /**
+   * Serializes index block (all its data blocks) into memory
+   *
+   * @param b index block
+   * @return serialized data
+   * @throws IOException
+   */
+  private static byte[] serializeBlock(IndexBlock b) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    WritableByteChannel channel = Channels.newChannel(bos);
+    ByteBuffer buf = snapshotBuffer.get();
+    buf.clear();
+    b.saveData(channel, buf);
+    IOUtils.drainBuffer(buf, channel);
+    return bos.toByteArray();
+  }
+
+  /**
+   * Get epoch of the last started snapshot
+   *
+   * @return epoch
+   */
+  long getSnapshotEpoch() {
+    return snapshotEpoch;
+  }
+
+  /**
+   * Starts a new snapshot epoch. Key locks gate is closed first, so the snapshot point falls between
+   * whole commands (commands keep their keys locked while they run). Then all block locks are
+   * acquired for a moment, so there are no in-flight updates at the snapshot point in time
+   *
+   * @param wal write-ahead log to roll at the snapshot point (can be null)
+   * @param baseEpoch epoch of the base snapshot or -1
+   * @return snapshot context
+   */
+  private SnapshotContext startSnapshotEpoch(WriteAheadLog wal, long baseEpoch) {
+    SnapshotContext ctx = new SnapshotContext(snapshotEpoch + 1, baseEpoch);
+    KeysLocker.lockGate();
+    try {
+      while (true) {
+        int locked = 0;
+        while (locked < locks.length && locks[locked].writeLock().tryLock()) {
+          locked++;
+        }
+        if (locked == locks.length) {
+          // Mutations, which start after this point, go to a new WAL segment
+          ctx.walSegment = wal != null ? wal.roll() : 0;
+          this.snapshotEpoch = ctx.epoch;
+          this.snapshotContext = ctx;
+          ctx.changes = changes.sum();
+        }
+        for (int i = 0; i < locked; i++) {
+          locks[i].writeLock().unlock();
+        }
+        if (locked == locks.length) {
+          return ctx;
+        }
+        // Some operation holds a lock (it can hold several), back off and retry
+        Thread.yield();
+      }
+    } finally {
+      KeysLocker.unlockGate();
+    }
   }
 
   /** Write unlock */
@@ -1086,6 +1617,8 @@ public class BigSortedMap {
           }
         }
 
+        // Access statistics for eviction
+        b.touch();
         // When map is empty, recordAddress is always 0
         // This call ONLY decompresses data
         long recordAddress =
@@ -1097,6 +1630,12 @@ public class BigSortedMap {
           b.compressLastUsedDataBlock();
           continue;
         }
+        long expiredRecordAddress = 0;
+        if (recordAddress > 0 && !op.isFloorKey() && DataBlock.isRecordExpired(recordAddress)) {
+          // Lazy expiration: operation must not see expired record
+          expiredRecordAddress = recordAddress;
+          recordAddress = DataBlock.NOT_FOUND;
+        }
         op.setFoundRecordAddress(recordAddress);
         // Execute operation
         boolean result = op.execute();
@@ -1104,6 +1643,13 @@ public class BigSortedMap {
         boolean compressionEnabled = isCompressionEnabled();
         int updatesCount = op.getUpdatesCount();
 
+        if (expiredRecordAddress > 0 && !readOnly && (result == false || updatesCount == 0)) {
+          // Expired record was not overwritten by operation - reclaim it in place
+          reclaimExpired(b, expiredRecordAddress, op.getKeyAddress(), op.getKeySize(), version,
+              firstBlock);
+          return result;
+        }
+
         if (result == false || (updatesCount == 0 && !compressionEnabled)) {
           b.compressLastUsedDataBlock();
           return result;
@@ -1138,50 +1684,38 @@ public class BigSortedMap {
         b.compressLastUsedDataBlock();
 
         if (updateType == true) { // DELETE
-          // This call compress data block in b
-          OpResult res = b.delete(keyPtr, keyLength, version);
-          if (res == OpResult.SPLIT_REQUIRED) {
-            // delete can fail if the key is the first one in the block
-            // the next key is larger and index block does not have enough space
-            boolean r = delete(keyPtr, keyLength);
-            // MUST ALWAYS BE true
-            assert (r);
-          } else if (res != OpResult.OK) {
-            log.fatal("Unexpected result of delete operation: {}", res);
-            Thread.dumpStack();
-            System.exit(-1);
-          }
-          if (b.isEmpty() && !firstBlock) {
-            map.remove(b);
-            b.free();
-            b.invalidate();
-          }
+          deleteInBlock(b, keyPtr, keyLength, version, firstBlock);
           return true;
-        } else { // PUT
+        } else if (updatesCount < 2) { // PUT
           // This call compress data block in b
           result =
               b.put(keyPtr, keyLength, valuePtr, valueLength, version, op.getExpire(), reuseValue);
-          if (!result && getGlobalAllocatedMemory() < getGlobalMemoryLimit()) {
+          if (!result && !isGlobalMemoryLimitReached()) {
             result = put(keyPtr, keyLength, valuePtr, valueLength, op.getExpire(), reuseValue);
-          } else if (!result) {
-            // MAP is FULL
-            return false;
-          }
-          // block into
-          if (updatesCount < 2) {
-            return result;
           }
+          // false - MAP is FULL
+          return result;
         }
-        // updateCounts == 2 - second is insert new K-V
-        // second key is larger than first one and if first was inserted into new split block
-        // so the second one goes into it as well.
-        keyPtr = keyBuffer2.get();
-        keyLength = op.keySizes()[1];
-        valuePtr = op.values()[1];
-        valueLength = op.valueSizes()[1];
-        updateType = op.updateTypes()[1];
-        reuseValue = op.reuseValues()[1];
-        return put(keyPtr, keyLength, valuePtr, valueLength, op.getExpire(), reuseValue);
+        // updateCounts == 2 - split: first is update of existing K-V, which makes it smaller,
+        // second is insert of new K-V. Insert goes first, so, when the map is full, operation
+        // fails without any change. Insert can split b, therefore both go through the map.
+        long keyPtr2 = keyBuffer2.get();
+        int keyLength2 = op.keySizes()[1];
+        if (!put(
+            keyPtr2,
+            keyLength2,
+            op.values()[1],
+            op.valueSizes()[1],
+            op.getExpire(),
+            op.reuseValues()[1])) {
+          // MAP is FULL
+          return false;
+        }
+        if (!put(keyPtr, keyLength, valuePtr, valueLength, op.getExpire(), reuseValue)) {
+          delete(keyPtr2, keyLength2);
+          return false;
+        }
+        return true;
       } catch (RetryOperationException e) {
         continue;
       } finally {
@@ -1190,6 +1724,7 @@ public class BigSortedMap {
             readUnlock(b);
           } else {
             writeUnlock(b);
+            freeDetachedAllocs();
           }
         }
       }
@@ -1197,18 +1732,292 @@ public class BigSortedMap {
   }
 
   /**
-   * Put key-value (for testing only)
+   * Deletes key from an index block. Caller must hold write lock on the block
    *
-   * @param key key byte array
-   * @param off key offset in a byte array
-   * @param len key's length
-   * @param value value byte array
-   * @param valoff value offset
-   * @param vallen value length
-   * @param expire expire
-   * @return true - success, false - otherwise (OOM)
-   */
-  public boolean put(
+   * @param b index block
+   * @param keyPtr key address
+   * @param keyLength key length
+   * @param version version
+   * @param firstBlock true if b is the first index block in the map
+   */
+  private void deleteInBlock(
+      IndexBlock b, long keyPtr, int keyLength, long version, boolean firstBlock) {
+    // This call compress data block in b
+    OpResult res = b.delete(keyPtr, keyLength, version);
+    if (res == OpResult.SPLIT_REQUIRED) {
+      // delete can fail if the key is the first one in the block
+      // the next key is larger and index block does not have enough space
+      boolean r = delete(keyPtr, keyLength);
+      // MUST ALWAYS BE true
+      assert (r);
+    } else if (res != OpResult.OK) {
+      log.fatal("Unexpected result of delete operation: {}", res);
+      Thread.dumpStack();
+      System.exit(-1);
+    }
+    if (b.isEmpty() && !firstBlock) {
+      map.remove(b);
+      b.free();
+      b.invalidate();
+    }
+  }
+
+  /**
+   * Reclaims expired record in place. Caller must hold write lock on the block
+   *
+   * @param b index block
+   * @param recordAddress expired record address (in a decompressed data block)
+   * @param keyPtr key address
+   * @param keyLength key length
+   * @param version version
+   * @param firstBlock true if b is the first index block in the map
+   */
+  private void reclaimExpired(
+      IndexBlock b,
+      long recordAddress,
+      long keyPtr,
+      int keyLength,
+      long version,
+      boolean firstBlock) {
+    long size = DataBlock.getRecordAllocatedSize(recordAddress);
+    // Complex types (Lists) keep additional memory outside of a record, it is freed after the
+    // block lock is released
+    detachCustomAllocs(recordAddress);
+    // Compress again to preserve compressed data ptr
+    b.compressLastUsedDataBlock();
+    deleteInBlock(b, keyPtr, keyLength, version, firstBlock);
+    globalExpiredKeys.increment();
+    globalExpiredBytes.add(size);
+  }
+
+  /**
+   * Detaches custom allocations of a record, which is deleted under block write lock
+   *
+   * @param recordAddress record address
+   */
+  private static void detachCustomAllocs(long recordAddress) {
+    List<DataBlock.DeAllocator> deallocators = DataBlock.customDeallocators;
+    for (int i = 0; i < deallocators.size(); i++) {
+      DataBlock.DeAllocator d = deallocators.get(i);
+      if (d.isCustomRecord(recordAddress)) {
+        long handle = d.detach(recordAddress);
+        if (handle != 0) {
+          detachedAllocs.get().add(d, handle);
+        }
+        return;
+      }
+    }
+  }
+
+  /** Frees custom allocations detached by this thread. Caller must not hold block locks */
+  private void freeDetachedAllocs() {
+    DetachedAllocs detached = detachedAllocs.get();
+    for (int i = 0; i < detached.size; i++) {
+      detached.deallocators[i].freeDetached(this, detached.handles[i]);
+      detached.deallocators[i] = null;
+    }
+    detached.size = 0;
+  }
+
+  /**
+   * Checks if a key belongs to a record with custom allocations
+   *
+   * @param keyPtr key address
+   * @param keySize key size
+   * @return true or false
+   */
+  private static boolean isCustomKey(long keyPtr, int keySize) {
+    List<DataBlock.DeAllocator> deallocators = DataBlock.customDeallocators;
+    for (int i = 0; i < deallocators.size(); i++) {
+      if (deallocators.get(i).isCustomKey(keyPtr, keySize)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Active expiration. Scans index blocks, starting with the one next to an index block with a
+   * given first key, and reclaims expired records in place until deadline is reached.
+   *
+   * @param lastKey first key of the last scanned index block, null - start from the beginning
+   * @param deadline time limit (in terms of System.nanoTime())
+   * @return first key of the last scanned index block or null, if the end of the map was reached
+   */
+  public byte[] sweepExpired(byte[] lastKey, long deadline) {
+    IndexBlock b = lastKey == null ? firstIndexBlock() : higherIndexBlock(lastKey);
+    long buffer = expiredKeysBuffer.get();
+    ReclaimExpired op = reclaimExpired.get();
+    while (b != null) {
+      int size = 0;
+      readLock(b);
+      try {
+        if (!b.isValid()) {
+          // Block was merged or split - repeat from the last known position
+          return lastKey;
+        }
+        size = b.collectExpiredKeys(System.currentTimeMillis(), buffer, EXPIRED_KEYS_BUFFER_SIZE);
+        lastKey = b.getFirstKey();
+      } finally {
+        readUnlock(b);
+      }
+      int off = 0;
+      Key key = sweepKey.get();
+      while (off < size) {
+        int keySize = UnsafeAccess.toInt(buffer + off);
+        long keyPtr = buffer + off + Utils.SIZEOF_INT;
+        // Custom allocations (List segments) are used by commands, which hold key lock,
+        // outside of block locks. Key lock is taken first, as commands do
+        boolean custom = isCustomKey(keyPtr, keySize);
+        if (custom) {
+          key.address = DataType.internalKeyToExternalKeyAddress(keyPtr);
+          key.length = DataType.externalKeyLength(keyPtr);
+          KeysLocker.writeLock(key);
+        }
+        try {
+          op.reset();
+          op.setKeyAddress(keyPtr);
+          op.setKeySize(keySize);
+          // Record expiration is re-checked under write lock
+          execute(op);
+        } finally {
+          if (custom) {
+            KeysLocker.writeUnlock(key);
+          }
+        }
+        off += keySize + Utils.SIZEOF_INT;
+      }
+      if (System.nanoTime() >= deadline) {
+        return lastKey;
+      }
+      b = higherIndexBlock(lastKey);
+    }
+    return null;
+  }
+
+  /**
+   * Selects a key to evict. Samples index blocks, starting from the position, where the previous
+   * call stopped, and selects a candidate by policy: first record of the least recently used
+   * (allkeys-lru), least frequently used (allkeys-lfu) or random (allkeys-random) block, or the
+   * record, which expires first (volatile-ttl). The key is copied into a buffer as [size][key]
+   *
+   * @param policy eviction policy
+   * @param samples number of index blocks to sample
+   * @param bufferPtr buffer address
+   * @param bufferSize buffer size
+   * @return key size, 0 - no candidates were found
+   */
+  public int nextEvictionCandidate(
+      EvictionPolicy policy, int samples, long bufferPtr, int bufferSize) {
+    if (policy == EvictionPolicy.NOEVICTION || samples <= 0) {
+      return 0;
+    }
+    byte[] lastKey = evictionCursor;
+    IndexBlock b = lastKey == null ? null : higherIndexBlock(lastKey);
+    int now = IndexBlock.clock();
+    int pick = ThreadLocalRandom.current().nextInt(samples);
+    IndexBlock candidate = null;
+    IndexBlock first = null;
+    long bestScore = -1;
+    long expire = Long.MAX_VALUE;
+    for (int i = 0; i < samples; i++) {
+      if (b == null) {
+        // Wrap around
+        b = firstIndexBlock();
+        if (b == null) {
+          return 0;
+        }
+      }
+      if (b == first) {
+        // All blocks have been sampled
+        break;
+      } else if (first == null) {
+        first = b;
+      }
+      lastKey = b.getFirstKey();
+      switch (policy) {
+        case ALLKEYS_LRU:
+          long idle = b.getIdleTime(now);
+          if (idle > bestScore) {
+            bestScore = idle;
+            candidate = b;
+          }
+          break;
+        case ALLKEYS_LFU:
+          // Less frequently used first, then - least recently used
+          long score =
+              ((long) (IndexBlock.LFU_MAX_VALUE - b.getAccessCounter(now)) << 32)
+                  | b.getIdleTime(now);
+          if (score > bestScore) {
+            bestScore = score;
+            candidate = b;
+          }
+          break;
+        case ALLKEYS_RANDOM:
+          if (i == pick) {
+            candidate = b;
+          }
+          break;
+        default:
+          readLock(b);
+          try {
+            if (b.isValid()) {
+              expire = b.getNearestExpiration(expire, bufferPtr, bufferSize);
+            }
+          } finally {
+            readUnlock(b);
+          }
+      }
+      b = higherIndexBlock(lastKey);
+    }
+    evictionCursor = lastKey;
+    if (policy == EvictionPolicy.VOLATILE_TTL) {
+      return expire < Long.MAX_VALUE ? UnsafeAccess.toInt(bufferPtr) : 0;
+    }
+    if (candidate == null) {
+      return 0;
+    }
+    readLock(candidate);
+    try {
+      if (!candidate.isValid()) {
+        return 0;
+      }
+      return candidate.getEvictionCandidate(
+          policy == EvictionPolicy.ALLKEYS_RANDOM, bufferPtr, bufferSize);
+    } finally {
+      readUnlock(candidate);
+    }
+  }
+
+  private IndexBlock firstIndexBlock() {
+    Map.Entry<IndexBlock, IndexBlock> first = map.firstEntry();
+    return first == null ? null : first.getKey();
+  }
+
+  private IndexBlock higherIndexBlock(byte[] key) {
+    long keyPtr = UnsafeAccess.allocAndCopy(key, 0, key.length);
+    try {
+      IndexBlock kvBlock = getThreadLocalBlock();
+      kvBlock.putForSearch(keyPtr, key.length, 0);
+      return map.higherKey(kvBlock);
+    } finally {
+      UnsafeAccess.free(keyPtr);
+    }
+  }
+
+  /**
+   * Put key-value (for testing only)
+   *
+   * @param key key byte array
+   * @param off key offset in a byte array
+   * @param len key's length
+   * @param value value byte array
+   * @param valoff value offset
+   * @param vallen value length
+   * @param expire expire
+   * @return true - success, false - otherwise (OOM)
+   */
+  public boolean put(
       byte[] key, int off, int len, byte[] value, int valoff, int vallen, long expire) {
     long keyPtr = UnsafeAccess.allocAndCopy(key, off, len);
     long valuePtr = UnsafeAccess.allocAndCopy(value, valoff, vallen);
@@ -1275,7 +2084,7 @@ public class BigSortedMap {
         }
         boolean result =
             b.put(keyPtr, keyLength, valuePtr, valueLength, version, expire, reuseValue);
-        if (!result && getGlobalAllocatedMemory() < getGlobalMemoryLimit()) {
+        if (!result && !isGlobalMemoryLimitReached()) {
           IndexBlock bb = null;
           bb = b.split();
           // block into
@@ -1285,6 +2094,7 @@ public class BigSortedMap {
           // MAP is FULL
           return false;
         } else {
+          b.touch();
           return true;
         }
       } catch (RetryOperationException e) {
@@ -1484,6 +2294,7 @@ public class BigSortedMap {
           }
           result = b.get(keyPtr, keyLength, valueBuf, valueBufLength, version);
         }
+        b.touch();
         return result;
       } catch (RetryOperationException e) {
         continue;
@@ -1495,6 +2306,33 @@ public class BigSortedMap {
     }
   }
 
+  /**
+   * Get value by key under index block write lock. Must be used instead of get(), when a caller is
+   * going to modify memory referenced by the value (List segments) without updating the record
+   * itself: the index block is marked as modified and preserved for a running snapshot before the
+   * change is made. Caller must hold the key lock.
+   *
+   * @param keyPtr address to look for
+   * @param keyLength key length
+   * @param valueBuf value buffer address
+   * @param valueBufLength value buffer length
+   * @return value length if found, or NOT_FOUND. if value length > valueBufLength no copy will be
+   *     made - one must repeat call with new value buffer
+   */
+  public long getForUpdate(long keyPtr, int keyLength, long valueBuf, int valueBufLength) {
+    GetForUpdate op = getForUpdate.get();
+    try {
+      op.reset();
+      op.setKeyAddress(keyPtr);
+      op.setKeySize(keyLength);
+      op.setBuffer(valueBuf, valueBufLength);
+      execute(op);
+      return op.getValueLength();
+    } finally {
+      op.reset();
+    }
+  }
+
   /**
    * Returns the greatest key, which is less or equals to a given key
    *
@@ -2197,8 +3035,11 @@ public class BigSortedMap {
 
   public void flushAll() {
     long start = System.currentTimeMillis();
-    dispose();
-    initNodes();
+    synchronized (snapshotLock) {
+      // Snapshot in progress must complete first
+      dispose();
+      initNodes();
+    }
     long end = System.currentTimeMillis();
     log.debug("[{}] flushall took:{}ms", Thread.currentThread().getName(), end - start);
   }
@@ -2257,8 +3098,102 @@ public class BigSortedMap {
 
   private static int BUFFER_SIZE = 256 * 1024;
 
+  /** Snapshot sub-directory, which contains manifest and segment files */
+  static final String SNAPSHOT_DIR = "snapshot";
+
+  /** Directory of a snapshot in progress */
+  static final String SNAPSHOT_TMP_DIR = "snapshot_tmp";
+
+  /** Snapshot manifest file name */
+  static final String SNAPSHOT_MANIFEST = "snapshot.manifest";
+
+  /** Snapshot segment file name prefix */
+  static final String SNAPSHOT_SEGMENT_PREFIX = "snapshot.data.";
+
+  /** Single file snapshot (legacy format) */
+  static final String LEGACY_SNAPSHOT_FILE = "snapshot.data";
+
+  /** Manifest format version: segment files (loading only) */
+  private static final int SEGMENTS_SNAPSHOT_VERSION = 1;
+
+  /** Manifest format version: extents of blocks' data in data files (loading only) */
+  private static final int INCREMENTAL_SNAPSHOT_VERSION = 2;
+
+  /** Manifest format version: extents of blocks' data in data files and data codec */
+  private static final int SNAPSHOT_VERSION = 3;
+
+  /** Number of store meta fields */
+  private static final int STORE_META_FIELDS = 7;
+
   // WRITE DATA
-  public void snapshot() {
+
+  /**
+   * Saves store snapshot. Key space is split into ranges at index block boundaries, every range is
+   * written by its own thread into its own segment file. Number of threads is configured by
+   * snapshot.threads
+   *
+   * @return true on success, false - otherwise
+   */
+  public boolean snapshot() {
+    return snapshot(RedisConf.getInstance().getSnapshotThreads());
+  }
+
+  /**
+   * Saves store snapshot using a given number of threads. Snapshot is a point-in-time copy of the
+   * store: index blocks, which are modified while snapshot is in progress, are preserved in memory
+   * (copy-on-write) before their first modification.
+   *
+   * <p>Full snapshot writes all index blocks into a temporary directory, the manifest is written
+   * last and then temporary directory replaces the previous snapshot. Incremental snapshot writes
+   * only index blocks, which have been modified since the previous snapshot, into new data files
+   * in the snapshot directory. Its manifest refers to data of unmodified blocks in the existing
+   * data files. Full snapshot is taken (which compacts the chain) when there is no previous
+   * snapshot of the store in this process, after snapshot.incremental.max incremental snapshots or
+   * when live data in snapshot files drops below snapshot.incremental.min.live.percent.
+   *
+   * <p>When snapshot.compression is enabled, data of every index block is written as a single LZ4
+   * frame, which keeps xxhash checksum of the data. Checksums are verified on load.
+   *
+   * @param numThreads number of threads (segments)
+   * @return true on success, false - otherwise
+   */
+  public boolean snapshot(int numThreads) {
+    synchronized (snapshotLock) {
+      long start = System.currentTimeMillis();
+      snapshotStartTime = start;
+      SnapshotStatus status = new SnapshotStatus();
+      try {
+        saveSnapshot(numThreads, status);
+      } finally {
+        lastSnapshotDuration = System.currentTimeMillis() - start;
+        lastSnapshotStatus = status.success;
+        lastSnapshotBytes = status.bytesWritten;
+        lastSnapshotIncremental = status.incremental;
+        snapshotStartTime = 0;
+        if (status.success) {
+          snapshotChanges = status.changes;
+          snapshotCount.incrementAndGet();
+        }
+      }
+      return status.success;
+    }
+  }
+
+  /** Result of a snapshot */
+  private static final class SnapshotStatus {
+    boolean success;
+    boolean incremental;
+    long bytesWritten;
+    long changes;
+  }
+
+  /**
+   * Saves store snapshot (called under snapshot lock)
+   *
+   * @param numThreads number of threads (segments)
+   * @param status snapshot result (output)
+   */
+  private void saveSnapshot(int numThreads, SnapshotStatus status) {
     // Check if dir exists
     // Check if snapshotDir is NULL - during tests
     if (snapshotDir == null) {
@@ -2271,108 +3206,506 @@ public class BigSortedMap {
         return;
       }
     }
+    File snapshot = new File(dir, SNAPSHOT_DIR);
+    boolean incremental = isIncrementalSnapshotEnabled(snapshot);
+    File dataDir = incremental ? snapshot : new File(dir, SNAPSHOT_TMP_DIR);
+    if (!incremental && (!deleteSnapshotDir(dataDir) || !dataDir.mkdirs())) {
+      log.error("Snapshot failed. Can not create directory: {}", dataDir.getAbsolutePath());
+      return;
+    }
+    String prefix =
+        incremental
+            ? SNAPSHOT_SEGMENT_PREFIX + (snapshotGeneration + 1) + "."
+            : SNAPSHOT_SEGMENT_PREFIX;
+    WriteAheadLog wal = this.wal;
+    status.incremental = incremental;
+    SnapshotContext ctx = startSnapshotEpoch(wal, incremental ? savedEpoch : -1);
+    ctx.compressed = isSnapshotCompressionEnabled();
+    try {
+      ByteBuffer meta = ByteBuffer.allocate(Utils.SIZEOF_LONG * STORE_META_FIELDS);
+      saveStoreMeta(meta);
+      List<IndexBlock> blocks = getSnapshotBlocks(ctx);
+      ctx.blocksTotal = blocks.size();
+      int numSegments = Math.max(1, Math.min(numThreads, blocks.size()));
+      SnapshotExtent[] extents = saveSegments(blocks, ctx, dataDir, prefix, numSegments);
+      if (extents == null) {
+        return;
+      }
+      boolean result =
+          incremental
+              ? finishIncrementalSnapshot(snapshot, extents, meta, numThreads, ctx.compressed)
+              : finishFullSnapshot(dir, dataDir, extents, meta, numSegments, ctx.compressed);
+      if (!result) {
+        return;
+      }
+      // Unmodified blocks are not saved by the next incremental snapshot
+      for (int i = 0; i < extents.length; i++) {
+        IndexBlock b = blocks.get(i);
+        b.snapshotExtent = extents[i];
+        b.extentEpoch = ctx.epoch;
+      }
+      savedEpoch = ctx.epoch;
+      snapshotGeneration = incremental ? snapshotGeneration + 1 : 0;
+      if (wal != null) {
+        // Older segments are covered by the snapshot
+        wal.deleteSegmentsBefore(ctx.walSegment);
+      }
+      status.success = true;
+      status.changes = ctx.changes;
+    } finally {
+      status.bytesWritten = ctx.bytesWritten.get();
+      this.snapshotContext = null;
+    }
+  }
 
-    File snapshotFile = new File(dir, "snapshot.data_tmp");
-    RandomAccessFile raf = null;
-    FileChannel fc = null;
+  /**
+   * Checks if snapshot data must be compressed. Snapshot is saved uncompressed, when native library
+   * does not support LZ4 frame format
+   *
+   * @return true or false
+   */
+  private static boolean isSnapshotCompressionEnabled() {
+    return RedisConf.getInstance().isSnapshotCompressionEnabled() && LZ4Frame.isAvailable();
+  }
+
+  /**
+   * Checks if next snapshot can be incremental
+   *
+   * @param snapshot snapshot directory
+   * @return true or false
+   */
+  private boolean isIncrementalSnapshotEnabled(File snapshot) {
+    RedisConf conf = RedisConf.getInstance();
+    if (!conf.isSnapshotIncremental() || savedEpoch < 0) {
+      return false;
+    }
+    if (incrementalSnapshots >= conf.getSnapshotIncrementalMax()) {
+      return false;
+    }
+    if (snapshotCompressed != isSnapshotCompressionEnabled()) {
+      // Data files of the previous snapshot have different format
+      return false;
+    }
+    if (snapshotLiveSize * 100 < snapshotDataSize * conf.getSnapshotMinLivePercent()) {
+      // Too much garbage in data files
+      return false;
+    }
+    return new File(snapshot, SNAPSHOT_MANIFEST).exists();
+  }
+
+  /**
+   * Writes data of snapshot index blocks into segment files in parallel
+   *
+   * @param blocks index blocks
+   * @param ctx snapshot context
+   * @param dir directory for segment files
+   * @param prefix segment file name prefix
+   * @param numSegments number of segments (threads)
+   * @return locations of blocks' data (null - for empty blocks) or null on failure
+   */
+  private SnapshotExtent[] saveSegments(
+      List<IndexBlock> blocks, SnapshotContext ctx, File dir, String prefix, int numSegments) {
+    SnapshotExtent[] extents = new SnapshotExtent[blocks.size()];
+    ExecutorService executor = Executors.newFixedThreadPool(numSegments);
+    List<Future<Void>> results = new ArrayList<Future<Void>>();
+    for (int i = 0; i < numSegments; i++) {
+      final int from = (int) ((long) i * blocks.size() / numSegments);
+      final int to = (int) ((long) (i + 1) * blocks.size() / numSegments);
+      final File segmentFile = new File(dir, prefix + i);
+      results.add(
+          executor.submit(
+              () -> {
+                saveSegment(blocks, from, to, ctx, segmentFile, extents);
+                return null;
+              }));
+    }
+    executor.shutdown();
     try {
-      raf = new RandomAccessFile(snapshotFile, "rw");
-      fc = raf.getChannel();
-      // Save store meta data
-      saveStoreMeta(fc);
+      for (Future<Void> f : results) {
+        f.get();
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      log.error("Snapshot failed. Can not create snapshot segment in: {}", dir.getAbsolutePath());
+      log.error("StackTrace: ", e);
+      return null;
+    }
+    return extents;
+  }
+
+  /**
+   * Completes full snapshot: writes manifest and replaces the old snapshot
+   *
+   * @param dir store's snapshot directory
+   * @param tmpDir temporary directory
+   * @param extents locations of blocks' data
+   * @param meta store meta
+   * @param numSegments number of segments
+   * @param compressed are blocks' data compressed
+   * @return true on success, false - otherwise
+   */
+  private boolean finishFullSnapshot(
+      File dir,
+      File tmpDir,
+      SnapshotExtent[] extents,
+      ByteBuffer meta,
+      int numSegments,
+      boolean compressed) {
+    long timestamp = System.currentTimeMillis();
+    File manifestFile = new File(tmpDir, SNAPSHOT_MANIFEST);
+    try {
+      LZ4DictCodec.saveDictionaries(new File(tmpDir, LZ4DictCodec.DICTIONARY_FILE));
+      writeManifest(manifestFile, extents, meta, numSegments, timestamp, compressed);
     } catch (IOException e) {
-      log.error("Snapshot failed. Can not create snapshot file: {}", snapshotFile.getAbsolutePath());
+      log.error("Snapshot failed. Can not create manifest file: {}", manifestFile.getAbsolutePath());
       log.error("StackTrace: ", e);
-      return;
+      return false;
+    }
+    // Update store's last snapshot time
+    setLastSnapshotTimestamp(timestamp);
+
+    // Replace old snapshot
+    File snapshot = new File(dir, SNAPSHOT_DIR);
+    if (!deleteSnapshotDir(snapshot)) {
+      log.error("ERROR! Can not delete old snapshot: {}", snapshot.getAbsolutePath());
+      return false;
+    }
+    if (!tmpDir.renameTo(snapshot)) {
+      log.error(
+          "ERROR! Can not rename new snapshot: {} to {}",
+          tmpDir.getAbsolutePath(),
+          snapshot.getAbsolutePath());
+      return false;
     }
+    File legacyFile = new File(dir, LEGACY_SNAPSHOT_FILE);
+    if (legacyFile.exists() && !legacyFile.delete()) {
+      log.error("ERROR! Can not delete old snapshot file: {}", legacyFile.getAbsolutePath());
+    }
+    log.debug("Snapshot created: {} segments={}", snapshot.getAbsolutePath(), numSegments);
+    incrementalSnapshots = 0;
+    snapshotLiveSize = 0;
+    for (SnapshotExtent e : extents) {
+      snapshotLiveSize += e != null ? e.length : 0;
+    }
+    snapshotDataSize = snapshotLiveSize;
+    snapshotCompressed = compressed;
+    return true;
+  }
 
-    log.debug("Snapshot file opened: {}", snapshotFile.getAbsolutePath());
+  /**
+   * Completes incremental snapshot: replaces manifest, which refers to data of all snapshot blocks
+   * in new and existing data files, and deletes data files, which are not referred to anymore.
+   *
+   * @param snapshot snapshot directory
+   * @param extents locations of blocks' data
+   * @param meta store meta
+   * @param numGroups maximum number of groups
+   * @param compressed are blocks' data compressed
+   * @return true on success, false - otherwise
+   */
+  private boolean finishIncrementalSnapshot(
+      File snapshot, SnapshotExtent[] extents, ByteBuffer meta, int numGroups, boolean compressed) {
+    long timestamp = System.currentTimeMillis();
+    File manifestFile = new File(snapshot, SNAPSHOT_MANIFEST);
+    File tmpFile = new File(snapshot, SNAPSHOT_MANIFEST + ".tmp");
+    Set<String> files;
+    try {
+      LZ4DictCodec.saveDictionaries(new File(snapshot, LZ4DictCodec.DICTIONARY_FILE));
+      files = writeManifest(tmpFile, extents, meta, numGroups, timestamp, compressed);
+    } catch (IOException e) {
+      log.error("Snapshot failed. Can not create manifest file: {}", tmpFile.getAbsolutePath());
+      log.error("StackTrace: ", e);
+      return false;
+    }
+    try {
+      Files.move(
+          tmpFile.toPath(),
+          manifestFile.toPath(),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      log.error("Snapshot failed. Can not replace manifest file: {}", manifestFile.getAbsolutePath());
+      log.error("StackTrace: ", e);
+      return false;
+    }
+    // Update store's last snapshot time
+    setLastSnapshotTimestamp(timestamp);
 
-    // main loop over all index blocks
-    IndexBlock ib = null, cur = null;
-    int version = -1;
-    ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE); // bb.get();
-    buf.clear();
-    boolean locked = false;
-    while (true) {
-      locked = false;
-      try {
-        if (ib != null) {
-          version = ib.getSeqNumberSplitOrMerge();
+    long liveSize = 0;
+    for (SnapshotExtent e : extents) {
+      liveSize += e != null ? e.length : 0;
+    }
+    long dataSize = 0;
+    File[] all = snapshot.listFiles();
+    for (int i = 0; all != null && i < all.length; i++) {
+      File f = all[i];
+      if (!f.getName().startsWith(SNAPSHOT_SEGMENT_PREFIX)) {
+        continue;
+      }
+      if (files.contains(f.getName())) {
+        dataSize += f.length();
+      } else if (!f.delete()) {
+        log.error("ERROR! Can not delete snapshot data file: {}", f.getAbsolutePath());
+      }
+    }
+    log.debug(
+        "Incremental snapshot created: {} files={} live={} total={}",
+        snapshot.getAbsolutePath(),
+        files.size(),
+        liveSize,
+        dataSize);
+    incrementalSnapshots++;
+    snapshotLiveSize = liveSize;
+    snapshotDataSize = dataSize;
+    snapshotCompressed = compressed;
+    return true;
+  }
+
+  /**
+   * Writes snapshot manifest, which refers to data of all snapshot blocks in data files. Adjacent
+   * extents are merged, extents are split into (approximately) equal groups, which are loaded in
+   * parallel.
+   *
+   * @param file manifest file
+   * @param extents locations of blocks' data
+   * @param meta store meta
+   * @param numGroups maximum number of groups
+   * @param timestamp snapshot time stamp
+   * @param compressed are blocks' data compressed
+   * @return names of data files, which manifest refers to
+   * @throws IOException
+   */
+  private static Set<String> writeManifest(
+      File file,
+      SnapshotExtent[] extents,
+      ByteBuffer meta,
+      int numGroups,
+      long timestamp,
+      boolean compressed)
+      throws IOException {
+    List<SnapshotExtent> merged = new ArrayList<SnapshotExtent>();
+    long liveSize = 0;
+    for (SnapshotExtent e : extents) {
+      if (e == null) {
+        continue;
+      }
+      liveSize += e.length;
+      int last = merged.size() - 1;
+      SnapshotExtent prev = last >= 0 ? merged.get(last) : null;
+      if (prev != null && prev.file.equals(e.file) && prev.offset + prev.length == e.offset) {
+        merged.set(last, new SnapshotExtent(prev.file, prev.offset, prev.length + e.length));
+      } else {
+        merged.add(e);
+      }
+    }
+    Map<String, Integer> files = new LinkedHashMap<String, Integer>();
+    for (SnapshotExtent e : merged) {
+      files.putIfAbsent(e.file, files.size());
+    }
+    int n = Math.max(1, Math.min(numGroups, merged.size()));
+    List<List<SnapshotExtent>> groups = new ArrayList<List<SnapshotExtent>>(n);
+    long size = 0;
+    for (SnapshotExtent e : merged) {
+      if (groups.isEmpty() || groups.size() < n && size >= groups.size() * liveSize / n) {
+        groups.add(new ArrayList<SnapshotExtent>());
+      }
+      groups.get(groups.size() - 1).add(e);
+      size += e.length;
+    }
+    if (groups.isEmpty()) {
+      // Empty store
+      groups.add(new ArrayList<SnapshotExtent>());
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel fc = raf.getChannel()) {
+      raf.setLength(0);
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      DataOutputStream dos = new DataOutputStream(bos);
+      dos.writeInt(SNAPSHOT_VERSION);
+      dos.writeLong(timestamp);
+      dos.writeInt(groups.size());
+      dos.write(meta.array(), 0, meta.limit());
+      dos.writeInt(compressed ? CodecType.LZ4.id() : CodecType.NONE.id());
+      dos.writeInt(files.size());
+      for (String name : files.keySet()) {
+        dos.writeUTF(name);
+      }
+      for (List<SnapshotExtent> group : groups) {
+        dos.writeInt(group.size());
+        for (SnapshotExtent e : group) {
+          dos.writeInt(files.get(e.file));
+          dos.writeLong(e.offset);
+          dos.writeLong(e.length);
         }
-        cur = nextIndexBlock(ib);
-        if (cur == null) {
-          break;
-        } else if (cur.isValid() == false) {
-          // TODO: is it safe?
+      }
+      dos.flush();
+      ByteBuffer buf = ByteBuffer.wrap(bos.toByteArray());
+      while (buf.hasRemaining()) {
+        fc.write(buf);
+      }
+      fc.force(true);
+    }
+    return files.keySet();
+  }
+
+  /**
+   * Collects index blocks, which belong to a snapshot: blocks, which existed at the snapshot point
+   * in time, in key order
+   *
+   * @param ctx snapshot context
+   * @return list of index blocks
+   */
+  private List<IndexBlock> getSnapshotBlocks(SnapshotContext ctx) {
+    List<IndexBlock> blocks = new ArrayList<IndexBlock>();
+    for (IndexBlock b : map.keySet()) {
+      // Blocks created after snapshot start are not part of it
+      if (b.createdEpoch < ctx.epoch) {
+        blocks.add(b);
+      }
+    }
+    // Blocks, which have been modified (or even deleted) since snapshot start
+    Set<IndexBlock> set = Collections.newSetFromMap(new IdentityHashMap<IndexBlock, Boolean>());
+    set.addAll(blocks);
+    for (IndexBlock b : ctx.preserved.keySet()) {
+      if (set.add(b)) {
+        blocks.add(b);
+      }
+    }
+    // First keys of blocks do not change while blocks are in the map
+    Collections.sort(blocks);
+    return blocks;
+  }
+
+  /**
+   * Saves index blocks into a segment file. Every block is serialized into memory under its read
+   * lock (or its preserved copy is used), file I/O is done without holding any locks. Blocks, which
+   * have not been modified since the base snapshot, are not saved.
+   *
+   * @param blocks index blocks
+   * @param from index of the first block to save
+   * @param to index of the last block to save (exclusive)
+   * @param ctx snapshot context
+   * @param file segment file
+   * @param extents locations of blocks' data (output)
+   * @throws IOException
+   */
+  private void saveSegment(
+      List<IndexBlock> blocks,
+      int from,
+      int to,
+      SnapshotContext ctx,
+      File file,
+      SnapshotExtent[] extents)
+      throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel fc = raf.getChannel()) {
+      log.debug("Snapshot segment opened: {}", file.getAbsolutePath());
+      long offset = 0;
+      for (int i = from; i < to; i++, ctx.blocksSaved.incrementAndGet()) {
+        IndexBlock b = blocks.get(i);
+        SnapshotBlock sb = ctx.preserved.remove(b);
+        if (sb == null && b.isSnapshotClean(ctx.baseEpoch)) {
+          sb = new SnapshotBlock(null, b.snapshotExtent);
+        }
+        if (sb == null) {
+          byte[] data = saveBlock(b, ctx);
+          sb = data != null ? new SnapshotBlock(data, null) : null;
+        }
+        if (sb == null) {
+          // Block has been preserved by a writer, which can still hold the block's lock
+          readLock(b);
+          readUnlock(b);
+          sb = ctx.preserved.remove(b);
+        }
+        if (sb == null) {
+          continue;
+        } else if (sb.extent != null) {
+          extents[i] = sb.extent;
+          continue;
+        } else if (sb.data.length == 0) {
           continue;
         }
-        // Lock current index block
-        cur.readLock();
-        locked = true;
-        if (ib != null && ib.hasRecentUnsafeModification()) {
-          int v = ib.getSeqNumberSplitOrMerge();
-          if (v != version) {
-            // We caught IB split in fly
-            ib = cur;
-            continue;
-          }
+        ByteBuffer buf;
+        if (ctx.compressed) {
+          // Block is a single frame, which follows frame's length
+          byte[] frame = LZ4Frame.compress(sb.data, 0, sb.data.length);
+          buf = ByteBuffer.allocate(Utils.SIZEOF_INT + frame.length);
+          buf.putInt(frame.length);
+          buf.put(frame);
+          buf.flip();
+        } else {
+          buf = ByteBuffer.wrap(sb.data);
         }
-        // Process index block
-        cur.saveData(fc, buf);
-        ib = cur;
-      } catch (RetryOperationException e) {
-        continue;
-      } catch (IOException e) {
-        log.error(
-            "Snapshot failed. Can not create snapshot file: {}", snapshotFile.getAbsolutePath());
-        log.error("StackTrace: ", e);
-        return;
-      } finally {
-        if (cur != null && locked) {
-          cur.readUnlock();
+        int length = buf.remaining();
+        while (buf.hasRemaining()) {
+          fc.write(buf);
         }
+        extents[i] = new SnapshotExtent(file.getName(), offset, length);
+        offset += length;
+        ctx.bytesWritten.addAndGet(length);
+      }
+      ByteBuffer buf = ByteBuffer.allocate(Utils.SIZEOF_LONG);
+      // End of segment marker
+      buf.putLong(System.currentTimeMillis());
+      buf.flip();
+      while (buf.hasRemaining()) {
+        fc.write(buf);
       }
+      fc.force(true);
     }
+  }
 
-    // Close file
+  /**
+   * Serializes index block, which has not been modified since snapshot start
+   *
+   * @param b index block
+   * @param ctx snapshot context
+   * @return serialized block or null if block has been preserved by a writer
+   * @throws IOException
+   */
+  private byte[] saveBlock(IndexBlock b, SnapshotContext ctx) throws IOException {
     try {
-      // Drain buffer
-      IOUtils.drainBuffer(buf, fc);
-      // Save last snapshot time to a snapshot file
-      long timestamp = System.currentTimeMillis();
-      buf.putLong(timestamp);
-      IOUtils.drainBuffer(buf, fc);
-      // Update store's last snapshot time
-      setLastSnapshotTimestamp(timestamp);
-      raf.close();
-    } catch (IOException e) {
-      log.error("WARNING! StackTrace: ", e);
-      // TODO: what to do?
+      b.readLock(false);
+      long epoch = b.snapshotEpoch;
+      if (epoch >= ctx.epoch || epoch < 0) {
+        return null;
+      }
+      // Writers wait until block is saved
+      if (!b.compareAndSetSnapshotEpoch(epoch, ctx.epoch | IndexBlock.SNAPSHOT_SAVING)) {
+        return null;
+      }
+      try {
+        return serializeBlock(b);
+      } finally {
+        b.snapshotEpoch = ctx.epoch;
+      }
+    } catch (RetryOperationException e) {
+      // Deleted (and preserved) block
+      return null;
+    } finally {
+      // Read lock is held even if block is invalid
+      b.readUnlock();
     }
+  }
 
-    // Delete old snapshot
-    File oldSnapshotFile = new File(dir, "snapshot.data");
-    if (oldSnapshotFile.exists()) {
-      boolean result = oldSnapshotFile.delete();
-      if (!result) {
-        log.error("ERROR! Can not delete old snapshot file.");
-        return;
+  /**
+   * Deletes snapshot directory
+   *
+   * @param dir directory
+   * @return true on success (or if directory does not exist), false - otherwise
+   */
+  private static boolean deleteSnapshotDir(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (!f.delete()) {
+          return false;
+        }
       }
     }
-    boolean result = snapshotFile.renameTo(oldSnapshotFile);
-    if (!result) {
-      log.error(
-          "ERROR! Can not rename new snapshot file: {} to {}",
-              snapshotFile.getAbsolutePath(),
-              oldSnapshotFile.getAbsolutePath());
-    } else {
-      log.debug("Snapshot file created: {}", oldSnapshotFile.getAbsolutePath());
-    }
+    return !dir.exists() || dir.delete();
   }
 
-  private void saveStoreMeta(FileChannel channel) throws IOException {
-    ByteBuffer buf = ByteBuffer.allocate(Utils.SIZEOF_LONG * 7);
+  private void saveStoreMeta(ByteBuffer buf) {
     // 1. maxMemory we load from configuration file
     buf.putLong(getGlobalMemoryLimit());
     buf.putLong(getInstanceAllocatedMemory());
@@ -2382,9 +3715,6 @@ public class BigSortedMap {
     buf.putLong(getInstanceDataInDataBlockSize());
     buf.putLong(getInstanceExternalDataSize());
     buf.flip();
-    while (buf.hasRemaining()) {
-      channel.write(buf);
-    }
   }
 
   final IndexBlock nextIndexBlock(IndexBlock ib) {
@@ -2405,7 +3735,6 @@ public class BigSortedMap {
 
   // READ DATA
   private static BigSortedMap loadStoreFromSnapshot(String snapshotDir) {
-    BigSortedMap map = null;
     // Check if directory exists
     File dir = new File(snapshotDir);
     if (dir.exists() == false) {
@@ -2413,8 +3742,349 @@ public class BigSortedMap {
       log.error("Snapshot directory does not exists: {}", dir.getAbsolutePath());
       return new BigSortedMap();
     }
+    File snapshot = new File(dir, SNAPSHOT_DIR);
+    if (new File(snapshot, SNAPSHOT_MANIFEST).exists()) {
+      return loadStoreFromSegments(snapshotDir, snapshot);
+    }
+    // Server could crash after old snapshot was deleted, but before new one was renamed
+    File tmpDir = new File(dir, SNAPSHOT_TMP_DIR);
+    if (new File(tmpDir, SNAPSHOT_MANIFEST).exists()) {
+      return loadStoreFromSegments(snapshotDir, tmpDir);
+    }
+    return loadStoreFromLegacySnapshot(snapshotDir);
+  }
+
+  /**
+   * Loads store from a multi-segment snapshot, segments are loaded in parallel. Segment of an
+   * incremental snapshot is a group of extents in data files
+   *
+   * @param snapshotDir store's snapshot directory
+   * @param dir directory, which contains manifest and segments
+   * @return store or null
+   */
+  private static BigSortedMap loadStoreFromSegments(String snapshotDir, File dir) {
+    File manifestFile = new File(dir, SNAPSHOT_MANIFEST);
+    log.debug(
+        "Started loading store data from: {} at {}", dir.getAbsolutePath(), LocalDateTime.now());
+    BigSortedMap map = null;
+    long timestamp;
+    int numSegments;
+    List<List<SnapshotExtent>> groups = null;
+    boolean compressed = false;
+    try (RandomAccessFile raf = new RandomAccessFile(manifestFile, "r");
+        FileChannel fc = raf.getChannel()) {
+      ByteBuffer buf = ByteBuffer.allocate((int) fc.size());
+      while (buf.hasRemaining()) {
+        if (fc.read(buf) < 0) {
+          throw new IOException("Unexpected End-Of-Stream");
+        }
+      }
+      buf.flip();
+      int version = buf.getInt();
+      if (version != SEGMENTS_SNAPSHOT_VERSION
+          && version != INCREMENTAL_SNAPSHOT_VERSION
+          && version != SNAPSHOT_VERSION) {
+        throw new IOException("Unsupported snapshot version: " + version);
+      }
+      timestamp = buf.getLong();
+      numSegments = buf.getInt();
+      map = loadStoreMeta(buf);
+      if (version == SNAPSHOT_VERSION) {
+        int codec = buf.getInt();
+        if (codec != CodecType.NONE.id() && codec != CodecType.LZ4.id()) {
+          throw new IOException("Unsupported snapshot codec: " + codec);
+        }
+        compressed = codec == CodecType.LZ4.id();
+        if (compressed && !LZ4Frame.isAvailable()) {
+          throw new IOException("Snapshot is compressed, LZ4 frame format is not supported");
+        }
+      }
+      if (version != SEGMENTS_SNAPSHOT_VERSION) {
+        groups = loadExtents(buf, numSegments);
+      }
+      // Compressed data blocks refer to dictionaries
+      File dictFile = new File(dir, LZ4DictCodec.DICTIONARY_FILE);
+      if (dictFile.exists()) {
+        LZ4DictCodec.loadDictionaries(dictFile);
+      }
+    } catch (IOException e) {
+      log.error("Loading store failed. Can not read manifest: {}", manifestFile.getAbsolutePath());
+      log.error("StackTrace: ", e);
+      return null;
+    }
+    int numThreads = Math.min(numSegments, RedisConf.getInstance().getSnapshotThreads());
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+    List<Future<Void>> results = new ArrayList<Future<Void>>();
+    for (int i = 0; i < numSegments; i++) {
+      final File segmentFile = new File(dir, SNAPSHOT_SEGMENT_PREFIX + i);
+      final List<SnapshotExtent> extents = groups != null ? groups.get(i) : null;
+      final boolean first = i == 0;
+      final BigSortedMap store = map;
+      final boolean lz4 = compressed;
+      results.add(
+          executor.submit(
+              () -> {
+                if (extents != null) {
+                  try (ExtentChannel channel = new ExtentChannel(dir, extents, lz4)) {
+                    loadSegment(store, channel, ByteBuffer.allocateDirect(BUFFER_SIZE), first);
+                  }
+                  return null;
+                }
+                try (RandomAccessFile raf = new RandomAccessFile(segmentFile, "r");
+                    FileChannel fc = raf.getChannel()) {
+                  loadSegment(store, fc, ByteBuffer.allocateDirect(BUFFER_SIZE), first);
+                }
+                return null;
+              }));
+    }
+    executor.shutdown();
+    try {
+      for (Future<Void> f : results) {
+        f.get();
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      log.error(
+          "Loading store failed. Corrupted (?) snapshot segment in: {}", dir.getAbsolutePath());
+      log.error("StackTrace: ", e);
+      // Do not keep partially loaded store
+      map.dispose();
+      return null;
+    }
+    log.debug("Loaded store from: {} at {}", dir.getAbsolutePath(), LocalDateTime.now());
+    map.setLastSnapshotTimestamp(timestamp);
+    map.setSnapshotDir(snapshotDir);
+    map.adjustCountersAfterLoad();
+    map.printMemoryAllocationStats();
+    return map;
+  }
+
+  /**
+   * Loads index blocks from a snapshot segment (or from a legacy snapshot file)
+   *
+   * @param map store
+   * @param fc channel, positioned at the first data block
+   * @param buf I/O buffer
+   * @param first true, if segment contains the first index block of the store
+   * @return time stamp, which follows the last data block
+   * @throws IOException
+   */
+  private static long loadSegment(
+      BigSortedMap map, ReadableByteChannel fc, ByteBuffer buf, boolean first) throws IOException {
+    buf.clear();
+    // Read first chunk from file
+    fc.read(buf);
+    buf.flip();
+    DataBlock block = null;
+    do {
+      IndexBlock ib = new IndexBlock(map, maxIndexBlockSize);
+      if (first) {
+        ib.isFirst = true;
+        first = false;
+      }
+      if (block != null) {
+        // TODO: insert block into an empty index? Never tested
+        ib.insertBlock(block);
+        block.compressDataBlockIfNeeded();
+      }
+      block = ib.loadData(fc, buf);
+      if (!ib.isEmpty()) {
+        map.map.put(ib, ib);
+      }
+    } while (block != null);
+
+    // Last read timestamp, buffer MUST have correct position
+    if (buf.remaining() < Utils.SIZEOF_LONG) {
+      IOUtils.ensureAvailable(fc, buf, Utils.SIZEOF_LONG);
+    }
+    return buf.getLong();
+  }
+
+  /**
+   * Reads extent groups of an incremental snapshot manifest
+   *
+   * @param buf manifest buffer, positioned after store meta
+   * @param numGroups number of groups
+   * @return list of groups
+   * @throws IOException
+   */
+  private static List<List<SnapshotExtent>> loadExtents(ByteBuffer buf, int numGroups)
+      throws IOException {
+    DataInputStream dis =
+        new DataInputStream(
+            new ByteArrayInputStream(buf.array(), buf.position(), buf.remaining()));
+    String[] files = new String[dis.readInt()];
+    for (int i = 0; i < files.length; i++) {
+      files[i] = dis.readUTF();
+    }
+    List<List<SnapshotExtent>> groups = new ArrayList<List<SnapshotExtent>>(numGroups);
+    for (int i = 0; i < numGroups; i++) {
+      int n = dis.readInt();
+      List<SnapshotExtent> group = new ArrayList<SnapshotExtent>(n);
+      for (int j = 0; j < n; j++) {
+        String file = files[dis.readInt()];
+        long offset = dis.readLong();
+        long length = dis.readLong();
+        group.add(new SnapshotExtent(file, offset, length));
+      }
+      groups.add(group);
+    }
+    return groups;
+  }
 
-    File snapshotFile = new File(dir, "snapshot.data");
+  /**
+   * Reads a sequence of extents in snapshot data files as a single stream of data blocks, followed
+   * by the end of segment marker. Compressed extents are sequences of LZ4 frames, every frame
+   * follows its length.
+   */
+  private static final class ExtentChannel implements ReadableByteChannel {
+    private final List<SnapshotExtent> extents;
+    private final Map<String, FileChannel> channels = new HashMap<String, FileChannel>();
+    private final File dir;
+    private final boolean compressed;
+    private final ByteBuffer trailer = ByteBuffer.allocate(Utils.SIZEOF_LONG);
+    private ByteBuffer block;
+    private int index;
+    private long position;
+    private boolean open = true;
+
+    ExtentChannel(File dir, List<SnapshotExtent> extents, boolean compressed) {
+      this.dir = dir;
+      this.extents = extents;
+      this.compressed = compressed;
+      trailer.putLong(System.currentTimeMillis());
+      trailer.flip();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      if (compressed) {
+        while (block == null || !block.hasRemaining()) {
+          if (!nextBlock()) {
+            return readTrailer(dst);
+          }
+        }
+        int n = Math.min(dst.remaining(), block.remaining());
+        for (int i = 0; i < n; i++) {
+          dst.put(block.get());
+        }
+        return n;
+      }
+      while (index < extents.size()) {
+        SnapshotExtent e = extents.get(index);
+        long remaining = e.length - position;
+        if (remaining == 0) {
+          index++;
+          position = 0;
+          continue;
+        }
+        FileChannel fc = getChannel(e.file);
+        int limit = dst.limit();
+        if (dst.remaining() > remaining) {
+          dst.limit(dst.position() + (int) remaining);
+        }
+        try {
+          int n = fc.read(dst, e.offset + position);
+          if (n < 0) {
+            throw new IOException("Unexpected End-Of-File: " + e.file);
+          }
+          position += n;
+          return n;
+        } finally {
+          dst.limit(limit);
+        }
+      }
+      return readTrailer(dst);
+    }
+
+    /**
+     * Reads and decompresses next frame
+     *
+     * @return true if there was a next frame, false - end of extents
+     * @throws IOException if data is corrupted
+     */
+    private boolean nextBlock() throws IOException {
+      while (index < extents.size()) {
+        SnapshotExtent e = extents.get(index);
+        if (position == e.length) {
+          index++;
+          position = 0;
+          continue;
+        }
+        FileChannel fc = getChannel(e.file);
+        ByteBuffer header = ByteBuffer.allocate(Utils.SIZEOF_INT);
+        readFully(fc, header, e.offset + position, e.file);
+        int length = header.getInt(0);
+        if (length <= 0 || position + Utils.SIZEOF_INT + length > e.length) {
+          throw new IOException("Corrupted snapshot data file: " + e.file);
+        }
+        byte[] frame = new byte[length];
+        readFully(fc, ByteBuffer.wrap(frame), e.offset + position + Utils.SIZEOF_INT, e.file);
+        position += Utils.SIZEOF_INT + length;
+        try {
+          block = ByteBuffer.wrap(LZ4Frame.decompress(frame, 0, length));
+        } catch (IOException ex) {
+          throw new IOException("Corrupted snapshot data file: " + e.file, ex);
+        }
+        return true;
+      }
+      return false;
+    }
+
+    private FileChannel getChannel(String file) throws IOException {
+      FileChannel fc = channels.get(file);
+      if (fc == null) {
+        fc = FileChannel.open(new File(dir, file).toPath(), StandardOpenOption.READ);
+        channels.put(file, fc);
+      }
+      return fc;
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer buf, long offset, String file)
+        throws IOException {
+      while (buf.hasRemaining()) {
+        int n = fc.read(buf, offset);
+        if (n < 0) {
+          throw new IOException("Unexpected End-Of-File: " + file);
+        }
+        offset += n;
+      }
+    }
+
+    private int readTrailer(ByteBuffer dst) {
+      if (!trailer.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(dst.remaining(), trailer.remaining());
+      for (int i = 0; i < n; i++) {
+        dst.put(trailer.get());
+      }
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+      open = false;
+      for (FileChannel fc : channels.values()) {
+        fc.close();
+      }
+    }
+  }
+
+  /**
+   * Loads store from a single file snapshot (legacy format)
+   *
+   * @param snapshotDir snapshot directory
+   * @return store or null
+   */
+  private static BigSortedMap loadStoreFromLegacySnapshot(String snapshotDir) {
+    BigSortedMap map = null;
+    File dir = new File(snapshotDir);
+    File snapshotFile = new File(dir, LEGACY_SNAPSHOT_FILE);
     if (!snapshotFile.exists()) {
       log.error("Snapshot file does not exists: {}", snapshotFile.getAbsolutePath());
       return new BigSortedMap();
@@ -2439,37 +4109,10 @@ public class BigSortedMap {
     }
 
     ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE); // bb.get();
-    buf.clear();
 
     try {
-      // Read first chunk from file
-      fc.read(buf);
-      buf.flip();
-      DataBlock block = null;
-      boolean first = true;
-      do {
-        IndexBlock ib = new IndexBlock(map, maxIndexBlockSize);
-        if (first) {
-          ib.isFirst = true;
-          first = false;
-        }
-        if (block != null) {
-          // TODO: insert block into an empty index? Never tested
-          ib.insertBlock(block);
-          block.compressDataBlockIfNeeded();
-        }
-        block = ib.loadData(fc, buf);
-        if (!ib.isEmpty()) {
-          map.map.put(ib, ib);
-        }
-      } while (block != null);
+      long timestamp = loadSegment(map, fc, buf, true);
       log.debug("Loaded store from: {} at {}", snapshotFile.getAbsolutePath(), LocalDateTime.now());
-
-      // Last read timestamp, buffer MUST have correct position
-      if (buf.remaining() < Utils.SIZEOF_LONG) {
-        IOUtils.ensureAvailable(fc, buf, Utils.SIZEOF_LONG);
-      }
-      long timestamp = buf.getLong();
       map.setLastSnapshotTimestamp(timestamp);
       map.setSnapshotDir(snapshotDir);
       map.adjustCountersAfterLoad();
@@ -2492,14 +4135,17 @@ public class BigSortedMap {
   }
 
   private static BigSortedMap loadStoreMeta(FileChannel fc) throws IOException {
-    BigSortedMap map;
-    int toRead = Utils.SIZEOF_LONG * 7;
+    int toRead = Utils.SIZEOF_LONG * STORE_META_FIELDS;
     ByteBuffer buf = ByteBuffer.allocate(toRead);
     while (buf.remaining() > 0) {
       fc.read(buf);
     }
     buf.flip();
-    map = new BigSortedMap(false);
+    return loadStoreMeta(buf);
+  }
+
+  private static BigSortedMap loadStoreMeta(ByteBuffer buf) {
+    BigSortedMap map = new BigSortedMap(false);
     long value = buf.getLong();
     // Set global memory limit TODO: this is mostly for testing
     if (BigSortedMap.getGlobalMemoryLimit() == 0) {
@@ -2507,19 +4153,19 @@ public class BigSortedMap {
     }
 
     value = buf.getLong();
-    map.allocatedMemory.set(value);
+    map.allocatedMemory.reset(); map.allocatedMemory.add(value);
     value = buf.getLong();
-    // map.blockDataSize.set(value);
+    // map.blockDataSize.reset(); map.blockDataSize.add(value);
     map.dataBlockSizeBeforeSnapshot = value;
     value = buf.getLong();
     map.indexBlockSizeBeforeSnapshot = value;
 
     value = buf.getLong();
-    map.compressedDataInDataBlocksSize.set(value);
+    map.compressedDataInDataBlocksSize.reset(); map.compressedDataInDataBlocksSize.add(value);
     value = buf.getLong();
-    map.dataInDataBlocksSize.set(value);
+    map.dataInDataBlocksSize.reset(); map.dataInDataBlocksSize.add(value);
     value = buf.getLong();
-    map.externalDataSize.set(value);
+    map.externalDataSize.reset(); map.externalDataSize.add(value);
 
     return map;
   }
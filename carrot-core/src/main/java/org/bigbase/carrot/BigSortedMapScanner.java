@@ -282,15 +282,13 @@ public class BigSortedMapScanner extends Scanner {
     if (blockScanner == null) {
       return false;
     }
-    boolean result = blockScanner.hasNext();
-    if (result) {
-      return result;
-    }
-    result = nextBlockAndScanner();
-    if (!result) {
-      return false;
+    // Data block can be empty for a scanner if all its records have expired
+    while (!blockScanner.hasNext()) {
+      if (!nextBlockAndScanner()) {
+        return false;
+      }
     }
-    return this.blockScanner.hasNext();
+    return true;
   }
 
   public boolean next() {
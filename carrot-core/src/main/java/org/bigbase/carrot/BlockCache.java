@@ -0,0 +1,279 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bigbase.carrot.util.UnsafeAccess;
+
+/**
+ * Cache of decompressed data blocks. Hot compressed blocks are copied from the cache into a
+ * decompression buffer instead of being decompressed on every access. Cache is keyed by address of
+ * block's compressed data. Data blocks invalidate this address every time they rewrite or free
+ * compressed data, therefore a cached copy always matches compressed data.
+ *
+ * <p>Cache is set associative: an address is mapped to a set of WAYS slots, every set is guarded by
+ * its own lock and replaces slots using CLOCK algorithm. New blocks are admitted with a cleared
+ * reference bit, so blocks which were read only once are replaced first. Slot buffers are
+ * allocated on demand and reused.
+ */
+public final class BlockCache {
+
+  private static final Logger log = LogManager.getLogger(BlockCache.class);
+
+  /** Number of slots in a set */
+  static final int WAYS = 8;
+
+  /** Default maximum cache size */
+  public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+  /** Slot buffer size, the same as a size of decompression buffers */
+  static final int SLOT_SIZE = DataBlock.MAX_BLOCK_SIZE + 80;
+
+  /** Set of slots */
+  static final class Set {
+    /* Addresses of compressed data, 0 - empty slot */
+    final long[] keys = new long[WAYS];
+    /* Slot buffers */
+    final long[] buffers = new long[WAYS];
+    /* Sizes of decompressed data */
+    final int[] sizes = new int[WAYS];
+    /* Reference bits */
+    final boolean[] referenced = new boolean[WAYS];
+    /* CLOCK hand */
+    int hand;
+    /* Set has been removed from the cache */
+    boolean disposed;
+  }
+
+  /* Cache sets (null - cache is disabled) */
+  private static volatile Set[] sets;
+
+  /* Maximum cache size (guarded by class) */
+  private static long maxSize;
+
+  private static final LongAdder hits = new LongAdder();
+
+  private static final LongAdder misses = new LongAdder();
+
+  /* Memory of slot buffers */
+  private static final LongAdder usedMemory = new LongAdder();
+
+  static {
+    setMaxSize(DEFAULT_MAX_SIZE);
+  }
+
+  private BlockCache() {}
+
+  /**
+   * Sets maximum cache size. Cache content is discarded, 0 disables the cache.
+   *
+   * @param size maximum size in bytes
+   */
+  public static synchronized void setMaxSize(long size) {
+    Set[] old = sets;
+    // Number of sets is rounded down to a power of 2
+    long n = Math.min(size / ((long) WAYS * SLOT_SIZE), 1 << 24);
+    int numSets = (int) Long.highestOneBit(n);
+    if (numSets > 0) {
+      Set[] arr = new Set[numSets];
+      for (int i = 0; i < numSets; i++) {
+        arr[i] = new Set();
+      }
+      sets = arr;
+    } else {
+      sets = null;
+    }
+    maxSize = size;
+    if (old != null) {
+      for (Set set : old) {
+        dispose(set);
+      }
+    }
+    log.debug("Block cache size {} sets {}", size, numSets);
+  }
+
+  /**
+   * Get maximum cache size
+   *
+   * @return maximum size in bytes
+   */
+  public static synchronized long getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Is cache enabled
+   *
+   * @return true or false
+   */
+  public static boolean isEnabled() {
+    return sets != null;
+  }
+
+  private static Set getSet(Set[] sets, long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return sets[(int) (h >>> 32) & (sets.length - 1)];
+  }
+
+  /**
+   * Copies decompressed data of a block into a buffer
+   *
+   * @param key address of compressed data
+   * @param buf buffer address
+   * @return size of decompressed data or -1, if block is not in the cache
+   */
+  public static int get(long key, long buf) {
+    Set[] sets = BlockCache.sets;
+    if (sets == null) {
+      return -1;
+    }
+    Set set = getSet(sets, key);
+    synchronized (set) {
+      for (int i = 0; i < WAYS; i++) {
+        if (set.keys[i] == key) {
+          set.referenced[i] = true;
+          UnsafeAccess.copy(set.buffers[i], buf, set.sizes[i]);
+          hits.increment();
+          return set.sizes[i];
+        }
+      }
+    }
+    misses.increment();
+    return -1;
+  }
+
+  /**
+   * Adds decompressed data of a block to the cache
+   *
+   * @param key address of compressed data
+   * @param buf address of decompressed data
+   * @param size size of decompressed data
+   */
+  public static void put(long key, long buf, int size) {
+    Set[] sets = BlockCache.sets;
+    if (sets == null || size > SLOT_SIZE) {
+      return;
+    }
+    Set set = getSet(sets, key);
+    synchronized (set) {
+      if (set.disposed) {
+        return;
+      }
+      for (int i = 0; i < WAYS; i++) {
+        if (set.keys[i] == key) {
+          return;
+        }
+      }
+      // CLOCK: skip and clear referenced slots
+      int i = set.hand;
+      while (set.keys[i] != 0 && set.referenced[i]) {
+        set.referenced[i] = false;
+        i = (i + 1) % WAYS;
+      }
+      set.hand = (i + 1) % WAYS;
+      if (set.buffers[i] == 0) {
+        set.buffers[i] = UnsafeAccess.malloc(SLOT_SIZE);
+        usedMemory.add(SLOT_SIZE);
+      }
+      UnsafeAccess.copy(buf, set.buffers[i], size);
+      set.keys[i] = key;
+      set.sizes[i] = size;
+      set.referenced[i] = false;
+    }
+  }
+
+  /**
+   * Removes a block from the cache. Must be called before compressed data of a block is rewritten
+   * or freed.
+   *
+   * @param key address of compressed data
+   */
+  public static void invalidate(long key) {
+    Set[] sets = BlockCache.sets;
+    if (sets == null) {
+      return;
+    }
+    Set set = getSet(sets, key);
+    synchronized (set) {
+      for (int i = 0; i < WAYS; i++) {
+        if (set.keys[i] == key) {
+          set.keys[i] = 0;
+          set.referenced[i] = false;
+          return;
+        }
+      }
+    }
+  }
+
+  private static void dispose(Set set) {
+    synchronized (set) {
+      set.disposed = true;
+      for (int i = 0; i < WAYS; i++) {
+        set.keys[i] = 0;
+        if (set.buffers[i] != 0) {
+          UnsafeAccess.free(set.buffers[i]);
+          set.buffers[i] = 0;
+          usedMemory.add(-SLOT_SIZE);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get number of cache hits
+   *
+   * @return number of hits
+   */
+  public static long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * Get number of cache misses
+   *
+   * @return number of misses
+   */
+  public static long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * Get cache hit ratio
+   *
+   * @return hit ratio (0.0 - 1.0)
+   */
+  public static double getHitRatio() {
+    long h = hits.sum();
+    long total = h + misses.sum();
+    return total == 0 ? 0d : (double) h / total;
+  }
+
+  /**
+   * Get memory used by the cache
+   *
+   * @return memory in bytes
+   */
+  public static long getUsedMemory() {
+    return usedMemory.sum();
+  }
+
+  /** Resets hit and miss counters */
+  public static void resetStats() {
+    hits.reset();
+    misses.reset();
+  }
+}
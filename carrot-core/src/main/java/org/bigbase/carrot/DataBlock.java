@@ -15,9 +15,12 @@ package org.bigbase.carrot;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -66,6 +69,24 @@ public final class DataBlock {
      */
     public boolean free(BigSortedMap store, long recordAddress);
 
+    /**
+     * Detaches additional data of a record, which is deleted under index block write lock. Data
+     * is freed by {@link #freeDetached(BigSortedMap, long)} after the lock is released, this call
+     * must not block (take key locks)
+     *
+     * @param recordAddress address of a key-value record
+     * @return handle of detached data, 0 - nothing to free
+     */
+    public long detach(long recordAddress);
+
+    /**
+     * Frees data detached by {@link #detach(long)}
+     *
+     * @param store store to free, need this to report freed memory correctly
+     * @param handle handle of detached data
+     */
+    public void freeDetached(BigSortedMap store, long handle);
+
     /**
      * Checks if this particular record must be processed by this allocator
      *
@@ -87,27 +108,27 @@ public final class DataBlock {
   /** For complex data types custom Serializer/Deserializer can be required */
   public static interface SerDe {
     /**
-     * Serialize custom Key-Value to a file channel
+     * Serialize custom Key-Value to a channel
      *
      * @param recordAddress address of a record to serialize
-     * @param fc file channel
+     * @param fc channel (file or memory)
      * @param workBuf work byte buffer
      * @return true if record was serialized, false - if it was not, (not a custom record or other
      *     serde must be tried)
      */
-    public boolean serialize(long recordAddress, FileChannel fc, ByteBuffer workBuf)
+    public boolean serialize(long recordAddress, WritableByteChannel fc, ByteBuffer workBuf)
         throws IOException;
 
     /**
-     * De-serialize custom Key-Value from a file channel
+     * De-serialize custom Key-Value from a channel
      *
      * @param recordAddress - address of a de-serialized record in a data block
-     * @param fc file channel
+     * @param fc channel
      * @param workBuf work buffer Custom allocators can change value, but not a size.
      * @return true if record was de-serialized, false - if it was not, (not a custom record or
      *     other serde must be tried)
      */
-    public boolean deserialize(long recordAddress, FileChannel fc, ByteBuffer workBuf)
+    public boolean deserialize(long recordAddress, ReadableByteChannel fc, ByteBuffer workBuf)
         throws IOException;
   }
 
@@ -141,7 +162,7 @@ public final class DataBlock {
   static class ExternalAllocSerDe implements SerDe {
 
     @Override
-    public final boolean serialize(long recordAddress, FileChannel fc, ByteBuffer workBuf)
+    public final boolean serialize(long recordAddress, WritableByteChannel fc, ByteBuffer workBuf)
         throws IOException {
       if (getRecordAllocationType(recordAddress) == AllocType.EMBEDDED) {
         return false;
@@ -201,7 +222,7 @@ public final class DataBlock {
     }
 
     @Override
-    public boolean deserialize(long recordAddress, FileChannel fc, ByteBuffer workBuf)
+    public boolean deserialize(long recordAddress, ReadableByteChannel fc, ByteBuffer workBuf)
         throws IOException {
       if (getRecordAllocationType(recordAddress) == AllocType.EMBEDDED) {
         return false;
@@ -409,6 +430,15 @@ public final class DataBlock {
         }
       };
 
+  /** Decompression buffers for scanners, which are safe for multiple instances in one thread */
+  static ThreadLocal<ArrayDeque<Long>> decompBufferPool =
+      new ThreadLocal<ArrayDeque<Long>>() {
+        @Override
+        protected ArrayDeque<Long> initialValue() {
+          return new ArrayDeque<Long>();
+        }
+      };
+
   /** Used to compress data block */
   static ThreadLocal<Long> compBuffer =
       new ThreadLocal<Long>() {
@@ -418,6 +448,44 @@ public final class DataBlock {
         }
       };
 
+  /**
+   * Used to keep prefix encoded data block before compression and after decompression. Encoding
+   * can add one byte per record to a block, when no prefixes are shared, hence the double size
+   */
+  static ThreadLocal<Long> prefixBuffer =
+      new ThreadLocal<Long>() {
+        @Override
+        protected Long initialValue() {
+          return UnsafeAccess.malloc(2 * (MAX_BLOCK_SIZE + 80));
+        }
+      };
+
+  /** Maximum length of a key prefix shared with a previous key, which is encoded in one byte */
+  static final int MAX_SHARED_PREFIX = 255;
+
+  /** Are keys prefix encoded before data block compression */
+  private static volatile boolean prefixKeysEnabled =
+      RedisConf.getInstance().isCompressionPrefixKeysEnabled();
+
+  /**
+   * Is prefix encoding of keys in compressed data blocks enabled
+   *
+   * @return true or false
+   */
+  public static boolean isPrefixKeysEnabled() {
+    return prefixKeysEnabled;
+  }
+
+  /**
+   * Enables or disables prefix encoding of keys in compressed data blocks. It affects only blocks
+   * which are compressed after this call, blocks are always decoded according to their own flag
+   *
+   * @param b true or false
+   */
+  public static void setPrefixKeysEnabled(boolean b) {
+    prefixKeysEnabled = b;
+  }
+
   // The greater factor is the worse is overall performance
   private static double MIN_MERGE_FACTOR = 0.75;
   /*
@@ -548,7 +616,8 @@ public final class DataBlock {
    * Auxiliary byte: is used to keep compression codec (lower 3 bits, 0 means
    * no compression, total up to 7 codecs can be used),
    * Bit 4: 1 - block is compressed, 0 - decompressed
-   * Four upper bits are
+   * Bit 5: 1 - keys of a compressed block are prefix encoded
+   * Three upper bits are
    * reserved for future use
    * is used to keep long K-V presence
    */
@@ -558,6 +627,8 @@ public final class DataBlock {
 
   static final int COMPRESSED_MASK = 8; // 000001000;
 
+  static final int PREFIX_KEYS_MASK = 16; // 000010000;
+
   /*
    * Number of records with external allocations (key, value or both)
    * This is used to optimize snapshot of a data block
@@ -652,6 +723,11 @@ public final class DataBlock {
    */
   boolean mutation = false;
 
+  /*
+   * Block is a private view of a decompressed data, which is not published in the index block
+   */
+  boolean view = false;
+
   public void dump() {
     log.debug("====================================");
     log.debug("Address        ={}", getDataPtr());
@@ -730,6 +806,7 @@ public final class DataBlock {
     this.compDataSize = 0;
     this.compDataBlockSize = 0;
 
+    this.view = false;
     this.dataPtr = getDataPtr();
     this.valid = true;
     this.mutation = false;
@@ -752,22 +829,48 @@ public final class DataBlock {
     decompressDataBlockIfNeeded(false);
   }
 
+  /**
+   * Get decompression buffer from the thread local pool
+   *
+   * @return buffer address
+   */
+  static long allocateDecompressionBuffer() {
+    Long ptr = decompBufferPool.get().poll();
+    return ptr != null ? ptr : UnsafeAccess.malloc(MAX_BLOCK_SIZE + 80);
+  }
+
+  /**
+   * Return decompression buffer to the thread local pool
+   *
+   * @param ptr buffer address
+   */
+  static void releaseDecompressionBuffer(long ptr) {
+    decompBufferPool.get().push(ptr);
+  }
+
   /** Before data access and/or modification TODO: Verify that this work with detached blocks */
   final void decompressDataBlockIfNeeded(boolean useSecondBuffer) {
     if (!isCompressed()) {
       return;
     }
+    decompressDataBlockIfNeeded(useSecondBuffer ? decompBuffer2.get() : decompBuffer1.get());
+  }
+
+  /**
+   * De-compress data block into a given buffer
+   *
+   * @param buf buffer address (MAX_BLOCK_SIZE + 80 bytes)
+   */
+  final void decompressDataBlockIfNeeded(long buf) {
+    if (!isCompressed()) {
+      return;
+    }
 
     this.compressedDataPtr = getDataPtr();
     this.compDataSize = getDataInBlockSize();
     this.compDataBlockSize = getBlockSize();
 
-    Codec codec = getCompressionCodec();
-    int compSize = UnsafeAccess.toInt(this.compressedDataPtr);
-    long buf = useSecondBuffer ? decompBuffer2.get() : decompBuffer1.get();
-    int dataSize =
-        codec.decompress(
-            this.compressedDataPtr + Utils.SIZEOF_INT, compSize, buf, MAX_BLOCK_SIZE + 80);
+    int dataSize = decompress(this.compressedDataPtr, buf);
     this.dataPtr = buf;
 
     setDataPtr(this.dataPtr);
@@ -776,8 +879,70 @@ public final class DataBlock {
     setCompressed(false);
   }
 
+  /**
+   * De-compress data block into a given buffer without publishing it in the index block. Block
+   * becomes a read only private view of the data, which stays valid after other instances of the
+   * same block are decompressed or compressed again. Used by multiple instances safe scanners, which
+   * hold index block read lock. View is dropped by {@link #compressDataBlockIfNeeded()}
+   *
+   * @param buf buffer address (MAX_BLOCK_SIZE + 80 bytes)
+   */
+  final void decompressDataBlockView(long buf) {
+    if (!isCompressed()) {
+      return;
+    }
+    short numRecords = getNumberOfRecords();
+    short numExtAllocs = getNumberOfExtAllocsRecords();
+    short numCustomAllocs = getNumberOfCustomAllocsRecords();
+    byte seqNumber = getSeqNumberSplitOrMerge();
+    int dataSize = decompress(getDataPtr(), buf);
+    this.view = true;
+    this.dataPtr = buf;
+    this.dataInBlockSize = (short) dataSize;
+    this.blockSize = (short) getMinSizeGreaterOrEqualsThan(MAX_BLOCK_SIZE, dataSize);
+    this.numRecords = numRecords;
+    this.numExtAllocs = numExtAllocs;
+    this.numCustomAllocs = numCustomAllocs;
+    this.seqNumberSplitOrMerge = seqNumber;
+    this.codecCompressData = 0;
+  }
+
+  /**
+   * De-compress data of a compressed block into a buffer
+   *
+   * @param compressedPtr address of compressed data
+   * @param buf buffer address (MAX_BLOCK_SIZE + 80 bytes)
+   * @return size of decompressed data
+   */
+  private int decompress(long compressedPtr, long buf) {
+    int dataSize = BlockCache.get(compressedPtr, buf);
+    if (dataSize >= 0) {
+      return dataSize;
+    }
+    Codec codec = getCompressionCodec();
+    int compSize = UnsafeAccess.toInt(compressedPtr);
+    if (isPrefixKeys()) {
+      long prefixBuf = prefixBuffer.get();
+      int encodedSize =
+          codec.decompress(
+              compressedPtr + Utils.SIZEOF_INT, compSize, prefixBuf, MAX_BLOCK_SIZE + 80);
+      dataSize = decodeKeyPrefixes(prefixBuf, encodedSize, buf);
+    } else {
+      dataSize =
+          codec.decompress(compressedPtr + Utils.SIZEOF_INT, compSize, buf, MAX_BLOCK_SIZE + 80);
+    }
+    BlockCache.put(compressedPtr, buf, dataSize);
+    return dataSize;
+  }
+
   /** Release block. Do compression, update index block */
   public void compressDataBlockIfNeeded() {
+    if (this.view) {
+      // Private view: data in the index block is still compressed
+      this.view = false;
+      this.dataPtr = getDataPtr();
+      return;
+    }
     if (!isCompressionEnabled()) return;
     if (isCompressed()) return;
 
@@ -793,7 +958,23 @@ public final class DataBlock {
 
     // TODO: do not compress if data size is small
     if ((isMutationOp() || !wasCompressed)) {
-      size = (short) codec.compress(this.dataPtr, getDataInBlockSize(), buf, MAX_BLOCK_SIZE + 80);
+      if (wasCompressed) {
+        // Compressed data is going to be rewritten or freed
+        BlockCache.invalidate(this.compressedDataPtr);
+      }
+      long src = this.dataPtr;
+      int srcSize = getDataInBlockSize();
+      boolean prefixKeys = false;
+      if (prefixKeysEnabled) {
+        long prefixBuf = prefixBuffer.get();
+        int encodedSize = encodeKeyPrefixes(src, srcSize, prefixBuf);
+        if (encodedSize < srcSize) {
+          src = prefixBuf;
+          srcSize = encodedSize;
+          prefixKeys = true;
+        }
+      }
+      size = (short) codec.compress(src, srcSize, buf, MAX_BLOCK_SIZE + 80);
 
       if (size + Utils.SIZEOF_INT < getDataInBlockSize()) {
         short newBlockSize =
@@ -829,6 +1010,7 @@ public final class DataBlock {
         UnsafeAccess.copy(buf, ptr + Utils.SIZEOF_INT, size);
         size += Utils.SIZEOF_INT;
         setCompressed(true);
+        setPrefixKeys(prefixKeys);
 
       } else {
         // Not compressible
@@ -854,6 +1036,7 @@ public final class DataBlock {
         }
         // disable compression
         setCompressed(false);
+        setPrefixKeys(false);
       }
     } else {
       // not mutation (GET) and was compressed
@@ -888,9 +1071,11 @@ public final class DataBlock {
     setThreadSafe(threadSafe);
     if (codecCompressData < 0) {
       setCompressed(false);
+      setPrefixKeys(false);
       setCompressionCodec(BigSortedMap.codec);
     } else {
       setCompressed((codecCompressData & COMPRESSED_MASK) != 0);
+      setPrefixKeys((codecCompressData & PREFIX_KEYS_MASK) != 0);
       setCompressionCodec(CodecFactory.getCodec(this.codecCompressData & CODEC_MASK));
     }
     setNumberOfExtAllocsRecords(numExtAllocs);
@@ -1079,7 +1264,7 @@ public final class DataBlock {
   }
 
   private boolean detached() {
-    return this.indexPtr == 0;
+    return this.indexPtr == 0 || this.view;
   }
 
   /**
@@ -1336,6 +1521,120 @@ public final class DataBlock {
       }
     }
   }
+
+  /**
+   * Are keys of a compressed block prefix encoded
+   *
+   * @return true or false
+   */
+  final boolean isPrefixKeys() {
+    if (!detached()) {
+      return (UnsafeAccess.toByte(indexPtr + auxOffset) & PREFIX_KEYS_MASK) != 0;
+    } else {
+      return (codecCompressData & PREFIX_KEYS_MASK) != 0;
+    }
+  }
+
+  /**
+   * Sets prefix encoding flag of a compressed block
+   *
+   * @param b true or false
+   */
+  final void setPrefixKeys(boolean b) {
+    if (!detached()) {
+      int v = UnsafeAccess.toByte(indexPtr + auxOffset);
+      if (b) {
+        v |= PREFIX_KEYS_MASK;
+      } else {
+        v &= ~PREFIX_KEYS_MASK;
+      }
+      UnsafeAccess.putByte(indexPtr + auxOffset, (byte) v);
+      UnsafeAccess.storeFence();
+    } else {
+      if (b) {
+        this.codecCompressData |= PREFIX_KEYS_MASK;
+      } else {
+        this.codecCompressData &= ~PREFIX_KEYS_MASK;
+      }
+    }
+  }
+
+  /**
+   * Encodes keys of a data block relative to previous keys. Every embedded key is replaced with a
+   * one byte length of a prefix it shares with a previous embedded key, followed by the rest of a
+   * key. Record headers, types and values are copied as is.
+   *
+   * @param src address of a data
+   * @param size size of a data
+   * @param dst destination buffer (size + number of records bytes)
+   * @return size of an encoded data
+   */
+  static int encodeKeyPrefixes(long src, int size, long dst) {
+    long ptr = src;
+    long stopAddress = src + size;
+    long out = dst;
+    long prevKeyPtr = 0;
+    int prevKeySize = 0;
+    while (ptr < stopAddress) {
+      int keySize = blockKeyLength(ptr);
+      int valueSize = blockValueLength(ptr);
+      UnsafeAccess.copy(ptr, out, RECORD_PREFIX_LENGTH);
+      out += RECORD_PREFIX_LENGTH;
+      long keyPtr = ptr + RECORD_PREFIX_LENGTH;
+      // EXTERNAL_KEY_VALUE records have no embedded key
+      if (keySize > 0) {
+        int shared = 0;
+        int max = Math.min(Math.min(prevKeySize, keySize), MAX_SHARED_PREFIX);
+        while (shared < max
+            && UnsafeAccess.toByte(prevKeyPtr + shared) == UnsafeAccess.toByte(keyPtr + shared)) {
+          shared++;
+        }
+        UnsafeAccess.putByte(out++, (byte) shared);
+        UnsafeAccess.copy(keyPtr + shared, out, keySize - shared);
+        out += keySize - shared;
+        prevKeyPtr = keyPtr;
+        prevKeySize = keySize;
+      }
+      UnsafeAccess.copy(keyPtr + keySize, out, TYPE_SIZE + valueSize);
+      out += TYPE_SIZE + valueSize;
+      ptr = keyPtr + keySize + TYPE_SIZE + valueSize;
+    }
+    return (int) (out - dst);
+  }
+
+  /**
+   * Restores data block encoded by {@link #encodeKeyPrefixes(long, int, long)}
+   *
+   * @param src address of an encoded data
+   * @param size size of an encoded data
+   * @param dst destination buffer
+   * @return size of a decoded data
+   */
+  static int decodeKeyPrefixes(long src, int size, long dst) {
+    long ptr = src;
+    long stopAddress = src + size;
+    long out = dst;
+    long prevKeyPtr = 0;
+    while (ptr < stopAddress) {
+      int keySize = blockKeyLength(ptr);
+      int valueSize = blockValueLength(ptr);
+      UnsafeAccess.copy(ptr, out, RECORD_PREFIX_LENGTH);
+      ptr += RECORD_PREFIX_LENGTH;
+      out += RECORD_PREFIX_LENGTH;
+      if (keySize > 0) {
+        int shared = UnsafeAccess.toByte(ptr++) & 0xff;
+        UnsafeAccess.copy(prevKeyPtr, out, shared);
+        UnsafeAccess.copy(ptr, out + shared, keySize - shared);
+        ptr += keySize - shared;
+        prevKeyPtr = out;
+        out += keySize;
+      }
+      UnsafeAccess.copy(ptr, out, TYPE_SIZE + valueSize);
+      ptr += TYPE_SIZE + valueSize;
+      out += TYPE_SIZE + valueSize;
+    }
+    return (int) (out - dst);
+  }
   /**
    * Returns compression codec id
    *
@@ -1691,6 +1990,62 @@ public final class DataBlock {
     UnsafeAccess.putLong(recordAddress + KV_SIZE_LENGTH, time);
   }
 
+  /**
+   * Updates expiration time of an existing record. Negative time keeps current expiration time,
+   * unless the record has already expired - in this case the record is treated as a new one
+   *
+   * @param recordAddress address of a K-V record
+   * @param time new expiration time
+   */
+  private static void updateRecordExpire(long recordAddress, long time) {
+    if (time >= 0) {
+      setRecordExpire(recordAddress, time);
+    } else if (isRecordExpired(recordAddress)) {
+      setRecordExpire(recordAddress, 0);
+    }
+  }
+
+  /**
+   * WARNING: Public API Checks if record has expired
+   *
+   * @param recordAddress address of a K-V record
+   * @return true - if expired, false - otherwise
+   */
+  public static boolean isRecordExpired(long recordAddress) {
+    return isRecordExpired(recordAddress, System.currentTimeMillis());
+  }
+
+  /**
+   * Checks if record has expired at a given time
+   *
+   * @param recordAddress address of a K-V record
+   * @param now current time in ms
+   * @return true - if expired, false - otherwise
+   */
+  public static boolean isRecordExpired(long recordAddress, long now) {
+    long expire = getRecordExpire(recordAddress);
+    return expire > 0 && expire < now;
+  }
+
+  /**
+   * Get total memory occupied by a K-V record, including external allocation (but not custom
+   * allocations)
+   *
+   * @param recordAddress address of a K-V record
+   * @return size in bytes
+   */
+  static long getRecordAllocatedSize(long recordAddress) {
+    long size = blockKeyLength(recordAddress) + blockValueLength(recordAddress);
+    size += RECORD_TOTAL_OVERHEAD;
+    AllocType type = getRecordAllocationType(recordAddress);
+    if (type == AllocType.EXT_VALUE) {
+      size += valueLength(recordAddress);
+    } else if (type == AllocType.EXT_KEY_VALUE) {
+      size += keyLength(recordAddress) + valueLength(recordAddress) + 2 * INT_SIZE;
+    }
+    return size;
+  }
+
   private static void setRecordEviction(long recordAddress, long value) {
     // UnsafeAccess.putLong(recordAddress + KV_SIZE_LENGTH /*+ EXPIRE_SIZE_LENGTH*/, value);
   }
@@ -1854,9 +2209,8 @@ public final class DataBlock {
         // Set version, expire, op type and eviction (0)
         setRecordSeqId(addr, version);
         setRecordEviction(addr, 0L);
-        if (expire >= 0) {
-          setRecordExpire(addr, expire);
-        }
+        // New record: negative expire (keep TTL) means no expiration
+        setRecordExpire(addr, expire >= 0 ? expire : 0);
         setRecordType(addr, Op.PUT);
 
         incrNumberOfRecords((short) 1);
@@ -1874,9 +2228,7 @@ public final class DataBlock {
         setRecordSeqId(addr, version);
         // Do not update eviction, because we overwrite existing record
         // setRecordEviction(addr, 0L);
-        if (expire >= 0) {
-          setRecordExpire(addr, expire);
-        }
+        updateRecordExpire(addr, expire);
         setRecordType(addr, Op.PUT);
         // Do nothing with important numbers: custom and external allocations
       } else {
@@ -1927,9 +2279,7 @@ public final class DataBlock {
         // Set version, expire, op type and eviction (0)
         setRecordSeqId(addr, version);
         // Do not reset eviction field
-        if (expire >= 0) {
-          setRecordExpire(addr, expire);
-        }
+        updateRecordExpire(addr, expire);
         setRecordType(addr, Op.PUT);
         incrDataSize((short) toMove);
         // TODO: this optimization is for use cases
@@ -2083,9 +2433,8 @@ public final class DataBlock {
         // Set version, expire, op type and eviction (0)
         setRecordSeqId(addr, version);
         setRecordEviction(addr, 0L);
-        if (expire >= 0) {
-          setRecordExpire(addr, expire);
-        }
+        // New record: negative expire (keep TTL) means no expiration
+        setRecordExpire(addr, expire >= 0 ? expire : 0);
         setRecordType(addr, Op.PUT);
 
         incrNumberOfRecords((short) 1);
@@ -2114,9 +2463,7 @@ public final class DataBlock {
         setRecordSeqId(addr, version);
         // Do not update eviction, because we overwrite existing record
         // setRecordEviction(addr, 0L);
-        if (expire >= 0) {
-          setRecordExpire(addr, expire);
-        }
+        updateRecordExpire(addr, expire);
         setRecordType(addr, Op.PUT);
         // Do nothing for number of external and custom allocations
       } else if (!extAddr) {
@@ -2193,9 +2540,7 @@ public final class DataBlock {
         setRecordSeqId(addr, version);
         // Do not reset eviction field
         // setRecordEviction(addr, 0L);
-        if (expire >= 0) {
-          setRecordExpire(addr, expire);
-        }
+        updateRecordExpire(addr, expire);
         setRecordType(addr, Op.PUT);
         incrDataSize((short) toMove);
         // Key exists, value - different, new value is EXTERNAL, old value - EMBEDDED
@@ -2254,9 +2599,7 @@ public final class DataBlock {
         setRecordSeqId(addr, version);
         // Do not reset eviction field
         // setRecordEviction(addr, 0L);
-        if (expire >= 0) {
-          setRecordExpire(addr, expire);
-        }
+        updateRecordExpire(addr, expire);
         setRecordType(addr, Op.PUT);
         // No need to update number of external and custom allocations
       }
@@ -2420,10 +2763,11 @@ public final class DataBlock {
       if (Utils.compareTo(kPtr, keylen, endKeyPtr, endKeySize) >= 0) {
         break;
       }
-      int vallen = valueLength(ptr);
+      // Externally allocated records occupy less space in a block than their key and value sizes
+      int recordSize = blockKeyLength(ptr) + blockValueLength(ptr) + RECORD_TOTAL_OVERHEAD;
       deallocateIfExternalRecord(ptr);
       deleted++;
-      ptr += keylen + vallen + RECORD_TOTAL_OVERHEAD;
+      ptr += recordSize;
     }
     if (deleted > 0) {
       deletedSize = ptr - startRange;
@@ -2864,6 +3208,10 @@ public final class DataBlock {
         int res = Utils.compareTo(keyPtr, keyLength, keyAddress(addr), keylen);
         if (res == 0) {
           // FOUND exact key
+          if (isRecordExpired(addr)) {
+            // Lazy expiration: record will be reclaimed on update or by sweeper
+            return NOT_FOUND;
+          }
           // Op type = getRecordType(addr);
           // if (type == Op.PUT) {
           if (vallen <= valueBufLength) {
@@ -3278,7 +3626,8 @@ public final class DataBlock {
   /**
    * TODO: FIXME for compression Free block memory and external allocations (true/false)
    *
-   * @param freeExternalAllocs if true, free all the memory of external Key-Value allocations
+   * @param freeExternalAllocs if true, free all the memory of external Key-Value allocations and
+   *     run custom deallocators (false - records have been moved to other block)
    */
   final void free(boolean freeExternalAllocs) {
     int count = 0;
@@ -3292,7 +3641,7 @@ public final class DataBlock {
 
     long ptr = dataPtr;
 
-    boolean runCustomDeallocs = customDeallocators.size() > 0;
+    boolean runCustomDeallocs = freeExternalAllocs && customDeallocators.size() > 0;
 
     while (count++ < numRecords) {
 
@@ -3327,6 +3676,7 @@ public final class DataBlock {
     valid = false;
 
     if (this.compressedDataPtr > 0) {
+      BlockCache.invalidate(this.compressedDataPtr);
       UnsafeAccess.free(this.compressedDataPtr);
       if (map == null) {
         BigSortedMap.incrGlobalCompressedDataSize(-this.compDataSize);
@@ -3349,7 +3699,13 @@ public final class DataBlock {
     }
   }
 
-  private void runCustomDeallocators(BigSortedMap map, long ptr) {
+  /**
+   * Runs registered custom deallocators on a record
+   *
+   * @param map store
+   * @param ptr record address
+   */
+  static void runCustomDeallocators(BigSortedMap map, long ptr) {
     synchronized (customDeallocators) {
       int num = customDeallocators.size();
       for (int i = 0; i < num; i++) {
@@ -3362,6 +3718,97 @@ public final class DataBlock {
     }
   }
 
+  /**
+   * Active expiration support. Collects keys of expired records into a buffer. Format:
+   * [KEY_SIZE(4)][KEY]... Block must be decompressed and read locked by a caller
+   *
+   * @param now current time in ms
+   * @param bufferPtr buffer address
+   * @param bufferSize buffer size
+   * @return number of bytes written to the buffer
+   */
+  final int collectExpiredKeys(long now, long bufferPtr, int bufferSize) {
+    int numRecords = getNumberOfRecords();
+    long ptr = this.dataPtr;
+    int off = 0;
+    for (int i = 0; i < numRecords; i++) {
+      if (isRecordExpired(ptr, now)) {
+        long keyPtr = keyAddress(ptr);
+        int keySize = keyLength(ptr);
+        if (!isForbiddenKey(keyPtr, keySize)) {
+          if (off + keySize + INT_SIZE > bufferSize) {
+            break;
+          }
+          UnsafeAccess.putInt(bufferPtr + off, keySize);
+          UnsafeAccess.copy(keyPtr, bufferPtr + off + INT_SIZE, keySize);
+          off += keySize + INT_SIZE;
+        }
+      }
+      ptr += blockKeyLength(ptr) + blockValueLength(ptr) + RECORD_TOTAL_OVERHEAD;
+    }
+    return off;
+  }
+
+  /**
+   * Copies key of an eviction candidate into a buffer as [size][key]: first or random record of
+   * the block
+   *
+   * @param random select random record
+   * @param bufferPtr buffer address
+   * @param bufferSize buffer size
+   * @return key size, 0 - block has no candidates or the buffer is too small
+   */
+  final int getEvictionCandidate(boolean random, long bufferPtr, int bufferSize) {
+    int numRecords = getNumberOfRecords();
+    if (numRecords == 0) {
+      return 0;
+    }
+    int index = random ? ThreadLocalRandom.current().nextInt(numRecords) : 0;
+    long ptr = this.dataPtr;
+    for (int i = 0; i < numRecords; i++) {
+      long keyPtr = keyAddress(ptr);
+      int keySize = keyLength(ptr);
+      if (i >= index && !isForbiddenKey(keyPtr, keySize)) {
+        if (keySize + INT_SIZE > bufferSize) {
+          return 0;
+        }
+        UnsafeAccess.putInt(bufferPtr, keySize);
+        UnsafeAccess.copy(keyPtr, bufferPtr + INT_SIZE, keySize);
+        return keySize;
+      }
+      ptr += blockKeyLength(ptr) + blockValueLength(ptr) + RECORD_TOTAL_OVERHEAD;
+    }
+    return 0;
+  }
+
+  /**
+   * Finds record with the nearest expiration time, which is less than a given one, and copies its
+   * key into a buffer as [size][key]
+   *
+   * @param expire expiration time to beat
+   * @param bufferPtr buffer address
+   * @param bufferSize buffer size
+   * @return expiration time of the found record or expire, if there is no such record
+   */
+  final long getNearestExpiration(long expire, long bufferPtr, int bufferSize) {
+    int numRecords = getNumberOfRecords();
+    long ptr = this.dataPtr;
+    for (int i = 0; i < numRecords; i++) {
+      long time = getRecordExpire(ptr);
+      if (time > 0 && time < expire) {
+        long keyPtr = keyAddress(ptr);
+        int keySize = keyLength(ptr);
+        if (!isForbiddenKey(keyPtr, keySize) && keySize + INT_SIZE <= bufferSize) {
+          UnsafeAccess.putInt(bufferPtr, keySize);
+          UnsafeAccess.copy(keyPtr, bufferPtr + INT_SIZE, keySize);
+          expire = time;
+        }
+      }
+      ptr += blockKeyLength(ptr) + blockValueLength(ptr) + RECORD_TOTAL_OVERHEAD;
+    }
+    return expire;
+  }
+
   /** Used for testing only */
   final byte[] getFirstKey() {
     if (this.indexBlock != null) {
@@ -3448,7 +3895,7 @@ public final class DataBlock {
 
   static byte SERDE = 1;
 
-  private static void drainBuffer(ByteBuffer buf, FileChannel fc) throws IOException {
+  private static void drainBuffer(ByteBuffer buf, WritableByteChannel fc) throws IOException {
     buf.flip();
     while (buf.hasRemaining()) {
       fc.write(buf);
@@ -3456,7 +3903,7 @@ public final class DataBlock {
     buf.clear();
   }
 
-  void saveData(FileChannel fc, ByteBuffer buf) throws IOException {
+  void saveData(WritableByteChannel fc, ByteBuffer buf) throws IOException {
 
     // TODO - FIX THE CODE
     // Write header
@@ -3496,7 +3943,7 @@ public final class DataBlock {
     }
   }
 
-  private void serialize(long ptr, FileChannel fc, ByteBuffer buf) throws IOException {
+  private void serialize(long ptr, WritableByteChannel fc, ByteBuffer buf) throws IOException {
     int total = serdes.size();
     for (int i = 0; i < total; i++) {
       SerDe s = serdes.get(i);
@@ -3525,7 +3972,7 @@ public final class DataBlock {
   }
 
   /** LOAD DATA */
-  static DataBlock loadData(IndexBlock parent, FileChannel fc, ByteBuffer buf) throws IOException {
+  static DataBlock loadData(IndexBlock parent, ReadableByteChannel fc, ByteBuffer buf) throws IOException {
     // Read meta
     byte type, codecCompData;
     short numRecords, dataSize, numExtAllocs, numCustomAllocs;
@@ -3616,7 +4063,7 @@ public final class DataBlock {
     return block;
   }
 
-  private static void deserialize(long ptr, FileChannel fc, ByteBuffer buf) throws IOException {
+  private static void deserialize(long ptr, ReadableByteChannel fc, ByteBuffer buf) throws IOException {
     int total = serdes.size();
     for (int i = 0; i < total; i++) {
       SerDe s = serdes.get(i);
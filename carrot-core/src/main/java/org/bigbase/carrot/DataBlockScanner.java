@@ -73,6 +73,11 @@ public final class DataBlockScanner extends Scanner {
    */
   boolean isFirst;
 
+  /*
+   * Current time (ms) - to skip expired records
+   */
+  long now;
+
   /*
    * Thread local for scanner instance.
    * Multiple instances UNSAFE (can not be used in multiple
@@ -198,6 +203,7 @@ public final class DataBlockScanner extends Scanner {
     this.numRecords = 0;
     this.snapshotId = Long.MAX_VALUE;
     this.isFirst = false;
+    this.now = 0;
   }
 
   private void setStartRow(long ptr, int len) {
@@ -208,6 +214,7 @@ public final class DataBlockScanner extends Scanner {
     } else {
       this.curPtr = this.ptr;
     }
+    skipExpiredRecords();
   }
 
   /**
@@ -314,6 +321,7 @@ public final class DataBlockScanner extends Scanner {
     this.ptr = b.getAddress();
     this.curPtr = this.ptr;
     this.isFirst = b.isFirstBlock();
+    this.now = System.currentTimeMillis();
   }
 
   protected void setSnapshotId(long snapshotId) {
@@ -358,6 +366,7 @@ public final class DataBlockScanner extends Scanner {
       int keylen = DataBlock.blockKeyLength(this.curPtr);
       int vallen = DataBlock.blockValueLength(this.curPtr);
       this.curPtr += keylen + vallen + DataBlock.RECORD_TOTAL_OVERHEAD;
+      skipExpiredRecords();
       if (this.curPtr - this.ptr >= this.dataSize) {
         return false;
       }
@@ -441,6 +450,20 @@ public final class DataBlockScanner extends Scanner {
     }
   }
 
+  /** Lazy expiration: skips expired records */
+  private void skipExpiredRecords() {
+    while (this.curPtr - this.ptr < this.dataSize) {
+      if (this.isFirst && this.curPtr == this.ptr) {
+        // Never skip system first entry : {0}{0}
+        return;
+      }
+      if (!DataBlock.isRecordExpired(this.curPtr, this.now)) {
+        return;
+      }
+      this.curPtr = advanceByOneRecord(this.curPtr);
+    }
+  }
+
   private long advanceByOneRecord(long ptr) {
     short vlen = DataBlock.blockValueLength(ptr);
     int klen = DataBlock.blockKeyLength(ptr);
@@ -647,9 +670,20 @@ public final class DataBlockScanner extends Scanner {
     return true;
   }
 
-  /** Set to the last record */
+  /** Set to the last record, which has not expired */
   @Override
   public boolean last() {
+    if (!lastRecord()) {
+      return false;
+    }
+    if (!DataBlock.isRecordExpired(this.curPtr, this.now)) {
+      return true;
+    }
+    return previous();
+  }
+
+  /** Set to the last record */
+  private boolean lastRecord() {
     if (isFirst && numRecords == 1) {
       return false;
     }
@@ -703,30 +737,45 @@ public final class DataBlockScanner extends Scanner {
 
   @Override
   public boolean previous() {
-    long limit = isFirst ? this.ptr + DataBlock.RECORD_TOTAL_OVERHEAD + 2 : this.ptr;
-    long pptr = limit;
-    if (pptr == this.curPtr) {
+    long pptr = previousRecord();
+    if (pptr == 0) {
       return false;
     }
-    while (pptr < this.curPtr) {
-      int keylen = DataBlock.blockKeyLength(pptr);
-      int vallen = DataBlock.blockValueLength(pptr);
-      if (pptr + keylen + vallen + DataBlock.RECORD_TOTAL_OVERHEAD == this.curPtr) {
-        break;
-      } else {
-        pptr += keylen + vallen + DataBlock.RECORD_TOTAL_OVERHEAD;
+    this.curPtr = pptr;
+    return true;
+  }
+
+  /**
+   * Lazy expiration: finds previous record, which has not expired
+   *
+   * @return record address or 0 (no previous record or it is less than start row)
+   */
+  private long previousRecord() {
+    long limit = isFirst ? this.ptr + DataBlock.RECORD_TOTAL_OVERHEAD + 2 : this.ptr;
+    long cur = this.curPtr;
+    long pptr;
+    do {
+      if (cur == limit) {
+        return 0;
       }
-    }
+      pptr = limit;
+      while (pptr < cur) {
+        long next = advanceByOneRecord(pptr);
+        if (next == cur) {
+          break;
+        }
+        pptr = next;
+      }
+      cur = pptr;
+    } while (DataBlock.isRecordExpired(pptr, this.now));
 
     if (startRowPtr != 0) {
       int res = DataBlock.compareTo(pptr, startRowPtr, startRowLength, 0, Op.PUT);
       if (res > 0) {
-        return false;
+        return 0;
       }
     }
-
-    this.curPtr = pptr;
-    return true;
+    return pptr;
   }
 
   /** For hackers (does not check startRow) */
@@ -751,27 +800,6 @@ public final class DataBlockScanner extends Scanner {
 
   @Override
   public boolean hasPrevious() {
-    long limit = isFirst ? this.ptr + DataBlock.RECORD_TOTAL_OVERHEAD + 2 /*{0,0}*/ : this.ptr;
-    long pptr = limit;
-    if (pptr == this.curPtr) {
-      return false;
-    }
-    while (pptr < this.curPtr) {
-      int keylen = DataBlock.blockKeyLength(pptr);
-      int vallen = DataBlock.blockValueLength(pptr);
-      if (pptr + keylen + vallen + DataBlock.RECORD_TOTAL_OVERHEAD == this.curPtr) {
-        break;
-      } else {
-        pptr += keylen + vallen + DataBlock.RECORD_TOTAL_OVERHEAD;
-      }
-    }
-
-    if (startRowPtr != 0) {
-      int res = DataBlock.compareTo(pptr, startRowPtr, startRowLength, 0, Op.PUT);
-      if (res > 0) {
-        return false;
-      }
-    }
-    return true;
+    return previousRecord() != 0;
   }
 }
@@ -0,0 +1,63 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot;
+
+/**
+ * Eviction policies (maxmemory-policy). When a store runs out of memory, victims are selected
+ * among a small sample of index blocks, using approximate access statistics of blocks (LRU clock
+ * and logarithmic LFU counter) or expiration times of records - there is no global access list.
+ */
+public enum EvictionPolicy {
+  /* Do not evict, mutations fail when memory limit is reached */
+  NOEVICTION("noeviction"),
+  /* Evict least recently used keys */
+  ALLKEYS_LRU("allkeys-lru"),
+  /* Evict least frequently used keys */
+  ALLKEYS_LFU("allkeys-lfu"),
+  /* Evict random keys */
+  ALLKEYS_RANDOM("allkeys-random"),
+  /* Evict keys with the nearest expiration time */
+  VOLATILE_TTL("volatile-ttl");
+
+  private final String name;
+
+  EvictionPolicy(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Get policy configuration name
+   *
+   * @return name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Get policy by its configuration name
+   *
+   * @param name name (Redis style: allkeys-lru, or enum constant: ALLKEYS_LRU)
+   * @return policy
+   */
+  public static EvictionPolicy fromString(String name) {
+    name = name.trim();
+    for (EvictionPolicy p : values()) {
+      if (p.name.equalsIgnoreCase(name) || p.name().equalsIgnoreCase(name)) {
+        return p;
+      }
+    }
+    throw new IllegalArgumentException("Unknown eviction policy: " + name);
+  }
+}
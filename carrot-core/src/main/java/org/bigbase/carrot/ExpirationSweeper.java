@@ -0,0 +1,196 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bigbase.carrot.redis.RedisConf;
+
+/**
+ * Active expiration. Single (JVM-wide) daemon thread, which incrementally scans index blocks of all
+ * registered stores and reclaims expired records in place. Every cycle is limited by a CPU budget:
+ * not more than (budget * interval / 100) ms of each cycle interval is spent on reclaiming expired
+ * keys. Expired records, which have not been reclaimed yet, are invisible for readers (lazy
+ * expiration)
+ */
+public class ExpirationSweeper extends Thread {
+
+  private static final Logger log = LogManager.getLogger(ExpirationSweeper.class);
+
+  /** Store and its scan position */
+  static class Cursor {
+    BigSortedMap map;
+    /* First key of the last scanned index block */
+    byte[] lastKey;
+
+    Cursor(BigSortedMap map) {
+      this.map = map;
+    }
+  }
+
+  /** Singleton instance */
+  private static ExpirationSweeper sweeper;
+
+  /** Average number of reclaimed keys per second */
+  private static volatile double expiredKeysPerSec;
+
+  /** Average number of reclaimed bytes per second */
+  private static volatile double expiredBytesPerSec;
+
+  /* Registered stores */
+  private final List<Cursor> cursors = new ArrayList<Cursor>();
+
+  /* Cycle interval in ms */
+  private final long interval;
+
+  /* Time budget of a cycle in ns */
+  private final long budget;
+
+  /* Index of a store to start next cycle from */
+  private int next;
+
+  private volatile boolean stopped;
+
+  private ExpirationSweeper(long interval, int cpuBudget) {
+    super("carrot-expiration-sweeper");
+    setDaemon(true);
+    this.interval = interval;
+    this.budget = interval * 1000000 * cpuBudget / 100;
+  }
+
+  /**
+   * Registers store for active expiration. Starts sweeper thread, if it was not started yet
+   *
+   * @param map store
+   */
+  public static synchronized void register(BigSortedMap map) {
+    if (sweeper == null) {
+      RedisConf conf = RedisConf.getInstance();
+      long interval = conf.getExpireSweepInterval();
+      int cpuBudget = Math.min(100, conf.getExpireSweepCpuBudget());
+      if (interval <= 0 || cpuBudget <= 0) {
+        log.info("Active expiration is disabled");
+        return;
+      }
+      sweeper = new ExpirationSweeper(interval, cpuBudget);
+      sweeper.start();
+      log.info("Active expiration started, interval={}ms cpu budget={}%", interval, cpuBudget);
+    }
+    synchronized (sweeper.cursors) {
+      sweeper.cursors.add(new Cursor(map));
+    }
+  }
+
+  /**
+   * Unregisters store
+   *
+   * @param map store
+   */
+  public static synchronized void unregister(BigSortedMap map) {
+    if (sweeper == null) {
+      return;
+    }
+    synchronized (sweeper.cursors) {
+      sweeper.cursors.removeIf(x -> x.map == map);
+    }
+  }
+
+  /** Stops sweeper thread (if any) */
+  public static synchronized void shutdown() {
+    if (sweeper == null) {
+      return;
+    }
+    sweeper.stopped = true;
+    sweeper.interrupt();
+    sweeper = null;
+  }
+
+  /**
+   * Get average number of reclaimed expired keys per second (both: active and lazy expiration)
+   *
+   * @return keys per second
+   */
+  public static double getExpiredKeysPerSec() {
+    return expiredKeysPerSec;
+  }
+
+  /**
+   * Get average number of reclaimed bytes per second (both: active and lazy expiration)
+   *
+   * @return bytes per second
+   */
+  public static double getExpiredBytesPerSec() {
+    return expiredBytesPerSec;
+  }
+
+  @Override
+  public void run() {
+    long statsTime = System.currentTimeMillis();
+    long statsKeys = BigSortedMap.getGlobalExpiredKeys();
+    long statsBytes = BigSortedMap.getGlobalExpiredBytes();
+
+    while (!stopped) {
+      long start = System.nanoTime();
+      try {
+        sweep(start + budget);
+      } catch (Throwable t) {
+        log.error("Active expiration cycle failed", t);
+      }
+      long now = System.currentTimeMillis();
+      if (now - statsTime >= 1000) {
+        long keys = BigSortedMap.getGlobalExpiredKeys();
+        long bytes = BigSortedMap.getGlobalExpiredBytes();
+        expiredKeysPerSec = (double) (keys - statsKeys) * 1000 / (now - statsTime);
+        expiredBytesPerSec = (double) (bytes - statsBytes) * 1000 / (now - statsTime);
+        statsTime = now;
+        statsKeys = keys;
+        statsBytes = bytes;
+      }
+      long toSleep = interval - (System.nanoTime() - start) / 1000000;
+      if (toSleep > 0) {
+        try {
+          Thread.sleep(toSleep);
+        } catch (InterruptedException e) {
+          // shutdown
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs one active expiration cycle
+   *
+   * @param deadline cycle deadline (in terms of System.nanoTime())
+   */
+  private void sweep(long deadline) {
+    Cursor[] arr;
+    synchronized (cursors) {
+      arr = cursors.toArray(new Cursor[cursors.size()]);
+    }
+    int n = arr.length;
+    for (int i = 0; i < n && System.nanoTime() < deadline; i++) {
+      Cursor c = arr[(next + i) % n];
+      c.lastKey = c.map.sweepExpired(c.lastKey, deadline);
+      if (c.lastKey != null) {
+        // Time is over - continue from this store next cycle
+        next = (next + i) % n;
+        return;
+      }
+    }
+    next = n > 0 ? (next + 1) % n : 0;
+  }
+}
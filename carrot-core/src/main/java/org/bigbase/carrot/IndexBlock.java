@@ -15,10 +15,13 @@ package org.bigbase.carrot;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.logging.log4j.LogManager;
@@ -231,10 +234,58 @@ public final class IndexBlock implements Comparable<IndexBlock> {
   // long version;
   byte type;
   boolean isFirst = false;
+  /*
+   * Epoch of the last snapshot, which saved (or preserved a copy of) this block. Blocks
+   * created during a snapshot get the snapshot's epoch and are not saved by it.
+   * SNAPSHOT_SAVING bit is set while snapshot thread serializes the block.
+   */
+  volatile long snapshotEpoch;
+
+  /* Snapshot epoch at the block creation time */
+  final long createdEpoch;
+
+  /* Snapshot epoch of the last modification */
+  volatile long modifiedEpoch;
+
+  /* Location of the block's data in a snapshot, valid while block is not modified */
+  volatile BigSortedMap.SnapshotExtent snapshotExtent;
+
+  /* Epoch of the snapshot, which snapshotExtent belongs to */
+  volatile long extentEpoch = -1;
+
+  private static final AtomicLongFieldUpdater<IndexBlock> modifiedEpochUpdater =
+      AtomicLongFieldUpdater.newUpdater(IndexBlock.class, "modifiedEpoch");
+
+  static final long SNAPSHOT_SAVING = Long.MIN_VALUE;
+
+  private static final AtomicLongFieldUpdater<IndexBlock> snapshotEpochUpdater =
+      AtomicLongFieldUpdater.newUpdater(IndexBlock.class, "snapshotEpoch");
+
   /*
    * Recent unsafe modification time (ms): Creation, split, merge, update first key
    */
   volatile long lastUnsafeModTime;
+
+  /* Initial LFU counter of a block, new blocks are not evicted right away */
+  static final int LFU_INIT_VALUE = 5;
+
+  /* Maximum LFU counter */
+  static final int LFU_MAX_VALUE = 255;
+
+  /* LFU logarithmic factor: counter reaches its maximum after ~1M accesses */
+  static final int LFU_LOG_FACTOR = 10;
+
+  /* LFU counter decay period in seconds: counter is decremented every period w/o accesses */
+  static final int LFU_DECAY_TIME = 60;
+
+  /*
+   * Approximate access statistics (eviction): time of the last access in seconds (LRU clock) and
+   * logarithmic access counter (LFU). Updated by readers w/o synchronization, lost updates are OK
+   */
+  volatile int accessTime = clock();
+
+  volatile int accessCounter = LFU_INIT_VALUE;
+
   /**
    * Constructor
    *
@@ -258,9 +309,61 @@ public final class IndexBlock implements Comparable<IndexBlock> {
     }
 
     this.blockSize = (short) size;
+    this.createdEpoch = map != null ? map.getSnapshotEpoch() : 0;
+    this.snapshotEpoch = createdEpoch;
     updateUnsafeModificationTime();
   }
 
+  /**
+   * Atomically updates snapshot epoch of the block
+   *
+   * @param expect expected value
+   * @param update new value
+   * @return true on success
+   */
+  boolean compareAndSetSnapshotEpoch(long expect, long update) {
+    return snapshotEpochUpdater.compareAndSet(this, expect, update);
+  }
+
+  /**
+   * Marks block as modified in a given snapshot epoch
+   *
+   * @param epoch current snapshot epoch
+   */
+  void markModified(long epoch) {
+    long e;
+    while ((e = modifiedEpoch) < epoch) {
+      if (modifiedEpochUpdater.compareAndSet(this, e, epoch)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Checks if block has not been modified since a given snapshot, which saved it
+   *
+   * @param baseEpoch epoch of a snapshot
+   * @return true, if block's data in snapshot is up to date
+   */
+  boolean isSnapshotClean(long baseEpoch) {
+    return baseEpoch >= 0
+        && extentEpoch == baseEpoch
+        && modifiedEpoch < baseEpoch
+        && snapshotExtent != null;
+  }
+
+  /** Waits until snapshot thread completes serialization of this block */
+  void waitSnapshotSaved() {
+    if ((snapshotEpoch & SNAPSHOT_SAVING) == 0 || isThreadSafe() || locks == null) {
+      return;
+    }
+    int index = (hashCode() % locks.length);
+    ReentrantReadWriteLock lock = locks[index];
+    // Snapshot thread holds read lock during serialization
+    lock.writeLock().lock();
+    lock.writeLock().unlock();
+  }
+
   /**
    * Get parent map (store)
    *
@@ -2065,6 +2168,131 @@ public final class IndexBlock implements Comparable<IndexBlock> {
     int lastSize = DataBlock.keyLength(lastRecordAddress);
     log.debug("First key={}\nLast key ={}", Bytes.toHex(first), Bytes.toHex(lastPtr, lastSize));
   }
+  /**
+   * Active expiration support. Collects keys of expired records in all data blocks of this index.
+   * Caller MUST hold read lock on this index block
+   *
+   * @param now current time in ms
+   * @param bufferPtr buffer address
+   * @param bufferSize buffer size
+   * @return number of bytes written to the buffer, format: [KEY_SIZE(4)][KEY]...
+   */
+  int collectExpiredKeys(long now, long bufferPtr, int bufferSize) {
+    int off = 0;
+    DataBlock b = null;
+    while ((b = nextBlock(b, true)) != null) {
+      b.decompressDataBlockIfNeeded();
+      try {
+        off += b.collectExpiredKeys(now, bufferPtr + off, bufferSize - off);
+      } finally {
+        b.compressDataBlockIfNeeded();
+      }
+    }
+    return off;
+  }
+
+  /**
+   * LRU clock
+   *
+   * @return current time in seconds
+   */
+  static int clock() {
+    return (int) (System.currentTimeMillis() / 1000);
+  }
+
+  /** Updates access statistics of the block (LRU clock and LFU counter) */
+  void touch() {
+    int now = clock();
+    int counter = getAccessCounter(now);
+    if (counter < LFU_MAX_VALUE) {
+      // Logarithmic increment: the greater the counter is the less likely it is incremented
+      int base = Math.max(0, counter - LFU_INIT_VALUE);
+      if (ThreadLocalRandom.current().nextDouble() * (base * LFU_LOG_FACTOR + 1) < 1.0) {
+        counter++;
+      }
+    }
+    // Avoid writes to shared memory, when nothing has changed
+    if (counter != accessCounter) {
+      accessCounter = counter;
+    }
+    if (now != accessTime) {
+      accessTime = now;
+    }
+  }
+
+  /**
+   * Get idle time of the block (LRU)
+   *
+   * @param now current LRU clock
+   * @return seconds since the last access
+   */
+  int getIdleTime(int now) {
+    return Math.max(0, now - accessTime);
+  }
+
+  /**
+   * Get access counter of the block (LFU), decremented by one for every decay period w/o accesses
+   *
+   * @param now current LRU clock
+   * @return access counter
+   */
+  int getAccessCounter(int now) {
+    int periods = getIdleTime(now) / LFU_DECAY_TIME;
+    return Math.max(0, accessCounter - periods);
+  }
+
+  /**
+   * Copies key of an eviction candidate into a buffer as [size][key]: first record of the block
+   * or a random record of a random data block
+   *
+   * @param random select random record
+   * @param bufferPtr buffer address
+   * @param bufferSize buffer size
+   * @return key size, 0 - no candidates
+   */
+  int getEvictionCandidate(boolean random, long bufferPtr, int bufferSize) {
+    int skip = random && numDataBlocks > 1 ? ThreadLocalRandom.current().nextInt(numDataBlocks) : 0;
+    DataBlock b = null;
+    while ((b = nextBlock(b, true)) != null) {
+      if (skip-- > 0) {
+        continue;
+      }
+      int size = 0;
+      b.decompressDataBlockIfNeeded();
+      try {
+        size = b.getEvictionCandidate(random, bufferPtr, bufferSize);
+      } finally {
+        b.compressDataBlockIfNeeded();
+      }
+      if (size > 0) {
+        return size;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Finds record with the nearest expiration time, which is less than a given one, and copies its
+   * key into a buffer as [size][key]
+   *
+   * @param expire expiration time to beat
+   * @param bufferPtr buffer address
+   * @param bufferSize buffer size
+   * @return expiration time of the found record or expire, if there is no such record
+   */
+  long getNearestExpiration(long expire, long bufferPtr, int bufferSize) {
+    DataBlock b = null;
+    while ((b = nextBlock(b, true)) != null) {
+      b.decompressDataBlockIfNeeded();
+      try {
+        expire = b.getNearestExpiration(expire, bufferPtr, bufferSize);
+      } finally {
+        b.compressDataBlockIfNeeded();
+      }
+    }
+    return expire;
+  }
+
   /**
    * Get last K-V record address in this index
    *
@@ -2324,6 +2552,8 @@ public final class IndexBlock implements Comparable<IndexBlock> {
       right.numDataBlocks = (short) (oldNumRecords - this.numDataBlocks);
       right.blockDataSize = (short) (oldDataSize - this.blockDataSize);
       UnsafeAccess.copy(ptr, right.dataPtr, right.blockDataSize);
+      right.accessTime = accessTime;
+      right.accessCounter = accessCounter;
       // Init first key
       right.getFirstKey();
       updateUnsafeModificationTime();
@@ -2496,14 +2726,14 @@ public final class IndexBlock implements Comparable<IndexBlock> {
    *
    * @throws IOException
    */
-  void saveData(FileChannel fc, ByteBuffer buf) throws IOException {
+  void saveData(WritableByteChannel fc, ByteBuffer buf) throws IOException {
     DataBlock db = null;
     while ((db = nextBlock(db, false)) != null) {
       db.saveData(fc, buf);
     }
   }
 
-  DataBlock loadData(FileChannel fc, ByteBuffer buf) throws IOException {
+  DataBlock loadData(ReadableByteChannel fc, ByteBuffer buf) throws IOException {
 
     while (true) {
       DataBlock next = DataBlock.loadData(this, fc, buf);
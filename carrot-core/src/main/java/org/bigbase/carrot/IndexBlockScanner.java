@@ -72,6 +72,11 @@ public final class IndexBlockScanner implements Closeable {
    */
   private boolean isMultiSafe = false;
 
+  /*
+   * Decompression buffer of a multiple instances safe scanner
+   */
+  private long decompBuffer;
+
   /*
    * Is reverse scanner?
    */
@@ -301,8 +306,27 @@ public final class IndexBlockScanner implements Closeable {
 
     this.currentDataBlock = b;
     if (this.currentDataBlock != null) {
+      decompressCurrentBlock();
+    }
+  }
+
+  /**
+   * Decompress current data block. Multiple instances safe scanner uses its own buffer and a
+   * private view of the block, otherwise scanners of the same thread, which share a data block,
+   * would read each other's buffers
+   */
+  private void decompressCurrentBlock() {
+    if (!isMultiSafe) {
       this.currentDataBlock.decompressDataBlockIfNeeded();
+      return;
     }
+    if (!this.currentDataBlock.isCompressed()) {
+      return;
+    }
+    if (this.decompBuffer == 0) {
+      this.decompBuffer = DataBlock.allocateDecompressionBuffer();
+    }
+    this.currentDataBlock.decompressDataBlockView(this.decompBuffer);
   }
 
   /**
@@ -381,7 +405,7 @@ public final class IndexBlockScanner implements Closeable {
 
     this.currentDataBlock = b;
     if (this.currentDataBlock != null) {
-      this.currentDataBlock.decompressDataBlockIfNeeded();
+      decompressCurrentBlock();
     }
 
     if (this.curDataBlockScanner != null) {
@@ -530,7 +554,14 @@ public final class IndexBlockScanner implements Closeable {
     if (this.curDataBlockScanner != null) {
       b = this.indexBlock.previousBlock(this.currentDataBlock);
     }
-    return setBlockAndReturnScanner(b);
+    DataBlockScanner scanner = setBlockAndReturnScanner(b);
+    // Skip blocks which have no live records in a range (all expired)
+    while (scanner == null && this.curDataBlockScanner != null && this.currentDataBlock != null) {
+      this.currentDataBlock.compressDataBlockIfNeeded();
+      b = this.indexBlock.previousBlock(this.currentDataBlock);
+      scanner = setBlockAndReturnScanner(b);
+    }
+    return scanner;
   }
 
   public DataBlockScanner getBlockScanner() {
@@ -557,6 +588,10 @@ public final class IndexBlockScanner implements Closeable {
     if (this.currentDataBlock != null) {
       this.currentDataBlock.compressDataBlockIfNeeded();
     }
+    if (this.decompBuffer != 0) {
+      DataBlock.releaseDecompressionBuffer(this.decompBuffer);
+      this.decompBuffer = 0;
+    }
     // Unlock index block
     if (indexBlock != null) {
       indexBlock.readUnlock();
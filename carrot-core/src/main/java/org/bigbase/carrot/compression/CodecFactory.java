@@ -30,7 +30,7 @@ public class CodecFactory {
   /** Boolean array with TRUE value for each codec if supported, FALSE otherwise */
   private static boolean[] supportedCodecs = new boolean[CodecType.values().length];
 
-  private static Codec[] codecs = {new LZ4Codec(), new LZ4HCCodec()};
+  private static Codec[] codecs = {new LZ4Codec(), new LZ4HCCodec(), new LZ4DictCodec()};
 
   /**
    * Gets the single instance of CodecFactory.
@@ -87,6 +87,8 @@ public class CodecFactory {
         return new LZ4Codec();
       case LZ4HC:
         return new LZ4HCCodec();
+      case LZ4DICT:
+        return new LZ4DictCodec();
       case NONE:
         return null;
       default: 
@@ -107,10 +109,8 @@ public class CodecFactory {
         return codecs[0];
       case 2:
         return codecs[1];
-      case 3:
+      case 5:
         return codecs[2];
-      case 4:
-        return codecs[3];
         // No codec
       case 0:
         return null;
@@ -26,7 +26,9 @@ public enum CodecType {
   /** Bitmap codec */
   BITMAP(3),
   /** ZSTD */
-  ZSTD(4);
+  ZSTD(4),
+  /** LZ4 with a shared dictionary */
+  LZ4DICT(5);
   /** The id. */
   private int id;
 
@@ -61,6 +63,8 @@ public enum CodecType {
         return CodecFactory.getInstance().getCodec(CodecType.LZ4);
       case 2:
         return CodecFactory.getInstance().getCodec(CodecType.LZ4HC);
+      case 5:
+        return CodecFactory.getInstance().getCodec(CodecType.LZ4DICT);
     }
     return null;
   }
@@ -0,0 +1,437 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.compression;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.compression.lz4.LZ4;
+
+/**
+ * LZ4 codec, which compresses data blocks against a shared dictionary. Small blocks of similar keys
+ * and values compress poorly on their own, a dictionary gives LZ4 matches from the first byte of a
+ * block.
+ *
+ * <p>Dictionary is sampled from live blocks: while there is no dictionary and again after every
+ * retrain interval of compressed blocks, every SAMPLE_RATE-th block contributes a random window of
+ * up to SAMPLE_SIZE bytes. When samples reach dictionary size, they are published as a new
+ * dictionary version, which is used by all blocks compressed after that. Compressed data starts
+ * with 2 bytes of a dictionary version (0 - no dictionary). Existing blocks refer to all versions,
+ * so dictionaries are never freed and they are persisted with snapshots.
+ */
+public class LZ4DictCodec implements Codec {
+
+  private static final Logger log = LogManager.getLogger(LZ4DictCodec.class);
+
+  /** Dictionary file name in a snapshot directory */
+  public static final String DICTIONARY_FILE = "compression.dictionaries";
+
+  /** Default dictionary size */
+  public static final int DEFAULT_DICTIONARY_SIZE = 16 * 1024;
+
+  /** Maximum dictionary size (LZ4 window) */
+  public static final int MAX_DICTIONARY_SIZE = 64 * 1024;
+
+  /** Default number of compressed blocks between dictionary retrainings */
+  public static final long DEFAULT_RETRAIN_INTERVAL = 1000000;
+
+  /** Every SAMPLE_RATE-th block is sampled during training */
+  static final int SAMPLE_RATE = 16;
+
+  /** Maximum size of a sample */
+  static final int SAMPLE_SIZE = 512;
+
+  /** Size of a dictionary version in compressed data */
+  static final int VERSION_SIZE = 2;
+
+  /** Maximum dictionary version */
+  static final int MAX_VERSION = 0xffff;
+
+  /** Dictionary */
+  static final class Dictionary {
+    final int version;
+    /* Dictionary data */
+    final long ptr;
+    final int size;
+    /* Compression stream prepared with the dictionary */
+    final long stream;
+
+    Dictionary(int version, long ptr, int size, long stream) {
+      this.version = version;
+      this.ptr = ptr;
+      this.size = size;
+      this.stream = stream;
+    }
+  }
+
+  /* All dictionary versions */
+  private static final AtomicReferenceArray<Dictionary> dictionaries =
+      new AtomicReferenceArray<Dictionary>(MAX_VERSION + 1);
+
+  /* Dictionary for new blocks */
+  private static volatile Dictionary current;
+
+  /* Number of compressed blocks */
+  private static final AtomicLong blocks = new AtomicLong();
+
+  /* Number of compressed blocks, when the current dictionary was published */
+  private static volatile long trainedAt;
+
+  private static volatile int dictionarySize = DEFAULT_DICTIONARY_SIZE;
+
+  private static volatile long retrainInterval = DEFAULT_RETRAIN_INTERVAL;
+
+  /* Samples of the next dictionary (guarded by class) */
+  private static long samples;
+
+  private static int samplesSize;
+
+  /** The min comp size. */
+  private int minCompSize = 100;
+
+  /** The total size. */
+  private long totalSize = 0;
+
+  /** The total comp size. */
+  private long totalCompSize = 0;
+
+  /** The level. */
+  private int level = 1;
+
+  public LZ4DictCodec() {
+    minCompSize = Integer.parseInt(System.getProperty(COMPRESSION_THRESHOLD, "100"));
+  }
+
+  /**
+   * Sets size of the next dictionaries
+   *
+   * @param size dictionary size (up to MAX_DICTIONARY_SIZE)
+   */
+  public static void setDictionarySize(int size) {
+    dictionarySize = Math.max(SAMPLE_SIZE, Math.min(size, MAX_DICTIONARY_SIZE));
+  }
+
+  /**
+   * Get dictionary size
+   *
+   * @return dictionary size
+   */
+  public static int getDictionarySize() {
+    return dictionarySize;
+  }
+
+  /**
+   * Sets number of compressed blocks between dictionary retrainings
+   *
+   * @param interval number of blocks
+   */
+  public static void setRetrainInterval(long interval) {
+    retrainInterval = interval;
+  }
+
+  /**
+   * Get number of compressed blocks between dictionary retrainings
+   *
+   * @return number of blocks
+   */
+  public static long getRetrainInterval() {
+    return retrainInterval;
+  }
+
+  /**
+   * Get version of a dictionary, which is used for new blocks
+   *
+   * @return dictionary version, 0 - no dictionary yet
+   */
+  public static int getDictionaryVersion() {
+    Dictionary dict = current;
+    return dict == null ? 0 : dict.version;
+  }
+
+  private static boolean isTraining(long n) {
+    Dictionary dict = current;
+    if (dict == null) {
+      return true;
+    }
+    return dict.version < MAX_VERSION && n - trainedAt >= retrainInterval;
+  }
+
+  /**
+   * Adds a random window of a block to dictionary samples and publishes a new dictionary, when
+   * there are enough samples
+   *
+   * @param src block address
+   * @param size block size
+   * @param n number of compressed blocks
+   */
+  private static synchronized void sample(long src, int size, long n) {
+    if (!isTraining(n)) {
+      return;
+    }
+    if (samples == 0) {
+      samples = UnsafeAccess.malloc(MAX_DICTIONARY_SIZE);
+    }
+    int dictSize = dictionarySize;
+    int len = Math.min(SAMPLE_SIZE, Math.min(size, dictSize - samplesSize));
+    int off = ThreadLocalRandom.current().nextInt(size - len + 1);
+    UnsafeAccess.copy(src + off, samples + samplesSize, len);
+    samplesSize += len;
+    if (samplesSize < dictSize) {
+      return;
+    }
+    Dictionary dict = current;
+    current = addDictionary(dict == null ? 1 : dict.version + 1, samples, samplesSize);
+    samplesSize = 0;
+    trainedAt = n;
+    log.debug("Published compression dictionary version {}", current.version);
+  }
+
+  private static Dictionary addDictionary(int version, long data, int size) {
+    long ptr = UnsafeAccess.malloc(size);
+    UnsafeAccess.copy(data, ptr, size);
+    Dictionary dict = new Dictionary(version, ptr, size, LZ4.createDictionaryStream(ptr, size));
+    dictionaries.set(version, dict);
+    return dict;
+  }
+
+  /**
+   * Writes all dictionary versions to a file. File is replaced atomically.
+   *
+   * @param file dictionary file
+   * @throws IOException
+   */
+  public static synchronized void saveDictionaries(File file) throws IOException {
+    Dictionary last = current;
+    if (last == null) {
+      return;
+    }
+    File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+    try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(tmpFile))) {
+      dos.writeInt(last.version);
+      byte[] buf = new byte[MAX_DICTIONARY_SIZE];
+      for (int v = 1; v <= last.version; v++) {
+        Dictionary dict = dictionaries.get(v);
+        dos.writeInt(dict.size);
+        UnsafeAccess.copy(dict.ptr, buf, 0, dict.size);
+        dos.write(buf, 0, dict.size);
+      }
+    }
+    Files.move(
+        tmpFile.toPath(),
+        file.toPath(),
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Loads dictionary versions, which are not known yet, from a file. The last version is used for
+   * new blocks.
+   *
+   * @param file dictionary file
+   * @throws IOException
+   */
+  public static synchronized void loadDictionaries(File file) throws IOException {
+    try (DataInputStream dis = new DataInputStream(new FileInputStream(file))) {
+      int last = dis.readInt();
+      if (last < 1 || last > MAX_VERSION) {
+        throw new IOException("Corrupted dictionary file: " + file.getAbsolutePath());
+      }
+      byte[] buf = new byte[MAX_DICTIONARY_SIZE];
+      long ptr = UnsafeAccess.malloc(MAX_DICTIONARY_SIZE);
+      try {
+        for (int v = 1; v <= last; v++) {
+          int size = dis.readInt();
+          if (size <= 0 || size > MAX_DICTIONARY_SIZE) {
+            throw new IOException("Corrupted dictionary file: " + file.getAbsolutePath());
+          }
+          dis.readFully(buf, 0, size);
+          if (dictionaries.get(v) == null) {
+            UnsafeAccess.copy(buf, 0, ptr, size);
+            addDictionary(v, ptr, size);
+          }
+        }
+      } finally {
+        UnsafeAccess.free(ptr);
+      }
+      Dictionary dict = current;
+      if (dict == null || dict.version < last) {
+        current = dictionaries.get(last);
+        samplesSize = 0;
+        trainedAt = blocks.get();
+      }
+    }
+  }
+
+  /**
+   * Get address of a direct buffer
+   *
+   * @param buf buffer
+   * @return address
+   * @throws IOException if buffer is not direct or its address is not accessible
+   */
+  private static long address(ByteBuffer buf) throws IOException {
+    long ptr = UnsafeAccess.address(buf);
+    if (ptr <= 0) {
+      throw new IOException("Direct buffer address is not accessible");
+    }
+    return ptr;
+  }
+
+  /**
+   * Compresses buffers. Buffers are not data blocks: they are not counted and not sampled for
+   * dictionaries (codec availability probe uses this method)
+   */
+  @Override
+  public int compress(ByteBuffer src, ByteBuffer dst) throws IOException {
+    long srcPtr = address(src);
+    long dstPtr = address(dst);
+    int where = dst.position();
+    int r =
+        compress(
+            srcPtr + src.position(),
+            src.remaining(),
+            dstPtr + where,
+            dst.capacity() - where,
+            false);
+    dst.position(where);
+    dst.limit(where + Math.max(r, 0));
+    return r;
+  }
+
+  @Override
+  public int decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+    long srcPtr = address(src);
+    long dstPtr = address(dst);
+    int where = dst.position();
+    int r =
+        decompress(
+            srcPtr + src.position(), src.remaining(), dstPtr + where, dst.capacity() - where);
+    dst.position(where);
+    dst.limit(where + Math.max(r, 0));
+    return r;
+  }
+
+  @Override
+  public int compress(long src, int srcSize, long dst, int dstCapacity) {
+    return compress(src, srcSize, dst, dstCapacity, true);
+  }
+
+  /**
+   * Compresses data
+   *
+   * @param src source address
+   * @param srcSize source size
+   * @param dst destination address
+   * @param dstCapacity destination capacity
+   * @param block if true, source is a data block, which is counted and sampled for dictionaries
+   * @return compressed size, 0 - if destination is too small
+   */
+  private int compress(long src, int srcSize, long dst, int dstCapacity, boolean block) {
+    if (dstCapacity <= VERSION_SIZE) {
+      return 0;
+    }
+    if (block) {
+      long n = blocks.incrementAndGet();
+      if (n % SAMPLE_RATE == 0 && isTraining(n)) {
+        sample(src, srcSize, n);
+      }
+    }
+    Dictionary dict = current;
+    UnsafeAccess.putShort(dst, (short) (dict == null ? 0 : dict.version));
+    int size =
+        LZ4.compressDirectAddressDict(
+            src,
+            srcSize,
+            dst + VERSION_SIZE,
+            dstCapacity - VERSION_SIZE,
+            dict == null ? 0 : dict.stream);
+    if (size <= 0) {
+      return size;
+    }
+    this.totalSize += srcSize;
+    this.totalCompSize += size + VERSION_SIZE;
+    return size + VERSION_SIZE;
+  }
+
+  @Override
+  public int decompress(long src, int compressedSize, long dst, int dstCapacity) {
+    if (compressedSize < VERSION_SIZE) {
+      return -1;
+    }
+    int version = UnsafeAccess.toShort(src) & 0xffff;
+    if (version == 0) {
+      return LZ4.decompressDirectAddress(
+          src + VERSION_SIZE, compressedSize - VERSION_SIZE, dst, dstCapacity);
+    }
+    Dictionary dict = dictionaries.get(version);
+    if (dict == null) {
+      log.error("Unknown compression dictionary version: {}", version);
+      return -1;
+    }
+    return LZ4.decompressDirectAddressDict(
+        src + VERSION_SIZE, compressedSize - VERSION_SIZE, dst, dstCapacity, dict.ptr, dict.size);
+  }
+
+  @Override
+  public int getCompressionThreshold() {
+    return minCompSize;
+  }
+
+  @Override
+  public void setCompressionThreshold(int val) {
+    minCompSize = val;
+  }
+
+  @Override
+  public CodecType getType() {
+    return CodecType.LZ4DICT;
+  }
+
+  @Override
+  public double getAvgCompressionRatio() {
+    if (totalCompSize == 0) {
+      return 1.d;
+    } else {
+      return ((double) totalSize) / totalCompSize;
+    }
+  }
+
+  @Override
+  public long getTotalProcessed() {
+    return totalSize;
+  }
+
+  @Override
+  public void setLevel(int level) {
+    this.level = level;
+  }
+
+  @Override
+  public int getLevel() {
+    return level;
+  }
+}
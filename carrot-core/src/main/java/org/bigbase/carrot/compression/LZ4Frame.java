@@ -0,0 +1,151 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.compression;
+
+import java.io.IOException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.compression.lz4.LZ4;
+
+/**
+ * LZ4 frame format. Every frame keeps size of its content and xxhash32 checksum of the content,
+ * which is verified on decompression. Used for large, self-contained chunks of data (snapshots)
+ */
+public final class LZ4Frame {
+
+  private static final Logger log = LogManager.getLogger(LZ4Frame.class);
+
+  /* Native library supports frame format (native library can be older than the code) */
+  private static volatile Boolean available;
+
+  private LZ4Frame() {}
+
+  /**
+   * Checks if native library supports LZ4 frame format
+   *
+   * @return true or false
+   */
+  public static boolean isAvailable() {
+    Boolean result = available;
+    if (result == null) {
+      synchronized (LZ4Frame.class) {
+        result = available;
+        if (result == null) {
+          result = available = checkNatives();
+        }
+      }
+    }
+    return result;
+  }
+
+  private static boolean checkNatives() {
+    int len = 256;
+    int bound;
+    try {
+      bound = LZ4.compressFrameBound(len);
+    } catch (LinkageError e) {
+      log.warn("LZ4 frame format is not supported by the native library", e);
+      return false;
+    }
+    long src = UnsafeAccess.malloc(len);
+    long dst = UnsafeAccess.malloc(bound);
+    try {
+      for (int i = 0; i < len; i++) {
+        UnsafeAccess.putByte(src + i, (byte) i);
+      }
+      int size = LZ4.compressFrameAddress(src, len, dst, bound, 0);
+      return size > 0
+          && LZ4.getFrameContentSize(dst, size) == len
+          && LZ4.decompressFrameAddress(dst, size, src, len) == len;
+    } catch (LinkageError e) {
+      log.warn("LZ4 frame format is not supported by the native library", e);
+      return false;
+    } finally {
+      UnsafeAccess.free(src);
+      UnsafeAccess.free(dst);
+    }
+  }
+
+  private static void checkAvailable() throws IOException {
+    if (!isAvailable()) {
+      throw new IOException("LZ4 frame format is not supported by the native library");
+    }
+  }
+
+  /**
+   * Compresses data into a single frame
+   *
+   * @param data data
+   * @param off offset
+   * @param len length
+   * @return frame
+   * @throws IOException if compression failed or frame format is not supported
+   */
+  public static byte[] compress(byte[] data, int off, int len) throws IOException {
+    checkAvailable();
+    int bound = LZ4.compressFrameBound(len);
+    long src = UnsafeAccess.malloc(Math.max(1, len));
+    long dst = UnsafeAccess.malloc(bound);
+    try {
+      UnsafeAccess.copy(data, off, src, len);
+      int size = LZ4.compressFrameAddress(src, len, dst, bound, 0);
+      if (size < 0) {
+        throw new IOException("LZ4 frame compression failed");
+      }
+      byte[] frame = new byte[size];
+      UnsafeAccess.copy(dst, frame, 0, size);
+      return frame;
+    } finally {
+      UnsafeAccess.free(src);
+      UnsafeAccess.free(dst);
+    }
+  }
+
+  /**
+   * Decompresses a frame, verifies its checksum
+   *
+   * @param frame frame
+   * @param off offset
+   * @param len frame length
+   * @return content
+   * @throws IOException if frame is corrupted or frame format is not supported
+   */
+  public static byte[] decompress(byte[] frame, int off, int len) throws IOException {
+    checkAvailable();
+    long src = UnsafeAccess.malloc(Math.max(1, len));
+    long dst = 0;
+    try {
+      UnsafeAccess.copy(frame, off, src, len);
+      long contentSize = LZ4.getFrameContentSize(src, len);
+      if (contentSize < 0 || contentSize > Integer.MAX_VALUE) {
+        throw new IOException("Corrupted LZ4 frame header");
+      }
+      dst = UnsafeAccess.malloc(Math.max(1, contentSize));
+      int size = LZ4.decompressFrameAddress(src, len, dst, (int) contentSize);
+      if (size != contentSize) {
+        throw new IOException("Corrupted LZ4 frame: checksum or size mismatch");
+      }
+      byte[] data = new byte[size];
+      UnsafeAccess.copy(dst, data, 0, size);
+      return data;
+    } finally {
+      UnsafeAccess.free(src);
+      if (dst != 0) {
+        UnsafeAccess.free(dst);
+      }
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.ops;
+
+import org.bigbase.carrot.DataBlock;
+import org.bigbase.carrot.util.UnsafeAccess;
+
+/**
+ * Reads value of a record under index block write lock. The record is not updated, but the block is
+ * marked as modified and preserved for a running snapshot, so a caller can change memory, which is
+ * referenced by the value (List segments) after this operation completes
+ */
+public class GetForUpdate extends Operation {
+
+  /* Value buffer */
+  private long buffer;
+
+  /* Value buffer size */
+  private int bufferSize;
+
+  /* Value length or -1 (not found) */
+  private long valueLength;
+
+  public GetForUpdate() {}
+
+  @Override
+  public void reset() {
+    super.reset();
+    this.buffer = 0;
+    this.bufferSize = 0;
+    this.valueLength = DataBlock.NOT_FOUND;
+  }
+
+  /**
+   * Sets value buffer
+   *
+   * @param buffer buffer address
+   * @param bufferSize buffer size
+   */
+  public void setBuffer(long buffer, int bufferSize) {
+    this.buffer = buffer;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Get value length
+   *
+   * @return value length or -1 (not found)
+   */
+  public long getValueLength() {
+    return valueLength;
+  }
+
+  @Override
+  public boolean execute() {
+    this.updatesCount = 0;
+    if (foundRecordAddress <= 0) {
+      this.valueLength = DataBlock.NOT_FOUND;
+      return false;
+    }
+    int vSize = DataBlock.valueLength(foundRecordAddress);
+    if (vSize <= bufferSize) {
+      UnsafeAccess.copy(DataBlock.valueAddress(foundRecordAddress), buffer, vSize);
+    }
+    this.valueLength = vSize;
+    return true;
+  }
+}
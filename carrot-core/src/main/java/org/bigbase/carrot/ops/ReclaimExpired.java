@@ -0,0 +1,29 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.ops;
+
+/**
+ * Active expiration helper. This operation never updates a found record, but, as since it is not a
+ * read-only one, an expired record with a given key is reclaimed in place by the map
+ */
+public class ReclaimExpired extends Operation {
+
+  public ReclaimExpired() {}
+
+  @Override
+  public boolean execute() {
+    this.updatesCount = 0;
+    return false;
+  }
+}
@@ -0,0 +1,294 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Chain of direct buffers, which grows on demand. Buffers are allocated from a shared {@link
+ * BufferPool} and returned back as soon as their data is consumed (written). All buffers in a chain
+ * are kept in a write mode (position - end of data) until chain is flipped for writing to a
+ * channel.
+ *
+ * <p>Input chain: data is read from a channel, inspected with {@link #get(int)} and consumed from
+ * the beginning of a chain. Input chain consists of pool slabs only.
+ *
+ * <p>Output chain: data is written into {@link #writeBuffer(int)}, large data is copied with
+ * {@link #put(ByteBuffer)} into as many slabs as needed, then chain is flipped and written to a
+ * channel with a single gathered write.
+ */
+public class BufferChain {
+
+  /*
+   * Buffers
+   */
+  private ByteBuffer[] buffers = new ByteBuffer[4];
+
+  /*
+   * Number of buffers
+   */
+  private int count;
+
+  /*
+   * Index of the first buffer with not consumed data
+   */
+  private int first;
+
+  /*
+   * Read offset in the first buffer
+   */
+  private int offset;
+
+  /*
+   * Size of not consumed data (input chain)
+   */
+  private int size;
+
+  /**
+   * Read available data from a channel, allocates new slabs on demand. Reading stops, when size of
+   * not consumed data exceeds a given limit.
+   *
+   * @param channel channel
+   * @param maxSize maximum size of not consumed data
+   * @return number of bytes read or -1 (end of stream)
+   * @throws IOException
+   */
+  public int read(ReadableByteChannel channel, int maxSize) throws IOException {
+    int total = 0;
+    while (size <= maxSize) {
+      ByteBuffer tail = count > 0 ? buffers[count - 1] : null;
+      if (tail == null || !tail.hasRemaining()) {
+        tail = add(BufferPool.allocate());
+      }
+      int num = channel.read(tail);
+      if (num < 0) {
+        return total > 0 ? total : -1;
+      }
+      size += num;
+      total += num;
+      if (tail.hasRemaining()) {
+        // No more data available
+        return total;
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Get size of not consumed data
+   *
+   * @return size
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get byte at a given offset from the beginning of not consumed data (input chain)
+   *
+   * @param index offset
+   * @return byte
+   */
+  public byte get(int index) {
+    int slabSize = BufferPool.getSlabSize();
+    int pos = offset + index;
+    return buffers[first + pos / slabSize].get(pos % slabSize);
+  }
+
+  /**
+   * Get view of the first len bytes of not consumed data, if they are in a single buffer. View
+   * starts at 0, its position is len.
+   *
+   * @param len length
+   * @return view or null
+   */
+  public ByteBuffer slice(int len) {
+    ByteBuffer buf = buffers[first];
+    if (offset + len > buf.position()) {
+      return null;
+    }
+    ByteBuffer dup = buf.duplicate();
+    dup.limit(offset + len).position(offset);
+    ByteBuffer view = dup.slice();
+    view.position(len);
+    return view;
+  }
+
+  /**
+   * Copy first len bytes of not consumed data into a buffer
+   *
+   * @param len length
+   * @param dst destination buffer
+   */
+  public void copy(int len, ByteBuffer dst) {
+    int index = first;
+    int off = offset;
+    while (len > 0) {
+      ByteBuffer dup = buffers[index++].duplicate();
+      int toCopy = Math.min(len, dup.position() - off);
+      dup.limit(off + toCopy).position(off);
+      dst.put(dup);
+      len -= toCopy;
+      off = 0;
+    }
+  }
+
+  /**
+   * Consume data from the beginning of a chain, buffers which are consumed completely are returned
+   * to the pool
+   *
+   * @param len length
+   */
+  public void consume(int len) {
+    offset += len;
+    size -= len;
+    while (first < count - 1 && offset >= buffers[first].position()) {
+      offset -= buffers[first].position();
+      free(buffers[first]);
+      buffers[first++] = null;
+    }
+  }
+
+  /**
+   * Release all buffers if chain is empty, otherwise compact not consumed data. Must be called
+   * after processing of input data.
+   */
+  public void trim() {
+    if (size == 0) {
+      clear();
+      return;
+    }
+    if (first > 0) {
+      System.arraycopy(buffers, first, buffers, 0, count - first);
+      for (int i = count - first; i < count; i++) {
+        buffers[i] = null;
+      }
+      count -= first;
+      first = 0;
+    }
+    if (count == 1 && offset > 0) {
+      // Move partial data to the beginning of a buffer
+      ByteBuffer buf = buffers[0];
+      buf.limit(buf.position()).position(offset);
+      buf.compact();
+      offset = 0;
+    }
+  }
+
+  /**
+   * Get buffer to write data to (output chain)
+   *
+   * @param minRemaining minimum space required
+   * @return buffer
+   */
+  public ByteBuffer writeBuffer(int minRemaining) {
+    ByteBuffer tail = count > 0 ? buffers[count - 1] : null;
+    if (tail == null || tail.remaining() < minRemaining) {
+      tail = add(BufferPool.allocate());
+    }
+    return tail;
+  }
+
+  /**
+   * Copy data to the end of a chain, new slabs are allocated on demand (output chain)
+   *
+   * @param src buffer in a read mode, its position is advanced to the limit
+   */
+  public void put(ByteBuffer src) {
+    while (src.hasRemaining()) {
+      ByteBuffer tail = writeBuffer(1);
+      int len = Math.min(tail.remaining(), src.remaining());
+      ByteBuffer dup = src.duplicate();
+      dup.limit(dup.position() + len);
+      tail.put(dup);
+      src.position(src.position() + len);
+    }
+  }
+
+  /**
+   * Get total size of data written (output chain)
+   *
+   * @return size
+   */
+  public long dataSize() {
+    long total = 0;
+    for (int i = first; i < count; i++) {
+      total += buffers[i].position();
+    }
+    return total;
+  }
+
+  /**
+   * Is chain empty
+   *
+   * @return true, if no buffers
+   */
+  public boolean isEmpty() {
+    return count == 0;
+  }
+
+  /** Prepare all buffers for writing to a channel (output chain) */
+  public void flip() {
+    for (int i = first; i < count; i++) {
+      buffers[i].flip();
+    }
+  }
+
+  /**
+   * Write chain to a channel with a single gathered write, buffers written completely are returned
+   * to the pool (output chain, must be flipped)
+   *
+   * @param channel channel
+   * @return true if all data was written, false - otherwise
+   * @throws IOException
+   */
+  public boolean write(GatheringByteChannel channel) throws IOException {
+    channel.write(buffers, first, count - first);
+    while (first < count && !buffers[first].hasRemaining()) {
+      free(buffers[first]);
+      buffers[first++] = null;
+    }
+    if (first < count) {
+      return false;
+    }
+    first = count = 0;
+    return true;
+  }
+
+  /** Return all buffers to the pool */
+  public void clear() {
+    for (int i = first; i < count; i++) {
+      free(buffers[i]);
+      buffers[i] = null;
+    }
+    first = count = offset = size = 0;
+  }
+
+  private ByteBuffer add(ByteBuffer buf) {
+    if (count == buffers.length) {
+      ByteBuffer[] arr = new ByteBuffer[2 * count];
+      System.arraycopy(buffers, 0, arr, 0, count);
+      buffers = arr;
+    }
+    buffers[count++] = buf;
+    return buf;
+  }
+
+  private static void free(ByteBuffer buf) {
+    BufferPool.release(buf);
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared pool of off-heap (direct) buffer slabs of a fixed size. Network connections allocate
+ * slabs on demand and return them as soon as they do not hold unprocessed data, so idle
+ * connections do not pin direct memory. Pool keeps at most {@link
+ * RedisConf#getNetworkBufferPoolMaxSize()} bytes of free slabs, the rest is reclaimed by GC.
+ */
+public final class BufferPool {
+
+  /*
+   * Slab size
+   */
+  private static final int slabSize = RedisConf.getInstance().getNetworkBufferSlabSize();
+
+  /*
+   * Maximum number of free slabs in the pool
+   */
+  private static final long maxFreeSlabs =
+      RedisConf.getInstance().getNetworkBufferPoolMaxSize() / slabSize;
+
+  /*
+   * Free slabs
+   */
+  private static final Queue<ByteBuffer> freeSlabs = new ConcurrentLinkedQueue<>();
+
+  /*
+   * Number of free slabs
+   */
+  private static final AtomicLong freeCount = new AtomicLong();
+
+  /*
+   * Number of slabs in use
+   */
+  private static final AtomicLong usedCount = new AtomicLong();
+
+  private BufferPool() {}
+
+  /**
+   * Get slab size
+   *
+   * @return slab size
+   */
+  public static int getSlabSize() {
+    return slabSize;
+  }
+
+  /**
+   * Allocate slab
+   *
+   * @return empty direct buffer of a slab size
+   */
+  public static ByteBuffer allocate() {
+    usedCount.incrementAndGet();
+    ByteBuffer buf = freeSlabs.poll();
+    if (buf == null) {
+      return ByteBuffer.allocateDirect(slabSize);
+    }
+    freeCount.decrementAndGet();
+    buf.clear();
+    return buf;
+  }
+
+  /**
+   * Return slab to the pool
+   *
+   * @param buf slab
+   */
+  public static void release(ByteBuffer buf) {
+    usedCount.decrementAndGet();
+    if (freeCount.incrementAndGet() > maxFreeSlabs) {
+      // Pool is full, GC will take care of it
+      freeCount.decrementAndGet();
+      return;
+    }
+    freeSlabs.offer(buf);
+  }
+
+  /**
+   * Get memory size of slabs in use
+   *
+   * @return memory size
+   */
+  public static long getUsedMemory() {
+    return usedCount.get() * slabSize;
+  }
+
+  /**
+   * Get memory size of free slabs
+   *
+   * @return memory size
+   */
+  public static long getFreeMemory() {
+    return freeCount.get() * slabSize;
+  }
+}
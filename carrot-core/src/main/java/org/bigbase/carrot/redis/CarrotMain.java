@@ -22,7 +22,10 @@ import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
 import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.BlockCache;
+import org.bigbase.carrot.compression.LZ4DictCodec;
 import org.bigbase.carrot.redis.lists.Lists;
+import org.bigbase.carrot.util.SlabAllocator;
 
 /** Main service launcher */
 public class CarrotMain {
@@ -99,6 +102,11 @@ public class CarrotMain {
     BigSortedMap.setGlobalMemoryLimit(limit);
     BigSortedMap.setCompressionCodec(conf.getCompressionCodec());
     log.debug("setCompressionCodec '{}'", conf.getCompressionCodec());
+    SlabAllocator.setEnabled(conf.isMemorySlabEnabled());
+    SlabAllocator.setArenaSize(conf.getMemorySlabArenaSize());
+    BlockCache.setMaxSize(conf.getCompressionBlockCacheSize());
+    LZ4DictCodec.setDictionarySize(conf.getCompressionDictionarySize());
+    LZ4DictCodec.setRetrainInterval(conf.getCompressionDictionaryRetrainInterval());
     // Register custom memory deallocator for LIST data type
     Lists.registerDeallocator();
     Lists.registerSerDe();
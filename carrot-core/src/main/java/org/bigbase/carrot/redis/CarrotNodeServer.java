@@ -17,50 +17,178 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
-import java.util.function.Consumer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bigbase.carrot.BigSortedMap;
-import org.bigbase.carrot.redis.util.Utils;
+import org.bigbase.carrot.ExpirationSweeper;
+import org.bigbase.carrot.redis.cluster.SlotMap;
+import org.bigbase.carrot.storage.SnapshotManager;
 
-/** Carrot node server (single thread) */
+/**
+ * Carrot node server. Client connections are accepted by the node thread and distributed across
+ * {@link RedisConf#getNodeIOThreads()} reactor (selector) threads. Every reactor executes all
+ * complete (pipelined) requests available in a connection's input buffer in one pass and sends
+ * responses back with a single gathered write. Connection input and output buffers grow on demand
+ * as chains of slabs from the shared {@link BufferPool}.
+ */
 public class CarrotNodeServer implements Runnable {
   private static final Logger log = LogManager.getLogger(CarrotNodeServer.class);
 
-  static int bufferSize = 256 * 1024;
-  static CountDownLatch readyToStartLatch;
   /*
-   * Input buffer
+   * Maximum number of output slabs in a single gathered write
    */
-  static ThreadLocal<ByteBuffer> inBuf =
-      new ThreadLocal<ByteBuffer>() {
-        @Override
-        protected ByteBuffer initialValue() {
-          return ByteBuffer.allocateDirect(bufferSize);
-        }
-      };
+  static int maxOutBuffers = 8;
+
+  /*
+   * Maximum size of unprocessed request data of a connection
+   */
+  static int maxQueryBufferSize = RedisConf.getInstance().getNetworkQueryBufferMaxSize();
+
+  /*
+   * Maximum length of a bulk string in a request
+   */
+  static final long MAX_BULK_LENGTH = 512 * 1024 * 1024;
 
   /*
-   * Output buffer
+   * Maximum length of an inline request
    */
-  static ThreadLocal<ByteBuffer> outBuf =
-      new ThreadLocal<ByteBuffer>() {
-        @Override
-        protected ByteBuffer initialValue() {
-          return ByteBuffer.allocateDirect(bufferSize);
+  static final int MAX_INLINE_LENGTH = 64 * 1024;
+
+  static CountDownLatch readyToStartLatch;
+
+  /** Connection state, kept as a selection key attachment */
+  static class Connection {
+    /*
+     * Unprocessed request bytes
+     */
+    final BufferChain in = new BufferChain();
+    /*
+     * Response bytes, which were not accepted by a socket yet
+     */
+    BufferChain pending;
+
+    /*
+     * Request scanner state: number of arguments left to scan (-1 - array header was not scanned
+     * yet) and offset of the next argument
+     */
+    private int argsLeft = -1;
+    private int scanOffset;
+    /*
+     * Offset after the last parsed line
+     */
+    private int lineEnd;
+
+    /**
+     * Scans input data for the next complete request. Scanner keeps its state between calls, so
+     * large requests, which arrive in many reads, are scanned only once.
+     *
+     * @return request size, -1 - request is not complete, -2 - wrong request format
+     */
+    int nextRequestSize() {
+      int size = in.size();
+      if (size == 0) {
+        return -1;
+      }
+      if (argsLeft < 0) {
+        if (in.get(0) != '*') {
+          return inlineRequestSize(size);
+        }
+        long n = parseLine(0, size);
+        if (n < 0) {
+          return (int) n;
         }
-      };
+        if (n == 0) {
+          return -2;
+        }
+        argsLeft = (int) n;
+        scanOffset = lineEnd;
+      }
+      while (argsLeft > 0) {
+        if (scanOffset >= size) {
+          return -1;
+        }
+        if (in.get(scanOffset) != '$') {
+          return -2;
+        }
+        long len = parseLine(scanOffset, size);
+        if (len < 0) {
+          return (int) len;
+        }
+        long next = lineEnd + len + 2;
+        if (next > size) {
+          return -1;
+        }
+        scanOffset = (int) next;
+        argsLeft--;
+      }
+      argsLeft = -1;
+      return scanOffset;
+    }
+
+    private int inlineRequestSize(int size) {
+      for (int i = 1; i < size; i++) {
+        if (in.get(i - 1) == '\r' && in.get(i) == '\n') {
+          return i + 1;
+        }
+      }
+      return size > MAX_INLINE_LENGTH ? -2 : -1;
+    }
+
+    /**
+     * Parses number in a line, which starts at a given offset (first byte is a type)
+     *
+     * @param off line offset
+     * @param size data size
+     * @return number, -1 - line is not complete, -2 - wrong format
+     */
+    private long parseLine(int off, int size) {
+      long value = 0;
+      for (int i = off + 1; i < size; i++) {
+        byte b = in.get(i);
+        if (b == '\r') {
+          if (i + 1 >= size) {
+            return -1;
+          }
+          lineEnd = i + 2;
+          return i == off + 1 ? -2 : value;
+        }
+        if (b < '0' || b > '9') {
+          return -2;
+        }
+        value = value * 10 + b - '0';
+        if (value > MAX_BULK_LENGTH) {
+          return -2;
+        }
+      }
+      return -1;
+    }
+
+    /** Return all buffers to the pool */
+    void release() {
+      in.clear();
+      if (pending != null) {
+        pending.clear();
+        pending = null;
+      }
+    }
+  }
 
   private String host;
   private int port;
   private BigSortedMap store;
   private Thread runner;
+  private Reactor[] reactors;
+  private int nextReactor = 0;
+  private volatile boolean stopped = false;
 
   /**
    *
@@ -77,6 +205,18 @@ public class CarrotNodeServer implements Runnable {
     runner.start();
   }
 
+  /** Stops all reactors, closes client connections and disposes the data store */
+  public void stop() {
+    stopped = true;
+    Reactor[] rs = reactors;
+    if (rs != null) {
+      for (Reactor r : rs) {
+        r.selector.wakeup();
+      }
+    }
+    join();
+  }
+
   public void join() {
     if (runner == null) return;
     try {
@@ -95,6 +235,8 @@ public class CarrotNodeServer implements Runnable {
       readyToStartLatch.await();
       BigSortedMap.setStatsUpdatesDisabled(false);
       store.syncStatsToGlobal();
+      ExpirationSweeper.register(store);
+      SnapshotManager.register(store);
       // now we can sync
       runNodeServer();
     } catch (Exception e) {
@@ -103,8 +245,12 @@ public class CarrotNodeServer implements Runnable {
   }
 
   private void runNodeServer() throws IOException {
-    final Selector selector = Selector.open(); // selector is open here
-    log.debug("Selector started");
+    int numThreads = Math.max(1, RedisConf.getInstance().getNodeIOThreads());
+    reactors = new Reactor[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      reactors[i] = new Reactor();
+    }
+    log.debug("Selectors started: {}", numThreads);
 
     // ServerSocketChannel: selectable channel for stream-oriented listening sockets
     ServerSocketChannel serverSocket = ServerSocketChannel.open();
@@ -117,152 +263,297 @@ public class CarrotNodeServer implements Runnable {
     serverSocket.bind(serverAddr);
     // Adjusts this channel's blocking mode.
     serverSocket.configureBlocking(false);
-    int ops = serverSocket.validOps();
-    serverSocket.register(selector, ops, null);
+    // First reactor (node thread) accepts connections
+    serverSocket.register(reactors[0].selector, SelectionKey.OP_ACCEPT, null);
     log.debug("[{}] Node server started on port: {}]", Thread.currentThread().getName(), port);
 
-    Consumer<SelectionKey> action =
-        key -> {
-          try {
-            if (!key.isValid()) return;
-            if (key.isValid() && key.isAcceptable()) {
-              SocketChannel client = serverSocket.accept();
-              // Adjusts this channel's blocking mode to false
-              client.configureBlocking(false);
-              client.setOption(StandardSocketOptions.TCP_NODELAY, true);
-              client.setOption(StandardSocketOptions.SO_SNDBUF, 64 * 1024);
-              client.setOption(StandardSocketOptions.SO_RCVBUF, 64 * 1024);
-              // Operation-set bit for read operations
-              client.register(selector, SelectionKey.OP_READ);
-              log.debug("[{}] Connection Accepted: {}]", Thread.currentThread().getName(), client.getLocalAddress());
-            } else if (key.isValid() && key.isReadable()) {
-              // Check if it is in use
-              RequestHandlers.Attachment att = (RequestHandlers.Attachment) key.attachment();
-              if (att != null && att.inUse()) return;
-              // process request
-              processRequest(key);
-            }
-          } catch (IOException e) {
-            log.error("StackTrace: ", e);
-            log.error("Shutting down node ...");
-            store.dispose();
-            store = null;
-            log.error("Bye-bye folks. See you soon :)");
-          }
-        };
-    // Infinite loop..
-    // Keep server running
-    while (true) {
-      // Selects a set of keys whose corresponding channels are ready for I/O operations
-      selector.select(action);
+    Thread[] threads = new Thread[numThreads];
+    for (int i = 1; i < numThreads; i++) {
+      threads[i] = new Thread(reactors[i], "carrot-node-" + port + "-io-" + i);
+      threads[i].setDaemon(true);
+      threads[i].start();
+    }
+    try {
+      reactors[0].run();
+    } finally {
+      log.error("Shutting down node ...");
+      stopped = true;
+      for (int i = 1; i < numThreads; i++) {
+        reactors[i].selector.wakeup();
+        try {
+          threads[i].join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      ExpirationSweeper.unregister(store);
+      SnapshotManager.unregister(store);
+      store.dispose();
+      store = null;
+      log.error("Bye-bye folks. See you soon :)");
     }
   }
 
-  long totalReqTime = 0;
-  int ricCount = 0;
-  int iter = 0;
-
   /**
-   * Process incoming request
+   * Accept all pending connections and distribute them across reactors
    *
-   * @param key selection key for a socket channel
+   * @param serverSocket server socket channel
+   * @throws IOException
    */
-  private void processRequest(SelectionKey key) {
-    long startTime = System.nanoTime();
-    if (key.attachment() == null) {
-      key.attach(new RequestHandlers.Attachment());
+  private void accept(ServerSocketChannel serverSocket) throws IOException {
+    SocketChannel client;
+    while ((client = serverSocket.accept()) != null) {
+      // Adjusts this channel's blocking mode to false
+      client.configureBlocking(false);
+      client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      client.setOption(StandardSocketOptions.SO_SNDBUF, 64 * 1024);
+      client.setOption(StandardSocketOptions.SO_RCVBUF, 64 * 1024);
+      Reactor reactor = reactors[nextReactor];
+      nextReactor = (nextReactor + 1) % reactors.length;
+      reactor.register(client);
+      log.debug(
+          "[{}] Connection Accepted: {}]",
+          Thread.currentThread().getName(),
+          client.getLocalAddress());
     }
+  }
 
-    SocketChannel channel = (SocketChannel) key.channel();
-    // Read request first
-    ByteBuffer in = inBuf.get();
-    ByteBuffer out = outBuf.get();
-    in.clear();
-    out.clear();
+  /** Reactor - selector thread, which serves its own subset of client connections */
+  class Reactor implements Runnable {
 
-    try {
-      long startCounter = System.nanoTime();
-      long max_wait_ns = 100000000; // 100ms
-      long startClock = 0;
-
-      while (true) {
-        iter++;
-        int num = channel.read(in);
-
-        if (num < 0) {
-          // End-Of-Stream - socket was closed, cancel the key
-          key.cancel();
-          break;
-        } else if (num == 0) {
-          if (System.nanoTime() - startCounter > max_wait_ns) {
-            break;
-          }
-          continue;
+    /*
+     * Reactor's selector
+     */
+    private final Selector selector;
+
+    /*
+     * Accepted connections, not registered with the selector yet
+     */
+    private final Queue<SocketChannel> newConnections = new ConcurrentLinkedQueue<>();
+
+    /*
+     * Output buffer chain
+     */
+    private BufferChain out = new BufferChain();
+
+    /*
+     * Contiguous buffer for requests, which span multiple slabs
+     */
+    private ByteBuffer requestBuffer;
+
+    Reactor() throws IOException {
+      this.selector = Selector.open();
+    }
+
+    /**
+     * Register new client connection with this reactor
+     *
+     * @param client socket channel
+     */
+    void register(SocketChannel client) {
+      newConnections.add(client);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      try {
+        // Keep server running until stopped
+        while (!stopped) {
+          registerNewConnections();
+          // Selects a set of keys whose corresponding channels are ready for I/O operations
+          selector.select(this::handle);
+        }
+      } catch (IOException e) {
+        log.error("StackTrace: ", e);
+      } finally {
+        for (SelectionKey key : selector.keys()) {
+          close(key);
         }
-        // Try to parse
-        int oldPos = in.position();
-        if (startClock == 0) startClock = System.nanoTime();
-        if (!requestIsComplete(in)) {
-          // restore position
-          in.position(oldPos);
-          in.limit(in.capacity());
-          continue;
+        try {
+          selector.close();
+        } catch (IOException e) {
+          log.error("StackTrace: ", e);
         }
+      }
+    }
 
-        ricCount++;
+    private void registerNewConnections() {
+      SocketChannel client;
+      while ((client = newConnections.poll()) != null) {
+        try {
+          // Operation-set bit for read operations
+          client.register(selector, SelectionKey.OP_READ, new Connection());
+        } catch (IOException e) {
+          log.error("StackTrace: ", e);
+          closeChannel(client);
+        }
+      }
+    }
 
-        in.position(oldPos);
-        // Process request
-        boolean shutdown = CommandProcessor.process(store, in, out);
+    private void handle(SelectionKey key) {
+      try {
+        if (!key.isValid()) return;
+        if (key.isAcceptable()) {
+          accept((ServerSocketChannel) key.channel());
+        } else if (key.isWritable()) {
+          processWrite(key);
+        } else if (key.isReadable()) {
+          processRead(key);
+        }
+      } catch (IOException e) {
+        String msg = e.getMessage();
+        if (!"Connection reset by peer".equals(msg)) {
+          // TODO
+          log.error("StackTrace: ", e);
+        }
+        close(key);
+      }
+    }
+
+    /**
+     * Read available data from a socket and process all complete requests. This call never
+     * waits for more data - incomplete request is kept in a connection's buffer chain until the
+     * next read event
+     *
+     * @param key selection key for a socket channel
+     * @throws IOException
+     */
+    private void processRead(SelectionKey key) throws IOException {
+      SocketChannel channel = (SocketChannel) key.channel();
+      Connection conn = (Connection) key.attachment();
+      int num = conn.in.read(channel, maxQueryBufferSize);
+      if (num < 0) {
+        // End-Of-Stream - socket was closed, cancel the key
+        close(key);
+        return;
+      }
+      processRequests(key);
+      if (key.isValid() && conn.in.size() > maxQueryBufferSize) {
+        log.error("Query buffer limit exceeded: {}, closing connection", conn.in.size());
+        close(key);
+      }
+    }
+
+    /**
+     * Write pending response data. When all data is written, continue processing of requests left
+     * in a connection input buffer
+     *
+     * @param key selection key for a socket channel
+     * @throws IOException
+     */
+    private void processWrite(SelectionKey key) throws IOException {
+      SocketChannel channel = (SocketChannel) key.channel();
+      Connection conn = (Connection) key.attachment();
+      if (!conn.pending.write(channel)) {
+        return;
+      }
+      conn.pending = null;
+      key.interestOps(SelectionKey.OP_READ);
+      if (conn.in.size() > 0) {
+        processRequests(key);
+      }
+    }
 
-        // TODO: this is poor man terminator - FIXME
-        if (shutdown) {
-          shutdownNode();
+    /**
+     * Executes all complete requests in the connection's input buffer chain and writes responses
+     * back. Responses are collected in up to maxOutBuffers output slabs and sent with a single
+     * gathered write
+     *
+     * @param key selection key for a socket channel
+     * @throws IOException
+     */
+    private void processRequests(SelectionKey key) throws IOException {
+      SocketChannel channel = (SocketChannel) key.channel();
+      Connection conn = (Connection) key.attachment();
+      BufferChain in = conn.in;
+      long maxOutputSize = (long) maxOutBuffers * BufferPool.getSlabSize();
+      try {
+        while (true) {
+          boolean processed = false;
+          while (out.dataSize() < maxOutputSize) {
+            int size = conn.nextRequestSize();
+            if (size == -2) {
+              log.error("Wrong request format, closing connection");
+              out.clear();
+              close(key);
+              return;
+            } else if (size < 0) {
+              // No complete requests
+              break;
+            }
+            ByteBuffer request = in.slice(size);
+            if (request == null) {
+              // Request spans multiple slabs
+              request = requestBuffer(size);
+              in.copy(size, request);
+            }
+            // Process request
+            boolean shutdown = CommandProcessor.process(store, request, out);
+            // TODO: this is poor man terminator - FIXME
+            if (shutdown) {
+              shutdownNode();
+            }
+            in.consume(size);
+            processed = true;
+          }
+          if (!processed) {
+            break;
+          }
+          // Send responses back
+          out.flip();
+          if (!out.write(channel)) {
+            // Socket send buffer is full: keep the rest and wait until channel is writable
+            conn.pending = out;
+            out = new BufferChain();
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+          }
         }
-        // send response back
-        out.flip();
-        while (out.hasRemaining()) {
-          channel.write(out);
+      } finally {
+        in.trim();
+        if (requestBuffer != null && requestBuffer.capacity() > maxOutputSize) {
+          // Do not keep large buffer
+          requestBuffer = null;
         }
-        break;
       }
-    } catch (IOException e) {
-      String msg = e.getMessage();
-      if (!msg.equals("Connection reset by peer")) {
-        // TODO
-        log.error("StackTrace: ", e);
+    }
+
+    /**
+     * Get contiguous buffer for a request, which spans multiple slabs
+     *
+     * @param size request size
+     * @return empty buffer
+     */
+    private ByteBuffer requestBuffer(int size) {
+      if (requestBuffer == null || requestBuffer.capacity() < size) {
+        requestBuffer = ByteBuffer.allocateDirect(size);
       }
-      key.cancel();
-    } finally {
-      // Release selection key - ready for the next request
-      release(key);
+      requestBuffer.clear();
+      return requestBuffer;
     }
-    totalReqTime += System.nanoTime() - startTime;
   }
 
-  private void shutdownNode() {
-    log.info("CarrotDB Node gracefully shutdown");
-    System.exit(0);
+  private static void close(SelectionKey key) {
+    key.cancel();
+    Connection conn = (Connection) key.attachment();
+    if (conn != null) {
+      conn.release();
+    }
+    closeChannel(key.channel());
   }
 
-  /**
-   * Release key - mark it not in use
-   *
-   * @param key
-   */
-  void release(SelectionKey key) {
-    RequestHandlers.Attachment att = (RequestHandlers.Attachment) key.attachment();
-    att.setInUse(false);
+  private static void closeChannel(Channel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      log.error("StackTrace: ", e);
+    }
   }
 
-  /**
-   * Checks if request is complete
-   *
-   * @param in input data buffer
-   * @return true - complete, false - otherwise
-   */
-  private boolean requestIsComplete(ByteBuffer in) {
-    return Utils.requestIsComplete(in);
+  private void shutdownNode() {
+    log.info("CarrotDB Node gracefully shutdown");
+    System.exit(0);
   }
 
   /** Load data store */
@@ -273,5 +564,14 @@ public class CarrotNodeServer implements Runnable {
     log.debug("[{}] loaded data store in {}ms]", Thread.currentThread().getName(), end - start);
     RedisConf conf = RedisConf.getInstance();
     store.setSnapshotDir(conf.getDataDirForNode(host, port));
+    store.setSlotMap(SlotMap.create(conf, host, port));
+    if (conf.isWALEnabled()) {
+      try {
+        // Replay mutations since the last snapshot
+        WriteAheadLog.attach(store, conf.getWALDirForNode(host, port));
+      } catch (IOException e) {
+        log.error("StackTrace: ", e);
+      }
+    }
   }
 }
@@ -13,16 +13,22 @@
 */
 package org.bigbase.carrot.redis;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.cluster.SlotMap;
 import org.bigbase.carrot.redis.commands.RedisCommand;
+import org.bigbase.carrot.redis.commands.RedisCommand.ReplyType;
 import org.bigbase.carrot.redis.commands.SHUTDOWN;
 import org.bigbase.carrot.redis.util.Utils;
 import org.bigbase.carrot.util.Key;
+import org.bigbase.carrot.util.KeysLocker;
 import org.bigbase.carrot.util.UnsafeAccess;
 
 public class CommandProcessor {
@@ -34,6 +40,45 @@ public class CommandProcessor {
    */
   private static final int BUFFER_SIZE = 1024 * 1024; // 1 MB
 
+  /*
+   * Maximum memory buffer size
+   */
+  private static final int MAX_BUFFER_SIZE = 1 << 30; // 1 GB
+
+  /*
+   * Minimum space in an output buffer to start a new reply with
+   */
+  private static final int MIN_REPLY_SPACE = 1024;
+
+  /** Thread local native memory buffer, which grows on demand */
+  private static class NativeBuffer {
+    long ptr = UnsafeAccess.malloc(BUFFER_SIZE);
+    int size = BUFFER_SIZE;
+
+    /**
+     * Ensure buffer capacity, content is not preserved
+     *
+     * @param required required size
+     */
+    void ensureCapacity(int required) {
+      if (required <= size) {
+        return;
+      }
+      UnsafeAccess.free(ptr);
+      size = (int) Math.min(MAX_BUFFER_SIZE, Long.highestOneBit(required - 1) << 1);
+      ptr = UnsafeAccess.malloc(size);
+    }
+
+    /** Return to a default size after a large request */
+    void shrink() {
+      if (size > BUFFER_SIZE) {
+        UnsafeAccess.free(ptr);
+        size = BUFFER_SIZE;
+        ptr = UnsafeAccess.malloc(size);
+      }
+    }
+  }
+
   /** Keeps thread local Key instance */
   private static ThreadLocal<Key> keyTLS =
       new ThreadLocal<Key>() {
@@ -43,28 +88,31 @@ public class CommandProcessor {
         }
       };
 
-  /** Input buffer per thread TODO: floating size */
-  private static ThreadLocal<Long> inBufTLS =
-      new ThreadLocal<Long>() {
+  /** Input buffer per thread */
+  private static ThreadLocal<NativeBuffer> inBufTLS =
+      new ThreadLocal<NativeBuffer>() {
         @Override
-        protected Long initialValue() {
-          long ptr = UnsafeAccess.malloc(BUFFER_SIZE);
-          return ptr;
+        protected NativeBuffer initialValue() {
+          return new NativeBuffer();
         }
       };
 
   /*
-   * Output buffer per thread TODO: floating size
+   * Output buffer per thread
    */
-  private static ThreadLocal<Long> outBufTLS =
-      new ThreadLocal<Long>() {
+  private static ThreadLocal<NativeBuffer> outBufTLS =
+      new ThreadLocal<NativeBuffer>() {
         @Override
-        protected Long initialValue() {
-          long ptr = UnsafeAccess.malloc(BUFFER_SIZE);
-          return ptr;
+        protected NativeBuffer initialValue() {
+          return new NativeBuffer();
         }
       };
 
+  /*
+   * Reply buffer per thread, for replies which do not fit into a buffer chain's slab
+   */
+  private static ThreadLocal<ByteBuffer> replyBufTLS = new ThreadLocal<ByteBuffer>();
+
   /*
    * Redis command map.
    */
@@ -76,8 +124,42 @@ public class CommandProcessor {
         }
       };
 
-  private static final byte[] WRONG_REQUEST_FORMAT = "-ERR: Wrong request format".getBytes();
+  /*
+   * Commands, which modify data store and must be written to a write-ahead log
+   */
+  private static final String[] MUTATING_COMMANDS =
+      new String[] {
+        "APPEND", "BITOP", "DECR", "DECRBY", "DEL", "EXPIRE", "FLUSHALL", "GETDEL", "GETEX", "GETSET",
+        "HDEL", "HINCRBY", "HINCRBYFLOAT", "HMSET", "HSET", "HSETNX", "INCR", "INCRBY",
+        "INCRBYFLOAT", "LINSERT", "LMOVE", "LPOP", "LPUSH", "LPUSHX", "LREM", "LSET", "LTRIM", "MSET",
+        "MSETNX", "PEXPIREAT", "PSETEX", "RPOP", "RPOPLPUSH", "RPUSH", "RPUSHX", "SADD", "SBITOP", "SDIFFSTORE",
+        "SET", "SETBIT", "SETEX", "SETNX", "SETRANGE", "SETXX", "SINTERSTORE", "SMOVE", "SPOP", "SREM",
+        "SSETBIT", "SSETRANGE", "SUNIONSTORE", "ZADD", "ZDIFFSTORE", "ZINCRBY", "ZINTERSTORE",
+        "ZPOPMAX", "ZPOPMIN", "ZREM", "ZREMRANGEBYLEX", "ZREMRANGEBYRANK", "ZREMRANGEBYSCORE",
+        "ZUNIONSTORE"
+      };
+
+  private static final HashSet<Class<?>> mutatingCommands = new HashSet<Class<?>>();
+
+  static {
+    for (String name : MUTATING_COMMANDS) {
+      try {
+        mutatingCommands.add(Class.forName("org.bigbase.carrot.redis.commands." + name));
+      } catch (ClassNotFoundException e) {
+        // Command is not implemented
+      }
+    }
+  }
+
+  private static final byte[] WRONG_REQUEST_FORMAT = "-ERR: Wrong request format\r\n".getBytes();
   private static final byte[] UNSUPPORTED_COMMAND = "-ERR: Unsupported command: ".getBytes();
+  private static final byte[] MOVED = "-MOVED ".getBytes();
+  private static final byte[] CROSSSLOT =
+      "-CROSSSLOT Keys in request don't hash to the same slot\r\n".getBytes();
+
+  static long executeTotal = 0;
+
+  static int count = 0;
 
   /**
    * Main method
@@ -86,23 +168,230 @@ public class CommandProcessor {
    * @param out output buffer to return to a client (command response)
    * @return true , if shutdown was requested, false - otherwise
    */
-  static long executeTotal = 0;
+  public static boolean process(BigSortedMap storage, ByteBuffer in, ByteBuffer out) {
+    try {
+      RedisCommand cmd = execute(storage, in, out);
+      if (cmd == null) {
+        return false;
+      }
+      convert(cmd, out);
+      outBufTLS.get().shrink();
+      // Done.
+      return cmd instanceof SHUTDOWN;
+    } finally {
+      // Request is not used anymore
+      inBufTLS.get().shrink();
+    }
+  }
 
-  static int count = 0;
+  /**
+   * Process request, response is appended to a buffer chain. Response, which does not fit into
+   * a chain's buffer, is converted into a thread local reply buffer and copied into pool slabs
+   *
+   * @param in input buffer contains incoming Redis command
+   * @param out output buffer chain
+   * @return true , if shutdown was requested, false - otherwise
+   */
+  public static boolean process(BigSortedMap storage, ByteBuffer in, BufferChain out) {
+    ByteBuffer buf = out.writeBuffer(MIN_REPLY_SPACE);
+    RedisCommand cmd;
+    try {
+      cmd = execute(storage, in, buf);
+    } finally {
+      // Request is not used anymore
+      inBufTLS.get().shrink();
+    }
+    if (cmd == null) {
+      return false;
+    }
+    int pos = buf.position();
+    try {
+      convert(cmd, buf);
+    } catch (BufferOverflowException e) {
+      buf.position(pos);
+      ByteBuffer large =
+          replyBuffer(2 * Math.max(BufferPool.getSlabSize(), replySize(outBufTLS.get().ptr)));
+      while (true) {
+        try {
+          convert(cmd, large);
+          break;
+        } catch (BufferOverflowException ee) {
+          large = replyBuffer(2 * large.capacity());
+        }
+      }
+      large.flip();
+      out.put(large);
+      if (large.capacity() > BUFFER_SIZE) {
+        // Do not keep large buffer
+        replyBufTLS.remove();
+      }
+    }
+    outBufTLS.get().shrink();
+    return cmd instanceof SHUTDOWN;
+  }
 
-  @SuppressWarnings("deprecation")
-  public static boolean process(BigSortedMap storage, ByteBuffer in, ByteBuffer out) {
+  /**
+   * Get thread local reply buffer
+   *
+   * @param size minimum capacity
+   * @return empty buffer
+   */
+  private static ByteBuffer replyBuffer(int size) {
+    ByteBuffer buf = replyBufTLS.get();
+    if (buf == null || buf.capacity() < size) {
+      buf = ByteBuffer.allocateDirect(size);
+      replyBufTLS.set(buf);
+    }
+    buf.clear();
+    return buf;
+  }
+
+  /**
+   * Converts request and executes command. If command reports that output buffer is too small,
+   * buffer is extended and command is executed again.
+   *
+   * @param in input buffer contains incoming Redis command
+   * @param out output buffer, error message is written here, if request can not be executed
+   * @return command or null
+   */
+  private static RedisCommand execute(BigSortedMap storage, ByteBuffer in, ByteBuffer out) {
     count++;
-    long inbuf = inBufTLS.get();
-    // Convert Redis request to a Carrot internal format
-    boolean result = Utils.requestToCarrot(in, inbuf, BUFFER_SIZE);
+    // Convert Redis request to a Carrot internal format. Direct buffer is converted in place
+    // (no copy), unless memory debug is enabled - it validates every native memory access
+    long inbuf = UnsafeAccess.isMallocDebugEnabled() ? 0 : Utils.requestToCarrotInPlace(in);
+    if (inbuf == 0) {
+      NativeBuffer nb = inBufTLS.get();
+      // Carrot representation of an inline request can be up to 2.5 times larger
+      nb.ensureCapacity(3 * in.position());
+      inbuf = nb.ptr;
+      // Buffer is shrunk by a caller, after command execution
+      boolean result = Utils.requestToCarrot(in, inbuf, nb.size);
+      if (!result) {
+        out.put(WRONG_REQUEST_FORMAT);
+        return null;
+      }
+    }
+    Key key = getCommandKey(inbuf);
+    RedisCommand cmd = getCommand(key);
+    if (cmd == null) {
+      String cmdName = org.bigbase.carrot.util.Utils.toString(key.address, key.length);
+      out.put(UNSUPPORTED_COMMAND);
+      out.put(cmdName.getBytes());
+      out.put((byte) '\r');
+      out.put((byte) '\n');
+      return null;
+    }
+    SlotMap slots = storage.getSlotMap();
+    if (slots != null) {
+      // Cluster mode: keys must belong to a single slot of this node
+      int slot = slots.check(cmd, inbuf);
+      if (slot == SlotMap.CROSSSLOT) {
+        out.put(CROSSSLOT);
+        return null;
+      } else if (slot != SlotMap.OK) {
+        out.put(MOVED);
+        out.put((slot + " " + slots.getOwner(slot) + "\r\n").getBytes());
+        return null;
+      }
+    }
+    WriteAheadLog wal = storage.getWAL();
+    boolean mutating = mutatingCommands.contains(cmd.getClass());
+    if (mutating) {
+      // Make room for the command, if the store runs as a bounded cache (max.memory.policy)
+      Evictor.evict(storage);
+    }
+    List<Key> keys = null;
+    if (mutating) {
+      // Command's keys are locked until the command is logged, so log order is the order, in which
+      // commands are applied to a key, even if a command locks its keys one by one. This also keeps
+      // snapshot start out of the command (see KeysLocker.lockGate())
+      keys = SlotMap.getKeys(cmd, inbuf);
+      KeysLocker.writeLockAllKeys(keys);
+    }
+    NativeBuffer outbuf = outBufTLS.get();
+    // Execute Redis command
+    long start = System.nanoTime();
+    long end = 0;
+    try {
+      executeCommand(cmd, storage, inbuf, outbuf);
+      boolean success = UnsafeAccess.toByte(outbuf.ptr) != (byte) ReplyType.ERROR.ordinal();
+      if (mutating && success) {
+        // Changes since the last snapshot
+        storage.incrementChanges();
+      }
+      if (mutating && wal != null && success && replySize(outbuf.ptr) <= outbuf.size) {
+        long ptr = cmd.getLogRequest(storage, inbuf, outbuf.ptr);
+        if (ptr != 0) {
+          end = wal.append(ptr, WriteAheadLog.requestSize(ptr));
+        }
+      }
+    } finally {
+      if (keys != null) {
+        KeysLocker.writeUnlockAllKeys(keys);
+      }
+    }
+    if (end > 0 && wal.getSyncPolicy() == WriteAheadLog.SyncPolicy.ALWAYS) {
+      wal.sync(end);
+    }
+    executeTotal += System.nanoTime() - start;
+    return cmd;
+  }
 
-    if (!result) {
-      out.put(WRONG_REQUEST_FORMAT);
+  /**
+   * Executes command. If command reports that output buffer is too small, buffer is extended and
+   * command is executed again.
+   *
+   * @param cmd command
+   * @param storage data store
+   * @param inbuf request in Carrot internal format
+   * @param outbuf output buffer
+   */
+  private static void executeCommand(
+      RedisCommand cmd, BigSortedMap storage, long inbuf, NativeBuffer outbuf) {
+    while (true) {
+      // Commands, which do not set serialized size, must not trigger a retry
+      UnsafeAccess.putInt(outbuf.ptr + org.bigbase.carrot.util.Utils.SIZEOF_BYTE, 0);
+      cmd.executeCommand(storage, inbuf, outbuf.ptr, outbuf.size);
+      int required = replySize(outbuf.ptr);
+      if (required <= outbuf.size || outbuf.size == MAX_BUFFER_SIZE) {
+        break;
+      }
+      // Call again with a bigger buffer
+      outbuf.ensureCapacity(required);
+    }
+  }
+
+  /**
+   * Replays request from a write-ahead log. Request is not logged again.
+   *
+   * @param storage data store
+   * @param inbuf request in Carrot internal format
+   * @return true on success, false - unsupported command or command returned error
+   */
+  public static boolean replay(BigSortedMap storage, long inbuf) {
+    RedisCommand cmd = getCommand(getCommandKey(inbuf));
+    if (cmd == null) {
       return false;
     }
+    NativeBuffer outbuf = outBufTLS.get();
+    executeCommand(cmd, storage, inbuf, outbuf);
+    boolean success = UnsafeAccess.toByte(outbuf.ptr) != (byte) ReplyType.ERROR.ordinal();
+    outbuf.shrink();
+    if (success && mutatingCommands.contains(cmd.getClass())) {
+      storage.incrementChanges();
+    }
+    return success;
+  }
+
+  /**
+   * Get command instance by its name
+   *
+   * @param key command name
+   * @return command or null, if command is not supported
+   */
+  @SuppressWarnings("deprecation")
+  private static RedisCommand getCommand(Key key) {
     HashMap<Key, RedisCommand> map = commandMapTLS.get();
-    Key key = getCommandKey(inbuf);
     RedisCommand cmd = map.get(key);
     if (cmd == null) {
       String cmdName = org.bigbase.carrot.util.Utils.toString(key.address, key.length);
@@ -113,30 +402,47 @@ public class CommandProcessor {
         cmd = cls.newInstance();
         map.put(key, cmd);
       } catch (Throwable e) {
-        out.put(UNSUPPORTED_COMMAND);
-        out.put(cmdName.getBytes());
-        out.put((byte) '\r');
-        out.put((byte) '\n');
-        return false;
+        return null;
       }
     }
-    long outbuf = outBufTLS.get();
-    // Execute Redis command
-    long start = System.nanoTime();
-    cmd.executeCommand(storage, inbuf, outbuf, BUFFER_SIZE);
-    executeTotal += System.nanoTime() - start;
-    if (count % 10000 == 0) {
-//       log.debug(" command exe avg={}", executeTotal / (1000L * count));
+    return cmd;
+  }
+
+  /**
+   * Get serialized size of a reply
+   *
+   * @param outbuf output buffer
+   * @return size, 0 - if reply type does not keep serialized size
+   */
+  private static int replySize(long outbuf) {
+    ReplyType type = ReplyType.values()[UnsafeAccess.toByte(outbuf)];
+    switch (type) {
+      case BULK_STRING:
+      case ARRAY:
+      case INT_ARRAY:
+      case VARRAY:
+      case ZARRAY:
+      case ZARRAY1:
+        return UnsafeAccess.toInt(outbuf + org.bigbase.carrot.util.Utils.SIZEOF_BYTE);
+      default:
+        return 0;
     }
+  }
+
+  /**
+   * Converts command's reply to Redis format
+   *
+   * @param cmd command
+   * @param out output buffer
+   */
+  private static void convert(RedisCommand cmd, ByteBuffer out) {
     if (cmd.autoconvertToRedis()) {
       // Convert response to Redis format
-      Utils.carrotToRedisResponse(outbuf, out);
+      Utils.carrotToRedisResponse(outBufTLS.get().ptr, out);
     } else {
       // Let command implement custom conversion
       cmd.convertToRedis(out);
     }
-    // Done.
-    return cmd instanceof SHUTDOWN;
   }
 
   /**
@@ -0,0 +1,192 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.EvictionPolicy;
+import org.bigbase.carrot.redis.keys.Keys;
+import org.bigbase.carrot.redis.util.DataType;
+import org.bigbase.carrot.redis.util.RequestBuilder;
+import org.bigbase.carrot.util.Key;
+import org.bigbase.carrot.util.KeysLocker;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+/**
+ * Evicts keys, when data store reaches its maximum size (max.memory.limit) and eviction policy
+ * (max.memory.policy) is set. Eviction runs in a command thread before a mutating command. Victim
+ * selection is approximate: every candidate is the best one among max.memory.samples index blocks
+ * (see BigSortedMap.nextEvictionCandidate). Evicted key is deleted as a whole (all data types,
+ * including custom allocated lists), exactly as DEL does, and DEL is written to a write-ahead log
+ * (if any).
+ */
+public class Evictor {
+
+  private static final Logger log = LogManager.getLogger(Evictor.class);
+
+  /** Maximum number of keys evicted before a single command */
+  static final int MAX_EVICTIONS_PER_COMMAND = 64;
+
+  /** Maximum key size of an eviction candidate */
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final byte[] DEL = "DEL".getBytes();
+
+  /* Eviction policy */
+  private static volatile EvictionPolicy policy;
+
+  /* Number of index blocks to sample */
+  private static volatile int samples;
+
+  /* Total number of evicted keys */
+  private static AtomicLong evictedKeys = new AtomicLong();
+
+  static {
+    RedisConf conf = RedisConf.getInstance();
+    policy = conf.getMaxMemoryPolicy();
+    samples = conf.getMaxMemorySamples();
+  }
+
+  private static ThreadLocal<Long> bufferTLS =
+      new ThreadLocal<Long>() {
+        @Override
+        protected Long initialValue() {
+          return UnsafeAccess.malloc(BUFFER_SIZE);
+        }
+      };
+
+  /**
+   * Get eviction policy
+   *
+   * @return eviction policy
+   */
+  public static EvictionPolicy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Sets eviction policy
+   *
+   * @param p eviction policy
+   */
+  public static void setPolicy(EvictionPolicy p) {
+    policy = p;
+  }
+
+  /**
+   * Get number of index blocks sampled to select an eviction candidate
+   *
+   * @return number of samples
+   */
+  public static int getSamples() {
+    return samples;
+  }
+
+  /**
+   * Sets number of index blocks sampled to select an eviction candidate
+   *
+   * @param n number of samples
+   */
+  public static void setSamples(int n) {
+    samples = Math.max(1, n);
+  }
+
+  /**
+   * Get total number of evicted keys
+   *
+   * @return number of evicted keys
+   */
+  public static long getEvictedKeys() {
+    return evictedKeys.get();
+  }
+
+  /**
+   * Evicts keys, while memory usage is above the limit (but not more than
+   * MAX_EVICTIONS_PER_COMMAND keys)
+   *
+   * @param map data store
+   * @return number of evicted keys
+   */
+  public static int evict(BigSortedMap map) {
+    EvictionPolicy p = policy;
+    if (p == EvictionPolicy.NOEVICTION) {
+      return 0;
+    }
+    long limit = BigSortedMap.getGlobalMemoryLimit();
+    if (!BigSortedMap.isGlobalMemoryLimitReached()) {
+      return 0;
+    }
+    long buffer = bufferTLS.get();
+    int evicted = 0;
+    for (int i = 0;
+        i < MAX_EVICTIONS_PER_COMMAND && BigSortedMap.getGlobalAllocatedMemory() >= limit;
+        i++) {
+      int keySize = map.nextEvictionCandidate(p, samples, buffer, BUFFER_SIZE);
+      if (keySize > 0 && evictKey(map, buffer + Utils.SIZEOF_INT, keySize)) {
+        evicted++;
+      }
+    }
+    if (evicted > 0) {
+      evictedKeys.addAndGet(evicted);
+      log.debug("Evicted {} keys, policy={}", evicted, p.getName());
+    }
+    return evicted;
+  }
+
+  /**
+   * Evicts key, which an internal key belongs to
+   *
+   * @param map data store
+   * @param keyPtr internal key address
+   * @param keySize internal key size
+   * @return true on success, false - otherwise
+   */
+  static boolean evictKey(BigSortedMap map, long keyPtr, int keySize) {
+    DataType type = DataType.getDataType(keyPtr);
+    if (type == DataType.SYSTEM) {
+      return false;
+    }
+    if (type == null
+        || keySize < Utils.SIZEOF_BYTE + Utils.SIZEOF_INT + 1
+        || DataType.externalKeyLength(keyPtr) + Utils.SIZEOF_BYTE + Utils.SIZEOF_INT > keySize) {
+      // Not a data structure key
+      return map.delete(keyPtr, keySize);
+    }
+    long ptr = DataType.internalKeyToExternalKeyAddress(keyPtr);
+    int size = DataType.externalKeyLength(keyPtr);
+    WriteAheadLog wal = map.getWAL();
+    Key key = new Key(ptr, size);
+    int deleted = 0;
+    long end = 0;
+    // DEL locks data types of a key one by one, key is locked until DEL is logged
+    KeysLocker.writeLock(key);
+    try {
+      deleted = Keys.DEL(map, new long[] {ptr}, new int[] {size});
+      if (deleted > 0 && wal != null) {
+        long req = RequestBuilder.start().add(DEL).add(ptr, size).build();
+        end = wal.append(req, WriteAheadLog.requestSize(req));
+      }
+    } finally {
+      KeysLocker.writeUnlock(key);
+    }
+    if (end > 0 && wal.getSyncPolicy() == WriteAheadLog.SyncPolicy.ALWAYS) {
+      wal.sync(end);
+    }
+    return deleted > 0;
+  }
+}
@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.List;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
+import org.bigbase.carrot.redis.cluster.Cluster;
 import org.bigbase.carrot.redis.util.Utils;
 
 public class RawClusterClient {
@@ -35,7 +36,11 @@ public class RawClusterClient {
 
   ByteBuffer buf = ByteBuffer.allocateDirect(1024 * 1024);
 
+  /* Last slot of every node */
+  int[] slotLimits;
+
   public RawClusterClient(List<String> nodes) {
+    slotLimits = Cluster.getSlotLimits(nodes.size());
     try {
       connList = new ArrayList<SocketChannel>();
       for (String node : nodes) {
@@ -46,6 +51,21 @@ public class RawClusterClient {
     }
   }
 
+  /**
+   * Get index of a node, which owns key's hash slot
+   *
+   * @param key key
+   * @return node index
+   */
+  private int getNode(String key) {
+    int slot = Cluster.keySlot(key.getBytes());
+    int i = 0;
+    while (slotLimits[i] < slot) {
+      i++;
+    }
+    return i;
+  }
+
   private SocketChannel openConnection(String node) throws IOException {
     String[] parts = node.split(":");
     String host = parts[0];
@@ -84,7 +104,7 @@ public class RawClusterClient {
 
   public String set(String key, String value) throws IOException {
     writeRequest(buf, new String[] {"SET", key, value});
-    int slot = Math.abs(key.hashCode()) % connList.size();
+    int slot = getNode(key);
     SocketChannel channel = connList.get(slot);
     buf.flip();
     while (buf.hasRemaining()) {
@@ -104,7 +124,7 @@ public class RawClusterClient {
 
   public String get(String key) throws IOException {
     writeRequest(buf, new String[] {"GET", key});
-    int slot = Math.abs(key.hashCode()) % connList.size();
+    int slot = getNode(key);
     SocketChannel channel = connList.get(slot);
     buf.flip();
     while (buf.hasRemaining()) {
@@ -16,13 +16,17 @@ package org.bigbase.carrot.redis;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.bigbase.carrot.EvictionPolicy;
 import org.bigbase.carrot.compression.Codec;
 import org.bigbase.carrot.compression.CodecFactory;
 import org.bigbase.carrot.compression.CodecType;
+import org.bigbase.carrot.redis.cluster.Cluster;
 
 /** Class which keeps all the configuration parameters for Redis server */
 public class RedisConf {
@@ -33,18 +37,56 @@ public class RedisConf {
 
   public static final String CONF_COMMAND_COUNT = "command.count";
   public static final String CONF_COMPRESSION_CODEC = "compression.codec";
+  public static final String CONF_COMPRESSION_PREFIX_KEYS = "compression.prefix.keys";
+  public static final String CONF_COMPRESSION_BLOCK_CACHE_SIZE = "compression.block.cache.size";
+  public static final String CONF_COMPRESSION_DICTIONARY_SIZE = "compression.dictionary.size";
+  public static final String CONF_COMPRESSION_DICTIONARY_RETRAIN_INTERVAL =
+      "compression.dictionary.retrain.interval";
   public static final String CONF_MAX_MEMORY_LIMIT = "max.memory.limit";
+  public static final String CONF_MAX_MEMORY_POLICY = "max.memory.policy";
+  public static final String CONF_MAX_MEMORY_SAMPLES = "max.memory.samples";
+  public static final String CONF_MEMORY_SLAB_ENABLED = "memory.slab.enabled";
+  public static final String CONF_MEMORY_SLAB_ARENA_SIZE = "memory.slab.arena.size";
   public static final String CONF_ZSET_MAX_COMPACT_SIZE = "zset.compact.maxsize";
   public static final String CONF_SERVER_PORT = "server.port";
   public static final String CONF_THREAD_POOL_SIZE = "thread.pool.size";
 
   public static final String CONF_DATA_DIR_PATH = "data.dir.path";
   public static final String CONF_SNAPSHOT_INTERVAL_SECS = "snapshot.interval.seconds";
+  public static final String CONF_SNAPSHOT_SAVE = "snapshot.save";
+  public static final String CONF_SNAPSHOT_MAX_CONCURRENT = "snapshot.max.concurrent";
+  public static final String CONF_SNAPSHOT_THREADS = "snapshot.threads";
+  public static final String CONF_SNAPSHOT_INCREMENTAL = "snapshot.incremental";
+  public static final String CONF_SNAPSHOT_COMPRESSION = "snapshot.compression";
+  public static final String CONF_SNAPSHOT_INCREMENTAL_MAX = "snapshot.incremental.max";
+  public static final String CONF_SNAPSHOT_INCREMENTAL_MIN_LIVE_PERCENT =
+      "snapshot.incremental.min.live.percent";
   public static final String CONF_SERVER_LOG_DIR_PATH = "server.log.dir.path";
   public static final String CONF_SERVER_WAL_DIR_PATH = "server.wal.dir.path";
+  public static final String CONF_SERVER_WAL_ENABLED = "server.wal.enabled";
+  public static final String CONF_SERVER_WAL_SYNC_POLICY = "server.wal.sync.policy";
+  public static final String CONF_SERVER_WAL_SYNC_INTERVAL_MS = "server.wal.sync.interval.ms";
+  public static final String CONF_SERVER_WAL_BUFFER_SIZE = "server.wal.buffer.size";
+  public static final String CONF_EXPIRE_SWEEP_INTERVAL_MS = "expire.sweep.interval.ms";
+  public static final String CONF_EXPIRE_SWEEP_CPU_BUDGET = "expire.sweep.cpu.budget";
+  public static final String CONF_NODE_IO_THREADS = "node.io.threads";
+  public static final String CONF_NETWORK_BUFFER_SLAB_SIZE = "network.buffer.slab.size";
+  public static final String CONF_NETWORK_BUFFER_POOL_MAX_SIZE = "network.buffer.pool.max.size";
+  public static final String CONF_NETWORK_QUERY_BUFFER_MAX_SIZE = "network.query.buffer.max.size";
 
   public static final int DEFAULT_SNAPSHOT_INTERVAL_SECS = 0; // no snapshots
+  public static final String DEFAULT_SNAPSHOT_SAVE = ""; // no save points
+  public static final int DEFAULT_SNAPSHOT_MAX_CONCURRENT = 1;
+  public static final int DEFAULT_SNAPSHOT_THREADS = Runtime.getRuntime().availableProcessors();
+  public static final boolean DEFAULT_SNAPSHOT_INCREMENTAL = true;
+  public static final boolean DEFAULT_SNAPSHOT_COMPRESSION = false;
+  public static final int DEFAULT_SNAPSHOT_INCREMENTAL_MAX = 16;
+  public static final int DEFAULT_SNAPSHOT_INCREMENTAL_MIN_LIVE_PERCENT = 50;
   public static final String DEFAULT_SERVER_WAL_DIR_PATH = "./WALs";
+  public static final boolean DEFAULT_SERVER_WAL_ENABLED = false;
+  public static final String DEFAULT_SERVER_WAL_SYNC_POLICY = "interval";
+  public static final long DEFAULT_SERVER_WAL_SYNC_INTERVAL_MS = 1000;
+  public static final int DEFAULT_SERVER_WAL_BUFFER_SIZE = 4 * 1024 * 1024;
   public static final String DEFAULT_SERVER_LOG_DIR_PATH = "./logs";
   public static final String DEFAULT_DATA_DIR_PATH = "./snapshots";
 
@@ -52,10 +94,24 @@ public class RedisConf {
   // As of v. 0.1
   public static final int DEFAULT_COMMAND_COUNT = 106;
   public static final long DEFAULT_MAX_MEMORY_LIMIT = 1024 * 1024 * 1024; // 1GB
+  public static final String DEFAULT_MAX_MEMORY_POLICY = "noeviction";
+  public static final int DEFAULT_MAX_MEMORY_SAMPLES = 5;
+  public static final boolean DEFAULT_MEMORY_SLAB_ENABLED = true;
+  public static final long DEFAULT_MEMORY_SLAB_ARENA_SIZE = 64 * 1024 * 1024;
   public static final String DEFAULT_COMPRESSION_CODEC = "none";
+  public static final boolean DEFAULT_COMPRESSION_PREFIX_KEYS = true;
+  public static final long DEFAULT_COMPRESSION_BLOCK_CACHE_SIZE = 64 * 1024 * 1024;
+  public static final int DEFAULT_COMPRESSION_DICTIONARY_SIZE = 16 * 1024;
+  public static final long DEFAULT_COMPRESSION_DICTIONARY_RETRAIN_INTERVAL = 1000000;
   public static final int DEFAULT_THREAD_POOL_SIZE =
       Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
   public static final int DEFAULT_ZSET_MAX_COMPACT_SIZE = 512;
+  public static final long DEFAULT_EXPIRE_SWEEP_INTERVAL_MS = 100;
+  public static final int DEFAULT_EXPIRE_SWEEP_CPU_BUDGET = 25; // percent
+  public static final int DEFAULT_NODE_IO_THREADS = 1;
+  public static final int DEFAULT_NETWORK_BUFFER_SLAB_SIZE = 64 * 1024;
+  public static final long DEFAULT_NETWORK_BUFFER_POOL_MAX_SIZE = 64 * 1024 * 1024;
+  public static final int DEFAULT_NETWORK_QUERY_BUFFER_MAX_SIZE = 1024 * 1024 * 1024;
 
   /* Data block configuration section */
   /* Comma separated list of data block sizes*/
@@ -100,6 +156,20 @@ public class RedisConf {
     }
   }
 
+  /**
+   * Sets configuration property (for testing)
+   *
+   * @param name property name
+   * @param value property value, null - removes property
+   */
+  public void setProperty(String name, String value) {
+    if (value == null) {
+      props.remove(name);
+    } else {
+      props.setProperty(name, value);
+    }
+  }
+
   private int getIntProperty(String name, int defValue) {
     String value = props.getProperty(name);
     if (value == null) return defValue;
@@ -180,6 +250,50 @@ public class RedisConf {
     return getLongProperty(CONF_MAX_MEMORY_LIMIT, DEFAULT_MAX_MEMORY_LIMIT);
   }
 
+  /**
+   * Get eviction policy, which is applied when data store reaches its maximum size
+   *
+   * @return eviction policy
+   */
+  public EvictionPolicy getMaxMemoryPolicy() {
+    String value = props.getProperty(CONF_MAX_MEMORY_POLICY, DEFAULT_MAX_MEMORY_POLICY);
+    try {
+      return EvictionPolicy.fromString(value);
+    } catch (IllegalArgumentException e) {
+      log.error("Invalid {}: {}", CONF_MAX_MEMORY_POLICY, value);
+    }
+    return EvictionPolicy.NOEVICTION;
+  }
+
+  /**
+   * Get number of index blocks sampled to select an eviction candidate
+   *
+   * @return number of samples
+   */
+  public int getMaxMemorySamples() {
+    return Math.max(1, getIntProperty(CONF_MAX_MEMORY_SAMPLES, DEFAULT_MAX_MEMORY_SAMPLES));
+  }
+
+  /**
+   * Is slab allocator of block memory enabled
+   *
+   * @return true or false
+   */
+  public boolean isMemorySlabEnabled() {
+    String value = props.getProperty(CONF_MEMORY_SLAB_ENABLED);
+    if (value == null) return DEFAULT_MEMORY_SLAB_ENABLED;
+    return Boolean.parseBoolean(value);
+  }
+
+  /**
+   * Get size of a slab allocator arena (memory reserved from OS at once)
+   *
+   * @return arena size in bytes
+   */
+  public long getMemorySlabArenaSize() {
+    return getLongProperty(CONF_MEMORY_SLAB_ARENA_SIZE, DEFAULT_MEMORY_SLAB_ARENA_SIZE);
+  }
+
   /**
    * Get compression codec
    *
@@ -198,6 +312,47 @@ public class RedisConf {
     return CodecFactory.getCodec(CodecType.NONE.ordinal()); // no compression
   }
 
+  /**
+   * Are keys prefix encoded before data block compression
+   *
+   * @return true or false
+   */
+  public boolean isCompressionPrefixKeysEnabled() {
+    String value = props.getProperty(CONF_COMPRESSION_PREFIX_KEYS);
+    if (value == null) return DEFAULT_COMPRESSION_PREFIX_KEYS;
+    return Boolean.parseBoolean(value);
+  }
+
+  /**
+   * Get maximum size of a cache of decompressed data blocks
+   *
+   * @return size in bytes (0 - cache is disabled)
+   */
+  public long getCompressionBlockCacheSize() {
+    return getLongProperty(CONF_COMPRESSION_BLOCK_CACHE_SIZE, DEFAULT_COMPRESSION_BLOCK_CACHE_SIZE);
+  }
+
+  /**
+   * Get size of a dictionary of LZ4DICT codec
+   *
+   * @return size in bytes
+   */
+  public int getCompressionDictionarySize() {
+    return getIntProperty(CONF_COMPRESSION_DICTIONARY_SIZE, DEFAULT_COMPRESSION_DICTIONARY_SIZE);
+  }
+
+  /**
+   * Get number of compressed data blocks, after which LZ4DICT codec trains a new dictionary
+   *
+   * @return number of blocks
+   */
+  public long getCompressionDictionaryRetrainInterval() {
+    return getLongProperty(
+        CONF_COMPRESSION_DICTIONARY_RETRAIN_INTERVAL,
+        DEFAULT_COMPRESSION_DICTIONARY_RETRAIN_INTERVAL);
+  }
+
+
   /**
    * Get snapshot directory (global)
    *
@@ -242,6 +397,105 @@ public class RedisConf {
     return DEFAULT_SNAPSHOT_INTERVAL_SECS;
   }
 
+  /**
+   * Get snapshot save points: a snapshot of a store is taken when at least the given number of
+   * changes has been made during the given number of seconds since the last snapshot (Redis 'save
+   * seconds changes'). Save points are configured as 'seconds changes' pairs in snapshot.save,
+   * snapshot.interval.seconds adds a save point with 1 change.
+   *
+   * @return array of {seconds, changes} pairs
+   */
+  public long[][] getSnapshotSavePoints() {
+    List<long[]> points = new ArrayList<long[]>();
+    String value = props.getProperty(CONF_SNAPSHOT_SAVE, DEFAULT_SNAPSHOT_SAVE).trim();
+    String[] parts = value.length() > 0 ? value.split("\\s+") : new String[0];
+    if (parts.length % 2 != 0) {
+      log.error("Invalid {}: {}", CONF_SNAPSHOT_SAVE, value);
+      return new long[0][];
+    }
+    try {
+      for (int i = 0; i < parts.length; i += 2) {
+        long secs = Long.parseLong(parts[i]);
+        long changes = Long.parseLong(parts[i + 1]);
+        if (secs > 0) {
+          points.add(new long[] {secs, Math.max(1, changes)});
+        }
+      }
+    } catch (NumberFormatException e) {
+      log.error("Invalid {}: {}", CONF_SNAPSHOT_SAVE, value);
+      points.clear();
+    }
+    int interval = getSnapshotInterval();
+    if (interval > 0) {
+      points.add(new long[] {interval, 1});
+    }
+    return points.toArray(new long[points.size()][]);
+  }
+
+  /**
+   * Get maximum number of stores, which can be saved concurrently (JVM-wide)
+   *
+   * @return maximum number of concurrent snapshots
+   */
+  public int getSnapshotMaxConcurrent() {
+    return Math.max(
+        1, getIntProperty(CONF_SNAPSHOT_MAX_CONCURRENT, DEFAULT_SNAPSHOT_MAX_CONCURRENT));
+  }
+
+  /**
+   * Get number of threads, which write (load) snapshot segments in parallel. Key space is split
+   * into this number of ranges, every range is saved into its own segment file
+   *
+   * @return number of threads
+   */
+  public int getSnapshotThreads() {
+    return Math.max(1, getIntProperty(CONF_SNAPSHOT_THREADS, DEFAULT_SNAPSHOT_THREADS));
+  }
+
+  /**
+   * Are incremental snapshots enabled. Incremental snapshot saves only index blocks, which have
+   * been modified since the previous snapshot
+   *
+   * @return true or false
+   */
+  public boolean isSnapshotIncremental() {
+    String value = props.getProperty(CONF_SNAPSHOT_INCREMENTAL);
+    if (value == null) return DEFAULT_SNAPSHOT_INCREMENTAL;
+    return Boolean.parseBoolean(value);
+  }
+
+  /**
+   * Is snapshot compression enabled. Data of every index block is written as a single LZ4 frame
+   * with a checksum
+   *
+   * @return true or false
+   */
+  public boolean isSnapshotCompressionEnabled() {
+    String value = props.getProperty(CONF_SNAPSHOT_COMPRESSION);
+    if (value == null) return DEFAULT_SNAPSHOT_COMPRESSION;
+    return Boolean.parseBoolean(value);
+  }
+
+  /**
+   * Get maximum number of incremental snapshots between two full snapshots
+   *
+   * @return maximum number of incremental snapshots
+   */
+  public int getSnapshotIncrementalMax() {
+    return getIntProperty(CONF_SNAPSHOT_INCREMENTAL_MAX, DEFAULT_SNAPSHOT_INCREMENTAL_MAX);
+  }
+
+  /**
+   * Get minimum percentage of live data in snapshot data files. When it drops below, the next
+   * snapshot is a full one, which rewrites all the data
+   *
+   * @return minimum live data percentage
+   */
+  public int getSnapshotMinLivePercent() {
+    return getIntProperty(
+        CONF_SNAPSHOT_INCREMENTAL_MIN_LIVE_PERCENT, DEFAULT_SNAPSHOT_INCREMENTAL_MIN_LIVE_PERCENT);
+  }
+
   /**
    * Get log directory
    *
@@ -260,6 +514,128 @@ public class RedisConf {
     return props.getProperty(CONF_SERVER_WAL_DIR_PATH, DEFAULT_SERVER_WAL_DIR_PATH);
   }
 
+  /**
+   * Get WAL directory for the store ID
+   *
+   * @param storeId store ID
+   * @return path as a string
+   */
+  public String getWALDir(int storeId) {
+    return getWALDir() + File.separator + storeId;
+  }
+
+  /**
+   * Get WAL directory for the node
+   *
+   * @param server node's server address
+   * @param port node's server port
+   * @return path as a string
+   */
+  public String getWALDirForNode(String server, int port) {
+    String value = props.getProperty(CONF_SERVER_WAL_DIR_PATH + "." + server + "." + port);
+    if (value != null) return value;
+    return getWALDir() + File.separator + server + File.separator + port;
+  }
+
+  /**
+   * Is write-ahead log of mutating commands enabled
+   *
+   * @return true or false
+   */
+  public boolean isWALEnabled() {
+    String value = props.getProperty(CONF_SERVER_WAL_ENABLED);
+    if (value == null) return DEFAULT_SERVER_WAL_ENABLED;
+    return Boolean.parseBoolean(value);
+  }
+
+  /**
+   * Get WAL sync policy: always (sync before reply), interval (sync every
+   * server.wal.sync.interval.ms in background), os (no syncs, OS flushes data)
+   *
+   * @return sync policy
+   */
+  public String getWALSyncPolicy() {
+    return props.getProperty(CONF_SERVER_WAL_SYNC_POLICY, DEFAULT_SERVER_WAL_SYNC_POLICY);
+  }
+
+  /**
+   * Get WAL sync (and write) interval in ms
+   *
+   * @return interval
+   */
+  public long getWALSyncInterval() {
+    return getLongProperty(CONF_SERVER_WAL_SYNC_INTERVAL_MS, DEFAULT_SERVER_WAL_SYNC_INTERVAL_MS);
+  }
+
+  /**
+   * Get WAL in-memory buffer size. Two buffers are allocated per log: one accepts new records,
+   * another one is written to a file
+   *
+   * @return buffer size
+   */
+  public int getWALBufferSize() {
+    return getIntProperty(CONF_SERVER_WAL_BUFFER_SIZE, DEFAULT_SERVER_WAL_BUFFER_SIZE);
+  }
+
+  /**
+   * Get active expiration cycle interval in ms
+   *
+   * @return interval
+   */
+  public long getExpireSweepInterval() {
+    return getLongProperty(CONF_EXPIRE_SWEEP_INTERVAL_MS, DEFAULT_EXPIRE_SWEEP_INTERVAL_MS);
+  }
+
+  /**
+   * Get active expiration CPU budget - maximum percentage of every cycle interval, which can be
+   * spent on reclaiming expired keys (0 - active expiration is disabled)
+   *
+   * @return CPU budget in percents
+   */
+  public int getExpireSweepCpuBudget() {
+    return getIntProperty(CONF_EXPIRE_SWEEP_CPU_BUDGET, DEFAULT_EXPIRE_SWEEP_CPU_BUDGET);
+  }
+
+  /**
+   * Get number of I/O (selector) threads per cluster node. Client connections are distributed
+   * across these threads in a round robin manner
+   *
+   * @return number of I/O threads
+   */
+  public int getNodeIOThreads() {
+    return getIntProperty(CONF_NODE_IO_THREADS, DEFAULT_NODE_IO_THREADS);
+  }
+
+  /**
+   * Get network buffer slab size. Connection buffers are chains of slabs
+   *
+   * @return slab size
+   */
+  public int getNetworkBufferSlabSize() {
+    return getIntProperty(CONF_NETWORK_BUFFER_SLAB_SIZE, DEFAULT_NETWORK_BUFFER_SLAB_SIZE);
+  }
+
+  /**
+   * Get maximum size of free slabs kept in a network buffer pool
+   *
+   * @return maximum size
+   */
+  public long getNetworkBufferPoolMaxSize() {
+    return getLongProperty(
+        CONF_NETWORK_BUFFER_POOL_MAX_SIZE, DEFAULT_NETWORK_BUFFER_POOL_MAX_SIZE);
+  }
+
+  /**
+   * Get maximum size of unprocessed request data of a connection. Connection, which exceeds it, is
+   * closed
+   *
+   * @return maximum size
+   */
+  public int getNetworkQueryBufferMaxSize() {
+    return getIntProperty(
+        CONF_NETWORK_QUERY_BUFFER_MAX_SIZE, DEFAULT_NETWORK_QUERY_BUFFER_MAX_SIZE);
+  }
+
   /**
    * Return cluster slots
    *
@@ -268,7 +644,7 @@ public class RedisConf {
   public Object[] getClusterSlots() {
 
     String[] nodes = getNodes();
-    int[] slotLimits = calculateSlotLimits(nodes.length);
+    int[] slotLimits = Cluster.getSlotLimits(nodes.length);
     Object[] ret = new Object[nodes.length];
     int min = 0;
     for (int i = 0; i < ret.length; i++) {
@@ -286,15 +662,6 @@ public class RedisConf {
     return ret;
   }
 
-  private int[] calculateSlotLimits(int n) {
-    int slotMax = 1 << 14; // 16384
-    int[] slots = new int[n];
-    slots[n - 1] = slotMax - 1;
-    for (int i = 0; i < n - 1; i++) {
-      slots[i] = ((i + 1) * slotMax) / n;
-    }
-    return slots;
-  }
   /** Get data block sizes */
   public int[] getDataBlockSizes() {
     String value = props.getProperty(DATA_BLOCK_SIZES_KEY);
@@ -25,7 +25,11 @@ import java.util.function.Consumer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.BlockCache;
+import org.bigbase.carrot.ExpirationSweeper;
+import org.bigbase.carrot.compression.LZ4DictCodec;
 import org.bigbase.carrot.redis.lists.Lists;
+import org.bigbase.carrot.util.SlabAllocator;
 
 /**
  * Simple network server for MVP (minimum viable product) Scalability and performance is not a goal
@@ -172,8 +176,22 @@ public class RedisServer {
     }
     // TODO: Load data from a configured snapshot directory
     BigSortedMap.setCompressionCodec(conf.getCompressionCodec());
+    SlabAllocator.setEnabled(conf.isMemorySlabEnabled());
+    SlabAllocator.setArenaSize(conf.getMemorySlabArenaSize());
+    BlockCache.setMaxSize(conf.getCompressionBlockCacheSize());
+    LZ4DictCodec.setDictionarySize(conf.getCompressionDictionarySize());
+    LZ4DictCodec.setRetrainInterval(conf.getCompressionDictionaryRetrainInterval());
     // Register custom memory deallocator for LIST data type
     Lists.registerDeallocator();
+    if (conf.isWALEnabled()) {
+      try {
+        // Replay mutations since the last snapshot
+        WriteAheadLog.attach(store, conf.getWALDir(0));
+      } catch (IOException e) {
+        log.error("StackTrace: ", e);
+      }
+    }
+    ExpirationSweeper.register(store);
   }
 
   private static void startRequestHandlers() {
@@ -15,10 +15,14 @@ package org.bigbase.carrot.redis;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -31,13 +35,36 @@ public class RequestHandlers {
 
   static long epochStartNanos = System.nanoTime();
 
+  /*
+   * Number of submitted, but not yet processed requests (all workers)
+   */
+  static final LongAdder queueDepth = new LongAdder();
+
+  /*
+   * Total number of processed requests
+   */
+  static final LongAdder totalRequests = new LongAdder();
+
+  /*
+   * Total time requests spent in workers' queues (in ns)
+   */
+  static final LongAdder totalWaitTime = new LongAdder();
+
   static class Attachment {
     private long accessTime;
-    private boolean inUse = false;
-
-    Attachment() {
+    private volatile boolean inUse = false;
+    /*
+     * Worker thread this connection is bound to
+     */
+    private final WorkThread worker;
+    /*
+     * Incomplete request data, kept until the next read event
+     */
+    private ByteBuffer partial;
+
+    Attachment(WorkThread worker) {
+      this.worker = worker;
       accessTime = System.nanoTime() - epochStartNanos;
-      setInUse(true);
     }
 
     boolean inUse() {
@@ -55,12 +82,49 @@ public class RequestHandlers {
     void access() {
       accessTime = System.nanoTime() - epochStartNanos;
     }
+
+    WorkThread worker() {
+      return worker;
+    }
+
+    /**
+     * Save incomplete request
+     *
+     * @param buf buffer, data starts at 0, position is the end of data
+     */
+    void savePartial(ByteBuffer buf) {
+      buf.flip();
+      partial = ByteBuffer.allocate(buf.remaining());
+      partial.put(buf);
+      partial.flip();
+    }
+
+    /**
+     * Restore incomplete request (if any) into a buffer
+     *
+     * @param buf buffer
+     */
+    void restorePartial(ByteBuffer buf) {
+      if (partial != null) {
+        buf.put(partial);
+        partial = null;
+      }
+    }
+
+    boolean hasPartial() {
+      return partial != null;
+    }
   }
   /*
    * Request handlers
    */
   WorkThread[] workers;
 
+  /*
+   * Next worker to bind a new connection to (accessed by selector thread only)
+   */
+  private int nextWorker = 0;
+
   private RequestHandlers(BigSortedMap store, int numThreads) {
     workers = new WorkThread[numThreads];
     for (int i = 0; i < numThreads; i++) {
@@ -78,23 +142,48 @@ public class RequestHandlers {
   }
 
   /**
-   * Submit next socket channel for processing
+   * Submit next socket channel for processing. Connection is bound to a worker thread on a first
+   * submit (round robin), all subsequent requests are handled by the same worker. Read events for
+   * the channel are disabled until worker releases the key.
    *
    * @param key selection key for socket channel
    */
   public void submit(SelectionKey key) {
-    while (true) {
-      for (int i = 0; i < workers.length; i++) {
-        if (workers[i].isBusy()) continue;
-        workers[i].nextKey(key);
-        return;
-      }
+    RequestHandlers.Attachment att = (RequestHandlers.Attachment) key.attachment();
+    if (att == null) {
+      att = new Attachment(workers[nextWorker]);
+      nextWorker = (nextWorker + 1) % workers.length;
+      key.attach(att);
     }
+    att.setInUse(true);
+    att.access();
+    key.interestOps(0);
+    queueDepth.increment();
+    att.worker().nextKey(key);
+  }
+
+  /**
+   * Get current number of queued requests
+   *
+   * @return queue depth
+   */
+  public static long getQueueDepth() {
+    return queueDepth.sum();
+  }
+
+  /**
+   * Get average time a request waits in a queue before a worker picks it up
+   *
+   * @return average wait time in microseconds
+   */
+  public static double getAverageWaitTime() {
+    long count = totalRequests.sum();
+    return count == 0 ? 0 : (double) totalWaitTime.sum() / (1000 * count);
   }
 
   /** Shutdown service */
   public void shutdown() {
-    // TODO
+    Arrays.stream(workers).forEach(WorkThread::shutdown);
   }
 }
 
@@ -102,11 +191,6 @@ class WorkThread extends Thread {
 
   private static final Logger log = LogManager.getLogger(WorkThread.class);
 
-  /*
-   * Busy loop max iteration
-   */
-  private static final long BUSY_LOOP_MAX = 10000;
-
   static int bufferSize = 256 * 1024;
 
   /*
@@ -136,13 +220,18 @@ class WorkThread extends Thread {
    */
   private final BigSortedMap store;
 
-  /** Next selection key atomic reference */
-  private final AtomicReference<SelectionKey> nextKey = new AtomicReference<>();
+  /** Submitted selection keys (multiple producers, single consumer) */
+  private final Queue<SelectionKey> queue = new ConcurrentLinkedQueue<>();
 
   /*
-   * Busy flag
+   * Worker is parked (or about to park) waiting for the next key
    */
-  private volatile boolean busy = false;
+  private volatile boolean parked = false;
+
+  /*
+   * Shutdown flag
+   */
+  private volatile boolean stopped = false;
 
   /**
    * Default constructor
@@ -153,57 +242,68 @@ class WorkThread extends Thread {
     this.store = store;
   }
 
-  /**
-   * Is thread busy working?
-   *
-   * @return busy
-   */
-  boolean isBusy() {
-    return busy;
-  }
-
   /**
    * Submits next selection key for processing
    *
    * @param key selection key
    */
   void nextKey(SelectionKey key) {
-    key.attach(new RequestHandlers.Attachment());
-    while (!nextKey.compareAndSet(null, key)) {
-      Thread.onSpinWait();
+    queue.offer(key);
+    if (parked) {
+      LockSupport.unpark(this);
     }
   }
 
+  /** Stop worker thread */
+  void shutdown() {
+    stopped = true;
+    LockSupport.unpark(this);
+  }
+
   /**
-   * Release key - mark it not in use
+   * Release key - mark it not in use and enable read events for its channel
    *
    * @param key
    */
   void release(SelectionKey key) {
     RequestHandlers.Attachment att = (RequestHandlers.Attachment) key.attachment();
     att.setInUse(false);
+    try {
+      if (key.isValid()) {
+        key.interestOps(SelectionKey.OP_READ);
+        key.selector().wakeup();
+      }
+    } catch (CancelledKeyException e) {
+      // Channel was closed
+    }
   }
 
-  /** Busy loop with expo-linear back off */
+  /**
+   * Wait for the next key. Idle worker parks until a new key is submitted
+   *
+   * @return next key or null, if worker was stopped
+   */
   private SelectionKey waitForKey() {
-    long counter = 0;
-    long timeout = 0;
-    SelectionKey key = null;
-    // wait for next task
-    while ((key = nextKey.getAndSet(null)) == null) {
-      // Exponential (actually, linear :)) back off
-      if (counter < BUSY_LOOP_MAX) {
-        counter++;
-        Thread.onSpinWait();
-      } else {
-        timeout += 1;
-        if (timeout > 10) timeout = 10;
-        try {
-          Thread.sleep(timeout);
-        } catch (InterruptedException e) {
-        }
+    SelectionKey key;
+    while ((key = queue.poll()) == null) {
+      if (stopped) {
+        return null;
+      }
+      parked = true;
+      // Re-check after publishing parked flag, otherwise we can miss a wake up
+      if ((key = queue.poll()) == null) {
+        LockSupport.park(this);
+      }
+      parked = false;
+      if (key != null) {
+        break;
       }
     }
+    RequestHandlers.queueDepth.decrement();
+    RequestHandlers.totalRequests.increment();
+    RequestHandlers.Attachment att = (RequestHandlers.Attachment) key.attachment();
+    long waitTime = System.nanoTime() - RequestHandlers.epochStartNanos - att.lastAccess();
+    RequestHandlers.totalWaitTime.add(waitTime);
     return key;
   }
   /*
@@ -211,54 +311,58 @@ class WorkThread extends Thread {
    */
   public void run() {
 
-    // infinite loop
     while (true) {
-      SelectionKey key = null;
-      busy = false;
-      key = waitForKey();
-      // We are busy now
-      busy = true;
+      SelectionKey key = waitForKey();
+      if (key == null) {
+        // Shutdown
+        return;
+      }
       SocketChannel channel = (SocketChannel) key.channel();
+      RequestHandlers.Attachment att = (RequestHandlers.Attachment) key.attachment();
       // Read request first
       ByteBuffer in = inBuf.get();
       ByteBuffer out = outBuf.get();
       in.clear();
       out.clear();
+      att.restorePartial(in);
 
       try {
-        long startCounter = System.nanoTime();
-        long max_wait_ns = 100000000; // 100ms
-
         while (true) {
           int num = channel.read(in);
           if (num < 0) {
             // End-Of-Stream - socket was closed, cancel the key
             key.cancel();
             break;
-          } else if (num == 0) {
-            if (System.nanoTime() - startCounter > max_wait_ns) {
-              break;
-            }
-            continue;
           }
           // Try to parse
           int oldPos = in.position();
-          if (!requestIsComplete(in)) {
-            // restore position
-            in.position(oldPos);
-            continue;
-          }
+          boolean complete = oldPos > 0 && requestIsComplete(in);
+          // restore position and limit
+          in.limit(in.capacity());
           in.position(oldPos);
+          if (!complete) {
+            if (!in.hasRemaining()) {
+              log.error("Request exceeds buffer size {}, closing connection", in.capacity());
+              key.cancel();
+              channel.close();
+              break;
+            }
+            if (num > 0) {
+              continue;
+            }
+            // No more data yet: keep incomplete request and wait for the next read event
+            att.savePartial(in);
+            break;
+          }
           // Process request
           CommandProcessor.process(store, in, out);
           // send response back
           out.flip();
-          int limit = out.limit();
-          byte[] bb = new byte[limit];
-          out.get(bb);
-          log.debug("SERVER:\n{}", new String(bb));
-          out.position(0);
-          out.limit(limit);
+          if (log.isDebugEnabled()) {
+            byte[] bb = new byte[out.remaining()];
+            out.duplicate().get(bb);
+            log.debug("SERVER:\n{}", new String(bb));
+          }
           while (out.hasRemaining()) {
             channel.write(out);
           }
@@ -273,9 +377,6 @@ class WorkThread extends Thread {
       } finally {
         // Release selection key - ready for the next request
         release(key);
-        nextKey.set(null);
-        // set busy flag to false
-        busy = false;
       }
     }
   }
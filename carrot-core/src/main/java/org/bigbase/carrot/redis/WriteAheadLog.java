@@ -0,0 +1,624 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+/**
+ * Write-ahead log (append only file) of mutating commands. Commands are kept in Carrot internal
+ * request format, every record is: [LENGTH(4)][CRC32C(4)][REQUEST]. Log is a sequence of segment
+ * files (wal.ID), a new segment is started on every snapshot and segments, which are older than the
+ * last snapshot, are deleted.
+ *
+ * <p>Worker threads append records into a shared in-memory buffer without locking: a space in the
+ * buffer is reserved with a single atomic add, and a background flusher thread writes (and syncs)
+ * the whole buffer in one batch (group commit), while writers continue with a spare buffer. Sync
+ * policies:
+ *
+ * <p>always - buffer is written and synced as soon as possible, a writer waits until its record is
+ * durable before reply is sent to a client. Concurrent writers share a single sync.
+ *
+ * <p>interval - buffer is written and synced every N ms, writers never wait for a sync.
+ *
+ * <p>os - buffer is written every N ms, file is never synced explicitly.
+ */
+public class WriteAheadLog implements Closeable {
+
+  private static final Logger log = LogManager.getLogger(WriteAheadLog.class);
+
+  /** WAL sync policies */
+  public static enum SyncPolicy {
+    ALWAYS,
+    INTERVAL,
+    OS;
+
+    /**
+     * Get policy by its configuration name
+     *
+     * @param name name
+     * @return policy
+     */
+    public static SyncPolicy fromString(String name) {
+      return SyncPolicy.valueOf(name.trim().toUpperCase());
+    }
+  }
+
+  /*
+   * Segment file name prefix
+   */
+  static final String SEGMENT_PREFIX = "wal.";
+
+  /*
+   * Record header size: length + checksum
+   */
+  static final int RECORD_HEADER_SIZE = 2 * Utils.SIZEOF_INT;
+
+  /** In-memory log buffer */
+  static final class Buffer {
+    final ByteBuffer data;
+    final int capacity;
+    /* Log offset of the buffer start */
+    volatile long base;
+    /* Number of bytes reserved by writers, exceeds capacity, when buffer is sealed */
+    final AtomicLong reserved = new AtomicLong();
+    /* Number of bytes copied by writers */
+    final AtomicLong committed = new AtomicLong();
+    /* Size of the data in a sealed buffer, -1 - buffer is not sealed */
+    volatile int limit = -1;
+
+    Buffer(int capacity) {
+      this.capacity = capacity;
+      this.data = ByteBuffer.allocateDirect(capacity);
+    }
+
+    void reset(long base) {
+      this.base = base;
+      this.committed.set(0);
+      this.limit = -1;
+      // Must be the last one
+      this.reserved.set(0);
+    }
+  }
+
+  private static ThreadLocal<CRC32C> crcTLS =
+      new ThreadLocal<CRC32C>() {
+        @Override
+        protected CRC32C initialValue() {
+          return new CRC32C();
+        }
+      };
+
+  private final File dir;
+  private final SyncPolicy policy;
+  private final long intervalNanos;
+  private final int bufferSize;
+
+  /* Buffer, which accepts new records */
+  private volatile Buffer active;
+
+  /* Buffer, which is written to a file */
+  private Buffer spare;
+
+  /* Log offset of durable (written and synced, if required) data */
+  private volatile long durable;
+
+  /* Writers wait on this monitor for a buffer switch and for durability */
+  private final Object monitor = new Object();
+
+  /* Serializes flushes and segment switches */
+  private final Object flushLock = new Object();
+
+  /* Current segment */
+  private long segmentId;
+  private FileChannel channel;
+
+  private volatile Thread flusher;
+  private volatile boolean closed;
+
+  /**
+   * Constructor
+   *
+   * @param dir log directory
+   * @param policy sync policy
+   * @param intervalMs write/sync interval in ms (interval and os policies)
+   * @param bufferSize size of in-memory buffer
+   */
+  public WriteAheadLog(String dir, SyncPolicy policy, long intervalMs, int bufferSize) {
+    this.dir = new File(dir);
+    this.policy = policy;
+    this.intervalNanos = Math.max(1, intervalMs) * 1000000L;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Creates write-ahead log for a store, replays existing log and starts logging new mutations
+   *
+   * @param store data store
+   * @param dir log directory
+   * @return write-ahead log
+   * @throws IOException
+   */
+  public static WriteAheadLog attach(BigSortedMap store, String dir) throws IOException {
+    RedisConf conf = RedisConf.getInstance();
+    WriteAheadLog wal =
+        new WriteAheadLog(
+            dir,
+            SyncPolicy.fromString(conf.getWALSyncPolicy()),
+            conf.getWALSyncInterval(),
+            conf.getWALBufferSize());
+    long start = System.currentTimeMillis();
+    long replayed = wal.replay(store);
+    long end = System.currentTimeMillis();
+    log.info("Replayed {} WAL records from {} in {}ms", replayed, dir, end - start);
+    wal.start();
+    store.setWAL(wal);
+    return wal;
+  }
+
+  /**
+   * Get sync policy
+   *
+   * @return sync policy
+   */
+  public SyncPolicy getSyncPolicy() {
+    return policy;
+  }
+
+  /**
+   * Get current segment id
+   *
+   * @return segment id
+   */
+  public synchronized long getSegmentId() {
+    return segmentId;
+  }
+
+  /**
+   * Get log offset of durable data
+   *
+   * @return offset
+   */
+  public long getDurableOffset() {
+    return durable;
+  }
+
+  /**
+   * Opens a new segment and starts background flusher
+   *
+   * @throws IOException
+   */
+  public void start() throws IOException {
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Can not create WAL directory: " + dir.getAbsolutePath());
+    }
+    long[] ids = listSegments();
+    synchronized (flushLock) {
+      openSegment(ids.length > 0 ? ids[ids.length - 1] + 1 : 0);
+    }
+    active = new Buffer(bufferSize);
+    spare = new Buffer(bufferSize);
+    Thread t = new Thread(this::runFlusher, "wal-flusher-" + dir.getName());
+    t.setDaemon(true);
+    flusher = t;
+    t.start();
+  }
+
+  /**
+   * Appends request to the log. The method does not wait for the record to become durable (see
+   * {@link #sync(long)})
+   *
+   * @param ptr request address (internal format)
+   * @param size request size
+   * @return log offset of the record's end
+   */
+  public long append(long ptr, int size) {
+    int recSize = size + RECORD_HEADER_SIZE;
+    if (recSize > bufferSize) {
+      synchronized (flushLock) {
+        return flushCycle(ptr, size);
+      }
+    }
+    while (true) {
+      Buffer buf = active;
+      long base = buf.base;
+      long off = buf.reserved.getAndAdd(recSize);
+      if (off + recSize <= buf.capacity) {
+        long end = buf.base + off + recSize;
+        write(buf.data, (int) off, ptr, size);
+        buf.committed.addAndGet(recSize);
+        return end;
+      }
+      if (off <= buf.capacity) {
+        // This reservation has crossed buffer's capacity - seal buffer
+        buf.limit = (int) off;
+        LockSupport.unpark(flusher);
+      }
+      waitForSwitch(buf, base);
+      if (closed) {
+        return durable;
+      }
+    }
+  }
+
+  /**
+   * Waits until all records up to a given log offset are durable. Records are written and synced
+   * by the flusher thread, all threads waiting at the same time share a single sync.
+   *
+   * @param offset log offset
+   */
+  public void sync(long offset) {
+    if (durable >= offset) {
+      return;
+    }
+    LockSupport.unpark(flusher);
+    synchronized (monitor) {
+      while (durable < offset && !closed) {
+        try {
+          monitor.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Flushes the log and starts a new segment. Records appended after this call go to the new
+   * segment
+   *
+   * @return new segment id
+   */
+  public long roll() {
+    synchronized (flushLock) {
+      flushCycle(0, 0);
+      try {
+        openSegment(segmentId + 1);
+      } catch (IOException e) {
+        log.error("Can not start new WAL segment: ", e);
+      }
+      return segmentId;
+    }
+  }
+
+  /**
+   * Deletes all segments older than a given one (they are covered by a snapshot)
+   *
+   * @param id segment id
+   */
+  public void deleteSegmentsBefore(long id) {
+    for (long segId : listSegments()) {
+      if (segId >= id) {
+        break;
+      }
+      File f = segmentFile(segId);
+      if (!f.delete()) {
+        log.error("Can not delete WAL segment: {}", f.getAbsolutePath());
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    Thread t = flusher;
+    if (t == null) {
+      return;
+    }
+    synchronized (flushLock) {
+      flushCycle(0, 0);
+      closed = true;
+      LockSupport.unpark(t);
+      channel.close();
+    }
+    try {
+      t.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (monitor) {
+      monitor.notifyAll();
+    }
+    flusher = null;
+  }
+
+  /**
+   * Replays all existing segments in order. Replay stops at the first incomplete or corrupted
+   * record (torn write at the end of a log): segment is truncated there and all subsequent segments
+   * are renamed to *.ignored
+   *
+   * @param store data store
+   * @return number of replayed records
+   * @throws IOException
+   */
+  public long replay(BigSortedMap store) throws IOException {
+    long[] ids = listSegments();
+    ByteBuffer buf = ByteBuffer.allocateDirect(Math.max(bufferSize, 1 << 16));
+    int reqSize = 1 << 16;
+    long req = UnsafeAccess.malloc(reqSize);
+    CRC32C crc = new CRC32C();
+    long count = 0;
+    try {
+      for (int i = 0; i < ids.length; i++) {
+        File f = segmentFile(ids[i]);
+        long validSize = 0;
+        boolean corrupted = false;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            FileChannel fc = raf.getChannel()) {
+          buf.clear();
+          boolean eof = false;
+          while (!eof && !corrupted) {
+            eof = fc.read(buf) < 0;
+            buf.flip();
+            while (buf.remaining() >= RECORD_HEADER_SIZE) {
+              int pos = buf.position();
+              int len = buf.getInt(pos);
+              if (len <= 0) {
+                corrupted = true;
+                break;
+              }
+              if (buf.remaining() < len + RECORD_HEADER_SIZE) {
+                if (buf.capacity() < len + RECORD_HEADER_SIZE) {
+                  ByteBuffer b = ByteBuffer.allocateDirect(len + RECORD_HEADER_SIZE);
+                  b.put(buf);
+                  b.flip();
+                  buf = b;
+                }
+                break;
+              }
+              ByteBuffer rec = buf.duplicate();
+              rec.position(pos + RECORD_HEADER_SIZE);
+              rec.limit(pos + RECORD_HEADER_SIZE + len);
+              crc.reset();
+              crc.update(rec);
+              if ((int) crc.getValue() != buf.getInt(pos + Utils.SIZEOF_INT)) {
+                corrupted = true;
+                break;
+              }
+              if (reqSize < len) {
+                UnsafeAccess.free(req);
+                reqSize = len;
+                req = UnsafeAccess.malloc(reqSize);
+              }
+              buf.position(pos + RECORD_HEADER_SIZE);
+              UnsafeAccess.copy(buf, req, len);
+              buf.position(pos + RECORD_HEADER_SIZE + len);
+              if (!CommandProcessor.replay(store, req)) {
+                log.warn("WAL record failed: segment={} offset={}", ids[i], validSize);
+              }
+              validSize += len + RECORD_HEADER_SIZE;
+              count++;
+            }
+            buf.compact();
+          }
+          buf.flip();
+          if (corrupted || buf.hasRemaining()) {
+            corrupted = true;
+            log.error(
+                "WAL segment {} is truncated or corrupted at offset {}, truncating",
+                f.getAbsolutePath(),
+                validSize);
+            fc.truncate(validSize);
+          }
+        }
+        if (corrupted) {
+          for (int j = i + 1; j < ids.length; j++) {
+            File ff = segmentFile(ids[j]);
+            File ignored = new File(dir, ff.getName() + ".ignored");
+            log.error("Ignoring WAL segment {}", ff.getAbsolutePath());
+            ff.renameTo(ignored);
+          }
+          break;
+        }
+      }
+    } finally {
+      UnsafeAccess.free(req);
+    }
+    return count;
+  }
+
+  /**
+   * Copies record into a buffer
+   *
+   * @param data buffer
+   * @param off offset in a buffer
+   * @param ptr request address
+   * @param size request size
+   */
+  private void write(ByteBuffer data, int off, long ptr, int size) {
+    ByteBuffer dup = data.duplicate();
+    dup.position(off + RECORD_HEADER_SIZE);
+    UnsafeAccess.copy(ptr, dup, size);
+    dup.flip();
+    dup.position(off + RECORD_HEADER_SIZE);
+    CRC32C crc = crcTLS.get();
+    crc.reset();
+    crc.update(dup);
+    data.putInt(off, size);
+    data.putInt(off + Utils.SIZEOF_INT, (int) crc.getValue());
+  }
+
+  /*
+   * Sealed buffer can become active again (as a spare) before a writer, which has crossed its
+   * capacity, starts waiting. Buffer's base is checked to not wait for the next switch of
+   * a reused buffer
+   */
+  private void waitForSwitch(Buffer buf, long base) {
+    synchronized (monitor) {
+      while (active == buf && buf.base == base && !closed) {
+        try {
+          monitor.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  private void runFlusher() {
+    while (!closed) {
+      if (policy == SyncPolicy.ALWAYS) {
+        LockSupport.park(this);
+      } else {
+        LockSupport.parkNanos(this, intervalNanos);
+      }
+      synchronized (flushLock) {
+        if (!closed) {
+          flushCycle(0, 0);
+        }
+      }
+    }
+  }
+
+  /**
+   * Seals active buffer, switches writers to a spare one, writes sealed buffer, optionally followed
+   * by a large record, to the current segment and syncs segment, if required. Must be called under
+   * flushLock.
+   *
+   * @param ptr address of a large record or 0
+   * @param size size of a large record
+   * @return log offset of the end of written data
+   */
+  private long flushCycle(long ptr, int size) {
+    Buffer buf = active;
+    if (buf.reserved.get() == 0 && ptr == 0) {
+      return durable;
+    }
+    long off = buf.reserved.getAndAdd(buf.capacity + 1);
+    if (off <= buf.capacity) {
+      buf.limit = (int) off;
+    }
+    // Wait until crossing writer sets the limit
+    while (buf.limit < 0) {
+      Thread.yield();
+    }
+    int limit = buf.limit;
+    int extraSize = ptr == 0 ? 0 : size + RECORD_HEADER_SIZE;
+    long end = buf.base + limit + extraSize;
+    spare.reset(end);
+    synchronized (monitor) {
+      active = spare;
+      monitor.notifyAll();
+    }
+    spare = buf;
+    // Wait for writers, which are still copying their records
+    while (buf.committed.get() < limit) {
+      Thread.yield();
+    }
+    try {
+      ByteBuffer data = buf.data.duplicate();
+      data.position(0);
+      data.limit(limit);
+      writeFully(data);
+      if (ptr != 0) {
+        ByteBuffer large = ByteBuffer.allocateDirect(extraSize);
+        write(large, 0, ptr, size);
+        writeFully(large);
+      }
+      if (policy != SyncPolicy.OS) {
+        channel.force(false);
+      }
+    } catch (IOException e) {
+      // Can not do much here
+      log.error("WAL write failed: ", e);
+    }
+    synchronized (monitor) {
+      durable = end;
+      monitor.notifyAll();
+    }
+    return end;
+  }
+
+  private void writeFully(ByteBuffer data) throws IOException {
+    while (data.hasRemaining()) {
+      channel.write(data);
+    }
+  }
+
+  private synchronized void openSegment(long id) throws IOException {
+    if (channel != null) {
+      channel.close();
+    }
+    File f = segmentFile(id);
+    @SuppressWarnings("resource")
+    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    raf.seek(raf.length());
+    channel = raf.getChannel();
+    segmentId = id;
+  }
+
+  private File segmentFile(long id) {
+    return new File(dir, SEGMENT_PREFIX + id);
+  }
+
+  /**
+   * List ids of existing segments in ascending order
+   *
+   * @return segment ids
+   */
+  private long[] listSegments() {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return new long[0];
+    }
+    long[] ids = new long[files.length];
+    int n = 0;
+    for (File f : files) {
+      String name = f.getName();
+      if (!name.startsWith(SEGMENT_PREFIX)) {
+        continue;
+      }
+      try {
+        long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length()));
+        ids[n++] = id;
+      } catch (NumberFormatException e) {
+        // ignore
+      }
+    }
+    ids = Arrays.copyOf(ids, n);
+    Arrays.sort(ids);
+    return ids;
+  }
+
+  /**
+   * Get size of a request in internal format: [NUM_ARGS][LEN1][ARG1]...
+   *
+   * @param ptr request address
+   * @return size in bytes
+   */
+  public static int requestSize(long ptr) {
+    int num = UnsafeAccess.toInt(ptr);
+    long p = ptr + Utils.SIZEOF_INT;
+    for (int i = 0; i < num; i++) {
+      int len = UnsafeAccess.toInt(p);
+      p += Utils.SIZEOF_INT + len;
+    }
+    return (int) (p - ptr);
+  }
+}
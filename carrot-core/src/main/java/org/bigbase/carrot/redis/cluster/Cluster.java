@@ -14,9 +14,26 @@
 package org.bigbase.carrot.redis.cluster;
 
 import org.bigbase.carrot.redis.RedisConf;
+import org.bigbase.carrot.util.UnsafeAccess;
 
 public class Cluster {
 
+  /** Number of hash slots */
+  public static final int SLOT_COUNT = 1 << 14;
+
+  /* CRC16 (XMODEM) lookup table */
+  private static final int[] CRC16_TABLE = new int[256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      int crc = i << 8;
+      for (int j = 0; j < 8; j++) {
+        crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+      }
+      CRC16_TABLE[i] = crc & 0xffff;
+    }
+  }
+
   /**
    * Get cluster slots
    *
@@ -26,4 +43,76 @@ public class Cluster {
     RedisConf conf = RedisConf.getInstance();
     return conf.getClusterSlots();
   }
+
+  /**
+   * Get upper limits of slot ranges of nodes. Slots are split evenly between nodes in the order
+   * they are listed in configuration.
+   *
+   * @param n number of nodes
+   * @return last slot of every node
+   */
+  public static int[] getSlotLimits(int n) {
+    int[] slots = new int[n];
+    slots[n - 1] = SLOT_COUNT - 1;
+    for (int i = 0; i < n - 1; i++) {
+      slots[i] = ((i + 1) * SLOT_COUNT) / n;
+    }
+    return slots;
+  }
+
+  /**
+   * CRC16 (XMODEM) of a memory region
+   *
+   * @param ptr address
+   * @param size size
+   * @return checksum
+   */
+  public static int crc16(long ptr, int size) {
+    int crc = 0;
+    for (int i = 0; i < size; i++) {
+      int b = UnsafeAccess.toByte(ptr + i) & 0xff;
+      crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ b) & 0xff]) & 0xffff;
+    }
+    return crc;
+  }
+
+  /**
+   * Get hash slot of a key. If key contains a hash tag (non-empty substring between the first '{'
+   * and the next '}') only the hash tag is hashed.
+   *
+   * @param keyPtr key address
+   * @param keySize key size
+   * @return hash slot
+   */
+  public static int keySlot(long keyPtr, int keySize) {
+    for (int i = 0; i < keySize; i++) {
+      if (UnsafeAccess.toByte(keyPtr + i) == '{') {
+        for (int j = i + 1; j < keySize; j++) {
+          if (UnsafeAccess.toByte(keyPtr + j) == '}') {
+            if (j > i + 1) {
+              return crc16(keyPtr + i + 1, j - i - 1) & (SLOT_COUNT - 1);
+            }
+            break;
+          }
+        }
+        break;
+      }
+    }
+    return crc16(keyPtr, keySize) & (SLOT_COUNT - 1);
+  }
+
+  /**
+   * Get hash slot of a key
+   *
+   * @param key key
+   * @return hash slot
+   */
+  public static int keySlot(byte[] key) {
+    long ptr = UnsafeAccess.allocAndCopy(key, 0, key.length);
+    try {
+      return keySlot(ptr, key.length);
+    } finally {
+      UnsafeAccess.free(ptr);
+    }
+  }
 }
@@ -0,0 +1,267 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.cluster;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.bigbase.carrot.redis.RedisConf;
+import org.bigbase.carrot.redis.commands.RedisCommand;
+import org.bigbase.carrot.util.Key;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+/**
+ * Hash slots ownership of a cluster node. Keeps owner of every slot and a bitmap of slots, which
+ * belong to the node, so the check is O(1). The map is immutable, resharding replaces the node's
+ * map (see BigSortedMap.setSlotMap).
+ */
+public class SlotMap {
+
+  /** All keys in a request belong to the node */
+  public static final int OK = -1;
+
+  /** Keys in a request hash to different slots */
+  public static final int CROSSSLOT = -2;
+
+  /*
+   * Key positions of commands: {first, last, step, numkeys}. first - position of the first key (0 -
+   * none), last - position of the last key (negative - counts from the end of arguments), step -
+   * distance between keys, numkeys - position of a number of keys, which follow it (0 - none).
+   * Commands, which are not listed here, have a single key at position 1.
+   */
+  private static final HashMap<String, int[]> KEY_SPECS = new HashMap<String, int[]>();
+
+  /* Key positions by command class */
+  private static final HashMap<Class<?>, int[]> keySpecs = new HashMap<Class<?>, int[]>();
+
+  private static final int[] SINGLE_KEY = new int[] {1, 1, 1, 0};
+
+  /* Keys of the last request */
+  private static ThreadLocal<List<Key>> keysTLS =
+      new ThreadLocal<List<Key>>() {
+        @Override
+        protected List<Key> initialValue() {
+          return new ArrayList<Key>();
+        }
+      };
+
+  /* Reusable Key instances */
+  private static ThreadLocal<List<Key>> keyPoolTLS =
+      new ThreadLocal<List<Key>>() {
+        @Override
+        protected List<Key> initialValue() {
+          return new ArrayList<Key>();
+        }
+      };
+
+  static {
+    for (String name :
+        new String[] {
+          "BGSAVE", "CLUSTER", "COMMAND", "FLUSHALL", "INFO", "LASTSAVE", "PING", "SAVE",
+          "SHUTDOWN", "TIME"
+        }) {
+      KEY_SPECS.put(name, new int[] {0, 0, 0, 0});
+    }
+    for (String name :
+        new String[] {
+          "DEL", "MGET", "SDIFF", "SDIFFSTORE", "SINTER", "SINTERSTORE", "SUNION", "SUNIONSTORE"
+        }) {
+      KEY_SPECS.put(name, new int[] {1, -1, 1, 0});
+    }
+    KEY_SPECS.put("MSET", new int[] {1, -1, 2, 0});
+    KEY_SPECS.put("MSETNX", new int[] {1, -1, 2, 0});
+    KEY_SPECS.put("BITOP", new int[] {2, -1, 1, 0});
+    KEY_SPECS.put("SBITOP", new int[] {2, -1, 1, 0});
+    KEY_SPECS.put("LMOVE", new int[] {1, 2, 1, 0});
+    KEY_SPECS.put("RPOPLPUSH", new int[] {1, 2, 1, 0});
+    KEY_SPECS.put("SMOVE", new int[] {1, 2, 1, 0});
+    KEY_SPECS.put("MEMORY", new int[] {2, 2, 1, 0});
+    KEY_SPECS.put("ZDIFF", new int[] {0, 0, 0, 1});
+    KEY_SPECS.put("ZINTER", new int[] {0, 0, 0, 1});
+    KEY_SPECS.put("ZUNION", new int[] {0, 0, 0, 1});
+    KEY_SPECS.put("ZDIFFSTORE", new int[] {1, 1, 1, 2});
+    KEY_SPECS.put("ZINTERSTORE", new int[] {1, 1, 1, 2});
+    KEY_SPECS.put("ZUNIONSTORE", new int[] {1, 1, 1, 2});
+    for (String name : KEY_SPECS.keySet()) {
+      try {
+        keySpecs.put(
+            Class.forName("org.bigbase.carrot.redis.commands." + name), KEY_SPECS.get(name));
+      } catch (ClassNotFoundException e) {
+        // Command is not implemented
+      }
+    }
+  }
+
+  /* Node addresses (host:port) */
+  private final String[] nodes;
+
+  /* Owner (node index) of every slot */
+  private final short[] owners = new short[Cluster.SLOT_COUNT];
+
+  /* Slots of this node */
+  private final long[] local = new long[Cluster.SLOT_COUNT / Long.SIZE];
+
+  /**
+   * Constructor
+   *
+   * @param clusterSlots slot ranges in CLUSTER SLOTS format: {start, end, {host, port}}
+   * @param self address of this node (host:port)
+   */
+  public SlotMap(Object[] clusterSlots, String self) {
+    this.nodes = new String[clusterSlots.length];
+    for (int i = 0; i < clusterSlots.length; i++) {
+      Object[] range = (Object[]) clusterSlots[i];
+      Object[] server = (Object[]) range[2];
+      nodes[i] = server[0] + ":" + server[1];
+      int start = ((Long) range[0]).intValue();
+      int end = ((Long) range[1]).intValue();
+      boolean isLocal = nodes[i].equals(self);
+      for (int slot = start; slot <= end; slot++) {
+        owners[slot] = (short) i;
+        if (isLocal) {
+          local[slot >>> 6] |= 1L << slot;
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates slot map of a node from configuration
+   *
+   * @param conf configuration
+   * @param host node host
+   * @param port node port
+   * @return slot map or null, if there is only one node (it owns all slots)
+   */
+  public static SlotMap create(RedisConf conf, String host, int port) {
+    Object[] slots = conf.getClusterSlots();
+    if (slots.length < 2) {
+      return null;
+    }
+    return new SlotMap(slots, host + ":" + port);
+  }
+
+  /**
+   * Does slot belong to this node
+   *
+   * @param slot slot
+   * @return true or false
+   */
+  public boolean isLocal(int slot) {
+    return (local[slot >>> 6] & (1L << slot)) != 0;
+  }
+
+  /**
+   * Get address of a slot owner
+   *
+   * @param slot slot
+   * @return node address (host:port)
+   */
+  public String getOwner(int slot) {
+    return nodes[owners[slot]];
+  }
+
+  /**
+   * Get key positions of a command
+   *
+   * @param cmd command
+   * @return key spec: {first, last, step, numkeys}
+   */
+  static int[] getKeySpec(RedisCommand cmd) {
+    int[] spec = keySpecs.get(cmd.getClass());
+    return spec != null ? spec : SINGLE_KEY;
+  }
+
+  /**
+   * Get keys of a request. Keys point into the request buffer, the list is reused by the next call
+   * from the same thread
+   *
+   * @param cmd command
+   * @param inbuf request in Carrot internal format
+   * @return keys (can contain duplicates)
+   */
+  public static List<Key> getKeys(RedisCommand cmd, long inbuf) {
+    List<Key> keys = keysTLS.get();
+    keys.clear();
+    int[] spec = getKeySpec(cmd);
+    if (spec[0] == 0 && spec[3] == 0) {
+      return keys;
+    }
+    List<Key> pool = keyPoolTLS.get();
+    int numArgs = UnsafeAccess.toInt(inbuf);
+    int first = spec[0];
+    int last = spec[1] < 0 ? numArgs + spec[1] : Math.min(spec[1], numArgs - 1);
+    int numKeysPos = spec[3];
+    int keysStart = 0, keysEnd = -1;
+    long ptr = inbuf + Utils.SIZEOF_INT;
+    for (int i = 0; i < numArgs; i++) {
+      int size = UnsafeAccess.toInt(ptr);
+      ptr += Utils.SIZEOF_INT;
+      boolean isKey = false;
+      if (first > 0 && i >= first && i <= last && (i - first) % spec[2] == 0) {
+        isKey = true;
+      } else if (numKeysPos > 0 && i == numKeysPos) {
+        try {
+          long n = Utils.strToLong(ptr, size);
+          keysStart = i + 1;
+          keysEnd = (int) Math.min(numArgs - 1, i + Math.max(0, n));
+        } catch (NumberFormatException e) {
+          // Command reports an error
+        }
+      } else if (i >= keysStart && i <= keysEnd) {
+        isKey = true;
+      }
+      if (isKey) {
+        if (pool.size() == keys.size()) {
+          pool.add(new Key(0, 0));
+        }
+        Key key = pool.get(keys.size());
+        key.address = ptr;
+        key.length = size;
+        keys.add(key);
+      }
+      ptr += size;
+      if (i >= last && i >= keysEnd && numKeysPos < i) {
+        break;
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Checks if all keys of a request belong to a single slot of this node
+   *
+   * @param cmd command
+   * @param inbuf request in Carrot internal format
+   * @return OK, CROSSSLOT or slot of keys, which belongs to another node (MOVED)
+   */
+  public int check(RedisCommand cmd, long inbuf) {
+    List<Key> keys = getKeys(cmd, inbuf);
+    int slot = -1;
+    for (int i = 0; i < keys.size(); i++) {
+      Key key = keys.get(i);
+      int s = Cluster.keySlot(key.address, key.length);
+      if (slot >= 0 && s != slot) {
+        return CROSSSLOT;
+      }
+      slot = s;
+    }
+    if (slot < 0 || isLocal(slot)) {
+      return OK;
+    }
+    return slot;
+  }
+}
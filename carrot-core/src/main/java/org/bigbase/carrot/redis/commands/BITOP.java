@@ -0,0 +1,75 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.commands;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.strings.Strings;
+import org.bigbase.carrot.redis.util.BitOp;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+public class BITOP implements RedisCommand {
+
+  @Override
+  public void execute(BigSortedMap map, long inDataPtr, long outBufferPtr, int outBufferSize) {
+    try {
+      int numArgs = UnsafeAccess.toInt(inDataPtr);
+      if (numArgs < 4) {
+        Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_ARGS_NUMBER);
+        return;
+      }
+      inDataPtr += Utils.SIZEOF_INT;
+      // skip command name
+      inDataPtr = skip(inDataPtr, 1);
+      // read operation
+      int opSize = UnsafeAccess.toInt(inDataPtr);
+      inDataPtr += Utils.SIZEOF_INT;
+      BitOp op = getBitOp(inDataPtr, opSize);
+      inDataPtr += opSize;
+      if (op == BitOp.NOT && numArgs != 4) {
+        Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_ARGS_NUMBER);
+        return;
+      }
+      // destination key and source keys
+      long[] keyPtrs = Utils.loadPointers(inDataPtr, numArgs - 2);
+      int[] keySizes = Utils.loadSizes(inDataPtr, numArgs - 2);
+      long result = Strings.BITOP(map, op, keyPtrs, keySizes);
+      // INT reply
+      INT_REPLY(outBufferPtr, result);
+    } catch (IllegalArgumentException ee) {
+      Errors.write(
+          outBufferPtr,
+          Errors.TYPE_GENERIC,
+          Errors.ERR_WRONG_COMMAND_FORMAT,
+          ": " + ee.getMessage());
+    }
+  }
+
+  /**
+   * Parses bit operation name (case insensitive)
+   *
+   * @param ptr name address
+   * @param size name size
+   * @return bit operation
+   */
+  private static BitOp getBitOp(long ptr, int size) {
+    String name = Utils.toString(ptr, size);
+    for (BitOp op : BitOp.values()) {
+      if (op.name().equalsIgnoreCase(name)) {
+        return op;
+      }
+    }
+    throw new IllegalArgumentException("unknown bit operation " + name);
+  }
+}
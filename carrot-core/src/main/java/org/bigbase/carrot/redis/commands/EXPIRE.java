@@ -16,6 +16,7 @@ package org.bigbase.carrot.redis.commands;
 import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.redis.keys.Keys;
 import org.bigbase.carrot.redis.util.MutationOptions;
+import org.bigbase.carrot.redis.util.RequestBuilder;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
 
@@ -41,7 +42,33 @@ public class EXPIRE implements RedisCommand {
     inDataPtr += Utils.SIZEOF_INT;
     long secs = Utils.strToLong(inDataPtr, size);
     int num = Keys.EXPIRE(map, keyPtr, keySize, secs, MutationOptions.NONE);
+    if (num < 0) {
+      Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_EXPIRE_NOT_SUPPORTED);
+      return;
+    }
     // INT
     INT_REPLY(outBufferPtr, num);
   }
+
+  @Override
+  public long getLogRequest(BigSortedMap map, long inDataPtr, long outBufferPtr) {
+    if (UnsafeAccess.toLong(outBufferPtr + Utils.SIZEOF_BYTE) == 0) {
+      // Key has not been changed
+      return 0;
+    }
+    long ptr = skip(inDataPtr + Utils.SIZEOF_INT, 1);
+    int keySize = UnsafeAccess.toInt(ptr);
+    long keyPtr = ptr + Utils.SIZEOF_INT;
+    ptr = skip(ptr, 1);
+    if (Utils.strToLong(ptr + Utils.SIZEOF_INT, UnsafeAccess.toInt(ptr)) <= 0) {
+      // Key has been deleted
+      return inDataPtr;
+    }
+    // Relative TTL is logged as PEXPIREAT key time
+    return RequestBuilder.start()
+        .add(PEXPIREAT_ARG)
+        .add(keyPtr, keySize)
+        .add(getLogExpire(map, keyPtr, keySize))
+        .build();
+  }
 }
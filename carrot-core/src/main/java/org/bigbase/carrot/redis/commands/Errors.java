@@ -40,6 +40,8 @@ public class Errors {
       "Either '(' or '[' or '+' can be specified for a max argument";
   static final byte[] ERR_UNSUPPORTED_COMMAND = "Unsupported command".getBytes();
   static final byte[] ERR_SNAPSHOT_RUNNING = "Snapshot is already running".getBytes();
+  static final byte[] ERR_EXPIRE_NOT_SUPPORTED =
+      "Expiration is not supported for this data type".getBytes();
 
   public static void write(long buffer, byte[] type, byte[] message) {
     int off = 0;
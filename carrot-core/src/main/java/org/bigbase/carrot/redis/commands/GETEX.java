@@ -15,6 +15,7 @@ package org.bigbase.carrot.redis.commands;
 
 import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.redis.strings.Strings;
+import org.bigbase.carrot.redis.util.RequestBuilder;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
 
@@ -92,4 +93,23 @@ public class GETEX implements RedisCommand {
           ": " + e.getMessage());
     }
   }
+
+  @Override
+  public long getLogRequest(BigSortedMap map, long inDataPtr, long outBufferPtr) {
+    int numArgs = UnsafeAccess.toInt(inDataPtr);
+    if (numArgs < 4) {
+      // GET or PERSIST
+      return inDataPtr;
+    }
+    long ptr = skip(inDataPtr + Utils.SIZEOF_INT, 1);
+    int keySize = UnsafeAccess.toInt(ptr);
+    long keyPtr = ptr + Utils.SIZEOF_INT;
+    if (!isRelativeTTL(skip(ptr, 1))) {
+      return inDataPtr;
+    }
+    // Relative TTL is logged as PXAT
+    RequestBuilder req = RequestBuilder.start();
+    req.addArgs(inDataPtr + Utils.SIZEOF_INT, 2);
+    return req.add(PXAT_ARG).add(getLogExpire(map, keyPtr, keySize)).build();
+  }
 }
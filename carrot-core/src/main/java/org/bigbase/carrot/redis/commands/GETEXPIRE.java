@@ -14,11 +14,14 @@
 package org.bigbase.carrot.redis.commands;
 
 import org.bigbase.carrot.BigSortedMap;
-import org.bigbase.carrot.redis.strings.Strings;
+import org.bigbase.carrot.redis.keys.Keys;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
 
-/** Proprietary command. Works only with String objects Returns object expiration time in ms. */
+/**
+ * Proprietary command. Works only with String and List objects Returns object expiration time in
+ * ms.
+ */
 public class GETEXPIRE implements RedisCommand {
 
   @Override
@@ -37,7 +40,7 @@ public class GETEXPIRE implements RedisCommand {
     inDataPtr += Utils.SIZEOF_INT;
     long keyPtr = inDataPtr;
     inDataPtr += keySize;
-    long value = Strings.GETEXPIRE(map, keyPtr, keySize);
+    long value = Keys.GETEXPIRE(map, keyPtr, keySize);
     // INTEGER reply - we do not check buffer size here - should be larger than 9
     INT_REPLY(outBufferPtr, value);
   }
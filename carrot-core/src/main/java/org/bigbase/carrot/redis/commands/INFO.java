@@ -14,11 +14,20 @@
 package org.bigbase.carrot.redis.commands;
 
 import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.BlockCache;
+import org.bigbase.carrot.ExpirationSweeper;
+import org.bigbase.carrot.compression.LZ4DictCodec;
+import org.bigbase.carrot.redis.BufferPool;
+import org.bigbase.carrot.redis.Evictor;
 import org.bigbase.carrot.redis.RedisConf;
+import org.bigbase.carrot.redis.RequestHandlers;
+import org.bigbase.carrot.storage.SnapshotManager;
+import org.bigbase.carrot.util.KeysLocker;
+import org.bigbase.carrot.util.SlabAllocator;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
 
-// Currently we support only INFO MEMORY
+// Currently we support only INFO MEMORY, INFO STATS and INFO PERSISTENCE
 public class INFO implements RedisCommand {
 
   @Override
@@ -33,8 +42,18 @@ public class INFO implements RedisCommand {
     inDataPtr = skip(inDataPtr, 1);
     int size = UnsafeAccess.toInt(inDataPtr);
     inDataPtr += Utils.SIZEOF_INT;
-    if (Utils.compareTo(MEMORY_FLAG, MEMORY_LENGTH, inDataPtr, size) != 0
-        && Utils.compareTo(MEMORY_LOWER_CASE_FLAG, MEMORY_LENGTH, inDataPtr, size) != 0) {
+    String[] info = null;
+    if (Utils.compareTo(MEMORY_FLAG, MEMORY_LENGTH, inDataPtr, size) == 0
+        || Utils.compareTo(MEMORY_LOWER_CASE_FLAG, MEMORY_LENGTH, inDataPtr, size) == 0) {
+      info = memory();
+    } else if (Utils.compareTo(STATS_FLAG, STATS_LENGTH, inDataPtr, size) == 0
+        || Utils.compareTo(STATS_LOWER_CASE_FLAG, STATS_LENGTH, inDataPtr, size) == 0) {
+      info = stats();
+    } else if (Utils.compareTo(PERSISTENCE_FLAG, PERSISTENCE_LENGTH, inDataPtr, size) == 0
+        || Utils.compareTo(PERSISTENCE_LOWER_CASE_FLAG, PERSISTENCE_LENGTH, inDataPtr, size)
+            == 0) {
+      info = persistence(map);
+    } else {
       Errors.write(
           outBufferPtr,
           Errors.TYPE_GENERIC,
@@ -42,31 +61,35 @@ public class INFO implements RedisCommand {
           ": INFO " + Utils.toString(inDataPtr, size));
       return;
     }
+    ARRAY_REPLY(outBufferPtr, info);
+  }
 
-    String[] info = new String[13];
+  private String[] memory() {
+    String[] info = new String[22];
     info[0] = "# Memory (Carrot)";
     long maxmemory = RedisConf.getInstance().getMaxMemoryLimit();
     info[1] = "maxmemory:" + maxmemory;
+    info[2] = "maxmemory_policy:" + Evictor.getPolicy().getName();
 
-    info[2] = "used_memory:" + BigSortedMap.getGlobalAllocatedMemory();
-    info[3] = "used_memory_dataset:" + BigSortedMap.getGlobalDataSize();
-    info[4] =
+    info[3] = "used_memory:" + BigSortedMap.getGlobalAllocatedMemory();
+    info[4] = "used_memory_dataset:" + BigSortedMap.getGlobalDataSize();
+    info[5] =
         "used_memory_dataset_perc:"
             + Utils.toString(
                 ((double) BigSortedMap.getGlobalDataSize() * 100)
                     / BigSortedMap.getGlobalAllocatedMemory(),
                 2)
             + "%";
-    info[5] = "used_memory_index:" + BigSortedMap.getGlobalIndexSize();
-    info[6] =
+    info[6] = "used_memory_index:" + BigSortedMap.getGlobalIndexSize();
+    info[7] =
         "used_memory_index_perc:"
             + Utils.toString(
                 ((double) BigSortedMap.getGlobalIndexSize() * 100)
                     / BigSortedMap.getGlobalAllocatedMemory(),
                 2)
             + "%";
-    info[7] = "used_memory_ext:" + BigSortedMap.getGlobalExternalDataSize();
-    info[8] =
+    info[8] = "used_memory_ext:" + BigSortedMap.getGlobalExternalDataSize();
+    info[9] =
         "used_memory_ext_perc:"
             + Utils.toString(
                 ((double) BigSortedMap.getGlobalExternalDataSize() * 100)
@@ -74,14 +97,14 @@ public class INFO implements RedisCommand {
                 2)
             + "%";
 
-    info[9] = "used_memory_compressed:" + BigSortedMap.getGlobalCompressedDataSize();
-    info[10] =
+    info[10] = "used_memory_compressed:" + BigSortedMap.getGlobalCompressedDataSize();
+    info[11] =
         "mem_fragmentation_ratio:"
             + Utils.toString(
                 ((double) BigSortedMap.getGlobalAllocatedMemory())
                     / BigSortedMap.getGlobalDataSize(),
                 2);
-    info[11] =
+    info[12] =
         "compression_ratio:"
             + (BigSortedMap.getGlobalCompressedDataSize() > 0
                 ? Utils.toString(
@@ -89,7 +112,74 @@ public class INFO implements RedisCommand {
                         / BigSortedMap.getGlobalAllocatedMemory(),
                     2)
                 : "0.0");
+    info[13] = "used_memory_network_buffers:" + BufferPool.getUsedMemory();
+    info[14] = "free_memory_network_buffers:" + BufferPool.getFreeMemory();
+    info[15] = "slab_enabled:" + (SlabAllocator.isEnabled() ? 1 : 0);
+    info[16] = "slab_arena_memory:" + SlabAllocator.getArenaMemory();
+    info[17] = "slab_used_memory:" + SlabAllocator.getUsedMemory();
+    info[18] =
+        "slab_fragmentation_ratio:"
+            + (SlabAllocator.getUsedMemory() > 0
+                ? Utils.toString(
+                    ((double) SlabAllocator.getRegionMemory()) / SlabAllocator.getUsedMemory(), 2)
+                : "0.0");
+    info[19] = "used_memory_block_cache:" + BlockCache.getUsedMemory();
+    info[20] = "compression_dictionary_version:" + LZ4DictCodec.getDictionaryVersion();
+    info[21] = "";
+    return info;
+  }
+
+  private String[] stats() {
+    String[] info = new String[13];
+    info[0] = "# Stats (Carrot)";
+    info[1] = "expired_keys:" + BigSortedMap.getGlobalExpiredKeys();
+    info[2] = "expired_bytes:" + BigSortedMap.getGlobalExpiredBytes();
+    info[3] =
+        "expired_keys_per_sec:" + Utils.toString(ExpirationSweeper.getExpiredKeysPerSec(), 2);
+    info[4] =
+        "expired_bytes_per_sec:" + Utils.toString(ExpirationSweeper.getExpiredBytesPerSec(), 2);
+    info[5] = "request_queue_depth:" + RequestHandlers.getQueueDepth();
+    info[6] =
+        "request_queue_wait_avg_us:" + Utils.toString(RequestHandlers.getAverageWaitTime(), 2);
+    info[7] = "key_lock_contentions:" + KeysLocker.getContentionCount();
+    info[8] = "evicted_keys:" + Evictor.getEvictedKeys();
+    info[9] = "block_cache_hits:" + BlockCache.getHits();
+    info[10] = "block_cache_misses:" + BlockCache.getMisses();
+    info[11] = "block_cache_hit_ratio:" + Utils.toString(BlockCache.getHitRatio(), 2);
     info[12] = "";
-    ARRAY_REPLY(outBufferPtr, info);
+    return info;
+  }
+
+  private String[] persistence(BigSortedMap map) {
+    SnapshotManager manager = SnapshotManager.getInstance();
+    String[] info = new String[17];
+    info[0] = "# Persistence (Carrot)";
+    info[1] = "rdb_changes_since_last_save:" + map.getChangesSinceLastSnapshot();
+    info[2] = "rdb_bgsave_in_progress:" + (map.isSnapshotInProgress() ? 1 : 0);
+    info[3] = "rdb_bgsave_scheduled:" + (manager.isSnapshotPending(map) ? 1 : 0);
+    info[4] = "rdb_last_save_time:" + map.getLastSnapshotTimestamp() / 1000;
+    info[5] = "rdb_last_bgsave_status:" + (map.getLastSnapshotStatus() ? "ok" : "err");
+    info[6] = "rdb_last_bgsave_type:" + (map.isLastSnapshotIncremental() ? "incremental" : "full");
+    long duration = map.getLastSnapshotDuration();
+    info[7] = "rdb_last_bgsave_time_sec:" + (duration < 0 ? -1 : duration / 1000);
+    info[8] = "rdb_last_bgsave_time_ms:" + duration;
+    long bytes = map.getLastSnapshotBytes();
+    info[9] = "rdb_last_bgsave_bytes:" + bytes;
+    info[10] =
+        "rdb_last_bgsave_throughput_bytes_per_sec:"
+            + (duration > 0 ? Utils.toString((double) bytes * 1000 / duration, 2) : "0.0");
+    long current = map.getCurrentSnapshotDuration();
+    info[11] = "rdb_current_bgsave_time_sec:" + (current < 0 ? -1 : current / 1000);
+    double progress = map.getSnapshotProgress();
+    info[12] = "rdb_current_bgsave_progress_perc:" + Utils.toString(Math.max(0, progress), 2) + "%";
+    info[13] = "rdb_current_bgsave_bytes:" + map.getCurrentSnapshotBytes();
+    info[14] = "rdb_saves:" + map.getSnapshotCount();
+    info[15] =
+        "rdb_bgsave_running_total:"
+            + manager.getRunningSnapshots()
+            + "/"
+            + manager.getMaxConcurrentSnapshots();
+    info[16] = "";
+    return info;
   }
 }
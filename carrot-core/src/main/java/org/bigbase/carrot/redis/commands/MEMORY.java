@@ -0,0 +1,70 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.commands;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.keys.Keys;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+/**
+ * Supported memory commands:
+ *
+ * <p>1. MEMORY USAGE key [SAMPLES count]
+ */
+public class MEMORY implements RedisCommand {
+
+  static final long USAGE_FLAG = UnsafeAccess.allocAndCopy("USAGE", 0, "USAGE".length());
+  static final long USAGE_FLAG_LOWER = UnsafeAccess.allocAndCopy("usage", 0, "usage".length());
+  static final int USAGE_LENGTH = "USAGE".length();
+
+  @Override
+  public void execute(BigSortedMap map, long inDataPtr, long outBufferPtr, int outBufferSize) {
+    int numArgs = UnsafeAccess.toInt(inDataPtr);
+    if (numArgs < 2) {
+      Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_ARGS_NUMBER);
+      return;
+    }
+    inDataPtr += Utils.SIZEOF_INT;
+    // skip command name
+    inDataPtr = skip(inDataPtr, 1);
+    int size = UnsafeAccess.toInt(inDataPtr);
+    inDataPtr += Utils.SIZEOF_INT;
+    if (Utils.compareTo(USAGE_FLAG, USAGE_LENGTH, inDataPtr, size) != 0
+        && Utils.compareTo(USAGE_FLAG_LOWER, USAGE_LENGTH, inDataPtr, size) != 0) {
+      Errors.write(
+          outBufferPtr,
+          Errors.TYPE_GENERIC,
+          Errors.ERR_UNSUPPORTED_COMMAND,
+          ": MEMORY " + Utils.toString(inDataPtr, size));
+      return;
+    }
+    // SAMPLES count is accepted, but not used: sizes are exact
+    if (numArgs != 3 && numArgs != 5) {
+      Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_ARGS_NUMBER);
+      return;
+    }
+    inDataPtr += size;
+    int keySize = UnsafeAccess.toInt(inDataPtr);
+    inDataPtr += Utils.SIZEOF_INT;
+    long keyPtr = inDataPtr;
+
+    long usage = Keys.MEMORY_USAGE(map, keyPtr, keySize);
+    if (usage < 0) {
+      NULL_STRING_REPLY(outBufferPtr);
+    } else {
+      INT_REPLY(outBufferPtr, usage);
+    }
+  }
+}
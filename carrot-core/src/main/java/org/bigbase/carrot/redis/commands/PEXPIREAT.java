@@ -0,0 +1,57 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.commands;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.keys.Keys;
+import org.bigbase.carrot.redis.util.MutationOptions;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+/** PEXPIREAT key milliseconds-timestamp */
+public class PEXPIREAT implements RedisCommand {
+
+  @Override
+  public void execute(BigSortedMap map, long inDataPtr, long outBufferPtr, int outBufferSize) {
+    int numArgs = UnsafeAccess.toInt(inDataPtr);
+    if (numArgs != 3) {
+      Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_ARGS_NUMBER);
+      return;
+    }
+    inDataPtr += Utils.SIZEOF_INT;
+    // skip command name
+    inDataPtr = skip(inDataPtr, 1);
+    // read key
+    int keySize = UnsafeAccess.toInt(inDataPtr);
+    inDataPtr += Utils.SIZEOF_INT;
+    long keyPtr = inDataPtr;
+    inDataPtr += keySize;
+    // read expiration time in ms
+    int size = UnsafeAccess.toInt(inDataPtr);
+    inDataPtr += Utils.SIZEOF_INT;
+    try {
+      long expireAt = Utils.strToLong(inDataPtr, size);
+      int num = Keys.PEXPIREAT(map, keyPtr, keySize, expireAt, MutationOptions.NONE);
+      if (num < 0) {
+        Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_EXPIRE_NOT_SUPPORTED);
+        return;
+      }
+      // INT
+      INT_REPLY(outBufferPtr, num);
+    } catch (NumberFormatException e) {
+      Errors.write(
+          outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_NUMBER_FORMAT, ": " + e.getMessage());
+    }
+  }
+}
@@ -16,6 +16,7 @@ package org.bigbase.carrot.redis.commands;
 import java.nio.ByteBuffer;
 
 import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.keys.Keys;
 import org.bigbase.carrot.redis.util.MutationOptions;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
@@ -99,6 +100,14 @@ public interface RedisCommand {
   static final long PX_FLAG_LOWER = UnsafeAccess.allocAndCopy("px", 0, "px".length());
   static final int PX_LENGTH = "PX".length();
 
+  /*
+   * Arguments of requests, which are written to a write-ahead log
+   */
+  static final byte[] PXAT_ARG = "PXAT".getBytes();
+  static final byte[] SET_ARG = "SET".getBytes();
+  static final byte[] SREM_ARG = "SREM".getBytes();
+  static final byte[] PEXPIREAT_ARG = "PEXPIREAT".getBytes();
+
   static final long KEEPTTL_FLAG = UnsafeAccess.allocAndCopy("KEEPTTL", 0, "KEEPTTL".length());
   static final long KEEPTTL_FLAG_LOWER =
       UnsafeAccess.allocAndCopy("keepttl", 0, "keepttl".length());
@@ -161,6 +170,17 @@ public interface RedisCommand {
       UnsafeAccess.allocAndCopy("withscores", 0, "withscores".length());
   static final int WITHSCORES_LENGTH = "WITHSCORES".length();
 
+  static final long WEIGHTS_FLAG = UnsafeAccess.allocAndCopy("WEIGHTS", 0, "WEIGHTS".length());
+  static final long WEIGHTS_FLAG_LOWER =
+      UnsafeAccess.allocAndCopy("weights", 0, "weights".length());
+  static final int WEIGHTS_LENGTH = "WEIGHTS".length();
+
+  static final long AGGREGATE_FLAG =
+      UnsafeAccess.allocAndCopy("AGGREGATE", 0, "AGGREGATE".length());
+  static final long AGGREGATE_FLAG_LOWER =
+      UnsafeAccess.allocAndCopy("aggregate", 0, "aggregate".length());
+  static final int AGGREGATE_LENGTH = "AGGREGATE".length();
+
   static final long NEG_INFINITY_FLAG = UnsafeAccess.allocAndCopy("-inf", 0, "-inf".length());
   static final int NEG_INFINITY_LENGTH = "-inf".length();
 
@@ -201,6 +221,16 @@ public interface RedisCommand {
       UnsafeAccess.allocAndCopy("memory", 0, "memory".length());
   static final int MEMORY_LENGTH = "MEMORY".length();
 
+  static final long STATS_FLAG = UnsafeAccess.allocAndCopy("STATS", 0, "STATS".length());
+  static final long STATS_LOWER_CASE_FLAG = UnsafeAccess.allocAndCopy("stats", 0, "stats".length());
+  static final int STATS_LENGTH = "STATS".length();
+
+  static final long PERSISTENCE_FLAG =
+      UnsafeAccess.allocAndCopy("PERSISTENCE", 0, "PERSISTENCE".length());
+  static final long PERSISTENCE_LOWER_CASE_FLAG =
+      UnsafeAccess.allocAndCopy("persistence", 0, "persistence".length());
+  static final int PERSISTENCE_LENGTH = "PERSISTENCE".length();
+
   default void SIMPLE_STRING_REPLY(long ptr, String s) {
     UnsafeAccess.putByte(ptr, (byte) ReplyType.SIMPLE.ordinal());
     UnsafeAccess.putInt(ptr + Utils.SIZEOF_BYTE, s.length());
@@ -287,6 +317,54 @@ public interface RedisCommand {
    */
   public void execute(BigSortedMap map, long inBufferPtr, long outBufferPtr, int outBufferSize);
 
+  /**
+   * Get request, which is written to a write-ahead log after successful execution. Replay of the
+   * logged request must have the same effect, as the execution had. Commands, which depend on
+   * execution time or make a random choice, log the effect instead (as Redis AOF does). Called
+   * while command's keys are still locked.
+   *
+   * @param map sorted map storage
+   * @param inBufferPtr input buffer (executed request)
+   * @param outBufferPtr output buffer (command execution result)
+   * @return request address (input buffer - request is logged as is), 0 - nothing to log
+   */
+  public default long getLogRequest(BigSortedMap map, long inBufferPtr, long outBufferPtr) {
+    return inBufferPtr;
+  }
+
+  /**
+   * Checks if argument is a relative TTL flag (EX or PX)
+   *
+   * @param ptr argument address (its length field)
+   * @return true or false
+   */
+  default boolean isRelativeTTL(long ptr) {
+    int size = UnsafeAccess.toInt(ptr);
+    ptr += Utils.SIZEOF_INT;
+    return size == EX_LENGTH
+            && (Utils.compareTo(EX_FLAG, EX_LENGTH, ptr, size) == 0
+                || Utils.compareTo(EX_FLAG_LOWER, EX_LENGTH, ptr, size) == 0)
+        || size == PX_LENGTH
+            && (Utils.compareTo(PX_FLAG, PX_LENGTH, ptr, size) == 0
+                || Utils.compareTo(PX_FLAG_LOWER, PX_LENGTH, ptr, size) == 0);
+  }
+
+  /**
+   * Get absolute expiration time of a key (string or list), which replaces a relative TTL in a
+   * logged request
+   *
+   * @param map sorted map storage
+   * @param keyPtr key address
+   * @param keySize key size
+   * @return expiration time in ms, time in the past - if key does not exist or does not expire
+   */
+  default long getLogExpire(BigSortedMap map, long keyPtr, int keySize) {
+    long expire = Keys.GETEXPIRE(map, keyPtr, keySize);
+    // Command has not set the TTL (NX, XX) or key has already expired: replay of a request with a
+    // time in the past has the same effect
+    return expire > 0 ? expire : 1;
+  }
+
   /**
    * Reads new expiration time from a request buffer
    *
@@ -16,6 +16,7 @@ package org.bigbase.carrot.redis.commands;
 import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.redis.strings.Strings;
 import org.bigbase.carrot.redis.util.MutationOptions;
+import org.bigbase.carrot.redis.util.RequestBuilder;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
 
@@ -137,4 +138,23 @@ public class SET implements RedisCommand {
           ": " + e.getMessage());
     }
   }
+
+  @Override
+  public long getLogRequest(BigSortedMap map, long inDataPtr, long outBufferPtr) {
+    int numArgs = UnsafeAccess.toInt(inDataPtr);
+    // SET key value
+    long ptr = skip(inDataPtr + Utils.SIZEOF_INT, 3);
+    if (numArgs < 5 || !isRelativeTTL(ptr)) {
+      return inDataPtr;
+    }
+    // Relative TTL is logged as PXAT
+    long keyPtr = skip(inDataPtr + Utils.SIZEOF_INT, 1);
+    int keySize = UnsafeAccess.toInt(keyPtr);
+    keyPtr += Utils.SIZEOF_INT;
+    RequestBuilder req = RequestBuilder.start();
+    req.addArgs(inDataPtr + Utils.SIZEOF_INT, 3);
+    req.add(PXAT_ARG).add(getLogExpire(map, keyPtr, keySize));
+    req.addArgs(skip(ptr, 2), numArgs - 5);
+    return req.build();
+  }
 }
@@ -15,6 +15,7 @@ package org.bigbase.carrot.redis.commands;
 
 import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.redis.strings.Strings;
+import org.bigbase.carrot.redis.util.RequestBuilder;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
 
@@ -61,4 +62,21 @@ public class SETEX implements RedisCommand {
       }
     }
   }
+
+  @Override
+  public long getLogRequest(BigSortedMap map, long inDataPtr, long outBufferPtr) {
+    // Relative TTL is logged as PXAT: SET key value PXAT time
+    long ptr = skip(inDataPtr + Utils.SIZEOF_INT, 1);
+    int keySize = UnsafeAccess.toInt(ptr);
+    long keyPtr = ptr + Utils.SIZEOF_INT;
+    long valPtr = skip(ptr, 2);
+    int valSize = UnsafeAccess.toInt(valPtr);
+    return RequestBuilder.start()
+        .add(SET_ARG)
+        .add(keyPtr, keySize)
+        .add(valPtr + Utils.SIZEOF_INT, valSize)
+        .add(PXAT_ARG)
+        .add(getLogExpire(map, keyPtr, keySize))
+        .build();
+  }
 }
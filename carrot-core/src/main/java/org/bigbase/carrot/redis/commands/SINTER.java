@@ -0,0 +1,50 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.commands;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.sets.Sets;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+public class SINTER implements RedisCommand {
+
+  @Override
+  public void execute(BigSortedMap map, long inDataPtr, long outBufferPtr, int outBufferSize) {
+    int numArgs = UnsafeAccess.toInt(inDataPtr);
+    if (numArgs < 2) {
+      Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_ARGS_NUMBER);
+      return;
+    }
+    inDataPtr += Utils.SIZEOF_INT;
+    // skip command name
+    inDataPtr = skip(inDataPtr, 1);
+    long[] keyPtrs = Utils.loadPointers(inDataPtr, numArgs - 1);
+    int[] keySizes = Utils.loadSizes(inDataPtr, numArgs - 1);
+
+    int size =
+        (int)
+            Sets.SINTER(
+                map,
+                keyPtrs,
+                keySizes,
+                outBufferPtr + Utils.SIZEOF_BYTE + Utils.SIZEOF_INT,
+                outBufferSize - Utils.SIZEOF_BYTE - Utils.SIZEOF_INT);
+
+    // VARRAY type
+    UnsafeAccess.putByte(outBufferPtr, (byte) ReplyType.VARRAY.ordinal());
+    UnsafeAccess.putInt(
+        outBufferPtr + Utils.SIZEOF_BYTE, size + Utils.SIZEOF_BYTE + Utils.SIZEOF_INT);
+  }
+}
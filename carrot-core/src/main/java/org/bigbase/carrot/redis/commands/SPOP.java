@@ -15,6 +15,7 @@ package org.bigbase.carrot.redis.commands;
 
 import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.redis.sets.Sets;
+import org.bigbase.carrot.redis.util.RequestBuilder;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
 
@@ -55,6 +56,11 @@ public class SPOP implements RedisCommand {
       int size =
           (int) Sets.SPOP(map, keyPtr, keySize, outBufferPtr + off, outBufferSize - off, count);
       if (!countSet) {
+        if (UnsafeAccess.toInt(outBufferPtr + off) == 0) {
+          // Set does not exist
+          NULL_STRING_REPLY(outBufferPtr);
+          return;
+        }
         // Return as a Bulk String
         varrayToBulkString(outBufferPtr);
       } else {
@@ -67,4 +73,36 @@ public class SPOP implements RedisCommand {
           outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_NUMBER_FORMAT, ": " + e.getMessage());
     }
   }
+
+  @Override
+  public long getLogRequest(BigSortedMap map, long inDataPtr, long outBufferPtr) {
+    // Random members are logged as SREM key member [member ...]
+    long ptr = skip(inDataPtr + Utils.SIZEOF_INT, 1);
+    int keySize = UnsafeAccess.toInt(ptr);
+    RequestBuilder req = RequestBuilder.start().add(SREM_ARG).add(ptr + Utils.SIZEOF_INT, keySize);
+    ptr = outBufferPtr + Utils.SIZEOF_BYTE;
+    if (UnsafeAccess.toByte(outBufferPtr) == (byte) ReplyType.BULK_STRING.ordinal()) {
+      int size = UnsafeAccess.toInt(ptr);
+      if (size < 0) {
+        // Set does not exist
+        return 0;
+      }
+      req.add(ptr + Utils.SIZEOF_INT, size);
+    } else {
+      // VARRAY: serialized size, number of members and members
+      ptr += Utils.SIZEOF_INT;
+      int num = UnsafeAccess.toInt(ptr);
+      if (num == 0) {
+        return 0;
+      }
+      ptr += Utils.SIZEOF_INT;
+      for (int i = 0; i < num; i++) {
+        int size = Utils.readUVInt(ptr);
+        int sizeSize = Utils.sizeUVInt(size);
+        req.add(ptr + sizeSize, size);
+        ptr += sizeSize + size;
+      }
+    }
+    return req.build();
+  }
 }
@@ -0,0 +1,64 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.commands;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.zsets.ZSets;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+public class ZDIFFSTORE implements RedisCommand {
+
+  @Override
+  public void execute(BigSortedMap map, long inDataPtr, long outBufferPtr, int outBufferSize) {
+    try {
+      int numArgs = UnsafeAccess.toInt(inDataPtr);
+      if (numArgs < 4) {
+        Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_ARGS_NUMBER);
+        return;
+      }
+      inDataPtr += Utils.SIZEOF_INT;
+      // skip command name
+      inDataPtr = skip(inDataPtr, 1);
+      // read destination key
+      int dstKeySize = UnsafeAccess.toInt(inDataPtr);
+      inDataPtr += Utils.SIZEOF_INT;
+      long dstKeyPtr = inDataPtr;
+      inDataPtr += dstKeySize;
+      // read number of keys
+      int valSize = UnsafeAccess.toInt(inDataPtr);
+      inDataPtr += Utils.SIZEOF_INT;
+      int numKeys = (int) Utils.strToLong(inDataPtr, valSize);
+      inDataPtr += valSize;
+      if (numKeys <= 0 || numKeys != numArgs - 3) {
+        Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_ARGS_NUMBER);
+        return;
+      }
+      long[] keyPtrs = Utils.loadPointers(inDataPtr, numKeys);
+      int[] keySizes = Utils.loadSizes(inDataPtr, numKeys);
+      long result = ZSets.ZDIFFSTORE(map, dstKeyPtr, dstKeySize, keyPtrs, keySizes);
+      // INT reply
+      INT_REPLY(outBufferPtr, result);
+    } catch (NumberFormatException e) {
+      Errors.write(
+          outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_NUMBER_FORMAT, ": " + e.getMessage());
+    } catch (IllegalArgumentException ee) {
+      Errors.write(
+          outBufferPtr,
+          Errors.TYPE_GENERIC,
+          Errors.ERR_WRONG_COMMAND_FORMAT,
+          ": " + ee.getMessage());
+    }
+  }
+}
@@ -44,6 +44,8 @@ public class HashDelete extends Operation {
   int bufferSize;
   /** Value size (deleted) full */
   int valueSize = 0;
+  /** Hash size change in bytes (serialized field-value pair) */
+  int sizeDelta = 0;
 
   boolean checkForEmpty = false;
   /** Constructor */
@@ -59,6 +61,7 @@ public class HashDelete extends Operation {
     this.buffer = 0;
     this.bufferSize = 0;
     this.valueSize = 0;
+    this.sizeDelta = 0;
     this.checkForEmpty = false;
   }
 
@@ -75,6 +78,15 @@ public class HashDelete extends Operation {
     return this.valueSize;
   }
 
+  /**
+   * Gets hash size change
+   *
+   * @return size change in bytes (negative)
+   */
+  public int getSizeDelta() {
+    return this.sizeDelta;
+  }
+
   /**
    * Sets the buffer for return value
    *
@@ -142,6 +154,7 @@ public class HashDelete extends Operation {
     }
 
     int toCut = fieldSizeSize + fieldSize + fieldValueSizeSize + fieldValueSize;
+    this.sizeDelta = -toCut;
     long valueAddress = DataBlock.valueAddress(foundRecordAddress);
     // decrement number of elements in this value
     int numElements = addNumElements(valueAddress, -1);
@@ -61,6 +61,8 @@ public class HashSet extends Operation {
   private MutationOptions opts;
 
   private int added = 0;
+
+  private int sizeDelta = 0;
   /**
    * Checks key arena size
    *
@@ -112,6 +114,15 @@ public class HashSet extends Operation {
     return added;
   }
 
+  /**
+   * Get hash size change in bytes (serialized field-value pairs)
+   *
+   * @return size change
+   */
+  public int getSizeDelta() {
+    return sizeDelta;
+  }
+
   @Override
   public void reset() {
     super.reset();
@@ -120,6 +131,7 @@ public class HashSet extends Operation {
     this.fieldValueSize = 0;
     this.opts = null;
     this.added = 0;
+    this.sizeDelta = 0;
   }
 
   /**
@@ -185,6 +197,7 @@ public class HashSet extends Operation {
 
     boolean needSplit = DataBlock.mustStoreExternally(foundKeySize, newValueSize);
     if (!exists) added = 1;
+    sizeDelta = toAdd;
     if (!needSplit) {
       Hashes.checkValueArena(newValueSize);
       insertFieldValue(valueAddress, valueSize, addr, fieldPtr, fieldSize);
@@ -284,6 +297,7 @@ public class HashSet extends Operation {
     keySizes[0] = totalKeySize;
     values[0] = vPtr;
     valueSizes[0] = fieldSize + fSizeSize + fieldValueSize + vSizeSize + NUM_ELEM_SIZE;
+    sizeDelta = fieldSize + fSizeSize + fieldValueSize + vSizeSize;
   }
 
   /**
@@ -323,6 +337,7 @@ public class HashSet extends Operation {
     keySizes[0] = totalKeySize;
     values[0] = vPtr;
     valueSizes[0] = fieldSize + fSizeSize + fieldValueSize + vSizeSize + NUM_ELEM_SIZE;
+    sizeDelta = fieldSize + fSizeSize + fieldValueSize + vSizeSize;
   }
   /**
    * Insert field-value into value (valueAddress, valueSize) insertion point is addr.
@@ -350,12 +365,13 @@ public class HashSet extends Operation {
       }
     }
 
-    if (!update) {
-      addNumElements(valueAddress, 1);
-    }
     long ptr = Hashes.valueArena.get();
     // Copy everything before addr
     UnsafeAccess.copy(valueAddress, ptr, addr - valueAddress);
+    if (!update) {
+      // stored value is not changed if update fails
+      addNumElements(ptr, 1);
+    }
     // Encode element size
     ptr += addr - valueAddress;
     int fSizeSize = Utils.writeUVInt(ptr, fieldSize);
@@ -35,6 +35,7 @@ import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.BigSortedMapScanner;
 import org.bigbase.carrot.DataBlock;
 import org.bigbase.carrot.ops.OperationFailedException;
+import org.bigbase.carrot.redis.util.CollectionHeader;
 import org.bigbase.carrot.redis.util.Commons;
 import org.bigbase.carrot.redis.util.DataType;
 import org.bigbase.carrot.redis.util.MutationOptions;
@@ -281,6 +282,7 @@ public class Hashes {
       long total = map.deleteRange(kPtr, newKeySize, endKeyPtr, endKeySize);
       UnsafeAccess.free(kPtr);
       if (endKeyPtr > 0) UnsafeAccess.free(endKeyPtr);
+      CollectionHeader.delete(map, DataType.HASH, keyPtr, keySize);
       return total > 0;
     } finally {
       if (lock) KeysLocker.writeUnlock(k);
@@ -313,8 +315,12 @@ public class Hashes {
 
     Key k = getKey(keyPtr, keySize);
     int count = 0;
+    long bytes = 0;
     try {
       writeLock(k);
+      if (!CollectionHeader.reserve(map, DataType.HASH, keyPtr, keySize)) {
+        return 0;
+      }
       for (int i = 0; i < fieldPtrs.length; i++) {
         long fieldPtr = fieldPtrs[i];
         int fieldSize = fieldSizes[i];
@@ -327,9 +333,12 @@ public class Hashes {
         set.setKeySize(kSize);
         set.setFieldValue(valuePtr, valueSize);
         set.setOptions(MutationOptions.NONE);
-        map.execute(set);
-        count += set.getAdded();
+        if (map.execute(set)) {
+          count += set.getAdded();
+          bytes += set.getSizeDelta();
+        }
       }
+      CollectionHeader.update(map, DataType.HASH, keyPtr, keySize, count, bytes);
       return count;
     } finally {
       writeUnlock(k);
@@ -353,9 +362,12 @@ public class Hashes {
     }
     Key k = getKey(keyPtr, keySize);
     int count = 0;
+    long bytes = 0;
     try {
       writeLock(k);
-
+      if (!CollectionHeader.reserve(map, DataType.HASH, keyPtr, keySize)) {
+        return 0;
+      }
       for (KeyValue kv : kvs) {
         long fieldPtr = kv.keyPtr;
         int fieldSize = kv.keySize;
@@ -369,13 +381,16 @@ public class Hashes {
         set.setFieldValue(valuePtr, valueSize);
         set.setOptions(MutationOptions.NONE);
         // version?
-        map.execute(set);
-        count += set.getAdded();
+        if (map.execute(set)) {
+          count += set.getAdded();
+          bytes += set.getSizeDelta();
+        }
 
         if (count % 100000 == 0) {
           log.debug("Loaded {}", count);
         }
       }
+      CollectionHeader.update(map, DataType.HASH, keyPtr, keySize, count, bytes);
       return count;
     } finally {
       writeUnlock(k);
@@ -475,6 +490,9 @@ public class Hashes {
     int count = 0;
     try {
       if (lock) writeLock(k);
+      if (!CollectionHeader.reserve(map, DataType.HASH, keyPtr, keySize)) {
+        return 0;
+      }
       int kSize = buildKey(keyPtr, keySize, fieldPtr, fieldSize);
       HashSet set = hashSet.get();
       set.reset();
@@ -482,8 +500,12 @@ public class Hashes {
       set.setKeySize(kSize);
       set.setFieldValue(valuePtr, valueSize);
       set.setOptions(MutationOptions.NONE);
-      map.execute(set);
-      count += set.getAdded();
+      long bytes = 0;
+      if (map.execute(set)) {
+        count += set.getAdded();
+        bytes = set.getSizeDelta();
+      }
+      CollectionHeader.update(map, DataType.HASH, keyPtr, keySize, count, bytes);
       return count;
     } finally {
       if (lock) writeUnlock(k);
@@ -527,8 +549,12 @@ public class Hashes {
   public static int HSET_NEW(BigSortedMap map, long keyPtr, int keySize, List<KeyValue> members) {
     Key k = getKey(keyPtr, keySize);
     int count = 0;
+    long bytes = 0;
     try {
       KeysLocker.writeLock(k);
+      if (!CollectionHeader.reserve(map, DataType.HASH, keyPtr, keySize)) {
+        return 0;
+      }
       KeyValue first = new KeyValue(ZERO, SIZEOF_BYTE, ZERO, SIZEOF_BYTE);
       // Sort all the keys
       Utils.sortKeyValues(members);
@@ -554,8 +580,10 @@ public class Hashes {
           break;
         }
         count += num;
+        bytes += valueSize - NUM_ELEM_SIZE;
         prev = kv;
       }
+      CollectionHeader.set(map, DataType.HASH, keyPtr, keySize, count, bytes);
       return count;
     } finally {
       KeysLocker.writeUnlock(k);
@@ -630,8 +658,12 @@ public class Hashes {
       BigSortedMap map, long keyPtr, int keySize, List<ValueScore> members) {
     Key k = getKey(keyPtr, keySize);
     int count = 0;
+    long bytes = 0;
     try {
       KeysLocker.writeLock(k);
+      if (!CollectionHeader.reserve(map, DataType.HASH, keyPtr, keySize)) {
+        return 0;
+      }
       ValueScore first = new ValueScore(ZERO, SIZEOF_BYTE, 0);
       // Sort all the keys will be done by a caller
       // Utils.sortKeys(members);
@@ -657,8 +689,10 @@ public class Hashes {
           break;
         }
         count += num;
+        bytes += valueSize - NUM_ELEM_SIZE;
         prev = kv;
       }
+      CollectionHeader.set(map, DataType.HASH, keyPtr, keySize, count, bytes);
       return count;
     } finally {
       KeysLocker.writeUnlock(k);
@@ -730,6 +764,66 @@ public class Hashes {
     return size;
   }
 
+  /**
+   * Bulk loads field-values into an empty hash. Field-values are packed into values of the maximum
+   * size and written directly, serialized format is the same as in a hash's value. Hash must not
+   * exist and caller must hold the key's write lock.
+   *
+   * @param map sorted map storage
+   * @param keyPtr hash key address
+   * @param keySize hash key size
+   * @param buffer serialized field-values sorted by field: [NUMBER][FSIZE,VSIZE,FIELD,VALUE]+
+   * @return number of field-values loaded
+   */
+  public static long load(BigSortedMap map, long keyPtr, int keySize, long buffer) {
+    if (!CollectionHeader.reserve(map, DataType.HASH, keyPtr, keySize)) {
+      return 0;
+    }
+    int total = UnsafeAccess.toInt(buffer);
+    long ptr = buffer + Utils.SIZEOF_INT;
+    int loaded = 0;
+    long bytes = 0;
+    while (loaded < total) {
+      int fSize = Utils.readUVInt(ptr);
+      int fSizeSize = Utils.sizeUVInt(fSize);
+      int vSizeSize = Utils.sizeUVInt(Utils.readUVInt(ptr + fSizeSize));
+      // First K-V of a hash has ZERO key suffix, others - their first field
+      int kSize =
+          loaded == 0
+              ? buildKey(keyPtr, keySize, ZERO, 1)
+              : buildKey(keyPtr, keySize, ptr + fSizeSize + vSizeSize, fSize);
+      int maxValueSize = getMaxValueSize(kSize);
+      // Collect field-values for this value
+      int num = 0;
+      int size = NUM_ELEM_SIZE;
+      long end = ptr;
+      while (loaded + num < total) {
+        fSize = Utils.readUVInt(end);
+        fSizeSize = Utils.sizeUVInt(fSize);
+        int vSize = Utils.readUVInt(end + fSizeSize);
+        int add = fSizeSize + Utils.sizeUVInt(vSize) + fSize + vSize;
+        if (num > 0 && size + add > maxValueSize) {
+          break;
+        }
+        size += add;
+        end += add;
+        num++;
+      }
+      checkValueArena(size);
+      long valuePtr = valueArena.get();
+      UnsafeAccess.putShort(valuePtr, (short) num);
+      UnsafeAccess.copy(ptr, valuePtr + NUM_ELEM_SIZE, size - NUM_ELEM_SIZE);
+      if (!map.put(keyArena.get(), kSize, valuePtr, size, 0)) {
+        break;
+      }
+      loaded += num;
+      bytes += size - NUM_ELEM_SIZE;
+      ptr = end;
+    }
+    CollectionHeader.set(map, DataType.HASH, keyPtr, keySize, loaded, bytes);
+    return loaded;
+  }
+
   /**
    * HMSET - obsolete
    *
@@ -800,6 +894,9 @@ public class Hashes {
 
     try {
       writeLock(k);
+      if (!CollectionHeader.reserve(map, DataType.HASH, keyPtr, keySize)) {
+        return 0;
+      }
       int kSize = buildKey(keyPtr, keySize, fieldPtr, fieldSize);
       HashSet set = hashSet.get();
       set.reset();
@@ -807,8 +904,14 @@ public class Hashes {
       set.setKeySize(kSize);
       set.setFieldValue(valuePtr, valueSize);
       set.setOptions(MutationOptions.NX);
-      map.execute(set);
-      return set.getAdded();
+      int added = 0;
+      long bytes = 0;
+      if (map.execute(set)) {
+        added = set.getAdded();
+        bytes = set.getSizeDelta();
+      }
+      CollectionHeader.update(map, DataType.HASH, keyPtr, keySize, added, bytes);
+      return added;
     } finally {
       writeUnlock(k);
     }
@@ -831,7 +934,8 @@ public class Hashes {
 
   /**
    * Returns the number of fields contained in the hash stored at key. Return value Integer reply:
-   * number of fields in the hash, or 0 when key does not exist.
+   * number of fields in the hash, or 0 when key does not exist. Time complexity: O(1), the number
+   * of fields is kept in the hash's header record.
    *
    * @param map sorted map storage
    * @param keyPtr hash key
@@ -839,43 +943,15 @@ public class Hashes {
    * @return number of elements(fields)
    */
   public static long HLEN(BigSortedMap map, long keyPtr, int keySize) {
-
     Key k = getKey(keyPtr, keySize);
-    long endKeyPtr = 0;
     try {
       readLock(k);
-      int kSize = buildKey(keyPtr, keySize, Commons.ZERO, 1);
-      long ptr = keyArena.get();
-      int endKeySize = kSize - 1;
-      endKeyPtr = Utils.prefixKeyEnd(ptr, endKeySize);
-      if (endKeyPtr == 0) {
-        endKeySize = 0;
-      }
-      BigSortedMapScanner scanner = map.getScanner(ptr, kSize, endKeyPtr, endKeySize);
-      if (scanner == null) {
-        return 0; // empty or does not exists
-      }
-      long total = 0;
-      try {
-        while (scanner.hasNext()) {
-          long valuePtr = scanner.valueAddress();
-          int num = numElementsInValue(valuePtr);
-          total += num;
-          scanner.next();
-        }
-        scanner.close();
-      } catch (IOException e) {
-        // should never be thrown
-        log.error("StackTrace: ", e);
-      }
-      return total;
+      return CollectionHeader.getCount(map, DataType.HASH, keyPtr, keySize);
     } finally {
-      if (endKeyPtr > 0) {
-        UnsafeAccess.free(endKeyPtr);
-      }
       readUnlock(k);
     }
   }
+
   /**
    * Checks if the Hash is empty
    *
@@ -934,7 +1010,7 @@ public class Hashes {
   }
 
   /**
-   * Return serialized hash size
+   * Return serialized hash size. Time complexity: O(1)
    *
    * @param map ordered map
    * @param keyPtr key address
@@ -943,35 +1019,10 @@ public class Hashes {
    */
   public static long getHashSizeInBytes(BigSortedMap map, long keyPtr, int keySize) {
     Key k = getKey(keyPtr, keySize);
-    long endKeyPtr = 0;
     try {
       readLock(k);
-      int kSize = buildKey(keyPtr, keySize, Commons.ZERO, 1);
-      long ptr = keyArena.get();
-      int endKeySize = kSize - 1;
-      endKeyPtr = Utils.prefixKeyEnd(ptr, endKeySize);
-      if (endKeyPtr == 0) {
-        endKeySize = 0;
-      }
-      BigSortedMapScanner scanner = map.getScanner(ptr, kSize, endKeyPtr, endKeySize);
-      if (scanner == null) {
-        return 0; // empty or does not exists
-      }
-      long total = 0;
-      try {
-        while (scanner.hasNext()) {
-          long valueSize = scanner.valueSize();
-          total += valueSize - NUM_ELEM_SIZE;
-        }
-        scanner.close();
-      } catch (IOException e) {
-        // should never be thrown
-      }
-      return total;
+      return CollectionHeader.getBytes(map, DataType.HASH, keyPtr, keySize);
     } finally {
-      if (endKeyPtr > 0) {
-        UnsafeAccess.free(endKeyPtr);
-      }
       readUnlock(k);
     }
   }
@@ -998,6 +1049,7 @@ public class Hashes {
 
     Key k = getKey(keyPtr, keySize);
     int deleted = 0;
+    long bytes = 0;
     try {
       writeLock(k);
       if (!keyExists(map, keyPtr, keySize)) {
@@ -1014,12 +1066,14 @@ public class Hashes {
         update.setKeySize(kSize);
         if (map.execute(update)) {
           deleted++;
+          bytes += update.getSizeDelta();
           if (update.checkForEmpty() && isEmpty(map, keyPtr, keySize)) {
             DELETE(map, keyPtr, keySize);
-            break;
+            return deleted;
           }
         }
       }
+      CollectionHeader.update(map, DataType.HASH, keyPtr, keySize, -deleted, bytes);
       return deleted;
     } finally {
       writeUnlock(k);
@@ -1087,6 +1141,7 @@ public class Hashes {
       boolean result = map.execute(update);
       if (result) {
         deleted++;
+        CollectionHeader.update(map, DataType.HASH, keyPtr, keySize, -1, update.getSizeDelta());
       }
       if (result && update.checkForEmpty() && isEmpty(map, keyPtr, keySize)) {
         DELETE(map, keyPtr, keySize);
@@ -1195,6 +1250,9 @@ public class Hashes {
       update.setBuffer(buffer, bufferSize);
       // version?
       boolean result = map.execute(update);
+      if (result) {
+        CollectionHeader.update(map, DataType.HASH, keyPtr, keySize, -1, update.getSizeDelta());
+      }
       if (result && update.checkForEmpty() && isEmpty(map, keyPtr, keySize)) {
         DELETE(map, keyPtr, keySize);
       }
@@ -1332,6 +1390,16 @@ public class Hashes {
       int valueBufSize,
       boolean lock) {
     Key k = getKey(keyPtr, keySize);
+    if (lock) {
+      // Try optimistic read first, repeat under the read lock if there was a concurrent update
+      long stamp = KeysLocker.tryOptimisticRead(k);
+      if (stamp != 0) {
+        int size = HGET(map, keyPtr, keySize, fieldPtr, fieldSize, valueBuf, valueBufSize, false);
+        if (KeysLocker.validate(k, stamp)) {
+          return size;
+        }
+      }
+    }
     try {
       if (lock) {
         readLock(k);
@@ -1558,6 +1626,9 @@ public class Hashes {
     Key k = getKey(keyPtr, keySize);
     try {
       writeLock(k);
+      if (!CollectionHeader.reserve(map, DataType.HASH, keyPtr, keySize)) {
+        throw new OperationFailedException();
+      }
       long value = 0;
       int size = HGET(map, keyPtr, keySize, fieldPtr, fieldSize, incrArena.get(), INCR_ARENA_SIZE);
       if (size > INCR_ARENA_SIZE) {
@@ -1580,11 +1651,14 @@ public class Hashes {
       set.setFieldValue(incrArena.get(), size);
       set.setOptions(MutationOptions.NONE);
       // version?
-      if (map.execute(set)) {
-        return value;
-      } else {
+      if (!map.execute(set)) {
+        // Deletes empty header of a new hash
+        CollectionHeader.update(map, DataType.HASH, keyPtr, keySize, 0, 0);
         throw new OperationFailedException();
       }
+      CollectionHeader.update(
+          map, DataType.HASH, keyPtr, keySize, set.getAdded(), set.getSizeDelta());
+      return value;
     } finally {
       writeUnlock(k);
     }
@@ -1639,6 +1713,9 @@ public class Hashes {
     Key k = getKey(keyPtr, keySize);
     try {
       writeLock(k);
+      if (!CollectionHeader.reserve(map, DataType.HASH, keyPtr, keySize)) {
+        throw new OperationFailedException();
+      }
       double value = 0;
       int size = HGET(map, keyPtr, keySize, fieldPtr, fieldSize, incrArena.get(), INCR_ARENA_SIZE);
       if (size > INCR_ARENA_SIZE) {
@@ -1661,11 +1738,14 @@ public class Hashes {
       set.setFieldValue(incrArena.get(), size);
       set.setOptions(MutationOptions.NONE);
       // version?
-      if (map.execute(set)) {
-        return value;
-      } else {
+      if (!map.execute(set)) {
+        // Deletes empty header of a new hash
+        CollectionHeader.update(map, DataType.HASH, keyPtr, keySize, 0, 0);
         throw new OperationFailedException();
       }
+      CollectionHeader.update(
+          map, DataType.HASH, keyPtr, keySize, set.getAdded(), set.getSizeDelta());
+      return value;
     } finally {
       writeUnlock(k);
     }
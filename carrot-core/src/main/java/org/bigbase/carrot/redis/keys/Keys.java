@@ -108,6 +108,41 @@ public class Keys {
     return 0;
   }
 
+  /**
+   * MEMORY USAGE key [SAMPLES count]
+   *
+   * <p>Reports the number of bytes that a key and its value require to be stored. For sets, sorted
+   * sets and hashes the size is read from the collection header record, so the complexity is O(1)
+   * for all supported types: strings, sets, sorted sets and hashes. Lists and sparse bitmaps are
+   * not counted.
+   *
+   * @param map sorted map storage
+   * @param keyPtr key address
+   * @param keySize key size
+   * @return memory usage in bytes, -1 - key does not exist
+   */
+  public static long MEMORY_USAGE(BigSortedMap map, long keyPtr, int keySize) {
+    long total = 0;
+    boolean exists = false;
+    if (Strings.keyExists(map, keyPtr, keySize)) {
+      exists = true;
+      total += Strings.STRLEN(map, keyPtr, keySize);
+    }
+    // Sets and sorted sets
+    long size = Sets.getSetSizeInBytes(map, keyPtr, keySize);
+    if (size > 0) {
+      exists = true;
+      total += size;
+    }
+    // Hashes and the member-score part of large sorted sets
+    size = Hashes.getHashSizeInBytes(map, keyPtr, keySize);
+    if (size > 0) {
+      exists = true;
+      total += size;
+    }
+    return exists ? total + keySize : -1;
+  }
+
   /**
    * EXPIRE key seconds [NX|XX|GT|LT]
    *
@@ -134,15 +169,90 @@ public class Keys {
    * expiry is less than current one A non-volatile key is treated as an infinite TTL for the
    * purpose of GT and LT. The GT, LT and NX options are mutually exclusive.
    *
+   * <p>Only strings and lists carry an expiration time in this implementation. Sets, sorted sets,
+   * hashes and sparse bitmaps are stored as many records and do not support expiration: -1 is
+   * returned for them (except for a non-positive timeout, which deletes the key).
+   *
    * @param map sorted map set
    * @param keyPtr key address
    * @param keySize key size
    * @param seconds seconds to live
-   * @return 1 - success, 0 - was not set, -1 - key does not exist
+   * @return 1 - success, 0 - was not set or key does not exist, -1 - expiration is not supported
+   *     for the key's data type
    */
   public static int EXPIRE(
       BigSortedMap map, long keyPtr, int keySize, long seconds, MutationOptions opps) {
-    // TODO
-    return 1;
+    if (seconds <= 0) {
+      return DELETE(map, keyPtr, keySize);
+    }
+    long expireAt = System.currentTimeMillis() + seconds * 1000;
+    return SETEXPIRE(map, keyPtr, keySize, expireAt, opps);
+  }
+
+  /**
+   * PEXPIREAT key milliseconds-timestamp
+   *
+   * <p>Available since 2.6.0. Time complexity: O(1) PEXPIREAT has the same effect and semantic as
+   * EXPIREAT, but the Unix time at which the key will expire is specified in milliseconds instead
+   * of seconds. A time in the past deletes the key. Write-ahead log keeps relative TTLs as
+   * PEXPIREAT, so replay does not extend them.
+   *
+   * @param map sorted map storage
+   * @param keyPtr key address
+   * @param keySize key size
+   * @param expireAt absolute expiration time in ms
+   * @param opts mutation options (NX, XX, GT, LT)
+   * @return 1 - success, 0 - was not set or key does not exist, -1 - expiration is not supported
+   *     for the key's data type
+   */
+  public static int PEXPIREAT(
+      BigSortedMap map, long keyPtr, int keySize, long expireAt, MutationOptions opts) {
+    if (expireAt <= System.currentTimeMillis()) {
+      return DELETE(map, keyPtr, keySize);
+    }
+    return SETEXPIRE(map, keyPtr, keySize, expireAt, opts);
+  }
+
+  /**
+   * Sets expiration time of a string or a list
+   *
+   * @param map sorted map storage
+   * @param keyPtr key address
+   * @param keySize key size
+   * @param expireAt absolute expiration time in ms
+   * @param opts mutation options (NX, XX, GT, LT)
+   * @return 1 - success, 0 - was not set or key does not exist, -1 - expiration is not supported
+   *     for the key's data type
+   */
+  private static int SETEXPIRE(
+      BigSortedMap map, long keyPtr, int keySize, long expireAt, MutationOptions opts) {
+    if (Strings.keyExists(map, keyPtr, keySize)) {
+      return Strings.SETEXPIRE(map, keyPtr, keySize, expireAt, opts) ? 1 : 0;
+    }
+    if (Lists.GETEXPIRE(map, keyPtr, keySize) >= 0) {
+      return Lists.SETEXPIRE(map, keyPtr, keySize, expireAt, opts) ? 1 : 0;
+    }
+    if (Sets.keyExists(map, keyPtr, keySize)
+        || Hashes.keyExists(map, keyPtr, keySize)
+        || SparseBitmaps.EXISTS(map, keyPtr, keySize)) {
+      return -1;
+    }
+    return 0;
+  }
+
+  /**
+   * Gets key's expiration time. Only strings and lists carry expiration time
+   *
+   * @param map sorted map storage
+   * @param keyPtr key address
+   * @param keySize key size
+   * @return expiration time (-1 - not found, 0 - no expire)
+   */
+  public static long GETEXPIRE(BigSortedMap map, long keyPtr, int keySize) {
+    long expire = Strings.GETEXPIRE(map, keyPtr, keySize);
+    if (expire >= 0) {
+      return expire;
+    }
+    return Lists.GETEXPIRE(map, keyPtr, keySize);
   }
 }
@@ -17,7 +17,8 @@ import static org.bigbase.carrot.redis.util.Commons.KEY_SIZE;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.List;
 
@@ -26,7 +27,10 @@ import org.apache.logging.log4j.Logger;
 import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.DataBlock;
 import org.bigbase.carrot.redis.util.Commons;
+import org.bigbase.carrot.redis.strings.StringGetExpire;
+import org.bigbase.carrot.redis.strings.StringSetExpire;
 import org.bigbase.carrot.redis.util.DataType;
+import org.bigbase.carrot.redis.util.MutationOptions;
 import org.bigbase.carrot.util.IOUtils;
 import org.bigbase.carrot.util.Key;
 import org.bigbase.carrot.util.KeysLocker;
@@ -56,6 +60,17 @@ public class Lists {
       return Lists.dispose(map, recordAddress);
     }
 
+    @Override
+    public long detach(long recordAddress) {
+      // Segments are linked, the first one is enough
+      return UnsafeAccess.toLong(DataBlock.valueAddress(recordAddress) + Utils.SIZEOF_INT);
+    }
+
+    @Override
+    public void freeDetached(BigSortedMap map, long firstSegmentAddress) {
+      Lists.freeSegments(map, firstSegmentAddress);
+    }
+
     /** TODO: REQUIRES REFACTORING WHEN WE CHANGE KEY LAYOUT */
     @Override
     public boolean isCustomRecord(long recordAddress) {
@@ -83,7 +98,7 @@ public class Lists {
   static class SerDe implements DataBlock.SerDe {
 
     @Override
-    public final boolean serialize(long recordAddress, FileChannel fc, ByteBuffer workBuf)
+    public final boolean serialize(long recordAddress, WritableByteChannel fc, ByteBuffer workBuf)
         throws IOException {
 
       if (!DataType.isRecordOfType(recordAddress, DataType.LIST)) {
@@ -101,7 +116,8 @@ public class Lists {
           IOUtils.drainBuffer(workBuf, fc);
         }
       }
-      byte codec = 0; // Reserved for future compression support
+      // Segments are not compressed individually, snapshot compresses index blocks' data
+      byte codec = 0;
       // Write allocation type
       workBuf.put(codec);
       int numElements = UnsafeAccess.toInt(valuePtr);
@@ -119,7 +135,7 @@ public class Lists {
     }
 
     @Override
-    public boolean deserialize(long recordAddress, FileChannel fc, ByteBuffer workBuf)
+    public boolean deserialize(long recordAddress, ReadableByteChannel fc, ByteBuffer workBuf)
         throws IOException {
       int numElements = 0;
       long firstSegmentPtr = 0, lastSegmentPtr = 0;
@@ -227,17 +243,31 @@ public class Lists {
         }
       };
 
+  private static ThreadLocal<StringSetExpire> listSetexpire =
+      new ThreadLocal<StringSetExpire>() {
+        @Override
+        protected StringSetExpire initialValue() {
+          return new StringSetExpire();
+        }
+      };
+
+  private static ThreadLocal<StringGetExpire> listGetexpire =
+      new ThreadLocal<StringGetExpire>() {
+        @Override
+        protected StringGetExpire initialValue() {
+          return new StringGetExpire();
+        }
+      };
+
   /**
    * Update statistics
    *
    * @param map instance
    * @param size size
-   * @return global allocated memory
    */
-  static long allocMemory(BigSortedMap map, long size) {
+  static void allocMemory(BigSortedMap map, long size) {
     map.incrInstanceAllocatedMemory(size);
     map.incrInstanceExternalDataSize(size);
-    return BigSortedMap.getGlobalAllocatedMemory();
   }
 
   /**
@@ -245,9 +275,8 @@ public class Lists {
    *
    * @param map instance
    * @param size size
-   * @return global allocated memory
    */
-  static long freeMemory(BigSortedMap map, long size) {
+  static void freeMemory(BigSortedMap map, long size) {
     if (map != null) {
       map.incrInstanceAllocatedMemory(-size);
       map.incrInstanceExternalDataSize(-size);
@@ -255,7 +284,6 @@ public class Lists {
       BigSortedMap.incrGlobalAllocatedMemory(-size);
       BigSortedMap.incrGlobalExternalDataSize(-size);
     }
-    return BigSortedMap.getGlobalAllocatedMemory();
   }
 
   /**
@@ -356,7 +384,7 @@ public class Lists {
       long kPtr = keyArena.get();
       long valueBuf = valueArena.get();
       int valueBufSize = valueArenaSize.get();
-      Segment s = firstSegment(map, kPtr, kSize, valueBuf, valueBufSize);
+      Segment s = firstSegment(map, kPtr, kSize, valueBuf, valueBufSize, true);
       if (s != null) {
         long nextPtr = 0;
         do {
@@ -374,11 +402,11 @@ public class Lists {
   }
 
   /**
-   * This method is called on BSM.dispose() and works for List data types only
+   * This method is called on BSM.dispose() and works for List data types only. It does not lock the
+   * key (it can be called under index block lock): list must not be in use
    *
    * @param map sorted map storage
-   * @param keyPtr key address (FULL key including size and type prefix)
-   * @param keySize key size
+   * @param recordAddress address of a list record
    * @return true if it was List data type, false - otherwise
    */
   public static boolean dispose(BigSortedMap map, long recordAddress) {
@@ -387,35 +415,31 @@ public class Lists {
     if (DataType.getDataType(addr) != DataType.LIST) {
       return false;
     }
-
-    long keyPtr = DataType.internalKeyToExternalKeyAddress(addr);
-    int keySize = DataType.externalKeyLength(addr);
     long valuePtr = DataBlock.valueAddress(recordAddress);
+    freeSegments(map, UnsafeAccess.toLong(valuePtr + Utils.SIZEOF_INT));
+    // We do not delete K-V
+    return true;
+  }
 
-    // TODO: implement as the Operation (speed optimization and atomicity)
-    Key key = getKey(keyPtr, keySize);
-    try {
-      KeysLocker.writeLock(key);
-      long firstSegmentAddress = UnsafeAccess.toLong(valuePtr + Utils.SIZEOF_INT);
-      if (firstSegmentAddress == 0) {
-        // Empty list?
-        return true;
-      }
-      Segment s = segment.get();
-      s.setDataPointerAndParentMap(map, firstSegmentAddress);
-      if (s != null) {
-        long nextPtr = 0;
-        do {
-          nextPtr = s.getNextAddress();
-          s.free();
-          s.setDataPointerAndParentMap(map, nextPtr);
-        } while (nextPtr > 0);
-      }
-      // We do not delete K-V
-    } finally {
-      KeysLocker.writeUnlock(key);
+  /**
+   * Frees all segments of a list
+   *
+   * @param map sorted map storage
+   * @param firstSegmentAddress address of the first segment (0 - empty list)
+   */
+  static void freeSegments(BigSortedMap map, long firstSegmentAddress) {
+    if (firstSegmentAddress == 0) {
+      // Empty list?
+      return;
     }
-    return true;
+    Segment s = segment.get();
+    s.setDataPointerAndParentMap(map, firstSegmentAddress);
+    long nextPtr = 0;
+    do {
+      nextPtr = s.getNextAddress();
+      s.free();
+      s.setDataPointerAndParentMap(map, nextPtr);
+    } while (nextPtr > 0);
   }
 
   /**
@@ -932,7 +956,7 @@ public class Lists {
       long kPtr = keyArena.get();
       long valueBuf = valueArena.get();
       int valueBufSize = valueArenaSize.get();
-      long size = map.get(kPtr, kSize, valueBuf, valueBufSize, 0);
+      long size = map.getForUpdate(kPtr, kSize, valueBuf, valueBufSize);
       if (size < 0) {
         return -1; // Key does not exist
       }
@@ -970,7 +994,7 @@ public class Lists {
           int n = UnsafeAccess.toInt(valueBuf);
           UnsafeAccess.putInt(valueBuf, n + 1);
           // Update list header in a map
-          map.put(kPtr, kSize, valueBuf, Utils.SIZEOF_INT + 2 * Utils.SIZEOF_LONG, 0);
+          map.put(kPtr, kSize, valueBuf, Utils.SIZEOF_INT + 2 * Utils.SIZEOF_LONG, -1);
           return n + 1;
         }
       } while (s.next(s) != null);
@@ -980,6 +1004,63 @@ public class Lists {
     }
   }
 
+  /**
+   * Gets list's expiration time. List is a single record (header), which keeps expiration time of
+   * the whole list
+   *
+   * @param map sorted map storage
+   * @param keyPtr list key pointer
+   * @param keySize list key size
+   * @return expiration time (-1 - not found, 0 - no expire)
+   */
+  public static long GETEXPIRE(BigSortedMap map, long keyPtr, int keySize) {
+    Key key = getKey(keyPtr, keySize);
+    try {
+      KeysLocker.readLock(key);
+      int kSize = buildKey(keyPtr, keySize);
+      StringGetExpire expire = listGetexpire.get();
+      expire.reset();
+      expire.setKeyAddress(keyArena.get());
+      expire.setKeySize(kSize);
+      if (map.execute(expire)) {
+        return expire.getExpire();
+      } else {
+        return -1;
+      }
+    } finally {
+      KeysLocker.readUnlock(key);
+    }
+  }
+
+  /**
+   * Sets list's expiration time. Expired list is deleted lazily, when it is accessed, or by active
+   * expiration
+   *
+   * @param map sorted map storage
+   * @param keyPtr list key pointer
+   * @param keySize list key size
+   * @param expireAt absolute expiration time in ms (0 - no expire)
+   * @param opts mutation options (NX, XX, GT, LT)
+   * @return true if expiration time was set, false - list does not exist or condition not met
+   */
+  public static boolean SETEXPIRE(
+      BigSortedMap map, long keyPtr, int keySize, long expireAt, MutationOptions opts) {
+    Key key = getKey(keyPtr, keySize);
+    try {
+      KeysLocker.writeLock(key);
+      int kSize = buildKey(keyPtr, keySize);
+      StringSetExpire expire = listSetexpire.get();
+      expire.reset();
+      expire.setKeyAddress(keyArena.get());
+      expire.setKeySize(kSize);
+      expire.setExpire(expireAt);
+      expire.setMutationOptions(opts);
+      return map.execute(expire);
+    } finally {
+      KeysLocker.writeUnlock(key);
+    }
+  }
+
   /**
    * THREAD-SAFE Returns the length of the list stored at key. If key does not exist, it is
    * interpreted as an empty list and 0 is returned. An error is returned when the value stored at
@@ -1033,7 +1114,7 @@ public class Lists {
       long kPtr = keyArena.get();
       long valueBuf = valueArena.get();
       int valueBufSize = valueArenaSize.get();
-      long size = map.get(kPtr, kSize, valueBuf, valueBufSize, 0);
+      long size = map.getForUpdate(kPtr, kSize, valueBuf, valueBufSize);
       if (size < 0) {
         return -1; // Key does not exist
       }
@@ -1062,7 +1143,7 @@ public class Lists {
         UnsafeAccess.putLong(valueBuf + Utils.SIZEOF_INT, nextSegmentPtr);
       }
       // Update list element number and first-last segments
-      map.put(kPtr, kSize, valueBuf, Utils.SIZEOF_INT + 2 * Utils.SIZEOF_LONG, 0);
+      map.put(kPtr, kSize, valueBuf, Utils.SIZEOF_INT + 2 * Utils.SIZEOF_LONG, -1);
       // Should we delete list if it is empty now?
       if (numElements == 0) {
         DELETE(map, keyPtr, keySize);
@@ -1197,7 +1278,7 @@ public class Lists {
       long valueBuf = valueArena.get();
       int valueBufSize = valueArenaSize.get();
       Segment s = segment.get();
-      long size = map.get(kPtr, kSize, valueBuf, valueBufSize, 0);
+      long size = map.getForUpdate(kPtr, kSize, valueBuf, valueBufSize);
       boolean exists = true;
       if (size < 0) {
         exists = false;
@@ -1227,7 +1308,7 @@ public class Lists {
       n += numberToPush;
       UnsafeAccess.putInt(valueBuf, n);
       // Update list
-      map.put(kPtr, kSize, valueBuf, Utils.SIZEOF_INT + 2 * Utils.SIZEOF_LONG, 0);
+      map.put(kPtr, kSize, valueBuf, Utils.SIZEOF_INT + 2 * Utils.SIZEOF_LONG, -1);
       // Now we have first segment
       return n;
     } finally {
@@ -1271,7 +1352,7 @@ public class Lists {
       long valueBuf = valueArena.get();
       int valueBufSize = valueArenaSize.get();
       Segment s = segment.get();
-      long size = map.get(kPtr, kSize, valueBuf, valueBufSize, 0);
+      long size = map.getForUpdate(kPtr, kSize, valueBuf, valueBufSize);
       if (size < 0) {
         return -1;
       } else {
@@ -1299,7 +1380,7 @@ public class Lists {
       n += numberToPush;
       UnsafeAccess.putInt(valueBuf, n);
       // Update list
-      map.put(kPtr, kSize, valueBuf, Utils.SIZEOF_INT + 2 * Utils.SIZEOF_LONG, 0);
+      map.put(kPtr, kSize, valueBuf, Utils.SIZEOF_INT + 2 * Utils.SIZEOF_LONG, -1);
       // Now we have first segment
       return n;
     } finally {
@@ -1308,9 +1389,12 @@ public class Lists {
   }
 
   private static Segment firstSegment(
-      BigSortedMap map, long kPtr, int kSize, long valueBuf, int valueBufSize) {
+      BigSortedMap map, long kPtr, int kSize, long valueBuf, int valueBufSize, boolean forUpdate) {
     Segment s = segment.get();
-    long size = map.get(kPtr, kSize, valueBuf, valueBufSize, 0);
+    long size =
+        forUpdate
+            ? map.getForUpdate(kPtr, kSize, valueBuf, valueBufSize)
+            : map.get(kPtr, kSize, valueBuf, valueBufSize, 0);
     if (size < 0) {
       return null;
     } else {
@@ -1324,9 +1408,12 @@ public class Lists {
   }
 
   private static Segment lastSegment(
-      BigSortedMap map, long kPtr, int kSize, long valueBuf, int valueBufSize) {
+      BigSortedMap map, long kPtr, int kSize, long valueBuf, int valueBufSize, boolean forUpdate) {
     Segment s = segment.get();
-    long size = map.get(kPtr, kSize, valueBuf, valueBufSize, 0);
+    long size =
+        forUpdate
+            ? map.getForUpdate(kPtr, kSize, valueBuf, valueBufSize)
+            : map.get(kPtr, kSize, valueBuf, valueBufSize, 0);
     if (size < 0) {
       return null;
     } else {
@@ -1422,7 +1509,7 @@ public class Lists {
         return 0;
       }
       // TODO optimize (what for?)
-      Segment s = firstSegment(map, kPtr, kSize, valueBuf, valueBufSize);
+      Segment s = firstSegment(map, kPtr, kSize, valueBuf, valueBufSize, false);
       if (s == null) {
         // Empty list?
         return -1;
@@ -1500,8 +1587,8 @@ public class Lists {
       int valueBufSize = valueArenaSize.get();
       Segment s =
           reverse
-              ? lastSegment(map, kPtr, kSize, valueBuf, valueBufSize)
-              : firstSegment(map, kPtr, kSize, valueBuf, valueBufSize);
+              ? lastSegment(map, kPtr, kSize, valueBuf, valueBufSize, true)
+              : firstSegment(map, kPtr, kSize, valueBuf, valueBufSize, true);
 
       // Now valueBuf contains list's Value= NUMBER ELEMENTS, FIRST SEGMENT ADDRESS, LAST SEGMENT
       // ADDRESS
@@ -1653,7 +1740,7 @@ public class Lists {
       long kPtr = keyArena.get();
       long valueBuf = valueArena.get();
       int valueBufSize = valueArenaSize.get();
-      Segment s = firstSegment(map, kPtr, kSize, valueBuf, valueBufSize);
+      Segment s = firstSegment(map, kPtr, kSize, valueBuf, valueBufSize, true);
       // valueBuf contains list's header now
       if (s == null) {
         return -1;
@@ -1701,7 +1788,7 @@ public class Lists {
       }
 
       if (needUpdate) {
-        map.put(kPtr, kSize, valueBuf, Utils.SIZEOF_INT + Utils.SIZEOF_LONG + Utils.SIZEOF_LONG, 0);
+        map.put(kPtr, kSize, valueBuf, Utils.SIZEOF_INT + 2 * Utils.SIZEOF_LONG, -1);
       }
       // Number of elements in this list
       return UnsafeAccess.toInt(valueBuf);
@@ -1765,7 +1852,7 @@ public class Lists {
       long kPtr = keyArena.get();
       long valueBuf = valueArena.get();
       int valueBufSize = valueArenaSize.get();
-      long size = map.get(kPtr, kSize, valueBuf, valueBufSize, 0);
+      long size = map.getForUpdate(kPtr, kSize, valueBuf, valueBufSize);
       if (size < 0) return -1; // Key does not exist
       // Last segment pointer
       long ptr = UnsafeAccess.toLong(valueBuf + Utils.SIZEOF_INT + Utils.SIZEOF_LONG);
@@ -1798,7 +1885,7 @@ public class Lists {
       }
 
       // Update list element number and first-last segment
-      map.put(kPtr, kSize, valueBuf, Utils.SIZEOF_INT + 2 * Utils.SIZEOF_LONG, 0);
+      map.put(kPtr, kSize, valueBuf, Utils.SIZEOF_INT + 2 * Utils.SIZEOF_LONG, -1);
       return elSize;
     } finally {
       KeysLocker.writeUnlock(key);
@@ -1839,7 +1926,7 @@ public class Lists {
       long valueBuf = valueArena.get();
       int valueBufSize = valueArenaSize.get();
       Segment s = segment.get();
-      long size = map.get(kPtr, kSize, valueBuf, valueBufSize, 0);
+      long size = map.getForUpdate(kPtr, kSize, valueBuf, valueBufSize);
       boolean exists = true;
       if (size < 0) {
         exists = false;
@@ -1873,7 +1960,7 @@ public class Lists {
       n += numberToPush;
       UnsafeAccess.putInt(valueBuf, n);
       // Update list
-      map.put(kPtr, kSize, valueBuf, Utils.SIZEOF_INT + 2 * Utils.SIZEOF_LONG, 0);
+      map.put(kPtr, kSize, valueBuf, Utils.SIZEOF_INT + 2 * Utils.SIZEOF_LONG, -1);
       // Now we have first segment
       return n;
     } finally {
@@ -1911,7 +1998,7 @@ public class Lists {
       long valueBuf = valueArena.get();
       int valueBufSize = valueArenaSize.get();
       Segment s = segment.get();
-      long size = map.get(kPtr, kSize, valueBuf, valueBufSize, 0);
+      long size = map.getForUpdate(kPtr, kSize, valueBuf, valueBufSize);
       if (size < 0) {
         return -1;
       } else {
@@ -1941,7 +2028,7 @@ public class Lists {
       n += numberToPush;
       UnsafeAccess.putInt(valueBuf, n);
       // Update list
-      map.put(kPtr, kSize, valueBuf, Utils.SIZEOF_INT + 2 * Utils.SIZEOF_LONG, 0);
+      map.put(kPtr, kSize, valueBuf, Utils.SIZEOF_INT + 2 * Utils.SIZEOF_LONG, -1);
       // Now we have first segment
       return n;
     } finally {
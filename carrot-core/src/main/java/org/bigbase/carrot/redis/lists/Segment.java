@@ -15,7 +15,8 @@ package org.bigbase.carrot.redis.lists;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.compression.CodecType;
@@ -1179,7 +1180,7 @@ public final class Segment {
    * @param buf byte buffer to use
    * @throws IOException
    */
-  void serialize(FileChannel fc, ByteBuffer buf) throws IOException {
+  void serialize(WritableByteChannel fc, ByteBuffer buf) throws IOException {
     int size = getSegmentSize(this.dataPtr);
     // Assumption buf.capacity is always > than segment size
     if (buf.capacity() - buf.position() < size) {
@@ -1237,7 +1238,7 @@ public final class Segment {
    * @param buf byte buffer to use
    * @return address of a segment
    */
-  static long deserialize(FileChannel fc, ByteBuffer buf) throws IOException {
+  static long deserialize(ReadableByteChannel fc, ByteBuffer buf) throws IOException {
 
     long avail = IOUtils.ensureAvailable(fc, buf, SEGMENT_OVERHEAD);
     if (avail < SEGMENT_OVERHEAD) {
@@ -15,15 +15,12 @@ package org.bigbase.carrot.redis.server;
 
 import static org.bigbase.carrot.redis.util.Commons.KEY_SIZE;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.redis.RedisConf;
 import org.bigbase.carrot.redis.util.DataType;
+import org.bigbase.carrot.storage.SnapshotManager;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
 
@@ -193,10 +190,7 @@ public class Server {
    * @return true on success, false -otherwise
    */
   public static boolean SAVE(BigSortedMap map) {
-    ensureBgSnapshot();
-    snapshotThread.workOn(map);
-    snapshotThread.waitUntilDone();
-    return true;
+    return SnapshotManager.getInstance().takeSnapshot(map);
   }
 
   /**
@@ -212,84 +206,13 @@ public class Server {
    * subcommand. History >= 3.2.2: Added the SCHEDULE option.
    *
    * @param map sorted map storage
-   */
-  static class SnapshotThread extends Thread {
-
-    List<BigSortedMap> schedules =
-        (List<BigSortedMap>) Collections.synchronizedList(new ArrayList<BigSortedMap>());
-
-    public SnapshotThread() {
-      super("carrot-snapshot-thread");
-    }
-
-    public void workOn(BigSortedMap map) {
-      schedules.add(map);
-    }
-
-    public void run() {
-      while (true) {
-        waitForWork();
-        /*DEBUG*/
-        log.debug("[{}] BGSAVE started", Thread.currentThread().getName());
-        BigSortedMap map = schedules.get(0);
-        map.snapshot();
-        schedules.remove(0);
-      }
-    }
-
-    private void waitForWork() {
-      while (schedules.isEmpty()) {
-        try {
-          Thread.sleep(10);
-        } catch (InterruptedException e) {
-        }
-      }
-    }
-
-    boolean isWorking() {
-      return !schedules.isEmpty();
-    }
-
-    void waitUntilDone() {
-      while (!schedules.isEmpty()) {
-        try {
-          Thread.sleep(10);
-        } catch (InterruptedException e) {
-        }
-      }
-    }
-  }
-
-  static SnapshotThread snapshotThread;
-
-  /**
-   * BGSAVE command
-   *
-   * @param map sorted map storage
    * @param schedule schedule if true
    * @return false - error, true - ok
    */
   public static boolean BGSAVE(BigSortedMap map, boolean schedule) {
-
-    ensureBgSnapshot();
-    if (snapshotThread.isWorking() && !schedule) {
-      return false;
-    }
-    snapshotThread.workOn(map);
-    // do not wait
-    return true;
+    return SnapshotManager.getInstance().takeSnapshot(map, schedule);
   }
 
-  static void ensureBgSnapshot() {
-    if (snapshotThread == null) {
-      synchronized (Server.class) {
-        if (snapshotThread == null) {
-          snapshotThread = new SnapshotThread();
-          snapshotThread.start();
-        }
-      }
-    }
-  }
   /**
    * Available since 1.0.0. Return the UNIX TIME of the last DB save executed with success. A client
    * may check if a BGSAVE command succeeded reading the LASTSAVE value, then issuing a BGSAVE
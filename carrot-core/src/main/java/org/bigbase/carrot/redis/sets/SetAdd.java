@@ -293,11 +293,11 @@ public class SetAdd extends Operation {
    */
   private void insertElement(
       long valueAddress, int valueSize, long addr, long elementPtr, int elementSize) {
-    // increment number of elements in this value
-    addNumElements(valueAddress, 1);
     long ptr = Sets.valueArena.get();
     // Copy everything before addr
     UnsafeAccess.copy(valueAddress, ptr, addr - valueAddress);
+    // increment number of elements in the new value, stored one is not changed if update fails
+    addNumElements(ptr, 1);
     // Encode element size
     ptr += addr - valueAddress;
     int elemSizeSize = Utils.writeUVInt(ptr, elementSize);
@@ -549,6 +549,33 @@ public class SetScanner extends Scanner {
     return this.pos;
   }
 
+  /**
+   * Advances scanner (forward only) to the first member, which is greater or equal to a given one,
+   * inside the current value. Scanner must be positioned on a valid member.
+   *
+   * @param ptr member address
+   * @param size member size
+   * @return true if such member was found in the current value, false - scanner stays on the last
+   *     member of the current value
+   */
+  public boolean skipLocalTo(long ptr, int size) {
+    if (reverse) {
+      throw new UnsupportedOperationException("skipLocalTo");
+    }
+    while (Utils.compareTo(this.memberAddress, this.memberSize, ptr, size) < 0) {
+      int next = this.offset + this.memberSize + Utils.sizeUVInt(this.memberSize);
+      if (next >= this.valueSize) {
+        return false;
+      }
+      this.offset = next;
+      this.memberSize = Utils.readUVInt(valueAddress + offset);
+      this.memberAddress = valueAddress + offset + Utils.sizeUVInt(this.memberSize);
+      this.position++;
+      this.pos++;
+    }
+    return true;
+  }
+
   @Override
   public void close() throws IOException {
     mapScanner.close(disposeKeysOnClose);
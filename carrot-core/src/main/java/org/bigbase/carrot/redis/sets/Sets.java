@@ -32,6 +32,7 @@ import org.apache.logging.log4j.Logger;
 import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.BigSortedMapScanner;
 import org.bigbase.carrot.DataBlock;
+import org.bigbase.carrot.redis.util.CollectionHeader;
 import org.bigbase.carrot.redis.util.Commons;
 import org.bigbase.carrot.redis.util.DataType;
 import org.bigbase.carrot.util.Key;
@@ -193,9 +194,12 @@ public class Sets {
     Key k = getKey(keyPtr, keySize);
     try {
       KeysLocker.writeLock(k);
-
+      if (!CollectionHeader.reserve(map, DataType.SET, keyPtr, keySize)) {
+        return 0;
+      }
       int toAdd = elemPtrs.length;
       int count = 0;
+      long bytes = 0;
       for (int i = 0; i < toAdd; i++) {
         int kSize = buildKey(keyPtr, keySize, elemPtrs[i], elemSizes[i]);
         SetAdd add = setAdd.get();
@@ -205,8 +209,10 @@ public class Sets {
         // version?
         if (map.execute(add)) {
           count++;
+          bytes += serializedSize(elemSizes[i]);
         }
       }
+      CollectionHeader.update(map, DataType.SET, keyPtr, keySize, count, bytes);
       return count;
     } finally {
       KeysLocker.writeUnlock(k);
@@ -220,8 +226,12 @@ public class Sets {
       if (!keyExists(map, keyPtr, keySize)) {
         return SADD_NEW(map, keyPtr, keySize, members);
       }
+      if (!CollectionHeader.reserve(map, DataType.SET, keyPtr, keySize)) {
+        return 0;
+      }
       int toAdd = members.size();
       int count = 0;
+      long bytes = 0;
       for (int i = 0; i < toAdd; i++) {
         Key mem = members.get(i);
         int kSize = buildKey(keyPtr, keySize, mem.address, mem.length);
@@ -232,8 +242,10 @@ public class Sets {
         // version?
         if (map.execute(add)) {
           count++;
+          bytes += serializedSize(mem.length);
         }
       }
+      CollectionHeader.update(map, DataType.SET, keyPtr, keySize, count, bytes);
       return count;
     } finally {
       KeysLocker.writeUnlock(k);
@@ -252,8 +264,12 @@ public class Sets {
   public static int SADD_NEW(BigSortedMap map, long keyPtr, int keySize, List<Value> members) {
     Key k = getKey(keyPtr, keySize);
     int count = 0;
+    long bytes = 0;
     try {
       KeysLocker.writeLock(k);
+      if (!CollectionHeader.reserve(map, DataType.SET, keyPtr, keySize)) {
+        return 0;
+      }
       Value first = new Value(ZERO, SIZEOF_BYTE);
       // Sort all the keys
       Utils.sortKeys(members);
@@ -279,8 +295,10 @@ public class Sets {
           break;
         }
         count += num;
+        bytes += valueSize - NUM_ELEM_SIZE;
         prev = value;
       }
+      CollectionHeader.set(map, DataType.SET, keyPtr, keySize, count, bytes);
       return count;
     } finally {
       KeysLocker.writeUnlock(k);
@@ -357,8 +375,12 @@ public class Sets {
       BigSortedMap map, long keyPtr, int keySize, List<ValueScore> members) {
     Key k = getKey(keyPtr, keySize);
     int count = 0;
+    long bytes = 0;
     try {
       KeysLocker.writeLock(k);
+      if (!CollectionHeader.reserve(map, DataType.SET, keyPtr, keySize)) {
+        return 0;
+      }
       ValueScore first = new ValueScore(ZERO, SIZEOF_BYTE, 0);
       // Sort all the keys will be done by caller
       // Utils.sortKeys(members);
@@ -384,8 +406,10 @@ public class Sets {
           break;
         }
         count += num;
+        bytes += valueSize - NUM_ELEM_SIZE;
         prev = value;
       }
+      CollectionHeader.set(map, DataType.SET, keyPtr, keySize, count, bytes);
       return count;
     } finally {
       KeysLocker.writeUnlock(k);
@@ -482,7 +506,9 @@ public class Sets {
     Key k = getKey(keyPtr, keySize);
     try {
       if (lock) KeysLocker.writeLock(k);
-
+      if (!CollectionHeader.reserve(map, DataType.SET, keyPtr, keySize)) {
+        return 0;
+      }
       int count = 0;
       int kSize = buildKey(keyPtr, keySize, elemPtr, elemSize);
       SetAdd add = setAdd.get();
@@ -493,6 +519,8 @@ public class Sets {
       if (map.execute(add)) {
         count++;
       }
+      CollectionHeader.update(
+          map, DataType.SET, keyPtr, keySize, count, count * serializedSize(elemSize));
       return count;
     } finally {
       if (lock) KeysLocker.writeUnlock(k);
@@ -542,9 +570,45 @@ public class Sets {
     return result;
   }
 
+  /**
+   * For testing only
+   *
+   * @param map sorted map storage
+   * @param key set's key
+   * @param start start member (inclusive), null - from the beginning
+   * @param stop stop member (exclusive), null - till the end
+   * @return number of elements in a range
+   */
+  public static long SCOUNT(BigSortedMap map, String key, String start, String stop) {
+    long keyPtr = UnsafeAccess.allocAndCopy(key, 0, key.length());
+    int keySize = key.length();
+    long startPtr = start == null ? 0 : UnsafeAccess.allocAndCopy(start, 0, start.length());
+    int startSize = start == null ? 0 : start.length();
+    long stopPtr = stop == null ? 0 : UnsafeAccess.allocAndCopy(stop, 0, stop.length());
+    int stopSize = stop == null ? 0 : stop.length();
+    long result = SCOUNT(map, keyPtr, keySize, startPtr, startSize, stopPtr, stopSize);
+    UnsafeAccess.free(keyPtr);
+    if (startPtr > 0) {
+      UnsafeAccess.free(startPtr);
+    }
+    if (stopPtr > 0) {
+      UnsafeAccess.free(stopPtr);
+    }
+    return result;
+  }
+
   /**
    * Not in Redis API Calculates number of elements between start member (inclusive) and stop member
    * (exclusive). When both": start and stop member are nulls this call is equivalent to SCARD
+   *
+   * @param map sorted map storage
+   * @param keyPtr set key address
+   * @param keySize set key size
+   * @param startPtr start member address (0 - from the beginning)
+   * @param startSize start member size
+   * @param stopPtr stop member address (0 - till the end)
+   * @param stopSize stop member size
+   * @return number of elements in a range
    */
   public static long SCOUNT(
       BigSortedMap map,
@@ -554,8 +618,194 @@ public class Sets {
       int startSize,
       long stopPtr,
       int stopSize) {
-    return 0;
+    return SCOUNT(map, keyPtr, keySize, startPtr, startSize, stopPtr, stopSize, true);
+  }
+
+  /**
+   * Not in Redis API Calculates number of elements between start member (inclusive) and stop member
+   * (exclusive). Scan starts at the K-V chunk, which contains start member, and stops at the one,
+   * which contains stop member. Chunks in between are accounted by their element counters, only
+   * the boundary chunks are decoded, so the call is chunk (not element) granular.
+   *
+   * @param map sorted map storage
+   * @param keyPtr set key address
+   * @param keySize set key size
+   * @param startPtr start member address (0 - from the beginning)
+   * @param startSize start member size
+   * @param stopPtr stop member address (0 - till the end)
+   * @param stopSize stop member size
+   * @param lock lock if true
+   * @return number of elements in a range
+   */
+  public static long SCOUNT(
+      BigSortedMap map,
+      long keyPtr,
+      int keySize,
+      long startPtr,
+      int startSize,
+      long stopPtr,
+      int stopSize,
+      boolean lock) {
+    Key k = getKey(keyPtr, keySize);
+    try {
+      if (lock) {
+        KeysLocker.readLock(k);
+      }
+      return count(map, keyPtr, keySize, startPtr, startSize, stopPtr, stopSize);
+    } finally {
+      if (lock) {
+        KeysLocker.readUnlock(k);
+      }
+    }
+  }
+
+  /**
+   * Counts elements between start (inclusive) and stop (exclusive). Caller must hold the key's
+   * lock.
+   *
+   * @param map sorted map storage
+   * @param keyPtr set key address
+   * @param keySize set key size
+   * @param startPtr start member address (0 - from the beginning)
+   * @param startSize start member size
+   * @param stopPtr stop member address (0 - till the end)
+   * @param stopSize stop member size
+   * @return number of elements in a range
+   */
+  private static long count(
+      BigSortedMap map,
+      long keyPtr,
+      int keySize,
+      long startPtr,
+      int startSize,
+      long stopPtr,
+      int stopSize) {
+    int prefixSize = keySize + KEY_SIZE + SIZEOF_BYTE;
+    long startKeyPtr = 0, endKeyPtr = 0, startChunkPtr = 0, stopChunkPtr = 0;
+    int startChunkSize = 0, stopChunkSize = 0;
+    long total = 0;
+    BigSortedMapScanner scanner = null;
+    try {
+      startKeyPtr =
+          UnsafeAccess.malloc(prefixSize + Math.max(Math.max(startSize, stopSize), 1));
+      if (stopPtr > 0) {
+        stopChunkSize = floorChunk(map, keyPtr, keySize, stopPtr, stopSize, startKeyPtr);
+        if (stopChunkSize < 0) {
+          // All elements are greater than stop member
+          return 0;
+        }
+        stopChunkPtr = UnsafeAccess.allocAndCopy(valueArena.get(), stopChunkSize);
+      }
+      if (startPtr > 0) {
+        startChunkSize = floorChunk(map, keyPtr, keySize, startPtr, startSize, startKeyPtr);
+        if (startChunkSize > 0) {
+          startChunkPtr = UnsafeAccess.allocAndCopy(valueArena.get(), startChunkSize);
+        }
+        // otherwise all elements are greater than start member
+      }
+      int kSize = buildKey(keyPtr, keySize, ZERO, 1, startKeyPtr);
+      int endKeySize = kSize - 1;
+      endKeyPtr = Utils.prefixKeyEnd(startKeyPtr, endKeySize);
+      if (endKeyPtr == 0) {
+        endKeySize = 0;
+      }
+      if (startChunkPtr > 0) {
+        scanner = map.getScanner(startChunkPtr, startChunkSize, endKeyPtr, endKeySize);
+      } else {
+        scanner = map.getScanner(startKeyPtr, kSize, endKeyPtr, endKeySize);
+      }
+      if (scanner == null) {
+        return 0;
+      }
+      boolean first = startChunkPtr > 0;
+      while (scanner.hasNext()) {
+        long valuePtr = scanner.valueAddress();
+        boolean last =
+            stopChunkPtr > 0
+                && Utils.compareTo(
+                        scanner.keyAddress(), scanner.keySize(), stopChunkPtr, stopChunkSize)
+                    >= 0;
+        if (!first && !last) {
+          total += numElementsInValue(valuePtr);
+          scanner.next();
+          continue;
+        }
+        // Boundary chunk
+        int valueSize = scanner.valueSize();
+        int off = NUM_ELEM_SIZE;
+        while (off < valueSize) {
+          int eSize = Utils.readUVInt(valuePtr + off);
+          int eSizeSize = Utils.sizeUVInt(eSize);
+          long ePtr = valuePtr + off + eSizeSize;
+          off += eSize + eSizeSize;
+          if (first && Utils.compareTo(ePtr, eSize, startPtr, startSize) < 0) {
+            continue;
+          }
+          if (last && Utils.compareTo(ePtr, eSize, stopPtr, stopSize) >= 0) {
+            break;
+          }
+          total++;
+        }
+        if (last) {
+          break;
+        }
+        first = false;
+        scanner.next();
+      }
+    } catch (IOException e) {
+      // should never be thrown
+    } finally {
+      if (scanner != null) {
+        try {
+          scanner.close();
+        } catch (IOException e) {
+        }
+      }
+      if (startKeyPtr > 0) {
+        UnsafeAccess.free(startKeyPtr);
+      }
+      if (endKeyPtr > 0) {
+        UnsafeAccess.free(endKeyPtr);
+      }
+      if (startChunkPtr > 0) {
+        UnsafeAccess.free(startChunkPtr);
+      }
+      if (stopChunkPtr > 0) {
+        UnsafeAccess.free(stopChunkPtr);
+      }
+    }
+    return total;
   }
+
+  /**
+   * Finds K-V chunk of a set, which contains a given element (if it exists). Chunk's key is
+   * returned in the value arena.
+   *
+   * @param map sorted map storage
+   * @param keyPtr set key address
+   * @param keySize set key size
+   * @param elemPtr element address
+   * @param elemSize element size
+   * @param buf buffer to build a search key in
+   * @return chunk's key size or -1, if all set's elements are greater than a given one
+   */
+  private static int floorChunk(
+      BigSortedMap map, long keyPtr, int keySize, long elemPtr, int elemSize, long buf) {
+    int prefixSize = keySize + KEY_SIZE + SIZEOF_BYTE;
+    int kSize = buildKey(keyPtr, keySize, elemPtr, elemSize, buf);
+    long size = map.floorKey(buf, kSize, valueArena.get(), valueArenaSize.get());
+    if (size > valueArenaSize.get()) {
+      checkValueArena((int) size);
+      size = map.floorKey(buf, kSize, valueArena.get(), valueArenaSize.get());
+    }
+    // Set's header record key is the prefix itself
+    if (size <= prefixSize
+        || Utils.compareTo(buf, prefixSize, valueArena.get(), prefixSize) != 0) {
+      return -1;
+    }
+    return (int) size;
+  }
+
   /**
    * Available since 1.0.0. Time complexity: O(N) where N is the total number of elements in all
    * given sets. Returns the members of the set resulting from the difference between the first set
@@ -568,11 +818,18 @@ public class Sets {
    * @param keySizes array of key sizes
    * @param buffer buffer for result
    * @param bufferSize size of the buffer
-   * @return total serialized size of an sets intersection
+   * @return total serialized size of the result, if greater than bufferSize, the call must be
+   *     retried with the appropriately sized buffer
    */
   public static long SDIFF(
       BigSortedMap map, long[] keyPtrs, int[] keySizes, long buffer, int bufferSize) {
-    return 0;
+    List<Key> keys = toKeyList(keyPtrs, keySizes, 0);
+    try {
+      KeysLocker.readLockAllKeys(keys);
+      return sdiff(map, keyPtrs, keySizes, 0, buffer, bufferSize);
+    } finally {
+      KeysLocker.readUnlockAllKeys(keys);
+    }
   }
 
   /**
@@ -581,12 +838,12 @@ public class Sets {
    * number of elements in the resulting set.
    *
    * @param map sorted map storage
-   * @param keyPtrs array of key addresses
+   * @param keyPtrs array of key addresses (first key is the destination)
    * @param keySizes array of key sizes
    * @return the number of elements in the resulting set.
    */
   public static long SDIFFSTORE(BigSortedMap map, long[] keyPtrs, int[] keySizes) {
-    return 0;
+    return store(map, keyPtrs, keySizes, OP_DIFF);
   }
 
   /**
@@ -603,11 +860,18 @@ public class Sets {
    * @param keySizes array of key sizes
    * @param buffer buffer for result
    * @param bufferSize size of the buffer
-   * @return total serialized size of the result
+   * @return total serialized size of the result, if greater than bufferSize, the call must be
+   *     retried with the appropriately sized buffer
    */
   public static long SINTER(
       BigSortedMap map, long[] keyPtrs, int[] keySizes, long buffer, int bufferSize) {
-    return 0;
+    List<Key> keys = toKeyList(keyPtrs, keySizes, 0);
+    try {
+      KeysLocker.readLockAllKeys(keys);
+      return sinter(map, keyPtrs, keySizes, 0, buffer, bufferSize);
+    } finally {
+      KeysLocker.readUnlockAllKeys(keys);
+    }
   }
 
   /**
@@ -621,7 +885,7 @@ public class Sets {
    * @return the number of elements in the resulting set.
    */
   public static long SINTERSTORE(BigSortedMap map, long[] keyPtrs, int[] keySizes) {
-    return 0;
+    return store(map, keyPtrs, keySizes, OP_INTER);
   }
 
   /**
@@ -635,11 +899,18 @@ public class Sets {
    * @param keySizes array of key sizes
    * @param buffer buffer for result
    * @param bufferSize size of the buffer
-   * @return total serialized size of the result
+   * @return total serialized size of the result, if greater than bufferSize, the call must be
+   *     retried with the appropriately sized buffer
    */
   public static long SUNION(
       BigSortedMap map, long[] keyPtrs, int[] keySizes, long buffer, int bufferSize) {
-    return 0;
+    List<Key> keys = toKeyList(keyPtrs, keySizes, 0);
+    try {
+      KeysLocker.readLockAllKeys(keys);
+      return sunion(map, keyPtrs, keySizes, 0, buffer, bufferSize);
+    } finally {
+      KeysLocker.readUnlockAllKeys(keys);
+    }
   }
 
   /**
@@ -653,7 +924,501 @@ public class Sets {
    * @return the number of elements in the resulting set.
    */
   public static long SUNIONSTORE(BigSortedMap map, long[] keyPtrs, int[] keySizes) {
-    return 0;
+    return store(map, keyPtrs, keySizes, OP_UNION);
+  }
+
+  /*
+   * Multi-set operations
+   */
+  private static final int OP_INTER = 0;
+  private static final int OP_UNION = 1;
+  private static final int OP_DIFF = 2;
+
+  /*
+   * Initial size of a buffer for STORE operations
+   */
+  private static final int STORE_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Builds list of keys for group locking
+   *
+   * @param keyPtrs array of key addresses
+   * @param keySizes array of key sizes
+   * @param from index of the first key
+   * @return list of keys
+   */
+  private static List<Key> toKeyList(long[] keyPtrs, int[] keySizes, int from) {
+    List<Key> keys = new ArrayList<Key>(keyPtrs.length - from);
+    for (int i = from; i < keyPtrs.length; i++) {
+      keys.add(new Key(keyPtrs[i], keySizes[i]));
+    }
+    return keys;
+  }
+
+  /**
+   * Executes multi-set operation and stores result in the destination (first key). Members are
+   * collected into a serialized buffer first, because source scanners keep index blocks read locked
+   * and destination can be one of the sources. Then destination is replaced with a bulk-loaded set.
+   *
+   * @param map sorted map storage
+   * @param keyPtrs array of key addresses (first key is the destination)
+   * @param keySizes array of key sizes
+   * @param op operation
+   * @return number of elements in the resulting set
+   */
+  private static long store(BigSortedMap map, long[] keyPtrs, int[] keySizes, int op) {
+    List<Key> keys = toKeyList(keyPtrs, keySizes, 0);
+    int bufferSize = STORE_BUFFER_SIZE;
+    long buffer = UnsafeAccess.malloc(bufferSize);
+    try {
+      KeysLocker.writeLockAllKeys(keys);
+      long size;
+      while ((size = execute(map, keyPtrs, keySizes, 1, buffer, bufferSize, op)) > bufferSize) {
+        bufferSize = (int) size;
+        buffer = UnsafeAccess.realloc(buffer, bufferSize);
+      }
+      DELETE(map, keyPtrs[0], keySizes[0], false);
+      return load(map, keyPtrs[0], keySizes[0], buffer);
+    } finally {
+      KeysLocker.writeUnlockAllKeys(keys);
+      UnsafeAccess.free(buffer);
+    }
+  }
+
+  private static long execute(
+      BigSortedMap map,
+      long[] keyPtrs,
+      int[] keySizes,
+      int from,
+      long buffer,
+      int bufferSize,
+      int op) {
+    switch (op) {
+      case OP_INTER:
+        return sinter(map, keyPtrs, keySizes, from, buffer, bufferSize);
+      case OP_UNION:
+        return sunion(map, keyPtrs, keySizes, from, buffer, bufferSize);
+      default:
+        return sdiff(map, keyPtrs, keySizes, from, buffer, bufferSize);
+    }
+  }
+
+  /**
+   * Bulk loads members into an empty set. Members are packed into values of the maximum size and
+   * written directly, serialized member format is the same as in a set's value. Set must not exist
+   * and caller must hold the key's write lock.
+   *
+   * @param map sorted map storage
+   * @param keyPtr set key address
+   * @param keySize set key size
+   * @param buffer serialized sorted members: [NUMBER][SIZE,MEMBER]+ (as in SMEMBERS)
+   * @return number of members loaded
+   */
+  public static long load(BigSortedMap map, long keyPtr, int keySize, long buffer) {
+    if (!CollectionHeader.reserve(map, DataType.SET, keyPtr, keySize)) {
+      return 0;
+    }
+    int total = UnsafeAccess.toInt(buffer);
+    long ptr = buffer + Utils.SIZEOF_INT;
+    int loaded = 0;
+    long bytes = 0;
+    while (loaded < total) {
+      int mSize = Utils.readUVInt(ptr);
+      int mSizeSize = Utils.sizeUVInt(mSize);
+      // First K-V of a set has ZERO key suffix, others - their first member
+      int kSize =
+          loaded == 0
+              ? buildKey(keyPtr, keySize, ZERO, 1)
+              : buildKey(keyPtr, keySize, ptr + mSizeSize, mSize);
+      int maxValueSize = getMaxValueSize(kSize);
+      // Collect members for this value
+      int num = 0;
+      int size = NUM_ELEM_SIZE;
+      long end = ptr;
+      while (loaded + num < total) {
+        int add = mSize + mSizeSize;
+        if (num > 0 && size + add > maxValueSize) {
+          break;
+        }
+        size += add;
+        end += add;
+        num++;
+        if (loaded + num < total) {
+          mSize = Utils.readUVInt(end);
+          mSizeSize = Utils.sizeUVInt(mSize);
+        }
+      }
+      checkValueArena(size);
+      long valuePtr = valueArena.get();
+      UnsafeAccess.putShort(valuePtr, (short) num);
+      UnsafeAccess.copy(ptr, valuePtr + NUM_ELEM_SIZE, size - NUM_ELEM_SIZE);
+      if (!map.put(keyArena.get(), kSize, valuePtr, size, 0)) {
+        break;
+      }
+      loaded += num;
+      bytes += size - NUM_ELEM_SIZE;
+      ptr = end;
+    }
+    CollectionHeader.set(map, DataType.SET, keyPtr, keySize, loaded, bytes);
+    return loaded;
+  }
+
+  /**
+   * Opens safe (multiple scanners per thread) set scanner, positioned on the first member
+   *
+   * @param map sorted map storage
+   * @param keyPtr set key address
+   * @param keySize set key size
+   * @return scanner or null (set is empty or does not exist)
+   * @throws IOException
+   */
+  private static SetScanner openScanner(BigSortedMap map, long keyPtr, int keySize)
+      throws IOException {
+    SetScanner scanner = getScanner(map, keyPtr, keySize, true);
+    if (scanner != null && !scanner.hasNext()) {
+      scanner.close();
+      return null;
+    }
+    return scanner;
+  }
+
+  /**
+   * Advances scanner to the next member
+   *
+   * @param scanner set scanner
+   * @return scanner or null (no more members)
+   * @throws IOException
+   */
+  private static SetScanner advance(SetScanner scanner) throws IOException {
+    if (scanner.next() && scanner.hasNext()) {
+      return scanner;
+    }
+    scanner.close();
+    return null;
+  }
+
+  /**
+   * Galloping seek to the first member greater or equal to a given one: scan the rest of the
+   * current value, then the next value and only then reposition scanner with an index lookup.
+   *
+   * @param map sorted map storage
+   * @param keyPtr set key address
+   * @param keySize set key size
+   * @param scanner set scanner, positioned on a valid member
+   * @param ptr member address
+   * @param size member size
+   * @return scanner (can be a new instance) or null (no more members)
+   * @throws IOException
+   */
+  private static SetScanner seek(
+      BigSortedMap map, long keyPtr, int keySize, SetScanner scanner, long ptr, int size)
+      throws IOException {
+    if (scanner.skipLocalTo(ptr, size)) {
+      return scanner;
+    }
+    scanner = advance(scanner);
+    if (scanner == null || scanner.skipLocalTo(ptr, size)) {
+      return scanner;
+    }
+    scanner.close();
+    scanner = getScanner(map, keyPtr, keySize, ptr, size, 0, 0, true);
+    if (scanner != null && !scanner.hasNext()) {
+      scanner.close();
+      return null;
+    }
+    return scanner;
+  }
+
+  /**
+   * Writes current scanner's member to the output buffer (if it fits)
+   *
+   * @param scanner set scanner
+   * @param ptr current buffer address
+   * @param buffer buffer address
+   * @param bufferSize buffer size
+   * @return next buffer address
+   */
+  private static long write(SetScanner scanner, long ptr, long buffer, int bufferSize) {
+    int mSize = scanner.memberSize();
+    int mSizeSize = Utils.sizeUVInt(mSize);
+    if (ptr + mSize + mSizeSize <= buffer + bufferSize) {
+      Utils.writeUVInt(ptr, mSize);
+      UnsafeAccess.copy(scanner.memberAddress(), ptr + mSizeSize, mSize);
+      UnsafeAccess.putInt(buffer, UnsafeAccess.toInt(buffer) + 1);
+    }
+    return ptr + mSize + mSizeSize;
+  }
+
+  private static void closeAll(SetScanner[] scanners) {
+    for (SetScanner s : scanners) {
+      if (s == null) continue;
+      try {
+        s.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  private static int compare(SetScanner s1, SetScanner s2) {
+    return Utils.compareTo(s1.memberAddress(), s1.memberSize(), s2.memberAddress(), s2.memberSize());
+  }
+
+  /**
+   * Intersection of sets (leapfrog join): every scanner in turn gallops to the current candidate,
+   * so the sparsest set drives the merge and long runs of non-matching members are skipped by
+   * index lookups.
+   *
+   * @param map sorted map storage
+   * @param keyPtrs array of key addresses
+   * @param keySizes array of key sizes
+   * @param from index of the first source key
+   * @param buffer buffer for result
+   * @param bufferSize size of the buffer
+   * @return total serialized size of the result
+   */
+  private static long sinter(
+      BigSortedMap map, long[] keyPtrs, int[] keySizes, int from, long buffer, int bufferSize) {
+    int n = keyPtrs.length - from;
+    SetScanner[] scanners = new SetScanner[n];
+    long ptr = buffer + Utils.SIZEOF_INT;
+    UnsafeAccess.putInt(buffer, 0);
+    try {
+      for (int i = 0; i < n; i++) {
+        scanners[i] = openScanner(map, keyPtrs[from + i], keySizes[from + i]);
+        if (scanners[i] == null) {
+          return ptr - buffer;
+        }
+      }
+      // Scanner, which holds the current candidate
+      int cur = 0;
+      int matched = 1;
+      while (true) {
+        if (matched == n) {
+          ptr = write(scanners[cur], ptr, buffer, bufferSize);
+          scanners[cur] = advance(scanners[cur]);
+          if (scanners[cur] == null) {
+            break;
+          }
+          matched = 1;
+          continue;
+        }
+        int i = (cur + matched) % n;
+        SetScanner c = scanners[cur];
+        scanners[i] =
+            seek(
+                map,
+                keyPtrs[from + i],
+                keySizes[from + i],
+                scanners[i],
+                c.memberAddress(),
+                c.memberSize());
+        if (scanners[i] == null) {
+          break;
+        }
+        if (compare(scanners[i], c) == 0) {
+          matched++;
+        } else {
+          cur = i;
+          matched = 1;
+        }
+      }
+    } catch (IOException e) {
+      log.error("StackTrace: ", e);
+    } finally {
+      closeAll(scanners);
+    }
+    return ptr - buffer;
+  }
+
+  /**
+   * Union of sets (k-way merge)
+   *
+   * @param map sorted map storage
+   * @param keyPtrs array of key addresses
+   * @param keySizes array of key sizes
+   * @param from index of the first source key
+   * @param buffer buffer for result
+   * @param bufferSize size of the buffer
+   * @return total serialized size of the result
+   */
+  private static long sunion(
+      BigSortedMap map, long[] keyPtrs, int[] keySizes, int from, long buffer, int bufferSize) {
+    int n = keyPtrs.length - from;
+    SetScanner[] scanners = new SetScanner[n];
+    long ptr = buffer + Utils.SIZEOF_INT;
+    UnsafeAccess.putInt(buffer, 0);
+    try {
+      for (int i = 0; i < n; i++) {
+        scanners[i] = openScanner(map, keyPtrs[from + i], keySizes[from + i]);
+      }
+      while (true) {
+        int min = -1;
+        for (int i = 0; i < n; i++) {
+          if (scanners[i] != null && (min < 0 || compare(scanners[i], scanners[min]) < 0)) {
+            min = i;
+          }
+        }
+        if (min < 0) {
+          break;
+        }
+        ptr = write(scanners[min], ptr, buffer, bufferSize);
+        // Advance all duplicates first, minimum member belongs to scanners[min]
+        for (int i = min + 1; i < n; i++) {
+          if (scanners[i] != null && compare(scanners[i], scanners[min]) == 0) {
+            scanners[i] = advance(scanners[i]);
+          }
+        }
+        scanners[min] = advance(scanners[min]);
+      }
+    } catch (IOException e) {
+      log.error("StackTrace: ", e);
+    } finally {
+      closeAll(scanners);
+    }
+    return ptr - buffer;
+  }
+
+  /**
+   * Difference of the first set and all successive sets: other scanners gallop to the current
+   * member of the first one
+   *
+   * @param map sorted map storage
+   * @param keyPtrs array of key addresses
+   * @param keySizes array of key sizes
+   * @param from index of the first source key
+   * @param buffer buffer for result
+   * @param bufferSize size of the buffer
+   * @return total serialized size of the result
+   */
+  private static long sdiff(
+      BigSortedMap map, long[] keyPtrs, int[] keySizes, int from, long buffer, int bufferSize) {
+    int n = keyPtrs.length - from;
+    SetScanner[] scanners = new SetScanner[n];
+    long ptr = buffer + Utils.SIZEOF_INT;
+    UnsafeAccess.putInt(buffer, 0);
+    try {
+      for (int i = 0; i < n; i++) {
+        scanners[i] = openScanner(map, keyPtrs[from + i], keySizes[from + i]);
+      }
+      SetScanner first = scanners[0];
+      while (first != null) {
+        boolean found = false;
+        for (int i = 1; i < n && !found; i++) {
+          if (scanners[i] == null) {
+            continue;
+          }
+          scanners[i] =
+              seek(
+                  map,
+                  keyPtrs[from + i],
+                  keySizes[from + i],
+                  scanners[i],
+                  first.memberAddress(),
+                  first.memberSize());
+          found = scanners[i] != null && compare(scanners[i], first) == 0;
+        }
+        if (!found) {
+          ptr = write(first, ptr, buffer, bufferSize);
+        }
+        first = scanners[0] = advance(first);
+      }
+    } catch (IOException e) {
+      log.error("StackTrace: ", e);
+    } finally {
+      closeAll(scanners);
+    }
+    return ptr - buffer;
+  }
+
+  /**
+   * For testing only
+   *
+   * @param map sorted map storage
+   * @param keys set keys
+   * @param bufferSize buffer size
+   * @param op operation
+   * @return list of members (can be incomplete if buffer is too small)
+   */
+  private static List<String> execute(BigSortedMap map, String[] keys, int bufferSize, int op) {
+    long[] ptrs = new long[keys.length];
+    int[] sizes = new int[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      ptrs[i] = UnsafeAccess.allocAndCopy(keys[i], 0, keys[i].length());
+      sizes[i] = keys[i].length();
+    }
+    long buffer = UnsafeAccess.malloc(bufferSize);
+    switch (op) {
+      case OP_INTER:
+        SINTER(map, ptrs, sizes, buffer, bufferSize);
+        break;
+      case OP_UNION:
+        SUNION(map, ptrs, sizes, buffer, bufferSize);
+        break;
+      default:
+        SDIFF(map, ptrs, sizes, buffer, bufferSize);
+    }
+    List<String> list = new ArrayList<String>();
+    int total = UnsafeAccess.toInt(buffer);
+    long ptr = buffer + Utils.SIZEOF_INT;
+    for (int i = 0; i < total; i++) {
+      int size = Utils.readUVInt(ptr);
+      int sizeSize = Utils.sizeUVInt(size);
+      list.add(Utils.toString(ptr + sizeSize, size));
+      ptr += size + sizeSize;
+    }
+    UnsafeAccess.free(buffer);
+    Arrays.stream(ptrs).forEach(x -> UnsafeAccess.free(x));
+    return list;
+  }
+
+  /**
+   * For testing only
+   *
+   * @param map sorted map storage
+   * @param keys set keys (first key is the destination)
+   * @param op operation
+   * @return number of elements in the resulting set
+   */
+  private static long store(BigSortedMap map, String[] keys, int op) {
+    long[] ptrs = new long[keys.length];
+    int[] sizes = new int[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      ptrs[i] = UnsafeAccess.allocAndCopy(keys[i], 0, keys[i].length());
+      sizes[i] = keys[i].length();
+    }
+    long result = store(map, ptrs, sizes, op);
+    Arrays.stream(ptrs).forEach(x -> UnsafeAccess.free(x));
+    return result;
+  }
+
+  /** For testing only */
+  public static List<String> SINTER(BigSortedMap map, String[] keys, int bufferSize) {
+    return execute(map, keys, bufferSize, OP_INTER);
+  }
+
+  /** For testing only */
+  public static List<String> SUNION(BigSortedMap map, String[] keys, int bufferSize) {
+    return execute(map, keys, bufferSize, OP_UNION);
+  }
+
+  /** For testing only */
+  public static List<String> SDIFF(BigSortedMap map, String[] keys, int bufferSize) {
+    return execute(map, keys, bufferSize, OP_DIFF);
+  }
+
+  /** For testing only */
+  public static long SINTERSTORE(BigSortedMap map, String[] keys) {
+    return store(map, keys, OP_INTER);
+  }
+
+  /** For testing only */
+  public static long SUNIONSTORE(BigSortedMap map, String[] keys) {
+    return store(map, keys, OP_UNION);
+  }
+
+  /** For testing only */
+  public static long SDIFFSTORE(BigSortedMap map, String[] keys) {
+    return store(map, keys, OP_DIFF);
   }
 
   /**
@@ -673,50 +1438,22 @@ public class Sets {
 
   /**
    * Returns the set cardinality (number of elements) of the set stored at key. Return value Integer
-   * reply: the cardinality (number of elements) of the set, or 0 if key does not exist.
+   * reply: the cardinality (number of elements) of the set, or 0 if key does not exist. Time
+   * complexity: O(1), the cardinality is kept in the set's header record.
    *
    * @param map ordered map
    * @param keyPtr key address
    * @param keySize key size
    * @return number of elements
-   * @throws IOException
    */
   public static long SCARD(BigSortedMap map, long keyPtr, int keySize) {
-
     Key k = getKey(keyPtr, keySize);
-    long total = 0;
-    long startKeyPtr = 0, endKeyPtr = 0;
     try {
       KeysLocker.readLock(k);
-      startKeyPtr = UnsafeAccess.malloc(keySize + KEY_SIZE + 2 * Utils.SIZEOF_BYTE);
-      int kSize = buildKey(keyPtr, keySize, Commons.ZERO, 1, startKeyPtr);
-      int endKeySize = kSize - 1;
-      endKeyPtr = Utils.prefixKeyEnd(startKeyPtr, endKeySize);
-      if (endKeyPtr == 0) {
-        endKeySize = 0;
-      }
-      BigSortedMapScanner scanner = map.getScanner(startKeyPtr, kSize, endKeyPtr, endKeySize);
-      if (scanner == null) {
-        return 0; // empty or does not exists
-      }
-      while (scanner.hasNext()) {
-        long valuePtr = scanner.valueAddress();
-        total += numElementsInValue(valuePtr);
-        scanner.next();
-      }
-      scanner.close();
-    } catch (IOException e) {
-      // should never be thrown
+      return CollectionHeader.getCount(map, DataType.SET, keyPtr, keySize);
     } finally {
-      if (startKeyPtr > 0) {
-        UnsafeAccess.free(startKeyPtr);
-      }
-      if (endKeyPtr > 0) {
-        UnsafeAccess.free(endKeyPtr);
-      }
       KeysLocker.readUnlock(k);
     }
-    return total;
   }
 
   /**
@@ -774,47 +1511,32 @@ public class Sets {
   }
 
   /**
-   * TODO: Remove if not used Returns total size (in bytes) of elements in this set, defined by key
-   * This method is good for reading all set elements
+   * Returns total size (in bytes) of elements in this set, defined by key. This method is good for
+   * reading all set elements. Time complexity: O(1)
    *
    * @param map ordered map
    * @param keyPtr key address
    * @param keySize key size
    * @return set size in bytes in serialized format (including variable size prefixes)
-   * @throws IOException
    */
   public static long getSetSizeInBytes(BigSortedMap map, long keyPtr, int keySize) {
-
-    long ptr = UnsafeAccess.malloc(keySize + KEY_SIZE + 2 * Utils.SIZEOF_BYTE);
-    int kSize = buildKey(keyPtr, keySize, Commons.ZERO, 1, ptr);
-    int endKeySize = kSize - 1;
-    long endKeyPtr = Utils.prefixKeyEnd(ptr, endKeySize);
-    if (endKeyPtr == 0) {
-      endKeySize = 0;
-    }
-    BigSortedMapScanner scanner = map.getScanner(ptr, kSize, endKeyPtr, endKeySize);
-
-    long total = 0;
+    Key k = getKey(keyPtr, keySize);
     try {
-      if (scanner == null) {
-        return 0; // empty or does not exists
-      }
-      while (scanner.hasNext()) {
-        long valueSize = scanner.valueSize();
-        total += valueSize - NUM_ELEM_SIZE;
-      }
-      scanner.close();
-    } catch (IOException e) {
-      // should never be thrown
+      KeysLocker.readLock(k);
+      return CollectionHeader.getBytes(map, DataType.SET, keyPtr, keySize);
     } finally {
-      if (endKeyPtr > 0) {
-        UnsafeAccess.free(endKeyPtr);
-      }
-      if (ptr > 0) {
-        UnsafeAccess.free(ptr);
-      }
+      KeysLocker.readUnlock(k);
     }
-    return total;
+  }
+
+  /**
+   * Serialized size of a set member
+   *
+   * @param elemSize member size
+   * @return size of a member in a set's value
+   */
+  private static int serializedSize(int elemSize) {
+    return Utils.sizeUVInt(elemSize) + elemSize;
   }
 
   /**
@@ -885,6 +1607,7 @@ public class Sets {
       }
       final int toRemove = elemPtrs.length;
       int removed = 0;
+      long bytes = 0;
       for (int i = 0; i < toRemove; i++) {
 
         int kSize = buildKey(keyPtr, keySize, elemPtrs[i], elemSizes[i]);
@@ -897,8 +1620,10 @@ public class Sets {
         // version?
         if (map.execute(remove)) {
           removed++;
+          bytes += serializedSize(elemSizes[i]);
         }
       }
+      CollectionHeader.update(map, DataType.SET, keyPtr, keySize, -removed, -bytes);
       if (setDelete.get().checkForEmpty() && isEmpty(map, keyPtr, keySize)) {
         DELETE(map, keyPtr, keySize);
       }
@@ -950,6 +1675,7 @@ public class Sets {
       // version?
       if (map.execute(remove)) {
         removed++;
+        CollectionHeader.update(map, DataType.SET, keyPtr, keySize, -1, -serializedSize(elemSize));
         if (remove.checkForEmpty && isEmpty(map, keyPtr, keySize)) {
           DELETE(map, keyPtr, keySize, lock);
         }
@@ -1257,6 +1983,7 @@ public class Sets {
     // Reads total number of elements
     int total = UnsafeAccess.toInt(bufferPtr);
     int count = 0, deleted = 0;
+    long bytes = 0;
     long ptr = bufferPtr + Utils.SIZEOF_INT;
     // No locking - it is safe here
     while (count++ < total) {
@@ -1271,9 +1998,11 @@ public class Sets {
       // version?
       if (map.execute(remove)) {
         deleted++;
+        bytes += eSize + eSizeSize;
       }
       ptr += eSize + eSizeSize;
     }
+    CollectionHeader.update(map, DataType.SET, keyPtr, keySize, -deleted, -bytes);
     return deleted;
   }
 
@@ -1313,6 +2042,7 @@ public class Sets {
         endKeySize = 0;
       }
       long deleted = map.deleteRange(startKeyPtr, newKeySize, endKeyPtr, endKeySize);
+      CollectionHeader.delete(map, DataType.SET, keyPtr, keySize);
       return deleted > 0;
     } finally {
       if (startKeyPtr > 0) {
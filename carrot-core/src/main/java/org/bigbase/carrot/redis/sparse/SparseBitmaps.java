@@ -16,12 +16,21 @@ package org.bigbase.carrot.redis.sparse;
 import static org.bigbase.carrot.redis.util.Commons.KEY_SIZE;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.BigSortedMapScanner;
 import org.bigbase.carrot.compression.Codec;
 import org.bigbase.carrot.compression.CodecFactory;
 import org.bigbase.carrot.compression.CodecType;
+import org.bigbase.carrot.redis.util.BitOp;
 import org.bigbase.carrot.redis.util.Commons;
 import org.bigbase.carrot.redis.util.DataType;
 import org.bigbase.carrot.util.Key;
@@ -435,25 +444,37 @@ public class SparseBitmaps {
     Key k = getKey(keyPtr, keySize);
     try {
       KeysLocker.writeLock(k);
-      int newKeySize = keySize + KEY_SIZE + Utils.SIZEOF_BYTE;
-      long kPtr = UnsafeAccess.malloc(newKeySize);
-      UnsafeAccess.putByte(kPtr, (byte) DataType.SBITMAP.ordinal());
-      UnsafeAccess.putInt(kPtr + Utils.SIZEOF_BYTE, keySize);
-      UnsafeAccess.copy(keyPtr, kPtr + KEY_SIZE + Utils.SIZEOF_BYTE, keySize);
-      int endKeySize = newKeySize;
-      long endKeyPtr = Utils.prefixKeyEnd(kPtr, endKeySize);
-      if (endKeyPtr == 0) {
-        endKeySize = 0;
-      }
-      long deleted = map.deleteRange(kPtr, newKeySize, endKeyPtr, endKeySize);
-      UnsafeAccess.free(kPtr);
-      if (endKeyPtr > 0) UnsafeAccess.free(endKeyPtr);
-      return deleted > 0;
+      return delete(map, keyPtr, keySize);
     } finally {
       KeysLocker.writeUnlock(k);
     }
   }
 
+  /**
+   * Deletes all chunks of a sparse bitmap. Caller must hold the key's write lock.
+   *
+   * @param map sorted map
+   * @param keyPtr key address
+   * @param keySize key size
+   * @return true if something was deleted, false - otherwise
+   */
+  private static boolean delete(BigSortedMap map, long keyPtr, int keySize) {
+    int newKeySize = keySize + KEY_SIZE + Utils.SIZEOF_BYTE;
+    long kPtr = UnsafeAccess.malloc(newKeySize);
+    UnsafeAccess.putByte(kPtr, (byte) DataType.SBITMAP.ordinal());
+    UnsafeAccess.putInt(kPtr + Utils.SIZEOF_BYTE, keySize);
+    UnsafeAccess.copy(keyPtr, kPtr + KEY_SIZE + Utils.SIZEOF_BYTE, keySize);
+    int endKeySize = newKeySize;
+    long endKeyPtr = Utils.prefixKeyEnd(kPtr, endKeySize);
+    if (endKeyPtr == 0) {
+      endKeySize = 0;
+    }
+    long deleted = map.deleteRange(kPtr, newKeySize, endKeyPtr, endKeySize);
+    UnsafeAccess.free(kPtr);
+    if (endKeyPtr > 0) UnsafeAccess.free(endKeyPtr);
+    return deleted > 0;
+  }
+
   /**
    * FIXME: TOO SLOW Count the number of set bits (population counting) in a string. By default all
    * the bytes contained in the string are examined. It is possible to specify the counting
@@ -659,18 +680,30 @@ public class SparseBitmaps {
     Key kk = getKey(keyPtr, keySize);
     try {
       KeysLocker.readLock(kk);
-      int kSize = buildKey(keyPtr, keySize, Long.MAX_VALUE);
-      SparseLength strlen = sparseLength.get();
-      strlen.reset();
-      strlen.setKeyAddress(keyArena.get());
-      strlen.setKeySize(kSize);
-      map.execute(strlen);
-      return strlen.getLength();
+      return strlen(map, keyPtr, keySize);
     } finally {
       KeysLocker.readUnlock(kk);
     }
   }
 
+  /**
+   * Returns the length of a sparse bitmap. Caller must hold the key's lock.
+   *
+   * @param map sorted map
+   * @param keyPtr key
+   * @param keySize key size
+   * @return size of a value or 0 if does not exists
+   */
+  private static long strlen(BigSortedMap map, long keyPtr, int keySize) {
+    int kSize = buildKey(keyPtr, keySize, Long.MAX_VALUE);
+    SparseLength strlen = sparseLength.get();
+    strlen.reset();
+    strlen.setKeyAddress(keyArena.get());
+    strlen.setKeySize(kSize);
+    map.execute(strlen);
+    return strlen.getLength();
+  }
+
   /**
    * Return the position of the first bit set to 1 or 0 in a string. The position is returned,
    * thinking of the string as an array of bits from left to right, where the first byte's most
@@ -1104,4 +1137,184 @@ public class SparseBitmaps {
       KeysLocker.writeUnlock(kk);
     }
   }
+
+  /**
+   * Perform a bitwise operation between multiple sparse bitmaps and store the result in the
+   * destination key. Semantics is the same as for Strings.BITOP: shorter bitmaps and non-existent
+   * keys are treated as zero - padded. Only chunks which are present in sources are processed
+   * (all-zero chunks are not stored at all), AND skips source chunks which are absent in the
+   * intermediate result. Chunks are combined one 64-bit word at a time.
+   *
+   * @param map sorted map storage
+   * @param op bitwise operation (AND, XOR, OR, NOT)
+   * @param keyPtrs array of key pointers (first key is the destination key)
+   * @param keySizes array of key sizes
+   * @return size of the longest source bitmap in bytes
+   */
+  public static long SBITOP(BigSortedMap map, BitOp op, long[] keyPtrs, int[] keySizes) {
+    List<Key> keys = new ArrayList<Key>();
+    for (int i = 0; i < keyPtrs.length; i++) {
+      keys.add(new Key(keyPtrs[i], keySizes[i]));
+    }
+    // Chunk offset (in bits) -> chunk copy (CHUNK_SIZE bytes, decompressed)
+    TreeMap<Long, Long> chunks = new TreeMap<Long, Long>();
+    try {
+      KeysLocker.writeLockAllKeys(keys);
+      long maxSize = 0;
+      for (int i = 1; i < keyPtrs.length; i++) {
+        maxSize = Math.max(maxSize, strlen(map, keyPtrs[i], keySizes[i]));
+      }
+      for (int i = 1; i < keyPtrs.length; i++) {
+        if (i > 1 && op == BitOp.AND && chunks.isEmpty()) {
+          break;
+        }
+        merge(map, op, keyPtrs[i], keySizes[i], i == 1, chunks);
+      }
+      if (op == BitOp.NOT) {
+        // Missing chunks of a source are all zeros, they are all ones in the result
+        for (long off = 0; off < maxSize; off += BYTES_PER_CHUNK) {
+          long chunkOffset = off * Utils.BITS_PER_BYTE;
+          Long ptr = chunks.get(chunkOffset);
+          if (ptr == null) {
+            ptr = UnsafeAccess.mallocZeroed(CHUNK_SIZE);
+            chunks.put(chunkOffset, ptr);
+          }
+          Utils.bitNot(ptr + HEADER_SIZE, BYTES_PER_CHUNK);
+          if (off + BYTES_PER_CHUNK > maxSize) {
+            int len = (int) (maxSize - off);
+            UnsafeAccess.setMemory(ptr + HEADER_SIZE + len, BYTES_PER_CHUNK - len, (byte) 0);
+          }
+        }
+      }
+      delete(map, keyPtrs[0], keySizes[0]);
+      // All - zero chunks are not inserted
+      for (Map.Entry<Long, Long> e : chunks.entrySet()) {
+        long offset = e.getKey() / Utils.BITS_PER_BYTE;
+        setChunk(map, keyPtrs[0], keySizes[0], offset, e.getValue(), BYTES_PER_CHUNK);
+      }
+      return maxSize;
+    } finally {
+      chunks.values().forEach(x -> UnsafeAccess.free(x));
+      KeysLocker.writeUnlockAllKeys(keys);
+    }
+  }
+
+  /**
+   * Merges all chunks of a source sparse bitmap into the intermediate result. Caller must hold the
+   * key's lock.
+   *
+   * @param map sorted map storage
+   * @param op bitwise operation
+   * @param keyPtr source key address
+   * @param keySize source key size
+   * @param first is it the first source
+   * @param chunks intermediate result
+   */
+  private static void merge(
+      BigSortedMap map,
+      BitOp op,
+      long keyPtr,
+      int keySize,
+      boolean first,
+      TreeMap<Long, Long> chunks) {
+    boolean and = op == BitOp.AND && !first;
+    Set<Long> seen = and ? new HashSet<Long>() : null;
+    int kSize = buildKey(keyPtr, keySize, 0);
+    long startKeyPtr = keyArena.get();
+    int prefixSize = kSize - Utils.SIZEOF_LONG;
+    long endKeyPtr = Utils.prefixKeyEnd(startKeyPtr, prefixSize);
+    int endKeySize = endKeyPtr == 0 ? 0 : prefixSize;
+    BigSortedMapScanner scanner = null;
+    try {
+      scanner = map.getScanner(startKeyPtr, kSize, endKeyPtr, endKeySize);
+      while (scanner != null && scanner.hasNext()) {
+        long offset = getChunkOffsetFromKey(scanner.keyAddress(), scanner.keySize());
+        Long dst = chunks.get(offset);
+        if (and && dst == null) {
+          // Result chunk is all zeros - skip it, do not decompress
+          scanner.next();
+          continue;
+        }
+        long valueAddress = scanner.valueAddress();
+        int valueSize = scanner.valueSize();
+        valueAddress =
+            isCompressed(valueAddress)
+                ? decompress(valueAddress, valueSize - HEADER_SIZE)
+                : valueAddress;
+        if (dst == null) {
+          long ptr = UnsafeAccess.malloc(CHUNK_SIZE);
+          UnsafeAccess.copy(valueAddress, ptr, CHUNK_SIZE);
+          chunks.put(offset, ptr);
+        } else {
+          long srcPtr = valueAddress + HEADER_SIZE;
+          long dstPtr = dst + HEADER_SIZE;
+          switch (op) {
+            case AND:
+              Utils.bitAnd(dstPtr, srcPtr, BYTES_PER_CHUNK);
+              break;
+            case OR:
+              Utils.bitOr(dstPtr, srcPtr, BYTES_PER_CHUNK);
+              break;
+            case XOR:
+              Utils.bitXor(dstPtr, srcPtr, BYTES_PER_CHUNK);
+              break;
+            default:
+              throw new IllegalArgumentException("NOT takes a single source key");
+          }
+        }
+        if (and) {
+          seen.add(offset);
+        }
+        scanner.next();
+      }
+    } catch (IOException e) {
+      // should never be thrown
+    } finally {
+      if (scanner != null) {
+        try {
+          scanner.close();
+        } catch (IOException e) {
+        }
+      }
+      if (endKeyPtr > 0) {
+        UnsafeAccess.free(endKeyPtr);
+      }
+    }
+    if (and) {
+      // Chunks which are absent in the source become zeros
+      Iterator<Map.Entry<Long, Long>> it = chunks.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<Long, Long> e = it.next();
+        if (!seen.contains(e.getKey())) {
+          UnsafeAccess.free(e.getValue());
+          it.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * For testing only
+   *
+   * @param map sorted map storage
+   * @param op bitwise operation (AND, XOR, OR, NOT)
+   * @param dst destination key
+   * @param keys source keys
+   * @return size of the longest source bitmap in bytes
+   */
+  public static long SBITOP(BigSortedMap map, BitOp op, String dst, String[] keys) {
+    long[] keyPtrs = new long[keys.length + 1];
+    int[] keySizes = new int[keys.length + 1];
+    keyPtrs[0] = UnsafeAccess.allocAndCopy(dst, 0, dst.length());
+    keySizes[0] = dst.length();
+    for (int i = 0; i < keys.length; i++) {
+      keyPtrs[i + 1] = UnsafeAccess.allocAndCopy(keys[i], 0, keys[i].length());
+      keySizes[i + 1] = keys[i].length();
+    }
+    try {
+      return SBITOP(map, op, keyPtrs, keySizes);
+    } finally {
+      Arrays.stream(keyPtrs).forEach(x -> UnsafeAccess.free(x));
+    }
+  }
 }
@@ -0,0 +1,71 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.strings;
+
+import org.bigbase.carrot.DataBlock;
+import org.bigbase.carrot.ops.Operation;
+import org.bigbase.carrot.redis.util.MutationOptions;
+
+/**
+ * String EXPIRE operation. Updates expiration time of an existing key in place, subject to the
+ * NX/XX/GT/LT mutation options. A key without expire is treated as having an infinite TTL.
+ */
+public class StringSetExpire extends Operation {
+
+  private MutationOptions opts = MutationOptions.NONE;
+
+  @Override
+  public boolean execute() {
+    setUpdateInPlace(true);
+    if (foundRecordAddress <= 0) {
+      // Does not exist
+      this.updatesCount = 0;
+      return false;
+    }
+    long current = DataBlock.getRecordExpire(foundRecordAddress);
+    boolean set;
+    switch (opts) {
+      case NX:
+        set = current == 0;
+        break;
+      case XX:
+        set = current > 0;
+        break;
+      case GT:
+        set = current > 0 && this.expire > current;
+        break;
+      case LT:
+        set = current == 0 || this.expire < current;
+        break;
+      default:
+        set = true;
+    }
+    if (!set) {
+      this.updatesCount = 0;
+      return false;
+    }
+    DataBlock.setRecordExpire(foundRecordAddress, this.expire);
+    return true;
+  }
+
+  public void setMutationOptions(MutationOptions opts) {
+    this.opts = opts;
+  }
+
+  @Override
+  public void reset() {
+    super.reset();
+    this.opts = MutationOptions.NONE;
+  }
+}
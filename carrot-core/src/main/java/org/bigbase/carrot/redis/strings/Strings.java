@@ -17,6 +17,8 @@ import static org.bigbase.carrot.redis.util.Commons.KEY_SIZE;
 import static org.bigbase.carrot.util.KeysLocker.writeLock;
 import static org.bigbase.carrot.util.KeysLocker.writeUnlock;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.bigbase.carrot.BigSortedMap;
@@ -200,6 +202,15 @@ public class Strings {
         }
       };
 
+  /** Thread local updates String SETEXPIRE */
+  private static ThreadLocal<StringSetExpire> stringSetexpire =
+      new ThreadLocal<StringSetExpire>() {
+        @Override
+        protected StringSetExpire initialValue() {
+          return new StringSetExpire();
+        }
+      };
+
   /** Thread local updates String GETEXPIRE */
   private static ThreadLocal<StringGetExpire> stringGetexpire =
       new ThreadLocal<StringGetExpire>() {
@@ -310,6 +321,35 @@ public class Strings {
       KeysLocker.readUnlock(kk);
     }
   }
+
+  /**
+   * Sets key's expiration time
+   *
+   * @param map sorted map storage
+   * @param keyPtr key address
+   * @param keySize key size
+   * @param expireAt absolute expiration time in ms (0 - no expire)
+   * @param opts mutation options (NX, XX, GT, LT)
+   * @return true if expiration time was set, false - key does not exist or condition not met
+   */
+  public static boolean SETEXPIRE(
+      BigSortedMap map, long keyPtr, int keySize, long expireAt, MutationOptions opts) {
+    Key kk = getKey(keyPtr, keySize);
+    try {
+      KeysLocker.writeLock(kk);
+      int kSize = buildKey(keyPtr, keySize);
+      StringSetExpire expire = stringSetexpire.get();
+      expire.reset();
+      expire.setKeyAddress(keyArena.get());
+      expire.setKeySize(kSize);
+      expire.setExpire(expireAt);
+      expire.setMutationOptions(opts);
+      return map.execute(expire);
+    } finally {
+      KeysLocker.writeUnlock(kk);
+    }
+  }
+
   /**
    * If key already exists and is a string, this command appends the value at the end of the string.
    * If key does not exist it is created and set as an empty string, so APPEND will be similar to
@@ -559,10 +599,18 @@ public class Strings {
       BigSortedMap map, long keyPtr, int keyLength, long valueBuf, int valueBufLength) {
 
     Key kk = getKey(keyPtr, keyLength);
+    int kLength = buildKey(keyPtr, keyLength);
+    long kPtr = keyArena.get();
+    // Try optimistic read first, repeat under the read lock if there was a concurrent update
+    long stamp = KeysLocker.tryOptimisticRead(kk);
+    if (stamp != 0) {
+      long size = map.get(kPtr, kLength, valueBuf, valueBufLength, Long.MAX_VALUE);
+      if (KeysLocker.validate(kk, stamp)) {
+        return size;
+      }
+    }
     try {
       KeysLocker.readLock(kk);
-      int kLength = buildKey(keyPtr, keyLength);
-      long kPtr = keyArena.get();
       return map.get(kPtr, kLength, valueBuf, valueBufLength, Long.MAX_VALUE);
     } finally {
       KeysLocker.readUnlock(kk);
@@ -1391,7 +1439,101 @@ public class Strings {
    * @return size of a destination string in bytes
    */
   public static long BITOP(BigSortedMap map, BitOp op, long[] keyPtrs, int[] keySizes) {
-    // TODO
-    return 0;
+    List<Key> keys = new ArrayList<Key>();
+    for (int i = 0; i < keyPtrs.length; i++) {
+      keys.add(new Key(keyPtrs[i], keySizes[i]));
+    }
+    long dstPtr = 0;
+    try {
+      KeysLocker.writeLockAllKeys(keys);
+      // Get sizes of all source strings, non-existent keys are empty strings
+      int[] sizes = new int[keyPtrs.length];
+      int maxSize = 0;
+      for (int i = 1; i < keyPtrs.length; i++) {
+        int kSize = buildKey(keyPtrs[i], keySizes[i]);
+        long size = map.get(keyArena.get(), kSize, valueArena.get(), 0, Long.MAX_VALUE);
+        sizes[i] = (int) Math.max(size, 0);
+        maxSize = Math.max(maxSize, sizes[i]);
+      }
+      int kSize = buildKey(keyPtrs[0], keySizes[0]);
+      if (maxSize == 0) {
+        // Empty result - destination key is deleted
+        map.delete(keyArena.get(), kSize);
+        return 0;
+      }
+      dstPtr = UnsafeAccess.mallocZeroed(maxSize);
+      for (int i = 1; i < keyPtrs.length; i++) {
+        int size = sizes[i];
+        if (i == 1) {
+          // First source goes directly to the destination, the rest is zero - padded
+          if (size > 0) {
+            kSize = buildKey(keyPtrs[i], keySizes[i]);
+            map.get(keyArena.get(), kSize, dstPtr, size, Long.MAX_VALUE);
+          }
+          if (op == BitOp.NOT) {
+            Utils.bitNot(dstPtr, maxSize);
+          }
+          continue;
+        }
+        if (size == 0) {
+          if (op == BitOp.AND) {
+            UnsafeAccess.setMemory(dstPtr, maxSize, (byte) 0);
+          }
+          continue;
+        }
+        checkValueArena(size);
+        long srcPtr = valueArena.get();
+        kSize = buildKey(keyPtrs[i], keySizes[i]);
+        map.get(keyArena.get(), kSize, srcPtr, size, Long.MAX_VALUE);
+        switch (op) {
+          case AND:
+            Utils.bitAnd(dstPtr, srcPtr, size);
+            // Shorter string is zero - padded
+            UnsafeAccess.setMemory(dstPtr + size, maxSize - size, (byte) 0);
+            break;
+          case OR:
+            Utils.bitOr(dstPtr, srcPtr, size);
+            break;
+          case XOR:
+            Utils.bitXor(dstPtr, srcPtr, size);
+            break;
+          default:
+            throw new IllegalArgumentException("NOT takes a single source key");
+        }
+      }
+      kSize = buildKey(keyPtrs[0], keySizes[0]);
+      map.put(keyArena.get(), kSize, dstPtr, maxSize, 0);
+      return maxSize;
+    } finally {
+      if (dstPtr > 0) {
+        UnsafeAccess.free(dstPtr);
+      }
+      KeysLocker.writeUnlockAllKeys(keys);
+    }
+  }
+
+  /**
+   * For testing only
+   *
+   * @param map sorted map storage
+   * @param op bitwise operation (AND, XOR, OR, NOT)
+   * @param dst destination key
+   * @param keys source keys
+   * @return size of a destination string in bytes
+   */
+  public static long BITOP(BigSortedMap map, BitOp op, String dst, String[] keys) {
+    long[] keyPtrs = new long[keys.length + 1];
+    int[] keySizes = new int[keys.length + 1];
+    keyPtrs[0] = UnsafeAccess.allocAndCopy(dst, 0, dst.length());
+    keySizes[0] = dst.length();
+    for (int i = 0; i < keys.length; i++) {
+      keyPtrs[i + 1] = UnsafeAccess.allocAndCopy(keys[i], 0, keys[i].length());
+      keySizes[i + 1] = keys[i].length();
+    }
+    try {
+      return BITOP(map, op, keyPtrs, keySizes);
+    } finally {
+      Arrays.stream(keyPtrs).forEach(x -> UnsafeAccess.free(x));
+    }
   }
 }
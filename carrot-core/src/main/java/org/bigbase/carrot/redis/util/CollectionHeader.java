@@ -0,0 +1,303 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.util;
+
+import static org.bigbase.carrot.redis.util.Commons.KEY_PREFIX_SIZE;
+import static org.bigbase.carrot.redis.util.Commons.NUM_ELEM_SIZE;
+import static org.bigbase.carrot.redis.util.Commons.numElementsInValue;
+
+import java.io.IOException;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.BigSortedMapScanner;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+/**
+ * Per-collection header record. Sets (and sorted sets) and hashes keep the number of elements and
+ * the total serialized size of their elements in a separate K-V, keyed by the collection prefix
+ * [TYPE][KEY_SIZE]KEY without any suffix. This key sorts before the first K-V of the collection
+ * ([TYPE][KEY_SIZE]KEY'\0'), so element scanners never see it.
+ *
+ * <p>All methods must be called under the collection key lock: write lock for mutations, read lock
+ * (at least) for reads. Header is updated under the same key write lock as collection's elements,
+ * so a snapshot, which starts between commands (see KeysLocker.lockGate()), sees them consistent.
+ * A mutation, which can add elements, calls reserve() first: it stores the header (or fails
+ * before the collection is changed). Header value has a fixed size and after the mutation it is
+ * updated in place, which can not fail, so the header always stays exact. If a header is missing
+ * for a non-empty collection (data written by an older version), reads count elements by scanning
+ * the collection and the next mutation stores the rebuilt header. Reads never write to the map.
+ */
+public class CollectionHeader {
+
+  /** Header value size: number of elements (8 bytes) and size in bytes (8 bytes) */
+  public static final int HEADER_SIZE = 2 * Utils.SIZEOF_LONG;
+
+  private static ThreadLocal<Long> keyArena =
+      new ThreadLocal<Long>() {
+        @Override
+        protected Long initialValue() {
+          return UnsafeAccess.malloc(512);
+        }
+      };
+
+  private static ThreadLocal<Integer> keyArenaSize =
+      new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+          return 512;
+        }
+      };
+
+  private static ThreadLocal<Long> valueArena =
+      new ThreadLocal<Long>() {
+        @Override
+        protected Long initialValue() {
+          return UnsafeAccess.malloc(HEADER_SIZE);
+        }
+      };
+
+  private static ThreadLocal<CollectionHeaderUpdate> headerUpdate =
+      new ThreadLocal<CollectionHeaderUpdate>() {
+        @Override
+        protected CollectionHeaderUpdate initialValue() {
+          return new CollectionHeaderUpdate();
+        }
+      };
+
+  /**
+   * Builds header key in a thread local key arena
+   *
+   * @param type data type
+   * @param keyPtr key address
+   * @param keySize key size
+   * @return header key size
+   */
+  private static int buildKey(DataType type, long keyPtr, int keySize) {
+    int kSize = KEY_PREFIX_SIZE + keySize;
+    int size = keyArenaSize.get();
+    if (size < kSize + Utils.SIZEOF_BYTE) {
+      keyArena.set(UnsafeAccess.realloc(keyArena.get(), kSize + Utils.SIZEOF_BYTE));
+      keyArenaSize.set(kSize + Utils.SIZEOF_BYTE);
+    }
+    long arena = keyArena.get();
+    UnsafeAccess.putByte(arena, (byte) type.ordinal());
+    UnsafeAccess.putInt(arena + Utils.SIZEOF_BYTE, keySize);
+    UnsafeAccess.copy(keyPtr, arena + KEY_PREFIX_SIZE, keySize);
+    return kSize;
+  }
+
+  /**
+   * Reads collection header into a thread local value arena, if it is missing, collection is
+   * scanned, but the header is not stored (caller can hold read lock only)
+   *
+   * @param map sorted map storage
+   * @param type data type
+   * @param keyPtr key address
+   * @param keySize key size
+   * @return header address
+   */
+  private static long read(BigSortedMap map, DataType type, long keyPtr, int keySize) {
+    int kSize = buildKey(type, keyPtr, keySize);
+    long ptr = valueArena.get();
+    long size = map.get(keyArena.get(), kSize, ptr, HEADER_SIZE, Long.MAX_VALUE);
+    if (size != HEADER_SIZE) {
+      scan(map, type, keyPtr, keySize);
+    }
+    return ptr;
+  }
+
+  /**
+   * Gets number of elements in a collection
+   *
+   * @param map sorted map storage
+   * @param type data type (SET or HASH)
+   * @param keyPtr key address
+   * @param keySize key size
+   * @return number of elements, 0 - if collection does not exist
+   */
+  public static long getCount(BigSortedMap map, DataType type, long keyPtr, int keySize) {
+    return UnsafeAccess.toLong(read(map, type, keyPtr, keySize));
+  }
+
+  /**
+   * Gets total size of elements in a collection (serialized)
+   *
+   * @param map sorted map storage
+   * @param type data type (SET or HASH)
+   * @param keyPtr key address
+   * @param keySize key size
+   * @return size in bytes, 0 - if collection does not exist
+   */
+  public static long getBytes(BigSortedMap map, DataType type, long keyPtr, int keySize) {
+    return UnsafeAccess.toLong(read(map, type, keyPtr, keySize) + Utils.SIZEOF_LONG);
+  }
+
+  /**
+   * Makes sure collection header exists before a mutation, which can add elements. If header is
+   * missing, it is rebuilt by scanning the collection (empty collection gets zero header). Header
+   * has a fixed size, so once it exists, all subsequent updates are done in place and can not fail.
+   * Caller must not mutate the collection if this call fails. Must be called under the key write
+   * lock.
+   *
+   * @param map sorted map storage
+   * @param type data type (SET or HASH)
+   * @param keyPtr key address
+   * @param keySize key size
+   * @return true on success, false - header can not be stored (memory limit)
+   */
+  public static boolean reserve(BigSortedMap map, DataType type, long keyPtr, int keySize) {
+    int kSize = buildKey(type, keyPtr, keySize);
+    long arena = keyArena.get();
+    long ptr = valueArena.get();
+    // Lookups go under the index block write lock, as all other accesses of a mutation do
+    if (map.getForUpdate(arena, kSize, ptr, HEADER_SIZE) == HEADER_SIZE) {
+      return true;
+    }
+    // First K-V of a collection: [TYPE][KEY_SIZE]KEY'\0'
+    UnsafeAccess.putByte(arena + kSize, (byte) 0);
+    if (map.getForUpdate(arena, kSize + Utils.SIZEOF_BYTE, 0, 0) > 0) {
+      // Written by an older version, scan builds the same key in a key arena
+      scan(map, type, keyPtr, keySize);
+    } else {
+      UnsafeAccess.putLong(ptr, 0);
+      UnsafeAccess.putLong(ptr + Utils.SIZEOF_LONG, 0);
+    }
+    return map.put(arena, kSize, ptr, HEADER_SIZE, 0);
+  }
+
+  /**
+   * Updates collection header after mutation. Header is deleted when collection becomes empty
+   *
+   * @param map sorted map storage
+   * @param type data type (SET or HASH)
+   * @param keyPtr key address
+   * @param keySize key size
+   * @param count number of elements added (negative - removed)
+   * @param bytes size change in bytes
+   */
+  public static void update(
+      BigSortedMap map, DataType type, long keyPtr, int keySize, long count, long bytes) {
+    execute(map, type, keyPtr, keySize, count, bytes, false);
+  }
+
+  /**
+   * Sets collection header after mutation. Header is deleted if count is 0
+   *
+   * @param map sorted map storage
+   * @param type data type (SET or HASH)
+   * @param keyPtr key address
+   * @param keySize key size
+   * @param count number of elements
+   * @param bytes size in bytes
+   */
+  public static void set(
+      BigSortedMap map, DataType type, long keyPtr, int keySize, long count, long bytes) {
+    execute(map, type, keyPtr, keySize, count, bytes, true);
+  }
+
+  private static void execute(
+      BigSortedMap map,
+      DataType type,
+      long keyPtr,
+      int keySize,
+      long count,
+      long bytes,
+      boolean absolute) {
+    int kSize = buildKey(type, keyPtr, keySize);
+    CollectionHeaderUpdate op = headerUpdate.get();
+    op.reset();
+    op.setKeyAddress(keyArena.get());
+    op.setKeySize(kSize);
+    op.setUpdate(count, bytes, absolute);
+    if (!map.execute(op) && (absolute || count != 0 || bytes != 0)) {
+      // No header: collection was not mutated after reserve() (removals from data written by an
+      // older version). Scan already includes this mutation
+      rebuild(map, type, keyPtr, keySize);
+    }
+  }
+
+  /**
+   * Deletes collection header
+   *
+   * @param map sorted map storage
+   * @param type data type (SET or HASH)
+   * @param keyPtr key address
+   * @param keySize key size
+   * @return true if header existed
+   */
+  public static boolean delete(BigSortedMap map, DataType type, long keyPtr, int keySize) {
+    int kSize = buildKey(type, keyPtr, keySize);
+    return map.delete(keyArena.get(), kSize);
+  }
+
+  /**
+   * Recalculates collection header by scanning all collection's K-Vs and stores it. Must be called
+   * under the key write lock. If header can not be stored, reads will scan the collection
+   *
+   * @param map sorted map storage
+   * @param type data type (SET or HASH)
+   * @param keyPtr key address
+   * @param keySize key size
+   */
+  private static void rebuild(BigSortedMap map, DataType type, long keyPtr, int keySize) {
+    long ptr = scan(map, type, keyPtr, keySize);
+    if (UnsafeAccess.toLong(ptr) > 0) {
+      map.put(keyArena.get(), KEY_PREFIX_SIZE + keySize, ptr, HEADER_SIZE, 0);
+    }
+  }
+
+  /**
+   * Recalculates collection header by scanning all collection's K-Vs. Result is left in the thread
+   * local value arena.
+   *
+   * @param map sorted map storage
+   * @param type data type (SET or HASH)
+   * @param keyPtr key address
+   * @param keySize key size
+   * @return header address
+   */
+  private static long scan(BigSortedMap map, DataType type, long keyPtr, int keySize) {
+    long count = 0, bytes = 0;
+    // Start key: [TYPE][KEY_SIZE]KEY'\0'
+    int kSize = buildKey(type, keyPtr, keySize);
+    long startKeyPtr = keyArena.get();
+    UnsafeAccess.putByte(startKeyPtr + kSize, (byte) 0);
+    long endKeyPtr = Utils.prefixKeyEnd(startKeyPtr, kSize);
+    int endKeySize = endKeyPtr == 0 ? 0 : kSize;
+    BigSortedMapScanner scanner =
+        map.getScanner(startKeyPtr, kSize + Utils.SIZEOF_BYTE, endKeyPtr, endKeySize);
+    try {
+      if (scanner != null) {
+        while (scanner.hasNext()) {
+          long valuePtr = scanner.valueAddress();
+          count += numElementsInValue(valuePtr);
+          bytes += scanner.valueSize() - NUM_ELEM_SIZE;
+          scanner.next();
+        }
+        scanner.close();
+      }
+    } catch (IOException e) {
+      // should never be thrown
+    } finally {
+      if (endKeyPtr > 0) {
+        UnsafeAccess.free(endKeyPtr);
+      }
+    }
+    long ptr = valueArena.get();
+    UnsafeAccess.putLong(ptr, count);
+    UnsafeAccess.putLong(ptr + Utils.SIZEOF_LONG, bytes);
+    return ptr;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.util;
+
+import org.bigbase.carrot.DataBlock;
+import org.bigbase.carrot.ops.Operation;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+/**
+ * Updates collection header in place: header value has a fixed size, therefore the update never
+ * allocates memory and can not fail once the header exists. Header is deleted when collection
+ * becomes empty.
+ */
+class CollectionHeaderUpdate extends Operation {
+
+  /* Number of elements: delta or new value */
+  private long count;
+
+  /* Size in bytes: delta or new value */
+  private long bytes;
+
+  /* If true - count and bytes replace current values, otherwise they are added to them */
+  private boolean absolute;
+
+  CollectionHeaderUpdate() {}
+
+  @Override
+  public void reset() {
+    super.reset();
+    this.count = 0;
+    this.bytes = 0;
+    this.absolute = false;
+  }
+
+  /**
+   * Sets header change
+   *
+   * @param count number of elements (delta or new value)
+   * @param bytes size in bytes (delta or new value)
+   * @param absolute true - set new values, false - add deltas
+   */
+  void setUpdate(long count, long bytes, boolean absolute) {
+    this.count = count;
+    this.bytes = bytes;
+    this.absolute = absolute;
+  }
+
+  @Override
+  public boolean execute() {
+    this.updatesCount = 0;
+    if (foundRecordAddress <= 0
+        || DataBlock.valueLength(foundRecordAddress) != CollectionHeader.HEADER_SIZE) {
+      return false;
+    }
+    long ptr = DataBlock.valueAddress(foundRecordAddress);
+    long newCount = absolute ? count : UnsafeAccess.toLong(ptr) + count;
+    long newBytes = absolute ? bytes : UnsafeAccess.toLong(ptr + Utils.SIZEOF_LONG) + bytes;
+    if (newCount <= 0) {
+      // Collection is empty - delete header
+      this.updatesCount = 1;
+      this.keys[0] = keyAddress;
+      this.keySizes[0] = keySize;
+      this.updateTypes[0] = true;
+      return true;
+    }
+    UnsafeAccess.putLong(ptr, newCount);
+    UnsafeAccess.putLong(ptr + Utils.SIZEOF_LONG, newBytes);
+    setUpdateInPlace(true);
+    return true;
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.util;
+
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+/**
+ * Builds request in Carrot internal format: [NUM_ARGS(4)]([LENGTH(4)][ARG])+. Builder is thread
+ * local, request is valid until the next request is started by the same thread.
+ */
+public final class RequestBuilder {
+
+  /*
+   * Initial buffer size
+   */
+  private static final int INITIAL_SIZE = 1024;
+
+  /*
+   * Maximum long value length as a string
+   */
+  private static final int MAX_LONG_LENGTH = 20;
+
+  private static ThreadLocal<RequestBuilder> builderTLS =
+      new ThreadLocal<RequestBuilder>() {
+        @Override
+        protected RequestBuilder initialValue() {
+          return new RequestBuilder();
+        }
+      };
+
+  private long ptr = UnsafeAccess.malloc(INITIAL_SIZE);
+  private int capacity = INITIAL_SIZE;
+  private int size;
+  private int numArgs;
+
+  private RequestBuilder() {}
+
+  /**
+   * Starts a new request
+   *
+   * @return thread local builder
+   */
+  public static RequestBuilder start() {
+    RequestBuilder b = builderTLS.get();
+    b.size = Utils.SIZEOF_INT;
+    b.numArgs = 0;
+    return b;
+  }
+
+  private void ensureCapacity(int required) {
+    if (size + required > capacity) {
+      capacity = Math.max(2 * capacity, size + required);
+      ptr = UnsafeAccess.realloc(ptr, capacity);
+    }
+  }
+
+  /**
+   * Adds argument
+   *
+   * @param arg argument
+   * @return this
+   */
+  public RequestBuilder add(byte[] arg) {
+    ensureCapacity(Utils.SIZEOF_INT + arg.length);
+    UnsafeAccess.putInt(ptr + size, arg.length);
+    UnsafeAccess.copy(arg, 0, ptr + size + Utils.SIZEOF_INT, arg.length);
+    size += Utils.SIZEOF_INT + arg.length;
+    numArgs++;
+    return this;
+  }
+
+  /**
+   * Adds argument
+   *
+   * @param argPtr argument address
+   * @param argSize argument size
+   * @return this
+   */
+  public RequestBuilder add(long argPtr, int argSize) {
+    ensureCapacity(Utils.SIZEOF_INT + argSize);
+    UnsafeAccess.putInt(ptr + size, argSize);
+    UnsafeAccess.copy(argPtr, ptr + size + Utils.SIZEOF_INT, argSize);
+    size += Utils.SIZEOF_INT + argSize;
+    numArgs++;
+    return this;
+  }
+
+  /**
+   * Adds number argument (as a decimal string)
+   *
+   * @param value value
+   * @return this
+   */
+  public RequestBuilder add(long value) {
+    ensureCapacity(Utils.SIZEOF_INT + MAX_LONG_LENGTH);
+    int len = Utils.longToStr(value, ptr + size + Utils.SIZEOF_INT, MAX_LONG_LENGTH);
+    UnsafeAccess.putInt(ptr + size, len);
+    size += Utils.SIZEOF_INT + len;
+    numArgs++;
+    return this;
+  }
+
+  /**
+   * Adds arguments of another request
+   *
+   * @param argPtr address of the first argument to add (its length field)
+   * @param num number of arguments to add
+   * @return address of the next argument
+   */
+  public long addArgs(long argPtr, int num) {
+    for (int i = 0; i < num; i++) {
+      int argSize = UnsafeAccess.toInt(argPtr);
+      add(argPtr + Utils.SIZEOF_INT, argSize);
+      argPtr += Utils.SIZEOF_INT + argSize;
+    }
+    return argPtr;
+  }
+
+  /**
+   * Finishes request
+   *
+   * @return request address
+   */
+  public long build() {
+    UnsafeAccess.putInt(ptr, numArgs);
+    return ptr;
+  }
+}
@@ -49,6 +49,17 @@ public class Utils {
   static final byte[] OK_RESP = "+OK\r\n".getBytes();
   static final byte[] CRLF = "\r\n".getBytes();
 
+  /*
+   * Argument offsets and sizes of a request, which is converted in place
+   */
+  private static ThreadLocal<int[]> argsTLS =
+      new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+          return new int[64];
+        }
+      };
+
   /**
    * Converts Redis request (raw) to an internal Carrot representation. Provided memory buffer MUST
    * be sufficient to keep all converted data
@@ -188,6 +199,83 @@ public class Utils {
     return true;
   }
 
+  /**
+   * Converts Redis request (array of bulk strings) to an internal Carrot representation in place -
+   * directly in the request buffer's memory, so command receives argument pointers into the network
+   * buffer. Every argument in RESP format takes more space than in Carrot format, therefore
+   * arguments can be shifted towards the end of a request. The last argument (usually, the largest
+   * one - value) is never moved.
+   *
+   * @param buf direct buffer, request starts at 0, position is the end of request. Buffer's position
+   *     and limit are not changed
+   * @return memory address of a converted request or 0 if request can not be converted in place
+   *     (not a direct buffer, inline request or wrong format)
+   */
+  public static long requestToCarrotInPlace(ByteBuffer buf) {
+    long address = UnsafeAccess.address(buf);
+    int limit = buf.position();
+    if (address <= 0 || limit == 0 || UnsafeAccess.toByte(address) != ARR_TYPE) {
+      return 0;
+    }
+    // Read array length
+    int pos = 1;
+    int len = 0;
+    byte b;
+    while (pos < limit && (b = UnsafeAccess.toByte(address + pos)) != '\r') {
+      if (b < '0' || b > '9') {
+        return 0;
+      }
+      len = len * 10 + (b - '0');
+      pos++;
+    }
+    pos += 2; // \r\n
+    if (len <= 0 || pos > limit) {
+      return 0;
+    }
+    int[] args = argsTLS.get();
+    if (args.length < 2 * len) {
+      args = new int[2 * len];
+      argsTLS.set(args);
+    }
+    // Collect argument offsets and sizes
+    for (int i = 0; i < len; i++) {
+      if (pos >= limit || UnsafeAccess.toByte(address + pos) != BULK_TYPE) {
+        return 0;
+      }
+      pos++;
+      int strlen = 0;
+      while (pos < limit && (b = UnsafeAccess.toByte(address + pos)) != '\r') {
+        if (b < '0' || b > '9') {
+          return 0;
+        }
+        strlen = strlen * 10 + (b - '0');
+        pos++;
+      }
+      pos += 2; // \r\n
+      if (strlen <= 0 || pos + strlen + 2 > limit) {
+        return 0;
+      }
+      args[2 * i] = pos;
+      args[2 * i + 1] = strlen;
+      pos += strlen + 2; // 2 - \r\n
+    }
+    // Build Carrot representation backwards, starting from the end of the last argument
+    long ptr = address + args[2 * len - 2] + args[2 * len - 1];
+    for (int i = len - 1; i >= 0; i--) {
+      int strlen = args[2 * i + 1];
+      ptr -= strlen;
+      long src = address + args[2 * i];
+      if (src != ptr) {
+        UnsafeAccess.move(src, ptr, strlen);
+      }
+      ptr -= SIZEOF_INT;
+      UnsafeAccess.putInt(ptr, strlen);
+    }
+    ptr -= SIZEOF_INT;
+    UnsafeAccess.putInt(ptr, len);
+    return ptr;
+  }
+
   /**
    * Converts Redis request (raw) to an internal Carrot representation. Provided memory buffer MUST
    * be sufficient to keep all converted data
@@ -336,6 +424,16 @@ public class Utils {
     return sb.toString();
   }
 
+  /**
+   * Is white space (inline request ends with CR/LF, which is a separator as well)
+   *
+   * @param b byte
+   * @return true or false
+   */
+  private static boolean isWhiteSpace(byte b) {
+    return b == ' ' || b == '\r' || b == '\n';
+  }
+
   /**
    * Skips white spaces
    *
@@ -345,7 +443,7 @@ public class Utils {
     int skipped = 0;
     int pos = buf.position();
     int remaining = buf.remaining();
-    while (skipped < remaining && buf.get() == (byte) ' ') skipped++;
+    while (skipped < remaining && isWhiteSpace(buf.get())) skipped++;
     buf.position(pos + skipped);
   }
 
@@ -359,19 +457,19 @@ public class Utils {
     int skipped = 0;
     int pos = buf.position();
     int remaining = buf.remaining();
-    while (skipped < remaining && buf.get() != (byte) ' ') skipped++;
+    while (skipped < remaining && !isWhiteSpace(buf.get())) skipped++;
     buf.position(pos);
     return skipped;
   }
 
   /**
-   * Converts internal Carrot message to a Redis response format
+   * Converts internal Carrot message to a Redis response format. Response is appended at the
+   * current buffer's position (pipelined requests)
    *
    * @param ptr memory address of a serialized Carrot response
    * @param buf Redis response buffer
    */
   public static void carrotToRedisResponse(long ptr, ByteBuffer buf) {
-    buf.rewind();
     int val = UnsafeAccess.toByte(ptr);
     ReplyType type = ReplyType.values()[val];
 
@@ -565,7 +663,6 @@ public class Utils {
     int msgLen = UnsafeAccess.toInt(ptr);
     ptr += SIZEOF_INT;
     UnsafeAccess.copy(ptr, buf, msgLen);
-    buf.position(SIZEOF_BYTE + msgLen);
     buf.put(CRLF);
   }
 
@@ -21,6 +21,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -33,6 +34,7 @@ import org.bigbase.carrot.redis.sets.SetAdd;
 import org.bigbase.carrot.redis.sets.SetScanner;
 import org.bigbase.carrot.redis.sets.Sets;
 import org.bigbase.carrot.redis.util.Aggregate;
+import org.bigbase.carrot.redis.util.CollectionHeader;
 import org.bigbase.carrot.redis.util.DataType;
 import org.bigbase.carrot.redis.util.MutationOptions;
 import org.bigbase.carrot.util.Key;
@@ -530,10 +532,14 @@ public class ZSets {
 
       // Redis lock
       KeysLocker.writeLock(k);
-
+      if (!CollectionHeader.reserve(map, DataType.SET, keyPtr, keySize)) {
+        return 0;
+      }
       int toAdd = memberPtrs.length;
       int inserted = 0;
       int updated = 0;
+      int added = 0;
+      long bytes = 0;
       long count = ZCARD(map, keyPtr, keySize, false);
       RedisConf conf = RedisConf.getInstance();
       int maxCompactSize = conf.getMaxZSetCompactSize();
@@ -556,7 +562,11 @@ public class ZSets {
         add.setKeyAddress(keyArena.get());
         add.setKeySize(kSize);
         // add.setMutationOptions(options);
-        map.execute(add);
+        if (map.execute(add)) {
+          int size = memberSizes[i] + Utils.SIZEOF_DOUBLE;
+          added++;
+          bytes += Utils.sizeUVInt(size) + size;
+        }
         if (!existed) {
           inserted++;
         } else if (changed && prevScore != scores[i]) {
@@ -564,6 +574,7 @@ public class ZSets {
         }
       }
 
+      CollectionHeader.update(map, DataType.SET, keyPtr, keySize, added, bytes);
       // Next do hash
 
       if (compactMode && (count + inserted) >= maxCompactSize) {
@@ -952,8 +963,12 @@ public class ZSets {
       int[] memberSizes,
       MutationOptions options) {
 
+    if (!CollectionHeader.reserve(map, DataType.HASH, keyPtr, keySize)) {
+      return 0;
+    }
     int toAdd = memberPtrs.length;
     long count = 0;
+    long bytes = 0;
     for (int i = 0; i < toAdd; i++) {
       long fieldPtr = memberPtrs[i];
       int fieldSize = memberSizes[i];
@@ -971,9 +986,12 @@ public class ZSets {
       set.setOptions(options);
       // version?
       if (map.execute(set)) {
-        count++;
+        // Existing member's score is updated in place
+        count += set.getAdded();
+        bytes += set.getSizeDelta();
       }
     }
+    CollectionHeader.update(map, DataType.HASH, keyPtr, keySize, count, bytes);
     return count;
   }
   /**
@@ -1132,7 +1150,6 @@ public class ZSets {
       boolean maxInclusive) {
 
     Key k = getKey(keyPtr, keySize);
-    long count = 0;
     long startPtr = 0, stopPtr = 0;
     try {
       KeysLocker.readLock(k);
@@ -1156,33 +1173,62 @@ public class ZSets {
           startSize = 0;
         }
       }
-      // TODO: can be optimized for speed: see Sets SCOUNT
-      SetScanner scanner =
-          Sets.getScanner(map, keyPtr, keySize, startPtr, startSize, stopPtr, stopSize, false);
-      try {
-
-        if (scanner == null) {
-          return 0;
-        }
-        while (scanner.hasNext()) {
-          count++;
-          scanner.next();
-        }
-      } catch (IOException e) {
-        // Should not be here
-      } finally {
-        try {
-          if (scanner != null) scanner.close();
-        } catch (IOException e) {
-        }
-      }
-      return count;
+      return Sets.SCOUNT(map, keyPtr, keySize, startPtr, startSize, stopPtr, stopSize, false);
     } finally {
       if (startPtr != 0) UnsafeAccess.free(startPtr);
       if (stopPtr != 0) UnsafeAccess.free(stopPtr);
       KeysLocker.readUnlock(k);
     }
   }
+  /**
+   * Available since 6.2.0. Time complexity: O(L + (N-K)log(N)) worst case where L is the total
+   * number of elements in all the sets, N is the size of the first set, and K is the size of the
+   * result set. This command is similar to ZDIFFSTORE, but instead of storing the resulting sorted
+   * set, it is returned to the client. Return value Array reply: the result of the difference
+   * (optionally with their scores, in case the WITHSCORES option is given).
+   *
+   * <p>Serialized format is the same as in ZRANGE
+   *
+   * @param map sorted map storage
+   * @param keyPtrs sorted sets keys
+   * @param keySizes sorted sets key sizes
+   * @param withScores with scores?
+   * @param buffer buffer address
+   * @param bufferSize buffer size
+   * @return total serialized size of a response, if it is greater than bufferSize - repeat call
+   *     with appropriately sized buffer
+   */
+  public static long ZDIFF(
+      BigSortedMap map,
+      long[] keyPtrs,
+      int[] keySizes,
+      boolean withScores,
+      long buffer,
+      int bufferSize) {
+    return execute(
+        map, keyPtrs, keySizes, null, Aggregate.SUM, withScores, buffer, bufferSize, OP_DIFF);
+  }
+
+  /**
+   * Available since 6.2.0. Time complexity: O(L + (N-K)log(N)) worst case where L is the total
+   * number of elements in all the sets, N is the size of the first set, and K is the size of the
+   * result set. Computes the difference between the first and all successive input sorted sets and
+   * stores the result in destination. Non-existing keys are considered as empty sets. If
+   * destination already exists, it is overwritten. Return value Integer reply: the number of
+   * elements in the resulting sorted set at destination.
+   *
+   * @param map sorted map storage
+   * @param dstKeyPtr destination key address
+   * @param dstKeySize destination key size
+   * @param keys sorted sets keys
+   * @param keySizes sorted sets key sizes
+   * @return number of members in a destination set
+   */
+  public static long ZDIFFSTORE(
+      BigSortedMap map, long dstKeyPtr, int dstKeySize, long[] keys, int[] keySizes) {
+    return store(map, dstKeyPtr, dstKeySize, keys, keySizes, null, Aggregate.SUM, OP_DIFF);
+  }
+
   /**
    * For testing only
    *
@@ -1318,6 +1364,39 @@ public class ZSets {
     return score;
   }
 
+  /**
+   * Available since 6.2.0. Time complexity: O(N*K)+O(M*log(M)) worst case with N being the smallest
+   * input sorted set, K being the number of input sorted sets and M being the number of elements in
+   * the resulting sorted set. This command is similar to ZINTERSTORE, but instead of storing the
+   * resulting sorted set, it is returned to the client. Return value Array reply: the result of
+   * intersection (optionally with their scores, in case the WITHSCORES option is given).
+   *
+   * <p>Serialized format is the same as in ZRANGE
+   *
+   * @param map sorted map storage
+   * @param keyPtrs sorted sets keys
+   * @param keySizes sorted sets key sizes
+   * @param weights corresponding weights (can be null)
+   * @param aggregate aggregate function
+   * @param withScores with scores?
+   * @param buffer buffer address
+   * @param bufferSize buffer size
+   * @return total serialized size of a response, if it is greater than bufferSize - repeat call
+   *     with appropriately sized buffer
+   */
+  public static long ZINTER(
+      BigSortedMap map,
+      long[] keyPtrs,
+      int[] keySizes,
+      double[] weights,
+      Aggregate aggregate,
+      boolean withScores,
+      long buffer,
+      int bufferSize) {
+    return execute(
+        map, keyPtrs, keySizes, weights, aggregate, withScores, buffer, bufferSize, OP_INTER);
+  }
+
   /**
    * Available since 2.0.0. Time complexity: O(N*K)+O(M*log(M)) worst case with N being the smallest
    * input sorted set, K being the number of input sorted sets and M being the number of elements in
@@ -1348,8 +1427,7 @@ public class ZSets {
       int[] keySizes,
       double[] weights,
       Aggregate aggregate) {
-    // TODO
-    return 0;
+    return store(map, dstKeyPtr, dstKeySize, keys, keySizes, weights, aggregate, OP_INTER);
   }
 
   /**
@@ -2127,6 +2205,7 @@ public class ZSets {
         freeStart = true;
       }
       key = getKey(keyPtr, keySize);
+      KeysLocker.readLock(key);
       // Clean first 4 bytes
       UnsafeAccess.putInt(buffer, 0);
       int counter = 0;
@@ -2146,8 +2225,6 @@ public class ZSets {
         limit = Long.MAX_VALUE / 2; // VERY LARGE
       }
 
-      KeysLocker.readLock(key);
-
       ptr = buffer + Utils.SIZEOF_INT;
       // make sure first 4 bytes does not contain garbage
       UnsafeAccess.putInt(buffer, 0);
@@ -2793,14 +2870,73 @@ public class ZSets {
   public static long ZRANK(
       BigSortedMap map, long keyPtr, int keySize, long memberPtr, int memberSize) {
     if (memberPtr <= 0) return -1;
-    long rank = 0;
     Key key = getKey(keyPtr, keySize);
-    // TODO this operation can be optimized
-    // Use hash to retrieve score?
-    // See Sets SCOUNT (not implemented yet)
-    SetScanner scanner = null;
     try {
       KeysLocker.readLock(key);
+      long cardinality = ZCARD(map, keyPtr, keySize, false);
+      return rank(map, keyPtr, keySize, memberPtr, memberSize, cardinality, false);
+    } finally {
+      KeysLocker.readUnlock(key);
+    }
+  }
+
+  /**
+   * Returns the rank of member. In a normal mode we get score from the hash and count set elements
+   * preceding (score, member) pair (or following it, for a reverse rank) with Sets.SCOUNT, which
+   * accounts whole K-V chunks by their element counters, so only the chunks between the member and
+   * the set's beginning (or end) are visited. In a compact mode the set is small enough to be
+   * scanned. Caller must hold the key's lock.
+   *
+   * @param map sorted map storage
+   * @param keyPtr sorted set key address
+   * @param keySize sorted set key size
+   * @param memberPtr member name address
+   * @param memberSize member name size
+   * @param cardinality sorted set cardinality
+   * @param reverse if true, scores are ordered from high to low
+   * @return rank (0- based) or -1 if key or member do not exist
+   */
+  private static long rank(
+      BigSortedMap map,
+      long keyPtr,
+      int keySize,
+      long memberPtr,
+      int memberSize,
+      long cardinality,
+      boolean reverse) {
+    if (cardinality == 0) {
+      return -1;
+    }
+    int maxCompactSize = RedisConf.getInstance().getMaxZSetCompactSize();
+    if (cardinality >= maxCompactSize) {
+      int size =
+          Hashes.HGET(
+              map,
+              keyPtr,
+              keySize,
+              memberPtr,
+              memberSize,
+              valueArena.get(),
+              valueArenaSize.get(),
+              false);
+      if (size < 0) {
+        return -1;
+      }
+      // Build score-member pair
+      int mSize = memberSize + Utils.SIZEOF_DOUBLE;
+      checkAuxArena(mSize);
+      long mPtr = auxArena.get();
+      UnsafeAccess.copy(valueArena.get(), mPtr, Utils.SIZEOF_DOUBLE);
+      UnsafeAccess.copy(memberPtr, mPtr + Utils.SIZEOF_DOUBLE, memberSize);
+      if (reverse) {
+        // Elements after the member
+        return Sets.SCOUNT(map, keyPtr, keySize, mPtr, mSize, 0, 0, false) - 1;
+      }
+      return Sets.SCOUNT(map, keyPtr, keySize, 0, 0, mPtr, mSize, false);
+    }
+    long rank = 0;
+    SetScanner scanner = null;
+    try {
       scanner = Sets.getScanner(map, keyPtr, keySize, false);
       if (scanner == null) {
         return -1;
@@ -2812,7 +2948,7 @@ public class ZSets {
         if (Utils.compareTo(
                 mPtr + Utils.SIZEOF_DOUBLE, mSize - Utils.SIZEOF_DOUBLE, memberPtr, memberSize)
             == 0) {
-          return rank;
+          return reverse ? cardinality - rank - 1 : rank;
         }
         rank++;
         scanner.next();
@@ -2825,7 +2961,6 @@ public class ZSets {
         } catch (IOException e) {
         }
       }
-      KeysLocker.readUnlock(key);
     }
     return -1;
   }
@@ -4642,39 +4777,15 @@ public class ZSets {
    */
   public static long ZREVRANK(
       BigSortedMap map, long keyPtr, int keySize, long memberPtr, int memberSize) {
-    // TODO: Optimize
-    long rank = 0;
+    if (memberPtr <= 0) return -1;
     Key key = getKey(keyPtr, keySize);
-    // TODO this operation can be optimized
-    SetScanner scanner = null;
     try {
       KeysLocker.readLock(key);
-      scanner = Sets.getScanner(map, keyPtr, keySize, false, true);
-      if (scanner == null) {
-        return -1;
-      }
-      do {
-        long mPtr = scanner.memberAddress();
-        int mSize = scanner.memberSize();
-        // First 8 bytes - score, skip it
-        if (Utils.compareTo(
-                mPtr + Utils.SIZEOF_DOUBLE, mSize - Utils.SIZEOF_DOUBLE, memberPtr, memberSize)
-            == 0) {
-          return rank;
-        }
-        rank++;
-      } while (scanner.previous());
-    } catch (IOException e) {
+      long cardinality = ZCARD(map, keyPtr, keySize, false);
+      return rank(map, keyPtr, keySize, memberPtr, memberSize, cardinality, true);
     } finally {
-      if (scanner != null) {
-        try {
-          scanner.close();
-        } catch (IOException e) {
-        }
-      }
       KeysLocker.readUnlock(key);
     }
-    return -1;
   }
 
   /**
@@ -5136,6 +5247,39 @@ public class ZSets {
     // Return full serialized size of a response
     return ptr - bufferPtr;
   }
+  /**
+   * Available since 6.2.0. Time complexity: O(N)+O(M*log(M)) with N being the sum of the sizes of
+   * the input sorted sets, and M being the number of elements in the resulting sorted set. This
+   * command is similar to ZUNIONSTORE, but instead of storing the resulting sorted set, it is
+   * returned to the client. Return value Array reply: the result of union (optionally with their
+   * scores, in case the WITHSCORES option is given).
+   *
+   * <p>Serialized format is the same as in ZRANGE
+   *
+   * @param map sorted map storage
+   * @param keyPtrs sorted sets keys
+   * @param keySizes sorted sets key sizes
+   * @param weights corresponding weights (can be null)
+   * @param aggregate aggregate function
+   * @param withScores with scores?
+   * @param buffer buffer address
+   * @param bufferSize buffer size
+   * @return total serialized size of a response, if it is greater than bufferSize - repeat call
+   *     with appropriately sized buffer
+   */
+  public static long ZUNION(
+      BigSortedMap map,
+      long[] keyPtrs,
+      int[] keySizes,
+      double[] weights,
+      Aggregate aggregate,
+      boolean withScores,
+      long buffer,
+      int bufferSize) {
+    return execute(
+        map, keyPtrs, keySizes, weights, aggregate, withScores, buffer, bufferSize, OP_UNION);
+  }
+
   /**
    * Available since 2.0.0. Time complexity: O(N)+O(M log(M)) with N being the sum of the sizes of
    * the input sorted sets, and M being the number of elements in the resulting sorted set. Computes
@@ -5170,7 +5314,789 @@ public class ZSets {
       int[] keySizes,
       double[] weights,
       Aggregate aggregate) {
-    return 0;
+    return store(map, dstKeyPtr, dstKeySize, keys, keySizes, weights, aggregate, OP_UNION);
+  }
+
+  /*
+   * Multi sorted set operations
+   */
+  private static final int OP_INTER = 0;
+  private static final int OP_UNION = 1;
+  private static final int OP_DIFF = 2;
+
+  /*
+   * Initial size of a buffer for multi sorted set operations
+   */
+  private static final int MERGE_BUFFER_SIZE = 64 * 1024;
+
+  /*
+   * Maximum number of sequential steps of a hash scanner before it is repositioned
+   * with an index lookup
+   */
+  private static final int MAX_SEEK_STEPS = 32;
+
+  /**
+   * Member ordered cursor over a sorted set. In a normal mode it iterates the member -> score hash,
+   * in a compact mode (sorted set has no hash) - the copy of set's members sorted by member.
+   */
+  private static final class MemberCursor {
+
+    private final BigSortedMap map;
+    private final long keyPtr;
+    private final int keySize;
+    private final double weight;
+    /* Normal mode */
+    private HashScanner scanner;
+    /* Compact mode */
+    private long buffer;
+    private List<ValueScore> members;
+    private int index;
+
+    private boolean closed;
+
+    MemberCursor(BigSortedMap map, long keyPtr, int keySize, double weight) {
+      this.map = map;
+      this.keyPtr = keyPtr;
+      this.keySize = keySize;
+      this.weight = weight;
+    }
+
+    /**
+     * Positions cursor on the first member
+     *
+     * @return true, false - sorted set is empty or does not exist (cursor is closed)
+     * @throws IOException
+     */
+    boolean open() throws IOException {
+      scanner = Hashes.getScanner(map, keyPtr, keySize, true);
+      if (scanner != null) {
+        return check(scanner.hasNext());
+      }
+      SetScanner setScanner = Sets.getScanner(map, keyPtr, keySize, true);
+      if (setScanner == null) {
+        return check(false);
+      }
+      members = new ArrayList<ValueScore>();
+      int capacity = 0;
+      int size = 0;
+      try {
+        while (setScanner.hasNext()) {
+          long mPtr = setScanner.memberAddress() + Utils.SIZEOF_DOUBLE;
+          int mSize = setScanner.memberSize() - Utils.SIZEOF_DOUBLE;
+          if (size + mSize > capacity) {
+            capacity = Math.max(2 * capacity, size + mSize + 1024);
+            buffer = buffer == 0 ? UnsafeAccess.malloc(capacity)
+                : UnsafeAccess.realloc(buffer, capacity);
+          }
+          UnsafeAccess.copy(mPtr, buffer + size, mSize);
+          // Keep offset until all members are copied
+          members.add(new ValueScore(size, mSize, Utils.lexToDouble(setScanner.memberAddress())));
+          size += mSize;
+          setScanner.next();
+        }
+      } finally {
+        setScanner.close();
+      }
+      for (ValueScore v : members) {
+        v.address += buffer;
+      }
+      Collections.sort(members, new Comparator<ValueScore>() {
+        @Override
+        public int compare(ValueScore o1, ValueScore o2) {
+          return Utils.compareTo(o1.address, o1.length, o2.address, o2.length);
+        }
+      });
+      index = 0;
+      return check(members.size() > 0);
+    }
+
+    long memberAddress() {
+      return scanner != null ? scanner.fieldAddress() : members.get(index).address;
+    }
+
+    int memberSize() {
+      return scanner != null ? scanner.fieldSize() : members.get(index).length;
+    }
+
+    /**
+     * Current member's weighted score
+     *
+     * @return score
+     */
+    double score() {
+      double score =
+          scanner != null
+              ? Utils.lexToDouble(scanner.fieldValueAddress())
+              : members.get(index).score;
+      score *= weight;
+      // inf * 0
+      return Double.isNaN(score) ? 0 : score;
+    }
+
+    int compareTo(long ptr, int size) {
+      return Utils.compareTo(memberAddress(), memberSize(), ptr, size);
+    }
+
+    int compareTo(MemberCursor c) {
+      return compareTo(c.memberAddress(), c.memberSize());
+    }
+
+    /**
+     * Advances cursor to the next member
+     *
+     * @return true, false - no more members (cursor is closed)
+     * @throws IOException
+     */
+    boolean next() throws IOException {
+      if (scanner != null) {
+        return check(scanner.next() && scanner.hasNext());
+      }
+      return check(++index < members.size());
+    }
+
+    /**
+     * Positions cursor on the first member greater or equal to a given one. Hash scanner makes a
+     * few sequential steps first and then gets repositioned with an index lookup.
+     *
+     * @param ptr member address
+     * @param size member size
+     * @return true, false - no more members (cursor is closed)
+     * @throws IOException
+     */
+    boolean seek(long ptr, int size) throws IOException {
+      if (scanner == null) {
+        int low = index, high = members.size();
+        while (low < high) {
+          int mid = (low + high) >>> 1;
+          ValueScore v = members.get(mid);
+          if (Utils.compareTo(v.address, v.length, ptr, size) < 0) {
+            low = mid + 1;
+          } else {
+            high = mid;
+          }
+        }
+        index = low;
+        return check(index < members.size());
+      }
+      for (int i = 0; i < MAX_SEEK_STEPS; i++) {
+        if (compareTo(ptr, size) >= 0) {
+          return true;
+        }
+        if (!next()) {
+          return false;
+        }
+      }
+      if (compareTo(ptr, size) >= 0) {
+        return true;
+      }
+      scanner.close();
+      scanner = Hashes.getScanner(map, keyPtr, keySize, ptr, size, 0, 0, true);
+      return check(scanner != null && scanner.hasNext());
+    }
+
+    boolean isClosed() {
+      return closed;
+    }
+
+    private boolean check(boolean valid) throws IOException {
+      if (!valid) {
+        close();
+      }
+      return valid;
+    }
+
+    void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (buffer != 0) {
+        UnsafeAccess.free(buffer);
+        buffer = 0;
+      }
+      if (scanner != null) {
+        HashScanner s = scanner;
+        scanner = null;
+        s.close();
+      }
+    }
+  }
+
+  /**
+   * Builds list of keys for group locking
+   *
+   * @param keyPtrs array of key addresses
+   * @param keySizes array of key sizes
+   * @return list of keys
+   */
+  private static List<Key> toKeyList(long[] keyPtrs, int[] keySizes) {
+    List<Key> keys = new ArrayList<Key>(keyPtrs.length + 1);
+    for (int i = 0; i < keyPtrs.length; i++) {
+      keys.add(new Key(keyPtrs[i], keySizes[i]));
+    }
+    return keys;
+  }
+
+  /**
+   * Executes multi sorted set operation and returns result sorted by score
+   *
+   * @param map sorted map storage
+   * @param keyPtrs sorted sets keys
+   * @param keySizes sorted sets key sizes
+   * @param weights corresponding weights (can be null)
+   * @param aggregate aggregate function
+   * @param withScores with scores?
+   * @param buffer buffer address
+   * @param bufferSize buffer size
+   * @param op operation
+   * @return total serialized size of a response
+   */
+  private static long execute(
+      BigSortedMap map,
+      long[] keyPtrs,
+      int[] keySizes,
+      double[] weights,
+      Aggregate aggregate,
+      boolean withScores,
+      long buffer,
+      int bufferSize,
+      int op) {
+    List<Key> keys = toKeyList(keyPtrs, keySizes);
+    long result = 0;
+    try {
+      KeysLocker.readLockAllKeys(keys);
+      result = merge(map, keyPtrs, keySizes, weights, aggregate, op);
+    } finally {
+      KeysLocker.readUnlockAllKeys(keys);
+    }
+    try {
+      long[] ptrs = sortByScore(result);
+      UnsafeAccess.putInt(buffer, 0);
+      long ptr = buffer + Utils.SIZEOF_INT;
+      int count = 0;
+      for (long p : ptrs) {
+        int size = Utils.readUVInt(p);
+        int sizeSize = Utils.sizeUVInt(size);
+        long mPtr = withScores ? p + sizeSize : p + sizeSize + Utils.SIZEOF_DOUBLE;
+        int mSize = withScores ? size : size - Utils.SIZEOF_DOUBLE;
+        int mSizeSize = Utils.sizeUVInt(mSize);
+        if (ptr + mSize + mSizeSize <= buffer + bufferSize) {
+          Utils.writeUVInt(ptr, mSize);
+          UnsafeAccess.copy(mPtr, ptr + mSizeSize, mSize);
+          UnsafeAccess.putInt(buffer, ++count);
+        }
+        ptr += mSize + mSizeSize;
+      }
+      return ptr - buffer;
+    } finally {
+      UnsafeAccess.free(result);
+    }
+  }
+
+  /**
+   * Executes multi sorted set operation and stores result in the destination. Result is collected
+   * into a buffer first, because source scanners keep index blocks read locked and destination can
+   * be one of the sources. Then destination is replaced with a bulk-loaded hash (member order) and
+   * set (score order).
+   *
+   * @param map sorted map storage
+   * @param dstKeyPtr destination key address
+   * @param dstKeySize destination key size
+   * @param keyPtrs sorted sets keys
+   * @param keySizes sorted sets key sizes
+   * @param weights corresponding weights (can be null)
+   * @param aggregate aggregate function
+   * @param op operation
+   * @return number of members in a destination set
+   */
+  private static long store(
+      BigSortedMap map,
+      long dstKeyPtr,
+      int dstKeySize,
+      long[] keyPtrs,
+      int[] keySizes,
+      double[] weights,
+      Aggregate aggregate,
+      int op) {
+    List<Key> keys = toKeyList(keyPtrs, keySizes);
+    keys.add(new Key(dstKeyPtr, dstKeySize));
+    long result = 0;
+    long buffer = 0;
+    try {
+      KeysLocker.writeLockAllKeys(keys);
+      result = merge(map, keyPtrs, keySizes, weights, aggregate, op);
+      Sets.DELETE(map, dstKeyPtr, dstKeySize, false);
+      Hashes.DELETE(map, dstKeyPtr, dstKeySize, false);
+      int total = UnsafeAccess.toInt(result);
+      if (total == 0) {
+        return 0;
+      }
+      long[] ptrs = sortByScore(result);
+      long size = Utils.SIZEOF_INT;
+      for (long p : ptrs) {
+        int mSize = Utils.readUVInt(p);
+        size += mSize + Utils.sizeUVInt(mSize) + Utils.SIZEOF_BYTE;
+      }
+      buffer = UnsafeAccess.malloc(size);
+      if (total >= RedisConf.getInstance().getMaxZSetCompactSize()) {
+        // Hash: [SIZE][SIZE][MEMBER][SCORE] in member order
+        UnsafeAccess.putInt(buffer, total);
+        long src = result + Utils.SIZEOF_INT;
+        long dst = buffer + Utils.SIZEOF_INT;
+        for (int i = 0; i < total; i++) {
+          int mSize = Utils.readUVInt(src);
+          int mSizeSize = Utils.sizeUVInt(mSize);
+          int fSize = mSize - Utils.SIZEOF_DOUBLE;
+          dst += Utils.writeUVInt(dst, fSize);
+          dst += Utils.writeUVInt(dst, Utils.SIZEOF_DOUBLE);
+          UnsafeAccess.copy(src + mSizeSize + Utils.SIZEOF_DOUBLE, dst, fSize);
+          dst += fSize;
+          UnsafeAccess.copy(src + mSizeSize, dst, Utils.SIZEOF_DOUBLE);
+          dst += Utils.SIZEOF_DOUBLE;
+          src += mSize + mSizeSize;
+        }
+        Hashes.load(map, dstKeyPtr, dstKeySize, buffer);
+      }
+      // Set: [SIZE][SCORE][MEMBER] in score order
+      UnsafeAccess.putInt(buffer, total);
+      long dst = buffer + Utils.SIZEOF_INT;
+      for (long p : ptrs) {
+        int mSize = Utils.readUVInt(p);
+        int len = mSize + Utils.sizeUVInt(mSize);
+        UnsafeAccess.copy(p, dst, len);
+        dst += len;
+      }
+      return Sets.load(map, dstKeyPtr, dstKeySize, buffer);
+    } finally {
+      KeysLocker.writeUnlockAllKeys(keys);
+      if (result != 0) {
+        UnsafeAccess.free(result);
+      }
+      if (buffer != 0) {
+        UnsafeAccess.free(buffer);
+      }
+    }
+  }
+
+  /**
+   * Executes multi sorted set operation into a newly allocated buffer, which must be freed by a
+   * caller
+   *
+   * @param map sorted map storage
+   * @param keyPtrs sorted sets keys
+   * @param keySizes sorted sets key sizes
+   * @param weights corresponding weights (can be null)
+   * @param aggregate aggregate function
+   * @param op operation
+   * @return buffer address, members are in member order: [NUMBER][SIZE,SCORE,MEMBER]+
+   */
+  private static long merge(
+      BigSortedMap map,
+      long[] keyPtrs,
+      int[] keySizes,
+      double[] weights,
+      Aggregate aggregate,
+      int op) {
+    int bufferSize = MERGE_BUFFER_SIZE;
+    long buffer = UnsafeAccess.malloc(bufferSize);
+    long size;
+    while ((size = merge(map, keyPtrs, keySizes, weights, aggregate, op, buffer, bufferSize))
+        > bufferSize) {
+      bufferSize = (int) size;
+      buffer = UnsafeAccess.realloc(buffer, bufferSize);
+    }
+    return buffer;
+  }
+
+  private static long merge(
+      BigSortedMap map,
+      long[] keyPtrs,
+      int[] keySizes,
+      double[] weights,
+      Aggregate aggregate,
+      int op,
+      long buffer,
+      int bufferSize) {
+    int n = keyPtrs.length;
+    MemberCursor[] cursors = new MemberCursor[n];
+    for (int i = 0; i < n; i++) {
+      double weight = weights == null ? 1 : weights[i];
+      cursors[i] = new MemberCursor(map, keyPtrs[i], keySizes[i], weight);
+    }
+    UnsafeAccess.putInt(buffer, 0);
+    try {
+      switch (op) {
+        case OP_INTER:
+          return zinter(cursors, aggregate, buffer, bufferSize);
+        case OP_UNION:
+          return zunion(cursors, aggregate, buffer, bufferSize);
+        default:
+          return zdiff(cursors, buffer, bufferSize);
+      }
+    } catch (IOException e) {
+      log.error("StackTrace: ", e);
+      return Utils.SIZEOF_INT;
+    } finally {
+      for (MemberCursor c : cursors) {
+        try {
+          c.close();
+        } catch (IOException e) {
+        }
+      }
+    }
+  }
+
+  /**
+   * Intersection of sorted sets (leapfrog join): every cursor in turn seeks to the current
+   * candidate, so the sparsest set drives the merge
+   *
+   * @param cursors member cursors
+   * @param aggregate aggregate function
+   * @param buffer buffer for result
+   * @param bufferSize size of the buffer
+   * @return total serialized size of the result
+   * @throws IOException
+   */
+  private static long zinter(
+      MemberCursor[] cursors, Aggregate aggregate, long buffer, int bufferSize)
+      throws IOException {
+    int n = cursors.length;
+    long ptr = buffer + Utils.SIZEOF_INT;
+    for (int i = 0; i < n; i++) {
+      if (!cursors[i].open()) {
+        return ptr - buffer;
+      }
+    }
+    // Cursor, which holds the current candidate
+    int cur = 0;
+    int matched = 1;
+    while (true) {
+      if (matched == n) {
+        double score = cursors[0].score();
+        for (int i = 1; i < n; i++) {
+          score = aggregate(aggregate, score, cursors[i].score());
+        }
+        ptr = write(cursors[cur], score, ptr, buffer, bufferSize);
+        if (!cursors[cur].next()) {
+          break;
+        }
+        matched = 1;
+        continue;
+      }
+      int i = (cur + matched) % n;
+      MemberCursor c = cursors[cur];
+      if (!cursors[i].seek(c.memberAddress(), c.memberSize())) {
+        break;
+      }
+      if (cursors[i].compareTo(c) == 0) {
+        matched++;
+      } else {
+        cur = i;
+        matched = 1;
+      }
+    }
+    return ptr - buffer;
+  }
+
+  /**
+   * Union of sorted sets (k-way merge with a priority queue)
+   *
+   * @param cursors member cursors
+   * @param aggregate aggregate function
+   * @param buffer buffer for result
+   * @param bufferSize size of the buffer
+   * @return total serialized size of the result
+   * @throws IOException
+   */
+  private static long zunion(
+      MemberCursor[] cursors, Aggregate aggregate, long buffer, int bufferSize)
+      throws IOException {
+    long ptr = buffer + Utils.SIZEOF_INT;
+    PriorityQueue<MemberCursor> queue =
+        new PriorityQueue<MemberCursor>(
+            cursors.length,
+            new Comparator<MemberCursor>() {
+              @Override
+              public int compare(MemberCursor o1, MemberCursor o2) {
+                return o1.compareTo(o2);
+              }
+            });
+    for (MemberCursor c : cursors) {
+      if (c.open()) {
+        queue.add(c);
+      }
+    }
+    List<MemberCursor> same = new ArrayList<MemberCursor>();
+    while (!queue.isEmpty()) {
+      MemberCursor min = queue.poll();
+      double score = min.score();
+      while (!queue.isEmpty() && queue.peek().compareTo(min) == 0) {
+        MemberCursor c = queue.poll();
+        score = aggregate(aggregate, score, c.score());
+        same.add(c);
+      }
+      ptr = write(min, score, ptr, buffer, bufferSize);
+      same.add(min);
+      for (MemberCursor c : same) {
+        if (c.next()) {
+          queue.add(c);
+        }
+      }
+      same.clear();
+    }
+    return ptr - buffer;
+  }
+
+  /**
+   * Difference of the first sorted set and all successive ones: other cursors seek to the current
+   * member of the first one. Scores are taken from the first sorted set.
+   *
+   * @param cursors member cursors
+   * @param buffer buffer for result
+   * @param bufferSize size of the buffer
+   * @return total serialized size of the result
+   * @throws IOException
+   */
+  private static long zdiff(MemberCursor[] cursors, long buffer, int bufferSize)
+      throws IOException {
+    int n = cursors.length;
+    long ptr = buffer + Utils.SIZEOF_INT;
+    MemberCursor first = cursors[0];
+    if (!first.open()) {
+      return ptr - buffer;
+    }
+    for (int i = 1; i < n; i++) {
+      cursors[i].open();
+    }
+    do {
+      boolean found = false;
+      for (int i = 1; i < n && !found; i++) {
+        MemberCursor c = cursors[i];
+        if (c.isClosed()) {
+          continue;
+        }
+        found = c.seek(first.memberAddress(), first.memberSize()) && c.compareTo(first) == 0;
+      }
+      if (!found) {
+        ptr = write(first, first.score(), ptr, buffer, bufferSize);
+      }
+    } while (first.next());
+    return ptr - buffer;
+  }
+
+  private static double aggregate(Aggregate aggregate, double v1, double v2) {
+    switch (aggregate) {
+      case MIN:
+        return Math.min(v1, v2);
+      case MAX:
+        return Math.max(v1, v2);
+      default:
+        double v = v1 + v2;
+        // inf + -inf
+        return Double.isNaN(v) ? 0 : v;
+    }
+  }
+
+  /**
+   * Writes cursor's current member with a score to the output buffer (if it fits)
+   *
+   * @param c member cursor
+   * @param score score
+   * @param ptr current buffer address
+   * @param buffer buffer address
+   * @param bufferSize buffer size
+   * @return next buffer address
+   */
+  private static long write(MemberCursor c, double score, long ptr, long buffer, int bufferSize) {
+    int mSize = c.memberSize() + Utils.SIZEOF_DOUBLE;
+    int mSizeSize = Utils.sizeUVInt(mSize);
+    if (ptr + mSize + mSizeSize <= buffer + bufferSize) {
+      Utils.writeUVInt(ptr, mSize);
+      Utils.doubleToLex(ptr + mSizeSize, score);
+      UnsafeAccess.copy(
+          c.memberAddress(), ptr + mSizeSize + Utils.SIZEOF_DOUBLE, c.memberSize());
+      UnsafeAccess.putInt(buffer, UnsafeAccess.toInt(buffer) + 1);
+    }
+    return ptr + mSize + mSizeSize;
+  }
+
+  /**
+   * Sorts serialized members by score and member (as in the sorted set's Set)
+   *
+   * @param buffer serialized members: [NUMBER][SIZE,SCORE,MEMBER]+
+   * @return addresses of serialized members in score order
+   */
+  private static long[] sortByScore(long buffer) {
+    int total = UnsafeAccess.toInt(buffer);
+    Long[] ptrs = new Long[total];
+    long ptr = buffer + Utils.SIZEOF_INT;
+    for (int i = 0; i < total; i++) {
+      ptrs[i] = ptr;
+      int size = Utils.readUVInt(ptr);
+      ptr += size + Utils.sizeUVInt(size);
+    }
+    Arrays.sort(
+        ptrs,
+        new Comparator<Long>() {
+          @Override
+          public int compare(Long p1, Long p2) {
+            int size1 = Utils.readUVInt(p1);
+            int size2 = Utils.readUVInt(p2);
+            return Utils.compareTo(
+                p1 + Utils.sizeUVInt(size1), size1, p2 + Utils.sizeUVInt(size2), size2);
+          }
+        });
+    long[] result = new long[total];
+    for (int i = 0; i < total; i++) {
+      result[i] = ptrs[i];
+    }
+    return result;
+  }
+
+  /**
+   * For testing only
+   *
+   * @param keys sorted sets keys
+   * @param sizes array for key sizes
+   * @return array of key addresses
+   */
+  private static long[] allocKeys(String[] keys, int[] sizes) {
+    long[] ptrs = new long[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      ptrs[i] = UnsafeAccess.allocAndCopy(keys[i], 0, keys[i].length());
+      sizes[i] = keys[i].length();
+    }
+    return ptrs;
+  }
+
+  /**
+   * For testing only
+   *
+   * @param map sorted map storage
+   * @param keys sorted sets keys
+   * @param weights weights (can be null)
+   * @param aggregate aggregate function
+   * @param withScores with scores?
+   * @param bufSize buffer size
+   * @param op operation
+   * @return list of pairs {member, member} or {member, score}
+   */
+  private static List<Pair<String>> execute(
+      BigSortedMap map,
+      String[] keys,
+      double[] weights,
+      Aggregate aggregate,
+      boolean withScores,
+      int bufSize,
+      int op) {
+    int[] sizes = new int[keys.length];
+    long[] ptrs = allocKeys(keys, sizes);
+    long buffer = UnsafeAccess.malloc(bufSize);
+    try {
+      long result =
+          execute(map, ptrs, sizes, weights, aggregate, withScores, buffer, bufSize, op);
+      List<Pair<String>> list = new ArrayList<Pair<String>>();
+      if (result > bufSize || result <= 0) {
+        return list;
+      }
+      int total = UnsafeAccess.toInt(buffer);
+      long ptr = buffer + Utils.SIZEOF_INT;
+      for (int i = 0; i < total; i++) {
+        int mSize = Utils.readUVInt(ptr);
+        int mSizeSize = Utils.sizeUVInt(mSize);
+        String member = null;
+        String sscore = null;
+        if (withScores) {
+          double score = Utils.lexToDouble(ptr + mSizeSize);
+          sscore = Double.toString(score);
+          member =
+              Utils.toString(ptr + mSizeSize + Utils.SIZEOF_DOUBLE, mSize - Utils.SIZEOF_DOUBLE);
+        } else {
+          member = Utils.toString(ptr + mSizeSize, mSize);
+          sscore = member;
+        }
+        list.add(new Pair<String>(member, sscore));
+        ptr += mSize + mSizeSize;
+      }
+      return list;
+    } finally {
+      Arrays.stream(ptrs).forEach(x -> UnsafeAccess.free(x));
+      UnsafeAccess.free(buffer);
+    }
+  }
+
+  /**
+   * For testing only
+   *
+   * @param map sorted map storage
+   * @param dst destination key
+   * @param keys sorted sets keys
+   * @param weights weights (can be null)
+   * @param aggregate aggregate function
+   * @param op operation
+   * @return number of members in a destination set
+   */
+  private static long store(
+      BigSortedMap map,
+      String dst,
+      String[] keys,
+      double[] weights,
+      Aggregate aggregate,
+      int op) {
+    int[] sizes = new int[keys.length];
+    long[] ptrs = allocKeys(keys, sizes);
+    long dstPtr = UnsafeAccess.allocAndCopy(dst, 0, dst.length());
+    try {
+      return store(map, dstPtr, dst.length(), ptrs, sizes, weights, aggregate, op);
+    } finally {
+      Arrays.stream(ptrs).forEach(x -> UnsafeAccess.free(x));
+      UnsafeAccess.free(dstPtr);
+    }
+  }
+
+  /** For testing only */
+  public static List<Pair<String>> ZINTER(
+      BigSortedMap map,
+      String[] keys,
+      double[] weights,
+      Aggregate aggregate,
+      boolean withScores,
+      int bufSize) {
+    return execute(map, keys, weights, aggregate, withScores, bufSize, OP_INTER);
+  }
+
+  /** For testing only */
+  public static List<Pair<String>> ZUNION(
+      BigSortedMap map,
+      String[] keys,
+      double[] weights,
+      Aggregate aggregate,
+      boolean withScores,
+      int bufSize) {
+    return execute(map, keys, weights, aggregate, withScores, bufSize, OP_UNION);
+  }
+
+  /** For testing only */
+  public static List<Pair<String>> ZDIFF(
+      BigSortedMap map, String[] keys, boolean withScores, int bufSize) {
+    return execute(map, keys, null, Aggregate.SUM, withScores, bufSize, OP_DIFF);
+  }
+
+  /** For testing only */
+  public static long ZINTERSTORE(
+      BigSortedMap map, String dst, String[] keys, double[] weights, Aggregate aggregate) {
+    return store(map, dst, keys, weights, aggregate, OP_INTER);
+  }
+
+  /** For testing only */
+  public static long ZUNIONSTORE(
+      BigSortedMap map, String dst, String[] keys, double[] weights, Aggregate aggregate) {
+    return store(map, dst, keys, weights, aggregate, OP_UNION);
+  }
+
+  /** For testing only */
+  public static long ZDIFFSTORE(BigSortedMap map, String dst, String[] keys) {
+    return store(map, dst, keys, null, Aggregate.SUM, OP_DIFF);
   }
 
   /**
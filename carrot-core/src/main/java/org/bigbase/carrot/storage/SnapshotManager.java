@@ -13,93 +13,374 @@
 */
 package org.bigbase.carrot.storage;
 
-import java.time.LocalDateTime;
-import java.util.Date;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.RedisConf;
 
-/** Snapshot Manager */
-public class SnapshotManager {
+/**
+ * Snapshot Manager. Single (JVM-wide) scheduler of snapshots of all stores (nodes) of a process.
+ * Snapshot of a registered store is taken automatically when one of its save points is reached:
+ * at least a given number of changes has been made during a given number of seconds since the
+ * last snapshot (see snapshot.save and snapshot.interval.seconds). SAVE and BGSAVE requests go
+ * through the same queue. Number of snapshots, which run concurrently, is limited by
+ * snapshot.max.concurrent, other snapshots wait in the queue. After a failed automatic snapshot
+ * next attempt is made not earlier than in RETRY_DELAY ms.
+ */
+public class SnapshotManager extends Thread {
 
   private static final Logger log = LogManager.getLogger(SnapshotManager.class);
 
-  private static SnapshotManager manager;
-  SnapshotThread worker;
+  /** Save points check interval in ms */
+  static final long CHECK_INTERVAL = 100;
 
-  private SnapshotManager() {
-    worker = new SnapshotThread();
-    worker.setPriority(Thread.MIN_PRIORITY);
-    worker.start();
+  /** Delay before next automatic snapshot after a failed one in ms */
+  static final long RETRY_DELAY = 5000;
+
+  /** Singleton instance */
+  private static volatile SnapshotManager manager;
+
+  /* Save points: {seconds, changes} */
+  private final long[][] savePoints;
+
+  /* Maximum number of concurrent snapshots */
+  private final int maxConcurrent;
+
+  /* Snapshot workers */
+  private final ExecutorService executor;
+
+  /* Registered stores and their registration times (guarded by this) */
+  private final Map<BigSortedMap, Long> stores = new IdentityHashMap<BigSortedMap, Long>();
+
+  /* Queued or running snapshots (guarded by this) */
+  private final Map<BigSortedMap, Future<Boolean>> pending =
+      new IdentityHashMap<BigSortedMap, Future<Boolean>>();
+
+  /* Stores, which must be saved again after their pending snapshots (guarded by this) */
+  private final Set<BigSortedMap> scheduled =
+      Collections.newSetFromMap(new IdentityHashMap<BigSortedMap, Boolean>());
+
+  /* Times of the last failed snapshots (guarded by this) */
+  private final Map<BigSortedMap, Long> failures = new IdentityHashMap<BigSortedMap, Long>();
+
+  /* Number of running snapshots */
+  private final AtomicInteger running = new AtomicInteger();
+
+  private volatile boolean stopped;
+
+  /**
+   * Constructor
+   *
+   * @param savePoints save points: {seconds, changes} pairs
+   * @param maxConcurrent maximum number of concurrent snapshots
+   */
+  SnapshotManager(long[][] savePoints, int maxConcurrent) {
+    super("carrot-snapshot-manager");
+    setDaemon(true);
+    this.savePoints = savePoints;
+    this.maxConcurrent = maxConcurrent;
+    AtomicInteger count = new AtomicInteger();
+    this.executor =
+        Executors.newFixedThreadPool(
+            maxConcurrent,
+            r -> {
+              Thread t = new Thread(r, "carrot-snapshot-" + count.getAndIncrement());
+              t.setDaemon(true);
+              return t;
+            });
   }
 
+  /**
+   * Returns snapshot manager, starts it if it was not started yet
+   *
+   * @return snapshot manager
+   */
   public static SnapshotManager getInstance() {
-    if (manager != null) return manager;
+    SnapshotManager m = manager;
+    if (m != null) {
+      return m;
+    }
     synchronized (SnapshotManager.class) {
-      manager = new SnapshotManager();
+      if (manager == null) {
+        RedisConf conf = RedisConf.getInstance();
+        m = new SnapshotManager(conf.getSnapshotSavePoints(), conf.getSnapshotMaxConcurrent());
+        m.start();
+        manager = m;
+        log.info(
+            "Snapshot manager started, save points={} max concurrent={}",
+            m.savePoints.length,
+            m.maxConcurrent);
+      }
+      return manager;
     }
-    return manager;
   }
 
-  public boolean takeSnapshot(BigSortedMap store, boolean sync) {
-    boolean result = worker.take(store, sync);
-    if (!result) {
-      // WARN
-      log.debug("WARNING! Active snapshot started at {}", worker.getLastSnapshotTime());
-    }
-    return result;
+  /**
+   * Registers store for automatic snapshots
+   *
+   * @param map store
+   */
+  public static void register(BigSortedMap map) {
+    getInstance().add(map);
   }
-}
 
-class SnapshotThread extends Thread {
-  private static final Logger log = LogManager.getLogger(SnapshotThread.class);
+  /**
+   * Unregisters store, waits for its pending snapshot (if any)
+   *
+   * @param map store
+   */
+  public static void unregister(BigSortedMap map) {
+    SnapshotManager m = manager;
+    if (m != null) {
+      m.remove(map);
+    }
+  }
 
-  AtomicReference<BigSortedMap> storeRef = new AtomicReference<BigSortedMap>();
-  Date lastSnapshotTime;
+  /** Stops snapshot manager (if any), pending snapshots are completed */
+  public static synchronized void shutdown() {
+    SnapshotManager m = manager;
+    if (m == null) {
+      return;
+    }
+    manager = null;
+    m.stopSnapshots();
+  }
 
-  SnapshotThread() {
-    super("snapshot-thread");
+  /**
+   * Adds store to the automatic snapshots list
+   *
+   * @param map store
+   */
+  synchronized void add(BigSortedMap map) {
+    stores.put(map, System.currentTimeMillis());
+    notifyAll();
   }
 
-  Date getLastSnapshotTime() {
-    return lastSnapshotTime;
+  /**
+   * Removes store from the automatic snapshots list, waits for its pending snapshot
+   *
+   * @param map store
+   */
+  void remove(BigSortedMap map) {
+    Future<Boolean> f;
+    synchronized (this) {
+      stores.remove(map);
+      scheduled.remove(map);
+      failures.remove(map);
+      f = pending.get(map);
+    }
+    waitFor(f);
   }
 
-  boolean take(BigSortedMap store, boolean sync) {
-    if (storeRef.compareAndSet(null, store) == false) {
-      return false;
+  /** Stops scheduler and workers */
+  void stopSnapshots() {
+    synchronized (this) {
+      stopped = true;
+      notifyAll();
     }
-    notify();
-    if (sync) {
-      while (storeRef.get() != null) {
-        try {
-          Thread.sleep(10);
-        } catch (InterruptedException ignored) {
-        }
+    executor.shutdown();
+  }
+
+  /**
+   * Starts background snapshot of a store (BGSAVE)
+   *
+   * @param map store
+   * @param schedule if snapshot of the store is in progress, save it again after the current one
+   * @return false if snapshot of the store is in progress and schedule is false, true - otherwise
+   */
+  public synchronized boolean takeSnapshot(BigSortedMap map, boolean schedule) {
+    if (pending.containsKey(map)) {
+      if (!schedule) {
+        return false;
       }
+      scheduled.add(map);
+      return true;
     }
+    submit(map);
     return true;
   }
 
+  /**
+   * Takes snapshot of a store and waits for its completion (SAVE). Snapshot in progress (if any)
+   * is completed first.
+   *
+   * @param map store
+   * @return true on success, false - otherwise
+   */
+  public boolean takeSnapshot(BigSortedMap map) {
+    Future<Boolean> f;
+    synchronized (this) {
+      f = pending.get(map);
+    }
+    waitFor(f);
+    synchronized (this) {
+      f = submit(map);
+    }
+    return waitFor(f);
+  }
+
+  /**
+   * Is snapshot of a store queued or in progress
+   *
+   * @param map store
+   * @return true or false
+   */
+  public synchronized boolean isSnapshotPending(BigSortedMap map) {
+    return pending.containsKey(map);
+  }
+
+  /**
+   * Get number of snapshots in progress (JVM-wide)
+   *
+   * @return number of running snapshots
+   */
+  public int getRunningSnapshots() {
+    return running.get();
+  }
+
+  /**
+   * Get maximum number of concurrent snapshots
+   *
+   * @return maximum number of concurrent snapshots
+   */
+  public int getMaxConcurrentSnapshots() {
+    return maxConcurrent;
+  }
+
+  @Override
   public void run() {
-    log.debug("Thread {} started at {}", getName(), LocalDateTime.now());
-    for (; ; ) {
+    while (!stopped) {
       try {
-        wait();
-      } catch (InterruptedException ignored) {
+        checkSavePoints(System.currentTimeMillis());
+      } catch (Throwable t) {
+        log.error("Snapshot save points check failed", t);
+      }
+      synchronized (this) {
+        if (stopped) {
+          break;
+        }
+        try {
+          wait(CHECK_INTERVAL);
+        } catch (InterruptedException e) {
+          // shutdown
+        }
+      }
+    }
+  }
 
+  /**
+   * Starts snapshots of stores, which reached one of their save points
+   *
+   * @param now current time
+   */
+  synchronized void checkSavePoints(long now) {
+    if (savePoints.length == 0) {
+      return;
+    }
+    for (Map.Entry<BigSortedMap, Long> e : stores.entrySet()) {
+      BigSortedMap map = e.getKey();
+      if (pending.containsKey(map)) {
+        continue;
       }
-      BigSortedMap map = storeRef.get();
-      if (map == null) {
+      Long failed = failures.get(map);
+      if (failed != null && now - failed < RETRY_DELAY) {
         continue;
       }
-      log.debug("Snapshot started at {}", lastSnapshotTime);
-      lastSnapshotTime = new Date();
-      map.snapshot();
-      storeRef.set(null);
-      log.debug("Snapshot finished at {}", LocalDateTime.now());
+      long last = Math.max(map.getLastSnapshotTimestamp(), e.getValue());
+      long changes = map.getChangesSinceLastSnapshot();
+      for (long[] point : savePoints) {
+        if (changes >= point[1] && now - last >= point[0] * 1000) {
+          log.debug("{} changes in {} seconds. Saving...", changes, point[0]);
+          submit(map);
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Queues snapshot of a store (called under lock)
+   *
+   * @param map store
+   * @return pending snapshot
+   */
+  private Future<Boolean> submit(BigSortedMap map) {
+    Future<Boolean> f = pending.get(map);
+    if (f != null) {
+      return f;
+    }
+    FutureTask<Boolean> task = new FutureTask<Boolean>(() -> save(map));
+    pending.put(map, task);
+    executor.execute(task);
+    return task;
+  }
+
+  /**
+   * Saves store (worker thread)
+   *
+   * @param map store
+   * @return true on success, false - otherwise
+   */
+  private boolean save(BigSortedMap map) {
+    running.incrementAndGet();
+    boolean result = false;
+    try {
+      result = map.snapshot();
+    } catch (Throwable t) {
+      log.error("Snapshot failed", t);
+    } finally {
+      running.decrementAndGet();
+      completed(map, result);
+    }
+    return result;
+  }
+
+  /**
+   * Snapshot completion
+   *
+   * @param map store
+   * @param result snapshot result
+   */
+  private synchronized void completed(BigSortedMap map, boolean result) {
+    pending.remove(map);
+    if (result) {
+      failures.remove(map);
+    } else {
+      failures.put(map, System.currentTimeMillis());
+    }
+    if (scheduled.remove(map) && !stopped) {
+      submit(map);
+    }
+  }
+
+  /**
+   * Waits for a snapshot
+   *
+   * @param f pending snapshot or null
+   * @return snapshot result
+   */
+  private static boolean waitFor(Future<Boolean> f) {
+    if (f == null) {
+      return false;
+    }
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      log.error("Snapshot failed", e);
     }
+    return false;
   }
 }
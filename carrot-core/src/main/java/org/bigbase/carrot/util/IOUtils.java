@@ -15,7 +15,8 @@ package org.bigbase.carrot.util;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 /** Utility class for network and file I/O related code */
 public class IOUtils {
 
@@ -26,7 +27,7 @@ public class IOUtils {
    * @param fc file channel
    * @throws IOException
    */
-  public static void drainBuffer(ByteBuffer buf, FileChannel fc) throws IOException {
+  public static void drainBuffer(ByteBuffer buf, WritableByteChannel fc) throws IOException {
     buf.flip();
     while (buf.hasRemaining()) {
       fc.write(buf);
@@ -43,7 +44,7 @@ public class IOUtils {
    * @return available number of bytes
    * @throws IOException
    */
-  public static long ensureAvailable(FileChannel fc, ByteBuffer buf, int required)
+  public static long ensureAvailable(ReadableByteChannel fc, ByteBuffer buf, int required)
       throws IOException {
     int avail = buf.remaining();
     if (avail < required) {
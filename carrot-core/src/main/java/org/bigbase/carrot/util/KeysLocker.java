@@ -13,33 +13,450 @@
 */
 package org.bigbase.carrot.util;
 
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
-/** THis helper class performs safe group Key/KeyValue locking/unlocking */
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * THis helper class performs safe group Key/KeyValue locking/unlocking. Locks are owned by keys:
+ * a key is identified by its 64 bit hash, key locks are kept in a fixed table of buckets
+ * (stripes), different keys of a bucket do not block each other. Group locks are acquired in key
+ * order, so concurrent multi - key operations can not deadlock. Every thread keeps track of keys
+ * it holds: nested lock requests on a key which is already held by the thread do not block (read
+ * or write under write is a no-op). Read lock is never upgraded: a thread, which is going to mutate
+ * a key, must take the write lock up front.
+ *
+ * <p>A thread, which holds key locks, also holds the shared gate. Exclusive gate ({@link
+ * #lockGate()}) waits for all in-flight key operations to finish and blocks new ones, which allows
+ * to find a point in time between operations (snapshot start).
+ */
 public class KeysLocker {
 
+  private static final Logger log = LogManager.getLogger(KeysLocker.class);
+
+  /*
+   * Number of lock stripes
+   */
+  static final int NUMBER_OF_STRIPES = 11113;
+
+  /** Lock of a single key, exists while the key is locked or waited for */
+  static final class KeyLock {
+    /* Key id (64 bit hash) */
+    long id;
+    /* Number of readers */
+    int readers;
+    /* Write locked */
+    boolean writer;
+    /* Number of threads waiting for the lock */
+    int waiters;
+    /* Number of writers waiting for the lock (new readers wait for them) */
+    int waitingWriters;
+    /* Next lock in a bucket or in a free list */
+    KeyLock next;
+  }
+
+  /** Bucket (stripe) of key locks. Bucket monitor guards all locks of the bucket */
+  static final class Bucket {
+    /* Locks in use */
+    KeyLock head;
+    /* Recycled locks */
+    KeyLock free;
+    /* Number of threads waiting in the bucket */
+    int waiters;
+    /* Number of write locked keys, used by optimistic reads */
+    volatile int writers;
+    /* Changed on every write lock and unlock, used by optimistic reads */
+    volatile long version = 1;
+
+    KeyLock find(long id) {
+      for (KeyLock l = head; l != null; l = l.next) {
+        if (l.id == id) {
+          return l;
+        }
+      }
+      return null;
+    }
+
+    KeyLock add(long id) {
+      KeyLock l = free;
+      if (l != null) {
+        free = l.next;
+      } else {
+        l = new KeyLock();
+      }
+      l.id = id;
+      l.next = head;
+      head = l;
+      return l;
+    }
+
+    void remove(KeyLock lock) {
+      KeyLock prev = null;
+      for (KeyLock l = head; l != null; prev = l, l = l.next) {
+        if (l == lock) {
+          if (prev == null) {
+            head = l.next;
+          } else {
+            prev.next = l.next;
+          }
+          l.next = free;
+          free = l;
+          return;
+        }
+      }
+    }
+  }
+
+  /*
+   * Key lock buckets
+   */
+  static Bucket[] buckets = new Bucket[NUMBER_OF_STRIPES];
+
+  /*
+   * Number of times a lock was not available immediately (per stripe)
+   */
+  static AtomicLongArray contentions = new AtomicLongArray(NUMBER_OF_STRIPES);
+
   /*
-   * Read-Write Lock TODO: StampedLock (Java 8)
+   * Number of gate stripes (power of 2)
    */
-  static ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[11113];
+  static final int NUMBER_OF_GATE_STRIPES = 64;
+
+  /*
+   * Gate locks: a thread takes stripe of its own shared, exclusive gate takes all stripes
+   */
+  static StampedLock[] gate = new StampedLock[NUMBER_OF_GATE_STRIPES];
+
+  /*
+   * Stamps of the exclusive gate
+   */
+  private static long[] gateStamps = new long[NUMBER_OF_GATE_STRIPES];
+
+  /*
+   * Serializes exclusive gate owners
+   */
+  private static ReentrantLock gateOwner = new ReentrantLock();
 
   static {
-    for (int i = 0; i < locks.length; i++) {
-      locks[i] = new ReentrantReadWriteLock();
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new Bucket();
+    }
+    for (int i = 0; i < gate.length; i++) {
+      gate[i] = new StampedLock();
     }
   }
 
+  /*
+   * Lock entry types
+   */
+  private static final int OWNER = 0;
+  private static final int NESTED = 1;
+
+  /** Stack of locks held by a thread */
+  static final class HeldLocks {
+    long[] ids = new long[16];
+    boolean[] writes = new boolean[16];
+    int[] types = new int[16];
+    int size;
+    /* Gate stripe and stamp, valid when size > 0 */
+    int gateStripe;
+    long gateStamp;
+
+    void push(long id, boolean write, int type) {
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, 2 * size);
+        writes = Arrays.copyOf(writes, 2 * size);
+        types = Arrays.copyOf(types, 2 * size);
+      }
+      ids[size] = id;
+      writes[size] = write;
+      types[size] = type;
+      size++;
+    }
+
+    void remove(int index) {
+      int toMove = size - index - 1;
+      if (toMove > 0) {
+        System.arraycopy(ids, index + 1, ids, index, toMove);
+        System.arraycopy(writes, index + 1, writes, index, toMove);
+        System.arraycopy(types, index + 1, types, index, toMove);
+      }
+      size--;
+    }
+
+    int findOwner(long id) {
+      for (int i = 0; i < size; i++) {
+        if (ids[i] == id && types[i] == OWNER) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    int findLast(long id) {
+      for (int i = size - 1; i >= 0; i--) {
+        if (ids[i] == id) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  private static ThreadLocal<HeldLocks> heldLocks =
+      new ThreadLocal<HeldLocks>() {
+        @Override
+        protected HeldLocks initialValue() {
+          return new HeldLocks();
+        }
+      };
+
+  /**
+   * Get key id (64 bit hash of a key)
+   *
+   * @param ptr key address
+   * @param size key size
+   * @return key id
+   */
+  static long lockId(long ptr, int size) {
+    return ((long) Utils.murmurHash(ptr, size, 0) << 32)
+        | (Utils.murmurHash(ptr, size, 1) & 0xffffffffL);
+  }
+
+  static long lockId(Key key) {
+    return lockId(key.address, key.length);
+  }
+
+  static long lockId(KeyValue kv) {
+    return lockId(kv.keyPtr, kv.keySize);
+  }
+
+  /**
+   * Get lock stripe (bucket) of a key
+   *
+   * @param id key id
+   * @return stripe index
+   */
+  static int stripe(long id) {
+    return (int) ((id & Long.MAX_VALUE) % NUMBER_OF_STRIPES);
+  }
+
+  /**
+   * Acquire key lock
+   *
+   * @param id key id
+   * @param write true - exclusive, false - shared
+   */
+  static void lock(long id, boolean write) {
+    HeldLocks held = heldLocks.get();
+    if (held.size == 0) {
+      // First lock of an operation
+      held.gateStripe = (int) Thread.currentThread().getId() & (NUMBER_OF_GATE_STRIPES - 1);
+      held.gateStamp = gate[held.gateStripe].readLock();
+    }
+    int owner = held.findOwner(id);
+    if (owner < 0) {
+      acquire(id, write);
+      held.push(id, write, OWNER);
+    } else if (!write || held.writes[owner]) {
+      held.push(id, write, NESTED);
+    } else {
+      // Upgrade can not be atomic: other writer can get the lock in between, and blocking on
+      // the key out of order can deadlock
+      throw new IllegalStateException("Write lock is requested under read lock");
+    }
+  }
+
+  private static boolean canAcquire(KeyLock l, boolean write) {
+    return write ? !l.writer && l.readers == 0 : !l.writer && l.waitingWriters == 0;
+  }
+
+  /**
+   * Acquire key lock in a bucket, waits if needed
+   *
+   * @param id key id
+   * @param write true - exclusive, false - shared
+   */
+  private static void acquire(long id, boolean write) {
+    int stripe = stripe(id);
+    Bucket b = buckets[stripe];
+    boolean interrupted = false;
+    synchronized (b) {
+      KeyLock l = b.find(id);
+      if (l == null) {
+        l = b.add(id);
+      }
+      if (!canAcquire(l, write)) {
+        contentions.incrementAndGet(stripe);
+        l.waiters++;
+        b.waiters++;
+        if (write) {
+          l.waitingWriters++;
+        }
+        while (!canAcquire(l, write)) {
+          try {
+            b.wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        if (write) {
+          l.waitingWriters--;
+        }
+        b.waiters--;
+        l.waiters--;
+      }
+      if (write) {
+        l.writer = true;
+        b.writers++;
+        b.version++;
+      } else {
+        l.readers++;
+      }
+    }
+    if (write) {
+      // Optimistic readers must see new version before any data is changed
+      UnsafeAccess.fullFence();
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Release key lock in a bucket
+   *
+   * @param id key id
+   * @param write true - exclusive, false - shared
+   */
+  private static void release(long id, boolean write) {
+    Bucket b = buckets[stripe(id)];
+    synchronized (b) {
+      KeyLock l = b.find(id);
+      if (write) {
+        l.writer = false;
+        b.version++;
+        b.writers--;
+      } else {
+        l.readers--;
+      }
+      if (l.readers == 0 && !l.writer && l.waiters == 0) {
+        b.remove(l);
+      }
+      if (b.waiters > 0) {
+        b.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Release key lock
+   *
+   * @param id key id
+   */
+  static void unlock(long id) {
+    HeldLocks held = heldLocks.get();
+    int index = held.findLast(id);
+    assert index >= 0 : "Unlock of a key, which is not held: " + id;
+    if (index < 0) {
+      log.error("Unlock of a key, which is not held: {}", id);
+      return;
+    }
+    if (held.types[index] == OWNER) {
+      release(id, held.writes[index]);
+    }
+    held.remove(index);
+    if (held.size == 0) {
+      gate[held.gateStripe].unlockRead(held.gateStamp);
+    }
+  }
+
+  /**
+   * Acquire exclusive gate. Waits until threads, which hold key locks, release them and blocks new
+   * key locks until {@link #unlockGate()} is called. Calling thread must not hold key locks.
+   */
+  public static void lockGate() {
+    if (heldLocks.get().size > 0) {
+      throw new IllegalStateException("Gate is requested under a key lock");
+    }
+    gateOwner.lock();
+    for (int i = 0; i < NUMBER_OF_GATE_STRIPES; i++) {
+      gateStamps[i] = gate[i].writeLock();
+    }
+  }
+
+  /** Release exclusive gate */
+  public static void unlockGate() {
+    for (int i = NUMBER_OF_GATE_STRIPES - 1; i >= 0; i--) {
+      gate[i].unlockWrite(gateStamps[i]);
+    }
+    gateOwner.unlock();
+  }
+
+  /**
+   * Acquire locks of a group of keys in key order
+   *
+   * @param ids key ids (not sorted, can contain duplicates)
+   * @param write true - exclusive, false - shared
+   */
+  private static void lockAll(long[] ids, boolean write) {
+    int n = sortUnique(ids);
+    for (int i = 0; i < n; i++) {
+      lock(ids[i], write);
+    }
+  }
+
+  /**
+   * Release locks of a group of keys
+   *
+   * @param ids key ids (not sorted, can contain duplicates)
+   */
+  private static void unlockAll(long[] ids) {
+    int n = sortUnique(ids);
+    for (int i = n - 1; i >= 0; i--) {
+      unlock(ids[i]);
+    }
+  }
+
+  private static int sortUnique(long[] arr) {
+    Arrays.sort(arr);
+    int n = 0;
+    for (int i = 0; i < arr.length; i++) {
+      if (n == 0 || arr[n - 1] != arr[i]) {
+        arr[n++] = arr[i];
+      }
+    }
+    return n;
+  }
+
+  private static long[] keyIds(List<Key> keys) {
+    long[] ids = new long[keys.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = lockId(keys.get(i));
+    }
+    return ids;
+  }
+
+  private static long[] keyValueIds(List<KeyValue> kvs) {
+    long[] ids = new long[kvs.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = lockId(kvs.get(i));
+    }
+    return ids;
+  }
+
   /**
    * Read Lock Key
    *
    * @param key
    */
   public static void readLock(Key key) {
-    //    int hash = key.hashCode();
-    //    int index = hash % locks.length;
-    //    locks[index].readLock().lock();
+    lock(lockId(key), false);
   }
 
   /**
@@ -48,9 +465,7 @@ public class KeysLocker {
    * @param key
    */
   public static void readUnlock(Key key) {
-    //    int hash = key.hashCode();
-    //    int index = hash % locks.length;
-    //    locks[index].readLock().unlock();
+    unlock(lockId(key));
   }
 
   /**
@@ -59,9 +474,7 @@ public class KeysLocker {
    * @param key
    */
   public static void readLock(KeyValue key) {
-    //    int hash = key.hashCode();
-    //    int index = hash % locks.length;
-    //    locks[index].readLock().lock();
+    lock(lockId(key), false);
   }
 
   /**
@@ -70,9 +483,7 @@ public class KeysLocker {
    * @param key
    */
   public static void readUnlock(KeyValue key) {
-    //    int hash = key.hashCode();
-    //    int index = hash % locks.length;
-    //    locks[index].readLock().unlock();
+    unlock(lockId(key));
   }
 
   /**
@@ -81,9 +492,7 @@ public class KeysLocker {
    * @param key
    */
   public static void writeLock(Key key) {
-    //    int hash = key.hashCode();
-    //    int index = hash % locks.length;
-    //    locks[index].writeLock().lock();
+    lock(lockId(key), true);
   }
 
   /**
@@ -92,9 +501,7 @@ public class KeysLocker {
    * @param key
    */
   public static void writeUnlock(Key key) {
-    //    int hash = key.hashCode();
-    //    int index = hash % locks.length;
-    //    locks[index].writeLock().unlock();
+    unlock(lockId(key));
   }
 
   /**
@@ -103,9 +510,7 @@ public class KeysLocker {
    * @param key
    */
   public static void writeLock(KeyValue key) {
-    //    int hash = key.hashCode();
-    //    int index = hash % locks.length;
-    //    locks[index].writeLock().lock();
+    lock(lockId(key), true);
   }
 
   /**
@@ -114,9 +519,34 @@ public class KeysLocker {
    * @param key
    */
   public static void writeUnlock(KeyValue key) {
-    //    int hash = key.hashCode();
-    //    int index = hash % locks.length;
-    //    locks[index].writeLock().unlock();
+    unlock(lockId(key));
+  }
+
+  /**
+   * Optimistic read of a Key. The stamp must be validated after all reads are done, if validation
+   * fails, the read must be repeated under the read lock
+   *
+   * @param key
+   * @return stamp or 0 if key is write locked
+   */
+  public static long tryOptimisticRead(Key key) {
+    Bucket b = buckets[stripe(lockId(key))];
+    long version = b.version;
+    return b.writers == 0 ? version : 0;
+  }
+
+  /**
+   * Validate optimistic read of a Key
+   *
+   * @param key
+   * @param stamp stamp returned by tryOptimisticRead
+   * @return true if there were no writes since stamp was issued
+   */
+  public static boolean validate(Key key, long stamp) {
+    // Data reads must complete before version check
+    UnsafeAccess.loadFence();
+    Bucket b = buckets[stripe(lockId(key))];
+    return stamp != 0 && b.writers == 0 && b.version == stamp;
   }
 
   /**
@@ -125,11 +555,7 @@ public class KeysLocker {
    * @param kvs list of KeyValues
    */
   public static void readLockAllKeyValues(List<KeyValue> kvs) {
-    //    // Sort them first to avoid deadlocks in a future
-    //    Collections.sort(kvs);
-    //    for(int i=0; i < kvs.size(); i++) {
-    //      readLock(kvs.get(i));
-    //    }
+    lockAll(keyValueIds(kvs), false);
   }
   /**
    * Read unlock list of KeyValues
@@ -137,9 +563,7 @@ public class KeysLocker {
    * @param kvs list of KeyValues
    */
   public static void readUnlockAllKeyValues(List<KeyValue> kvs) {
-    //    for(int i=0; i < kvs.size(); i++) {
-    //      readUnlock(kvs.get(i));
-    //    }
+    unlockAll(keyValueIds(kvs));
   }
 
   /**
@@ -148,11 +572,7 @@ public class KeysLocker {
    * @param kvs list of KeyValues
    */
   public static void writeLockAllKeyValues(List<KeyValue> kvs) {
-    //    // Sort them first to avoid deadlocks in a future
-    //    Collections.sort(kvs);
-    //    for(int i=0; i < kvs.size(); i++) {
-    //      writeLock(kvs.get(i));
-    //    }
+    lockAll(keyValueIds(kvs), true);
   }
   /**
    * Write unlock list of KeyValues
@@ -160,9 +580,7 @@ public class KeysLocker {
    * @param kvs list of KeyValues
    */
   public static void writeUnlockAllKeyValues(List<KeyValue> kvs) {
-    //    for(int i=0; i < kvs.size(); i++) {
-    //      writeUnlock(kvs.get(i));
-    //    }
+    unlockAll(keyValueIds(kvs));
   }
 
   /**
@@ -171,11 +589,7 @@ public class KeysLocker {
    * @param kvs list of Keys
    */
   public static void writeLockAllKeys(List<Key> kvs) {
-    //    // Sort them first to avoid deadlocks in a future
-    //    Collections.sort(kvs);
-    //    for(int i=0; i < kvs.size(); i++) {
-    //      writeLock(kvs.get(i));
-    //    }
+    lockAll(keyIds(kvs), true);
   }
 
   /**
@@ -184,9 +598,7 @@ public class KeysLocker {
    * @param kvs list of Keys
    */
   public static void writeUnlockAllKeys(List<Key> kvs) {
-    //    for(int i=0; i < kvs.size(); i++) {
-    //      writeUnlock(kvs.get(i));
-    //    }
+    unlockAll(keyIds(kvs));
   }
 
   /**
@@ -195,11 +607,7 @@ public class KeysLocker {
    * @param kvs list of Keys
    */
   public static void readLockAllKeys(List<Key> kvs) {
-    //    // Sort them first to avoid deadlocks in a future
-    //    Collections.sort(kvs);
-    //    for(int i=0; i < kvs.size(); i++) {
-    //      readLock(kvs.get(i));
-    //    }
+    lockAll(keyIds(kvs), false);
   }
   /**
    * Read unlock list of Keys
@@ -207,8 +615,77 @@ public class KeysLocker {
    * @param kvs list of Keys
    */
   public static void readUnlockAllKeys(List<Key> kvs) {
-    //    for(int i=0; i < kvs.size(); i++) {
-    //      readUnlock(kvs.get(i));
-    //    }
+    unlockAll(keyIds(kvs));
+  }
+
+  /**
+   * Get number of lock stripes
+   *
+   * @return number of stripes
+   */
+  public static int getNumberOfStripes() {
+    return NUMBER_OF_STRIPES;
+  }
+
+  /**
+   * Get number of contended lock acquisitions for a stripe
+   *
+   * @param stripe stripe index
+   * @return number of times lock was not available immediately
+   */
+  public static long getContentionCount(int stripe) {
+    return contentions.get(stripe);
+  }
+
+  /**
+   * Get total number of contended lock acquisitions
+   *
+   * @return number of times lock was not available immediately
+   */
+  public static long getContentionCount() {
+    long total = 0;
+    for (int i = 0; i < NUMBER_OF_STRIPES; i++) {
+      total += contentions.get(i);
+    }
+    return total;
+  }
+
+  /**
+   * Get number of locks held by the current thread (for testing)
+   *
+   * @return number of held locks, including nested
+   */
+  static int getHeldLocksCount() {
+    return heldLocks.get().size;
+  }
+
+  /**
+   * Is key write locked (for testing)
+   *
+   * @param key key
+   * @return true or false
+   */
+  static boolean isWriteLocked(Key key) {
+    long id = lockId(key);
+    Bucket b = buckets[stripe(id)];
+    synchronized (b) {
+      KeyLock l = b.find(id);
+      return l != null && l.writer;
+    }
+  }
+
+  /**
+   * Is key read locked (for testing)
+   *
+   * @param key key
+   * @return true or false
+   */
+  static boolean isReadLocked(Key key) {
+    long id = lockId(key);
+    Bucket b = buckets[stripe(id)];
+    synchronized (b) {
+      KeyLock l = b.find(id);
+      return l != null && l.readers > 0;
+    }
   }
 }
@@ -0,0 +1,397 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import sun.misc.Unsafe;
+
+/**
+ * Off-heap slab allocator for data block, index block and list segment memory. Size classes match
+ * block size tables (DataBlock.BLOCK_SIZES, IndexBlock.BLOCK_RATIOS and Segment.BASE_SIZES): 128,
+ * 192 and 256 - 512 with step 64, 512 - 4096 with step 256. Larger allocations go directly to
+ * Unsafe.
+ *
+ * <p>Memory is reserved from the OS by big arenas (memory.slab.arena.size), which are split into
+ * aligned 1MB regions. Every region belongs to one size class and is carved into chunks of that
+ * size. Region's size class is kept in a radix tree, indexed by address, so free() does not need
+ * allocation size. Every thread keeps a small cache of free chunks for every size class (up to
+ * THREAD_CACHE_SIZE bytes), chunks are moved between a thread cache and the global free list of a
+ * size class in batches. Arenas are never returned to the OS, free chunks cached by a terminated
+ * thread are not reused.
+ */
+public final class SlabAllocator {
+
+  private static final Logger log = LogManager.getLogger(SlabAllocator.class);
+
+  /** Size classes */
+  static final int[] SIZE_CLASSES =
+      new int[] {
+        128, 192, 256, 320, 384, 448, 512, 768, 1024, 1280, 1536, 1792, 2048, 2304, 2560, 2816,
+        3072, 3328, 3584, 3840, 4096
+      };
+
+  /** Maximum allocation size served by slabs */
+  public static final int MAX_SIZE = SIZE_CLASSES[SIZE_CLASSES.length - 1];
+
+  /** Region size (log2) */
+  static final int REGION_SHIFT = 20;
+
+  /** Region size */
+  static final int REGION_SIZE = 1 << REGION_SHIFT;
+
+  /** Default arena size */
+  public static final long DEFAULT_ARENA_SIZE = 64L * REGION_SIZE;
+
+  /** Maximum size of free chunks of a size class in a thread cache */
+  static final int THREAD_CACHE_SIZE = 32 * 1024;
+
+  /* Radix tree of regions: 48-bit address space */
+  private static final int LEAF_BITS = 14;
+  private static final int TOP_BITS = 48 - REGION_SHIFT - LEAF_BITS;
+  private static final int LEAF_MASK = (1 << LEAF_BITS) - 1;
+
+  /* Size class index by (size + 63) / 64 */
+  private static final byte[] CLASS_INDEX = new byte[MAX_SIZE / 64 + 1];
+
+  static {
+    int c = 0;
+    for (int i = 0; i < CLASS_INDEX.length; i++) {
+      while (SIZE_CLASSES[c] < i * 64) {
+        c++;
+      }
+      CLASS_INDEX[i] = (byte) c;
+    }
+  }
+
+  /** Global free list of a size class */
+  static final class SizeClass {
+    final int size;
+    /* Number of chunks moved to/from thread cache at once */
+    final int batch;
+    /* Free chunks (guarded by this) */
+    long[] chunks = new long[1024];
+    int count;
+
+    SizeClass(int size) {
+      this.size = size;
+      this.batch = Math.max(2, THREAD_CACHE_SIZE / size / 2);
+    }
+
+    void push(long ptr) {
+      if (count == chunks.length) {
+        long[] arr = new long[2 * count];
+        System.arraycopy(chunks, 0, arr, 0, count);
+        chunks = arr;
+      }
+      chunks[count++] = ptr;
+    }
+  }
+
+  /** Thread cache of free chunks */
+  static final class ThreadCache {
+    final long[][] chunks = new long[SIZE_CLASSES.length][];
+    final int[] counts = new int[SIZE_CLASSES.length];
+
+    ThreadCache() {
+      for (int i = 0; i < chunks.length; i++) {
+        chunks[i] = new long[2 * classes[i].batch];
+      }
+    }
+  }
+
+  private static final Unsafe unsafe = UnsafeAccess.theUnsafe;
+
+  private static final SizeClass[] classes = new SizeClass[SIZE_CLASSES.length];
+
+  static {
+    for (int i = 0; i < classes.length; i++) {
+      classes[i] = new SizeClass(SIZE_CLASSES[i]);
+    }
+  }
+
+  private static final AtomicReferenceArray<byte[]> regions =
+      new AtomicReferenceArray<byte[]>(1 << TOP_BITS);
+
+  private static ThreadLocal<ThreadCache> cache =
+      new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+          return new ThreadCache();
+        }
+      };
+
+  private static volatile boolean enabled = true;
+
+  /* Arena size (guarded by class) */
+  private static long arenaSize = DEFAULT_ARENA_SIZE;
+
+  /* Next free region of the current arena and the arena end (guarded by class) */
+  private static long nextRegion;
+  private static long arenaEnd;
+
+  /* Memory reserved by arenas */
+  private static volatile long arenaMemory;
+
+  /* Memory of regions, which were assigned to size classes */
+  private static volatile long regionMemory;
+
+  /* Memory of allocated chunks */
+  private static final LongAdder usedMemory = new LongAdder();
+
+  private SlabAllocator() {}
+
+  /**
+   * Enables or disables slab allocations. Memory, which has been allocated by slabs, is released
+   * to slabs even if allocator is disabled.
+   *
+   * @param b true - enable, false - disable
+   */
+  public static void setEnabled(boolean b) {
+    enabled = b;
+  }
+
+  /**
+   * Is slab allocator enabled
+   *
+   * @return true or false
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Sets size of the next arenas (rounded up to the region size)
+   *
+   * @param size arena size in bytes
+   */
+  public static synchronized void setArenaSize(long size) {
+    arenaSize = Math.max(REGION_SIZE, (size + REGION_SIZE - 1) & ~((long) REGION_SIZE - 1));
+  }
+
+  /**
+   * Get memory reserved by arenas
+   *
+   * @return memory in bytes
+   */
+  public static long getArenaMemory() {
+    return arenaMemory;
+  }
+
+  /**
+   * Get memory of regions, which were assigned to size classes
+   *
+   * @return memory in bytes
+   */
+  public static long getRegionMemory() {
+    return regionMemory;
+  }
+
+  /**
+   * Get memory of allocated chunks
+   *
+   * @return memory in bytes
+   */
+  public static long getUsedMemory() {
+    return usedMemory.sum();
+  }
+
+  /**
+   * Get size class for an allocation size
+   *
+   * @param size allocation size
+   * @return size class or -1, if size is not served by slabs
+   */
+  public static int getSizeClass(long size) {
+    if (size <= 0 || size > MAX_SIZE) {
+      return -1;
+    }
+    return SIZE_CLASSES[CLASS_INDEX[(int) ((size + 63) >>> 6)]];
+  }
+
+  /**
+   * Allocates memory
+   *
+   * @param size size of memory
+   * @return address or 0, if size is not served by slabs (or slabs are disabled)
+   */
+  public static long malloc(long size) {
+    if (!enabled || size <= 0 || size > MAX_SIZE) {
+      return 0;
+    }
+    int c = CLASS_INDEX[(int) ((size + 63) >>> 6)];
+    ThreadCache tc = cache.get();
+    if (tc.counts[c] == 0 && !refill(tc, c)) {
+      return 0;
+    }
+    usedMemory.add(SIZE_CLASSES[c]);
+    return tc.chunks[c][--tc.counts[c]];
+  }
+
+  /**
+   * Releases memory
+   *
+   * @param ptr address
+   * @return true, if memory was allocated by slabs, false - otherwise (caller must release it)
+   */
+  public static boolean free(long ptr) {
+    int c = classIndexOf(ptr);
+    if (c < 0) {
+      return false;
+    }
+    ThreadCache tc = cache.get();
+    long[] chunks = tc.chunks[c];
+    if (tc.counts[c] == chunks.length) {
+      flush(tc, c);
+    }
+    chunks[tc.counts[c]++] = ptr;
+    usedMemory.add(-SIZE_CLASSES[c]);
+    return true;
+  }
+
+  /**
+   * Get size of memory allocated by slabs
+   *
+   * @param ptr address
+   * @return size of a chunk or -1, if memory was not allocated by slabs
+   */
+  public static int sizeOf(long ptr) {
+    int c = classIndexOf(ptr);
+    return c < 0 ? -1 : SIZE_CLASSES[c];
+  }
+
+  /**
+   * Get size class index of a region, which an address belongs to
+   *
+   * @param ptr address
+   * @return size class index or -1
+   */
+  private static int classIndexOf(long ptr) {
+    long region = ptr >>> REGION_SHIFT;
+    if ((region >>> (TOP_BITS + LEAF_BITS)) != 0) {
+      return -1;
+    }
+    byte[] leaf = regions.get((int) (region >>> LEAF_BITS));
+    if (leaf == null) {
+      return -1;
+    }
+    return leaf[(int) (region & LEAF_MASK)] - 1;
+  }
+
+  /**
+   * Moves a batch of free chunks from the global free list to a thread cache
+   *
+   * @param tc thread cache
+   * @param c size class index
+   * @return false on failure (out of memory)
+   */
+  private static boolean refill(ThreadCache tc, int c) {
+    SizeClass sc = classes[c];
+    synchronized (sc) {
+      if (sc.count == 0 && !carveRegion(sc, c)) {
+        return false;
+      }
+      int n = Math.min(sc.batch, sc.count);
+      sc.count -= n;
+      System.arraycopy(sc.chunks, sc.count, tc.chunks[c], 0, n);
+      tc.counts[c] = n;
+    }
+    return true;
+  }
+
+  /**
+   * Moves a batch of free chunks from a thread cache to the global free list
+   *
+   * @param tc thread cache
+   * @param c size class index
+   */
+  private static void flush(ThreadCache tc, int c) {
+    SizeClass sc = classes[c];
+    int n = sc.batch;
+    tc.counts[c] -= n;
+    synchronized (sc) {
+      for (int i = 0; i < n; i++) {
+        sc.push(tc.chunks[c][tc.counts[c] + i]);
+      }
+    }
+  }
+
+  /**
+   * Assigns a new region to a size class and puts its chunks to the free list (called under size
+   * class lock)
+   *
+   * @param sc size class
+   * @param c size class index
+   * @return false on failure
+   */
+  private static boolean carveRegion(SizeClass sc, int c) {
+    long region = newRegion(c);
+    if (region == 0) {
+      return false;
+    }
+    int n = REGION_SIZE / sc.size;
+    // Lower addresses are allocated first
+    for (int i = n - 1; i >= 0; i--) {
+      sc.push(region + (long) i * sc.size);
+    }
+    return true;
+  }
+
+  /**
+   * Allocates region from the current arena, allocates new arena if needed
+   *
+   * @param c size class index
+   * @return region address or 0
+   */
+  private static synchronized long newRegion(int c) {
+    if (nextRegion == arenaEnd) {
+      long size = arenaSize;
+      long ptr;
+      try {
+        ptr = unsafe.allocateMemory(size + REGION_SIZE);
+      } catch (OutOfMemoryError e) {
+        log.error("Failed to allocate arena of {} bytes", size);
+        return 0;
+      }
+      long start = (ptr + REGION_SIZE - 1) & ~((long) REGION_SIZE - 1);
+      if (((start + size) >>> 48) != 0) {
+        // Out of supported address space
+        unsafe.freeMemory(ptr);
+        enabled = false;
+        log.error("Arena address is out of 48-bit address space, slab allocator is disabled");
+        return 0;
+      }
+      nextRegion = start;
+      arenaEnd = start + size;
+      arenaMemory += size + REGION_SIZE;
+      log.debug("Allocated arena of {} bytes, total={}", size, arenaMemory);
+    }
+    long region = nextRegion;
+    nextRegion += REGION_SIZE;
+    regionMemory += REGION_SIZE;
+    long r = region >>> REGION_SHIFT;
+    int top = (int) (r >>> LEAF_BITS);
+    byte[] leaf = regions.get(top);
+    if (leaf == null) {
+      leaf = new byte[1 << LEAF_BITS];
+      regions.set(top, leaf);
+    }
+    leaf[(int) (r & LEAF_MASK)] = (byte) (c + 1);
+    return region;
+  }
+}
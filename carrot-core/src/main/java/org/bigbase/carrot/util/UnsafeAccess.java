@@ -970,6 +970,33 @@ public final class UnsafeAccess {
     }
   }
 
+  /**
+   * Move data in memory, source and destination regions may overlap (no checks in a debug memory
+   * mode)
+   *
+   * @param src source address
+   * @param dst destination address
+   * @param len number of bytes to move
+   */
+  public static void move(long src, long dst, long len) {
+    if (dst <= src || dst >= src + len) {
+      while (len > 0) {
+        long size = (len > UNSAFE_COPY_THRESHOLD) ? UNSAFE_COPY_THRESHOLD : len;
+        theUnsafe.copyMemory(src, dst, size);
+        len -= size;
+        src += size;
+        dst += size;
+      }
+      return;
+    }
+    // Overlapping regions, destination is after source - copy backwards
+    while (len > 0) {
+      long size = (len > UNSAFE_COPY_THRESHOLD) ? UNSAFE_COPY_THRESHOLD : len;
+      len -= size;
+      theUnsafe.copyMemory(src + len, dst + len, size);
+    }
+  }
+
   /**
    * Copy data in memory (no src check in a debug memory mode)
    *
@@ -1178,7 +1205,10 @@ public final class UnsafeAccess {
    * @return memory pointer
    */
   public static long malloc(long size) {
-    long address = theUnsafe.allocateMemory(size);
+    long address = SlabAllocator.malloc(size);
+    if (address == 0) {
+      address = theUnsafe.allocateMemory(size);
+    }
     mallocStats.allocEvent(address, size);
     //    log.debug("Allocate memory address: {}, size: {}", address, size);
     return address;
@@ -1191,7 +1221,10 @@ public final class UnsafeAccess {
    * @return memory pointer
    */
   public static long mallocZeroed(long size) {
-    long address = theUnsafe.allocateMemory(size);
+    long address = SlabAllocator.malloc(size);
+    if (address == 0) {
+      address = theUnsafe.allocateMemory(size);
+    }
     theUnsafe.setMemory(address, size, (byte) 0);
     mallocStats.allocEvent(address, size);
     //    log.debug("Allocate memory address: {}, size: {}", address, size);
@@ -1211,7 +1244,7 @@ public final class UnsafeAccess {
    * @return memory address
    */
   public static long realloc(long ptr, long newSize) {
-    long pptr = theUnsafe.reallocateMemory(ptr, newSize);
+    long pptr = reallocateMemory(ptr, newSize);
     if (pptr != ptr) {
       mallocStats.freeEvent(ptr);
       mallocStats.allocEvent(pptr, newSize);
@@ -1225,7 +1258,7 @@ public final class UnsafeAccess {
 
   /** Reallocate memory zeroed */
   public static long reallocZeroed(long ptr, long oldSize, long newSize) {
-    long addr = theUnsafe.reallocateMemory(ptr, newSize);
+    long addr = reallocateMemory(ptr, newSize);
     theUnsafe.setMemory(addr + oldSize, newSize - oldSize, (byte) 0);
     if (addr != ptr) {
       mallocStats.freeEvent(ptr);
@@ -1238,6 +1271,30 @@ public final class UnsafeAccess {
     return addr;
   }
 
+  /**
+   * Reallocates memory, which was allocated either by slab allocator or by Unsafe
+   *
+   * @param ptr memory address
+   * @param newSize new size
+   * @return memory address
+   */
+  private static long reallocateMemory(long ptr, long newSize) {
+    int size = SlabAllocator.sizeOf(ptr);
+    if (size < 0) {
+      return theUnsafe.reallocateMemory(ptr, newSize);
+    }
+    if (SlabAllocator.getSizeClass(newSize) == size) {
+      return ptr;
+    }
+    long addr = SlabAllocator.malloc(newSize);
+    if (addr == 0) {
+      addr = theUnsafe.allocateMemory(newSize);
+    }
+    theUnsafe.copyMemory(ptr, addr, Math.min(size, newSize));
+    SlabAllocator.free(ptr);
+    return addr;
+  }
+
   public static void setMemory(long ptr, long size, byte v) {
     theUnsafe.setMemory(ptr, size, v);
   }
@@ -1248,7 +1305,9 @@ public final class UnsafeAccess {
    */
   public static void free(long ptr) {
     mallocStats.freeEvent(ptr);
-    theUnsafe.freeMemory(ptr);
+    if (!SlabAllocator.free(ptr)) {
+      theUnsafe.freeMemory(ptr);
+    }
   }
 
   /** Load fence command */
@@ -1407,6 +1407,86 @@ public class Utils {
     }
     return c;
   }
+  /**
+   * Bitwise AND of two memory blocks, result is stored in the destination. Processes memory one
+   * 64-bit word at a time.
+   *
+   * @param dstPtr destination (and first operand) address
+   * @param srcPtr second operand address
+   * @param size size of both blocks in bytes
+   */
+  public static void bitAnd(long dstPtr, long srcPtr, int size) {
+    int num8 = size / Utils.SIZEOF_LONG;
+    for (int i = 0; i < num8; i++) {
+      UnsafeAccess.putLong(dstPtr, UnsafeAccess.toLong(dstPtr) & UnsafeAccess.toLong(srcPtr));
+      dstPtr += Utils.SIZEOF_LONG;
+      srcPtr += Utils.SIZEOF_LONG;
+    }
+    for (int i = num8 * Utils.SIZEOF_LONG; i < size; i++, dstPtr++, srcPtr++) {
+      UnsafeAccess.putByte(
+          dstPtr, (byte) (UnsafeAccess.toByte(dstPtr) & UnsafeAccess.toByte(srcPtr)));
+    }
+  }
+
+  /**
+   * Bitwise OR of two memory blocks, result is stored in the destination. Processes memory one
+   * 64-bit word at a time.
+   *
+   * @param dstPtr destination (and first operand) address
+   * @param srcPtr second operand address
+   * @param size size of both blocks in bytes
+   */
+  public static void bitOr(long dstPtr, long srcPtr, int size) {
+    int num8 = size / Utils.SIZEOF_LONG;
+    for (int i = 0; i < num8; i++) {
+      UnsafeAccess.putLong(dstPtr, UnsafeAccess.toLong(dstPtr) | UnsafeAccess.toLong(srcPtr));
+      dstPtr += Utils.SIZEOF_LONG;
+      srcPtr += Utils.SIZEOF_LONG;
+    }
+    for (int i = num8 * Utils.SIZEOF_LONG; i < size; i++, dstPtr++, srcPtr++) {
+      UnsafeAccess.putByte(
+          dstPtr, (byte) (UnsafeAccess.toByte(dstPtr) | UnsafeAccess.toByte(srcPtr)));
+    }
+  }
+
+  /**
+   * Bitwise XOR of two memory blocks, result is stored in the destination. Processes memory one
+   * 64-bit word at a time.
+   *
+   * @param dstPtr destination (and first operand) address
+   * @param srcPtr second operand address
+   * @param size size of both blocks in bytes
+   */
+  public static void bitXor(long dstPtr, long srcPtr, int size) {
+    int num8 = size / Utils.SIZEOF_LONG;
+    for (int i = 0; i < num8; i++) {
+      UnsafeAccess.putLong(dstPtr, UnsafeAccess.toLong(dstPtr) ^ UnsafeAccess.toLong(srcPtr));
+      dstPtr += Utils.SIZEOF_LONG;
+      srcPtr += Utils.SIZEOF_LONG;
+    }
+    for (int i = num8 * Utils.SIZEOF_LONG; i < size; i++, dstPtr++, srcPtr++) {
+      UnsafeAccess.putByte(
+          dstPtr, (byte) (UnsafeAccess.toByte(dstPtr) ^ UnsafeAccess.toByte(srcPtr)));
+    }
+  }
+
+  /**
+   * Bitwise NOT of a memory block (in place). Processes memory one 64-bit word at a time.
+   *
+   * @param ptr memory address
+   * @param size size of a block in bytes
+   */
+  public static void bitNot(long ptr, int size) {
+    int num8 = size / Utils.SIZEOF_LONG;
+    for (int i = 0; i < num8; i++) {
+      UnsafeAccess.putLong(ptr, ~UnsafeAccess.toLong(ptr));
+      ptr += Utils.SIZEOF_LONG;
+    }
+    for (int i = num8 * Utils.SIZEOF_LONG; i < size; i++, ptr++) {
+      UnsafeAccess.putByte(ptr, (byte) ~UnsafeAccess.toByte(ptr));
+    }
+  }
+
   /**
    * TODO: test Returns first position of the set bit ('1')
    *
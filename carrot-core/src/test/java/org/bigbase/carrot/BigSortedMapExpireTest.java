@@ -0,0 +1,182 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot;
+
+import java.io.IOException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bigbase.carrot.ops.ReclaimExpired;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BigSortedMapExpireTest extends CarrotCoreBase {
+
+  private static final Logger log = LogManager.getLogger(BigSortedMapExpireTest.class);
+
+  long MAX_ROWS = 100000;
+
+  public BigSortedMapExpireTest(Object c) {
+    super(c);
+    BigSortedMap.setMaxBlockSize(4096);
+    MAX_ROWS = memoryDebug ? 10000 : 100000;
+  }
+
+  @Before
+  @Override
+  public void setUp() throws IOException {
+    super.setUp();
+    long now = System.currentTimeMillis();
+    for (long i = 0; i < MAX_ROWS; i++) {
+      // Every odd key has already expired, every third key expires in one hour
+      long expire = i % 2 == 1 ? now - 1 : i % 3 == 0 ? now + 3600000 : 0;
+      assertTrue(put(i, expire));
+    }
+  }
+
+  @Override
+  public void extTearDown() {}
+
+  private boolean put(long i, long expire) {
+    byte[] key = ("KEY" + i).getBytes();
+    byte[] value = ("VALUE" + i).getBytes();
+    return map.put(key, 0, key.length, value, 0, value.length, expire);
+  }
+
+  private long get(long i) {
+    byte[] key = ("KEY" + i).getBytes();
+    long keyPtr = UnsafeAccess.allocAndCopy(key, 0, key.length);
+    long valPtr = UnsafeAccess.malloc(64);
+    try {
+      return map.get(keyPtr, key.length, valPtr, 64, Long.MAX_VALUE);
+    } finally {
+      UnsafeAccess.free(keyPtr);
+      UnsafeAccess.free(valPtr);
+    }
+  }
+
+  private long countRecords() throws IOException {
+    BigSortedMapScanner scanner = map.getScanner(0, 0, 0, 0);
+    long counter = 0;
+    while (scanner.hasNext()) {
+      counter++;
+      scanner.next();
+    }
+    scanner.close();
+    return counter;
+  }
+
+  private long countRecordsReverse() throws IOException {
+    BigSortedMapScanner scanner = map.getScanner(0, 0, 0, 0, true);
+    if (scanner == null) {
+      return 0;
+    }
+    long counter = 0;
+    byte[] prev = null;
+    do {
+      byte[] key = new byte[scanner.keySize()];
+      scanner.key(key, 0);
+      if (prev != null) {
+        assertTrue(Utils.compareTo(prev, 0, prev.length, key, 0, key.length) > 0);
+      }
+      prev = key;
+      counter++;
+    } while (scanner.previous());
+    scanner.close();
+    return counter;
+  }
+
+  @Test
+  public void testReverseScan() throws IOException {
+    log.debug("{}", getTestParameters());
+    assertEquals(MAX_ROWS / 2, countRecordsReverse());
+    // Range of expired keys which spans several data blocks
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 1000; i++) {
+      byte[] key = ("KEZ" + i).getBytes();
+      assertTrue(map.put(key, 0, key.length, key, 0, key.length, now - 1));
+    }
+    byte[] key = "KEZZ".getBytes();
+    assertTrue(map.put(key, 0, key.length, key, 0, key.length, 0));
+    assertEquals(MAX_ROWS / 2 + 1, countRecords());
+    assertEquals(MAX_ROWS / 2 + 1, countRecordsReverse());
+  }
+
+  @Test
+  public void testLazyExpiration() throws IOException {
+    log.debug("{}", getTestParameters());
+    for (long i = 0; i < MAX_ROWS; i++) {
+      long size = get(i);
+      if (i % 2 == 1) {
+        assertEquals(DataBlock.NOT_FOUND, size);
+      } else {
+        assertEquals(("VALUE" + i).length(), (int) size);
+      }
+    }
+    assertEquals(MAX_ROWS / 2, countRecords());
+  }
+
+  @Test
+  public void testReclaimOnUpdate() throws IOException {
+    log.debug("{}", getTestParameters());
+    long expiredKeys = BigSortedMap.getGlobalExpiredKeys();
+    ReclaimExpired op = new ReclaimExpired();
+    for (long i = 1; i < 100; i += 2) {
+      byte[] key = ("KEY" + i).getBytes();
+      long keyPtr = UnsafeAccess.allocAndCopy(key, 0, key.length);
+      op.reset();
+      op.setKeyAddress(keyPtr);
+      op.setKeySize(key.length);
+      assertFalse(map.execute(op));
+      UnsafeAccess.free(keyPtr);
+    }
+    assertEquals(expiredKeys + 50, BigSortedMap.getGlobalExpiredKeys());
+    // Overwrite of expired record which keeps TTL, must not keep expiration time
+    assertTrue(put(101, -1));
+    assertEquals(("VALUE" + 101).length(), (int) get(101));
+    assertEquals(MAX_ROWS / 2 + 1, countRecords());
+  }
+
+  @Test
+  public void testActiveExpiration() throws IOException {
+    log.debug("{}", getTestParameters());
+    long expiredKeys = BigSortedMap.getGlobalExpiredKeys();
+    long expiredBytes = BigSortedMap.getGlobalExpiredBytes();
+    long dataSize = BigSortedMap.getGlobalDataSize();
+
+    byte[] lastKey = null;
+    int cycles = 0;
+    // Run incremental cycles with a short time budget until we reach the end of the map
+    do {
+      lastKey = map.sweepExpired(lastKey, System.nanoTime() + 1000000);
+      cycles++;
+    } while (lastKey != null);
+    log.debug("Active expiration cycles={}", cycles);
+
+    assertEquals(expiredKeys + MAX_ROWS / 2, BigSortedMap.getGlobalExpiredKeys());
+    assertTrue(BigSortedMap.getGlobalExpiredBytes() > expiredBytes);
+    assertTrue(BigSortedMap.getGlobalDataSize() < dataSize);
+    assertEquals(MAX_ROWS / 2, countRecords());
+    // Second pass must not find anything
+    assertNull(map.sweepExpired(null, Long.MAX_VALUE));
+    assertEquals(expiredKeys + MAX_ROWS / 2, BigSortedMap.getGlobalExpiredKeys());
+    for (long i = 0; i < MAX_ROWS; i += 2) {
+      assertEquals(("VALUE" + i).length(), (int) get(i));
+    }
+  }
+}
@@ -14,14 +14,24 @@
 package org.bigbase.carrot;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.bigbase.carrot.compression.LZ4Frame;
+import org.bigbase.carrot.redis.RedisConf;
+import org.bigbase.carrot.redis.lists.Lists;
 import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -316,4 +326,310 @@ public class BigSortedMapSnapshotTest extends CarrotCoreBase {
     end = System.currentTimeMillis();
     log.debug("Verified {} in {}ms", records, end - start);
   }
+
+  @Test
+  public void testParallelSnapshotSegments() throws IOException {
+    int numSegments = 4;
+    map.snapshot(numSegments);
+
+    File dir = new File(RedisConf.getInstance().getDataDir(0), BigSortedMap.SNAPSHOT_DIR);
+    assertTrue(new File(dir, BigSortedMap.SNAPSHOT_MANIFEST).exists());
+    for (int i = 0; i < numSegments; i++) {
+      assertTrue(new File(dir, BigSortedMap.SNAPSHOT_SEGMENT_PREFIX + i).exists());
+    }
+    assertTrue(!new File(dir, BigSortedMap.SNAPSHOT_SEGMENT_PREFIX + numSegments).exists());
+    map.dispose();
+
+    BigSortedMap.setStatsUpdatesDisabled(true);
+    map = BigSortedMap.loadStore(0);
+    BigSortedMap.setStatsUpdatesDisabled(false);
+    map.syncStatsToGlobal();
+
+    assertEquals(totalLoaded, countRecords());
+    verifyRecords();
+  }
+
+  @Test
+  public void testPointInTimeSnapshot() throws Exception {
+    long epoch = map.getSnapshotEpoch();
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicLong updates = new AtomicLong();
+    // Writer deletes existing records and adds new ones while snapshot is in progress
+    Thread writer =
+        new Thread(
+            () -> {
+              while (map.getSnapshotEpoch() == epoch) {
+                Thread.yield();
+              }
+              for (int i = 1; i <= totalLoaded && !done.get(); i++) {
+                byte[] key = ("KEY" + i).getBytes();
+                long keyPtr = UnsafeAccess.malloc(key.length);
+                UnsafeAccess.copy(key, 0, keyPtr, key.length);
+                map.delete(keyPtr, key.length);
+                UnsafeAccess.free(keyPtr);
+                load(totalLoaded + i);
+                updates.incrementAndGet();
+              }
+            });
+    writer.start();
+    map.snapshot(4);
+    done.set(true);
+    writer.join();
+    log.debug("Updates during snapshot={}", updates.get());
+    map.dispose();
+
+    BigSortedMap.setStatsUpdatesDisabled(true);
+    map = BigSortedMap.loadStore(0);
+    BigSortedMap.setStatsUpdatesDisabled(false);
+    map.syncStatsToGlobal();
+
+    // Snapshot contains store state at the snapshot start
+    assertEquals(totalLoaded, countRecords());
+    verifyRecords();
+  }
+
+  private static final String LIST_KEY = "LIST";
+
+  /**
+   * Load list, which elements are changed in place by LSET
+   *
+   * @param n number of elements
+   * @param prefix element prefix
+   */
+  private void loadList(int n, String prefix) {
+    Lists.registerDeallocator();
+    Lists.registerSerDe();
+    long keyPtr = UnsafeAccess.allocAndCopy(LIST_KEY, 0, LIST_KEY.length());
+    for (int i = 0; i < n; i++) {
+      String elem = prefix + i;
+      long elemPtr = UnsafeAccess.allocAndCopy(elem, 0, elem.length());
+      Lists.RPUSH(map, keyPtr, LIST_KEY.length(), new long[] {elemPtr}, new int[] {elem.length()});
+      UnsafeAccess.free(elemPtr);
+    }
+    UnsafeAccess.free(keyPtr);
+  }
+
+  /**
+   * Delete list and unregister List data type: other tests use random raw keys, which can look like
+   * List keys
+   */
+  private void deleteList() {
+    if (map != null) {
+      long keyPtr = UnsafeAccess.allocAndCopy(LIST_KEY, 0, LIST_KEY.length());
+      Lists.DELETE(map, keyPtr, LIST_KEY.length());
+      UnsafeAccess.free(keyPtr);
+    }
+    DataBlock.clearDeallocators();
+    DataBlock.clearSerDes();
+  }
+
+  /**
+   * Set list element
+   *
+   * @param index element index
+   * @param elem new element
+   */
+  private void setListElement(int index, String elem) {
+    long keyPtr = UnsafeAccess.allocAndCopy(LIST_KEY, 0, LIST_KEY.length());
+    long elemPtr = UnsafeAccess.allocAndCopy(elem, 0, elem.length());
+    Lists.LSET(map, keyPtr, LIST_KEY.length(), index, elemPtr, elem.length());
+    UnsafeAccess.free(elemPtr);
+    UnsafeAccess.free(keyPtr);
+  }
+
+  /**
+   * Verify list elements
+   *
+   * @param n number of elements
+   * @param prefix element prefix
+   */
+  private void verifyList(int n, String prefix) {
+    long keyPtr = UnsafeAccess.allocAndCopy(LIST_KEY, 0, LIST_KEY.length());
+    int bufSize = 64;
+    long buf = UnsafeAccess.malloc(bufSize);
+    assertEquals(n, (int) Lists.LLEN(map, keyPtr, LIST_KEY.length()));
+    for (int i = 0; i < n; i++) {
+      byte[] elem = (prefix + i).getBytes();
+      int size = Lists.LINDEX(map, keyPtr, LIST_KEY.length(), i, buf, bufSize);
+      assertEquals(elem.length, size);
+      assertEquals(0, Utils.compareTo(elem, 0, elem.length, buf, size));
+    }
+    UnsafeAccess.free(buf);
+    UnsafeAccess.free(keyPtr);
+  }
+
+  @Test
+  public void testPointInTimeSnapshotListInPlaceUpdates() throws Exception {
+    int n = 10000;
+    loadList(n, "OLD");
+    try {
+      long epoch = map.getSnapshotEpoch();
+      // Writer changes list elements in place (segment addresses do not change) during snapshot
+      Thread writer =
+          new Thread(
+              () -> {
+                while (map.getSnapshotEpoch() == epoch) {
+                  Thread.yield();
+                }
+                for (int i = 0; i < n; i++) {
+                  setListElement(i, "NEW" + i);
+                }
+              });
+      writer.start();
+      map.snapshot(4);
+      writer.join();
+      verifyList(n, "NEW");
+      map.dispose();
+
+      BigSortedMap.setStatsUpdatesDisabled(true);
+      map = BigSortedMap.loadStore(0);
+      BigSortedMap.setStatsUpdatesDisabled(false);
+      map.syncStatsToGlobal();
+
+      // Snapshot contains list state at the snapshot start
+      verifyList(n, "OLD");
+    } finally {
+      deleteList();
+    }
+  }
+
+  @Test
+  public void testCompressedSnapshot() throws IOException {
+    assumeTrue(LZ4Frame.isAvailable());
+    RedisConf conf = RedisConf.getInstance();
+    conf.setProperty(RedisConf.CONF_SNAPSHOT_COMPRESSION, "true");
+    try {
+      map.snapshot(4);
+    } finally {
+      conf.setProperty(RedisConf.CONF_SNAPSHOT_COMPRESSION, null);
+    }
+    map.dispose();
+
+    BigSortedMap.setStatsUpdatesDisabled(true);
+    map = BigSortedMap.loadStore(0);
+    BigSortedMap.setStatsUpdatesDisabled(false);
+    map.syncStatsToGlobal();
+
+    assertEquals(totalLoaded, countRecords());
+    verifyRecords();
+  }
+
+  @Test
+  public void testCorruptedSnapshot() throws IOException {
+    // Corruption is detected by checksums of compressed data
+    assumeTrue(LZ4Frame.isAvailable());
+    RedisConf conf = RedisConf.getInstance();
+    conf.setProperty(RedisConf.CONF_SNAPSHOT_COMPRESSION, "true");
+    try {
+      map.snapshot(4);
+    } finally {
+      conf.setProperty(RedisConf.CONF_SNAPSHOT_COMPRESSION, null);
+    }
+    File dir = new File(RedisConf.getInstance().getDataDir(0), BigSortedMap.SNAPSHOT_DIR);
+    File segment = new File(dir, BigSortedMap.SNAPSHOT_SEGMENT_PREFIX + 1);
+    try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+      long pos = raf.length() / 2;
+      raf.seek(pos);
+      int b = raf.read();
+      raf.seek(pos);
+      raf.write(b ^ 0xff);
+    }
+    map.dispose();
+
+    // Corruption is detected, partially loaded store is discarded
+    BigSortedMap.setStatsUpdatesDisabled(true);
+    map = BigSortedMap.loadStore(0);
+    BigSortedMap.setStatsUpdatesDisabled(false);
+    assertNull(map);
+  }
+
+  private long sizeOfDataFiles(File dir, String prefix) {
+    long size = 0;
+    for (File f : dir.listFiles()) {
+      if (f.getName().startsWith(prefix)) {
+        size += f.length();
+      }
+    }
+    return size;
+  }
+
+  private void delete(long i) {
+    byte[] key = ("KEY" + i).getBytes();
+    long keyPtr = UnsafeAccess.malloc(key.length);
+    UnsafeAccess.copy(key, 0, keyPtr, key.length);
+    assertTrue(map.delete(keyPtr, key.length));
+    UnsafeAccess.free(keyPtr);
+  }
+
+  @Test
+  public void testIncrementalSnapshot() throws IOException {
+    File dir = new File(RedisConf.getInstance().getDataDir(0), BigSortedMap.SNAPSHOT_DIR);
+    map.snapshot(4);
+    long fullSize = sizeOfDataFiles(dir, BigSortedMap.SNAPSHOT_SEGMENT_PREFIX);
+
+    // Delete 100 adjacent records and add 100 new ones
+    for (int i = 50001; i <= 50100; i++) {
+      delete(i);
+      load(totalLoaded + i - 50000);
+    }
+    map.snapshot(4);
+    long deltaSize = sizeOfDataFiles(dir, BigSortedMap.SNAPSHOT_SEGMENT_PREFIX + "1.");
+    assertTrue(deltaSize > 0);
+    // Only modified index blocks are saved
+    assertTrue(deltaSize < fullSize / 4);
+
+    // Second incremental snapshot
+    for (int i = 50101; i <= 50200; i++) {
+      delete(i);
+    }
+    map.snapshot(4);
+    assertTrue(sizeOfDataFiles(dir, BigSortedMap.SNAPSHOT_SEGMENT_PREFIX + "2.") > 0);
+    map.dispose();
+
+    BigSortedMap.setStatsUpdatesDisabled(true);
+    map = BigSortedMap.loadStore(0);
+    BigSortedMap.setStatsUpdatesDisabled(false);
+    map.syncStatsToGlobal();
+
+    assertEquals(totalLoaded - 100, countRecords());
+    for (long i = 1; i <= totalLoaded + 100; i++) {
+      byte[] key = ("KEY" + i).getBytes();
+      long keyPtr = UnsafeAccess.malloc(key.length);
+      UnsafeAccess.copy(key, 0, keyPtr, key.length);
+      assertEquals(i <= 50000 || i > 50200, map.exists(keyPtr, key.length));
+      UnsafeAccess.free(keyPtr);
+    }
+  }
+
+  @Test
+  public void testIncrementalSnapshotListInPlaceUpdates() throws IOException {
+    int n = 1000;
+    loadList(n, "OLD");
+    try {
+      File dir = new File(RedisConf.getInstance().getDataDir(0), BigSortedMap.SNAPSHOT_DIR);
+      map.snapshot(4);
+      long fullSize = sizeOfDataFiles(dir, BigSortedMap.SNAPSHOT_SEGMENT_PREFIX);
+
+      // Elements are replaced in place, list header record is not updated
+      for (int i = 0; i < n; i++) {
+        setListElement(i, "NEW" + i);
+      }
+      map.snapshot(4);
+      long deltaSize = sizeOfDataFiles(dir, BigSortedMap.SNAPSHOT_SEGMENT_PREFIX + "1.");
+      // Index block of the list is saved
+      assertTrue(deltaSize > 0);
+      assertTrue(deltaSize < fullSize / 4);
+      map.dispose();
+
+      BigSortedMap.setStatsUpdatesDisabled(true);
+      map = BigSortedMap.loadStore(0);
+      BigSortedMap.setStatsUpdatesDisabled(false);
+      map.syncStatsToGlobal();
+
+      assertEquals(totalLoaded, countRecords() - 1);
+      verifyList(n, "NEW");
+    } finally {
+      deleteList();
+    }
+  }
 }
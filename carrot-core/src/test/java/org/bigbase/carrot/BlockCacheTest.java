@@ -0,0 +1,140 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.bigbase.carrot.compression.CodecFactory;
+import org.bigbase.carrot.compression.CodecType;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlockCacheTest {
+
+  private long buf;
+  private long dst;
+
+  @Before
+  public void setUp() {
+    buf = UnsafeAccess.malloc(BlockCache.SLOT_SIZE);
+    dst = UnsafeAccess.malloc(BlockCache.SLOT_SIZE);
+    BlockCache.resetStats();
+  }
+
+  @After
+  public void tearDown() {
+    BlockCache.setMaxSize(BlockCache.DEFAULT_MAX_SIZE);
+    BlockCache.resetStats();
+    UnsafeAccess.free(buf);
+    UnsafeAccess.free(dst);
+  }
+
+  private void fill(long ptr, int size, byte b) {
+    UnsafeAccess.setMemory(ptr, size, b);
+  }
+
+  @Test
+  public void testGetPutInvalidate() {
+    long key = 1000;
+    fill(buf, 100, (byte) 1);
+    assertEquals(-1, BlockCache.get(key, dst));
+    BlockCache.put(key, buf, 100);
+    assertEquals(100, BlockCache.get(key, dst));
+    assertEquals(0, Utils.compareTo(buf, 100, dst, 100));
+    assertEquals(1, BlockCache.getHits());
+    assertEquals(1, BlockCache.getMisses());
+    assertEquals(0.5, BlockCache.getHitRatio(), 0.0);
+    BlockCache.invalidate(key);
+    assertEquals(-1, BlockCache.get(key, dst));
+  }
+
+  @Test
+  public void testClockReplacement() {
+    // One set only
+    BlockCache.setMaxSize(BlockCache.WAYS * BlockCache.SLOT_SIZE);
+    for (int i = 1; i <= BlockCache.WAYS; i++) {
+      fill(buf, 10, (byte) i);
+      BlockCache.put(i, buf, 10);
+    }
+    assertEquals(BlockCache.WAYS * BlockCache.SLOT_SIZE, BlockCache.getUsedMemory());
+    // Referenced block survives
+    assertEquals(10, BlockCache.get(1, dst));
+    BlockCache.put(BlockCache.WAYS + 1, buf, 10);
+    assertEquals(10, BlockCache.get(1, dst));
+    assertEquals(-1, BlockCache.get(2, dst));
+    assertEquals(10, BlockCache.get(BlockCache.WAYS + 1, dst));
+    assertEquals(BlockCache.WAYS, UnsafeAccess.toByte(dst));
+  }
+
+  @Test
+  public void testDisabled() {
+    BlockCache.setMaxSize(0);
+    assertTrue(!BlockCache.isEnabled());
+    assertEquals(0, BlockCache.getUsedMemory());
+    BlockCache.put(1, buf, 10);
+    assertEquals(-1, BlockCache.get(1, dst));
+  }
+
+  @Test
+  public void testCompressedBlocks() {
+    BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.LZ4));
+    BigSortedMap map = new BigSortedMap(100000000);
+    try {
+      int n = 10000;
+      for (int i = 0; i < n; i++) {
+        put(map, "key" + i, "value" + i);
+      }
+      for (int i = 0; i < n; i++) {
+        assertEquals("value" + i, get(map, "key" + i));
+      }
+      long hits = BlockCache.getHits();
+      for (int i = 0; i < n; i++) {
+        assertEquals("value" + i, get(map, "key" + i));
+      }
+      assertEquals(hits + n, BlockCache.getHits());
+      // Updates invalidate cached blocks
+      for (int i = 0; i < n; i += 2) {
+        put(map, "key" + i, "new-value" + i);
+      }
+      for (int i = 0; i < n; i++) {
+        assertEquals((i % 2 == 0 ? "new-value" : "value") + i, get(map, "key" + i));
+      }
+    } finally {
+      map.dispose();
+      BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.NONE));
+    }
+  }
+
+  private void put(BigSortedMap map, String key, String value) {
+    byte[] k = key.getBytes();
+    byte[] v = value.getBytes();
+    long keyPtr = UnsafeAccess.allocAndCopy(k, 0, k.length);
+    long valuePtr = UnsafeAccess.allocAndCopy(v, 0, v.length);
+    assertTrue(map.put(keyPtr, k.length, valuePtr, v.length, 0));
+    UnsafeAccess.free(keyPtr);
+    UnsafeAccess.free(valuePtr);
+  }
+
+  private String get(BigSortedMap map, String key) {
+    byte[] k = key.getBytes();
+    long keyPtr = UnsafeAccess.allocAndCopy(k, 0, k.length);
+    long size = map.get(keyPtr, k.length, buf, BlockCache.SLOT_SIZE, Long.MAX_VALUE);
+    UnsafeAccess.free(keyPtr);
+    return size < 0 ? null : Utils.toString(buf, (int) size);
+  }
+}
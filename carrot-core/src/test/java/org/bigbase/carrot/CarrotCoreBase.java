@@ -5,13 +5,16 @@ import org.apache.logging.log4j.Logger;
 import org.bigbase.carrot.compression.Codec;
 import org.bigbase.carrot.compression.CodecFactory;
 import org.bigbase.carrot.compression.CodecType;
+import org.bigbase.carrot.redis.RedisConf;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.junit.*;
 import org.junit.rules.TestName;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.*;
 
 @RunWith(Parameterized.class)
@@ -32,6 +35,10 @@ public abstract class CarrotCoreBase {
   protected BigSortedMap map;
   protected long nKeyValues;
 
+  /* Snapshots are written to a temporary data directory */
+  protected File dataDir;
+  private String savedDataDir;
+
   @Rule public TestName testName = new TestName();
 
 
@@ -52,6 +59,11 @@ public abstract class CarrotCoreBase {
   public void setUp() throws IOException {
     log.debug("SetUp {} ", getTestParameters());
 
+    RedisConf conf = RedisConf.getInstance();
+    dataDir = Files.createTempDirectory("carrot").toFile();
+    savedDataDir = conf.getDataDir();
+    conf.setProperty(RedisConf.CONF_DATA_DIR_PATH, dataDir.getAbsolutePath());
+
     map = new BigSortedMap(MEM_ALLOCATE);
     nKeyValues = memoryDebug ? KEY_VALUE_SIZE_DEBUG : KEY_VALUE_SIZE;
     
@@ -66,6 +78,11 @@ public abstract class CarrotCoreBase {
   public void tearDown() {
     log.debug("tearDown: {}", getTestParameters()); // getTestParameters());
 
+    if (dataDir != null) {
+      RedisConf.getInstance().setProperty(RedisConf.CONF_DATA_DIR_PATH, savedDataDir);
+      delete(dataDir);
+      dataDir = null;
+    }
     if (Objects.isNull(map)) return;
     // Dispose
     map.dispose();
@@ -81,6 +98,16 @@ public abstract class CarrotCoreBase {
 
   public abstract void extTearDown();
 
+  private static void delete(File f) {
+    File[] files = f.listFiles();
+    if (files != null) {
+      for (File ff : files) {
+        delete(ff);
+      }
+    }
+    f.delete();
+  }
+
   @Parameterized.Parameters(name = "Run with codec={0}")
   public static Collection<Object[]> data() {
     return Arrays.asList(
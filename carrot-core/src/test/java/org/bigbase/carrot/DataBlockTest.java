@@ -332,6 +332,49 @@ public class DataBlockTest extends DataBlockTestBase {
     BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.NONE));
   }
 
+  @Test
+  public void testCompressionPrefixKeys() throws RetryOperationException, IOException {
+    BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.LZ4));
+    try {
+      DataBlock b = getDataBlock();
+      List<Key> keys = new ArrayList<>();
+      // Keys share long prefixes, like fields of a hash
+      for (int i = 0; ; i++) {
+        byte[] key = String.format("user:profile:%08d", i).getBytes();
+        byte[] value = ("value" + i).getBytes();
+        if (!b.put(key, 0, key.length, value, 0, value.length, -1)) {
+          break;
+        }
+        keys.add(new Key(UnsafeAccess.allocAndCopy(key, 0, key.length), key.length));
+      }
+      int dataSize = b.getDataInBlockSize();
+      long buf = UnsafeAccess.malloc(2 * dataSize + b.getNumberOfRecords());
+      long dst = UnsafeAccess.malloc(dataSize);
+      int encodedSize = DataBlock.encodeKeyPrefixes(b.getAddress(), dataSize, buf);
+      assertTrue(encodedSize < dataSize);
+      assertEquals(dataSize, DataBlock.decodeKeyPrefixes(buf, encodedSize, dst));
+      assertEquals(0, Utils.compareTo(b.getAddress(), dataSize, dst, dataSize));
+      UnsafeAccess.free(buf);
+      UnsafeAccess.free(dst);
+
+      b.compressDataBlockIfNeeded();
+      assertTrue(b.isCompressed());
+      assertTrue(b.isPrefixKeys());
+      b.decompressDataBlockIfNeeded();
+      scanAndVerify(b, keys);
+      // Blocks compressed without prefix encoding are still readable
+      DataBlock.setPrefixKeysEnabled(false);
+      b.setMutationOp(true);
+      b.compressDataBlockIfNeeded();
+      assertFalse(b.isPrefixKeys());
+      b.decompressDataBlockIfNeeded();
+      scanAndVerify(b, keys);
+    } finally {
+      DataBlock.setPrefixKeysEnabled(true);
+      BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.NONE));
+    }
+  }
+
   @Test
   public void testFirstKey() throws IOException {
     log.debug("testFirstKey");
@@ -0,0 +1,215 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.compression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+import org.bigbase.compression.lz4.LZ4;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LZ4DictCodecTest {
+
+  private static final int BLOCK_SIZE = 1024;
+  private static final int BUFFER_SIZE = 2 * BLOCK_SIZE;
+
+  private LZ4DictCodec codec = new LZ4DictCodec();
+  private long src;
+  private long dst;
+  private long out;
+  private File dir;
+
+  @Before
+  public void setUp() {
+    src = UnsafeAccess.malloc(BLOCK_SIZE);
+    dst = UnsafeAccess.malloc(BUFFER_SIZE);
+    out = UnsafeAccess.malloc(BUFFER_SIZE);
+    LZ4DictCodec.setDictionarySize(4096);
+    LZ4DictCodec.setRetrainInterval(100);
+  }
+
+  @After
+  public void tearDown() {
+    LZ4DictCodec.setDictionarySize(LZ4DictCodec.DEFAULT_DICTIONARY_SIZE);
+    LZ4DictCodec.setRetrainInterval(LZ4DictCodec.DEFAULT_RETRAIN_INTERVAL);
+    UnsafeAccess.free(src);
+    UnsafeAccess.free(dst);
+    UnsafeAccess.free(out);
+    if (dir != null) {
+      File[] files = dir.listFiles();
+      if (files != null) {
+        for (File f : files) {
+          f.delete();
+        }
+      }
+      dir.delete();
+    }
+  }
+
+  /**
+   * Fills source with a block of JSON-like records
+   *
+   * @param seed first record id
+   */
+  private void fillBlock(int seed) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = seed; sb.length() < BLOCK_SIZE; i++) {
+      sb.append("{\"id\":")
+          .append(i)
+          .append(",\"name\":\"user")
+          .append(i * 7919 % 100003)
+          .append("\",\"email\":\"")
+          .append(i * 31 % 997)
+          .append("@example.com\",\"active\":")
+          .append(i % 3 == 0)
+          .append('}');
+    }
+    byte[] b = sb.toString().getBytes();
+    UnsafeAccess.copy(b, 0, src, BLOCK_SIZE);
+  }
+
+  private int compress() {
+    int size = codec.compress(src, BLOCK_SIZE, dst, BUFFER_SIZE);
+    assertTrue(size > 0);
+    return size;
+  }
+
+  private void verify(long compressed, int size) {
+    assertEquals(BLOCK_SIZE, codec.decompress(compressed, size, out, BUFFER_SIZE));
+    assertEquals(0, Utils.compareTo(src, BLOCK_SIZE, out, BLOCK_SIZE));
+  }
+
+  /** Compresses blocks until a new dictionary version is published */
+  private int train(int seed) {
+    int version = LZ4DictCodec.getDictionaryVersion();
+    for (int i = 0; LZ4DictCodec.getDictionaryVersion() == version; i++) {
+      assertTrue(i < 100000);
+      fillBlock(seed + i * 10);
+      verify(dst, compress());
+    }
+    return LZ4DictCodec.getDictionaryVersion();
+  }
+
+  @Test
+  public void testTraining() {
+    int version = train(0);
+    assertTrue(version > 0);
+    fillBlock(1000000);
+    int size = compress();
+    assertEquals(version, UnsafeAccess.toShort(dst) & 0xffff);
+    verify(dst, size);
+    int lz4Size = LZ4.compressDirectAddress(src, BLOCK_SIZE, out, BUFFER_SIZE);
+    assertTrue(size < lz4Size);
+  }
+
+  @Test
+  public void testRetraining() {
+    train(0);
+    // Blocks compressed with all versions are readable
+    List<Long> blocks = new ArrayList<Long>();
+    List<Integer> sizes = new ArrayList<Integer>();
+    int seed = 2000000;
+    for (int k = 0; k < 3; k++) {
+      fillBlock(seed);
+      int size = compress();
+      blocks.add(UnsafeAccess.allocAndCopy(dst, size));
+      sizes.add(size);
+      int version = LZ4DictCodec.getDictionaryVersion();
+      assertTrue(train(seed + 1) > version);
+    }
+    fillBlock(seed);
+    for (int k = 0; k < blocks.size(); k++) {
+      verify(blocks.get(k), sizes.get(k));
+      UnsafeAccess.free(blocks.get(k));
+    }
+  }
+
+  @Test
+  public void testSaveLoad() throws IOException {
+    int version = train(3000000);
+    dir = Files.createTempDirectory("dict").toFile();
+    File file = new File(dir, LZ4DictCodec.DICTIONARY_FILE);
+    LZ4DictCodec.saveDictionaries(file);
+    assertTrue(file.length() > 0);
+    // Known versions are kept
+    LZ4DictCodec.loadDictionaries(file);
+    assertEquals(version, LZ4DictCodec.getDictionaryVersion());
+
+    File corrupted = new File(dir, "corrupted");
+    try (FileOutputStream fos = new FileOutputStream(corrupted)) {
+      fos.write(new byte[] {0, 0, 0, 1, 0, 1, 0, 0});
+    }
+    try {
+      LZ4DictCodec.loadDictionaries(corrupted);
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testBuffers() throws IOException {
+    int version = LZ4DictCodec.getDictionaryVersion();
+    fillBlock(4000000);
+    ByteBuffer in = ByteBuffer.allocateDirect(BLOCK_SIZE);
+    ByteBuffer compressed = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    ByteBuffer decompressed = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    UnsafeAccess.copy(src, UnsafeAccess.address(in), BLOCK_SIZE);
+    // Buffers (codec availability probe) do not train dictionaries
+    for (int i = 0; i < 10 * LZ4DictCodec.SAMPLE_RATE; i++) {
+      compressed.clear();
+      decompressed.clear();
+      int size = codec.compress(in, compressed);
+      assertTrue(size > 0);
+      assertEquals(BLOCK_SIZE, codec.decompress(compressed, decompressed));
+      assertEquals(
+          0, Utils.compareTo(src, BLOCK_SIZE, UnsafeAccess.address(decompressed), BLOCK_SIZE));
+    }
+    assertEquals(version, LZ4DictCodec.getDictionaryVersion());
+    // Address of a heap buffer is not accessible
+    try {
+      codec.compress(ByteBuffer.allocate(BLOCK_SIZE), compressed);
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testSmallDestination() {
+    fillBlock(0);
+    assertEquals(0, codec.compress(src, BLOCK_SIZE, dst, LZ4DictCodec.VERSION_SIZE));
+  }
+
+  @Test
+  public void testUnknownVersion() {
+    fillBlock(0);
+    int size = compress();
+    UnsafeAccess.putShort(dst, (short) LZ4DictCodec.MAX_VERSION);
+    assertEquals(-1, codec.decompress(dst, size, out, BUFFER_SIZE));
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis;
+
+import static org.bigbase.carrot.util.Utils.strToByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.util.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BufferChainTest {
+
+  private BigSortedMap map;
+  private BufferChain chain = new BufferChain();
+
+  @Before
+  public void setUp() {
+    map = new BigSortedMap(100000000);
+  }
+
+  @After
+  public void tearDown() {
+    chain.clear();
+    map.dispose();
+  }
+
+  @Test
+  public void testPut() {
+    int slabSize = BufferPool.getSlabSize();
+    long used = BufferPool.getUsedMemory();
+    ByteBuffer src = ByteBuffer.allocate(3 * slabSize + 10);
+    while (src.hasRemaining()) {
+      src.put((byte) src.position());
+    }
+    src.flip();
+    chain.writeBuffer(1).put((byte) 1);
+    chain.put(src);
+    assertEquals(3 * slabSize + 11, chain.dataSize());
+    // Data is kept in pool slabs
+    assertEquals(used + 4 * slabSize, BufferPool.getUsedMemory());
+    chain.clear();
+    assertEquals(used, BufferPool.getUsedMemory());
+  }
+
+  @Test
+  public void testLargeReply() {
+    int slabSize = BufferPool.getSlabSize();
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 2 * slabSize; i++) {
+      sb.append((char) ('a' + i % 26));
+    }
+    String value = sb.toString();
+    execute("SET key " + value);
+    chain.clear();
+    long used = BufferPool.getUsedMemory();
+    execute("GET key");
+    String reply = "$" + value.length() + "\r\n" + value + "\r\n";
+    assertEquals(reply.length(), chain.dataSize());
+    long slabs = (reply.length() + slabSize - 1) / slabSize;
+    assertTrue(BufferPool.getUsedMemory() - used <= (slabs + 1) * slabSize);
+  }
+
+  @Test
+  public void testLargeRequest() {
+    // Request, which is larger than a third of a default input buffer (1MB), grows the buffer
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 600 * 1024; i++) {
+      sb.append((char) ('a' + i % 26));
+    }
+    String value = sb.toString();
+    // Heap buffer is copied into a thread local input buffer
+    ByteBuffer in = ByteBuffer.allocate(1 << 20);
+    strToByteBuffer(Utils.inlineToRedisRequest("SET key " + value), in);
+    CommandProcessor.process(map, in, chain);
+    assertEquals("+OK\r\n".length(), chain.dataSize());
+    chain.clear();
+    // Inline request
+    in.clear();
+    strToByteBuffer("SET key1 " + value + "\r\n", in);
+    ByteBuffer out = ByteBuffer.allocate(1024);
+    CommandProcessor.process(map, in, out);
+    assertEquals("+OK\r\n", new String(out.array(), 0, out.position()));
+
+    execute("GET key");
+    String reply = "$" + value.length() + "\r\n" + value + "\r\n";
+    assertEquals(reply.length(), chain.dataSize());
+    chain.clear();
+    execute("GET key1");
+    assertEquals(reply.length(), chain.dataSize());
+  }
+
+  @Test
+  public void testReadLimit() throws IOException {
+    int slabSize = BufferPool.getSlabSize();
+    ReadableByteChannel channel =
+        Channels.newChannel(new ByteArrayInputStream(new byte[10 * slabSize]));
+    chain.read(channel, 2 * slabSize);
+    // Reading stops after the limit is exceeded
+    assertTrue(chain.size() > 2 * slabSize);
+    assertTrue(chain.size() <= 3 * slabSize);
+  }
+
+  private void execute(String inline) {
+    ByteBuffer in = ByteBuffer.allocateDirect(1 << 20);
+    strToByteBuffer(Utils.inlineToRedisRequest(inline), in);
+    CommandProcessor.process(map, in, chain);
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+
+import org.bigbase.carrot.redis.util.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Pipelined requests over a real connection to a node server */
+public class TestCarrotNodeServer {
+
+  private static final String HOST = "localhost";
+
+  private CarrotNodeServer server;
+  private Socket client;
+  private OutputStream os;
+  private DataInputStream is;
+  private File dir;
+  private String savedDataDir;
+
+  @Before
+  public void setUp() throws IOException, InterruptedException {
+    RedisConf conf = RedisConf.getInstance();
+    dir = Files.createTempDirectory("carrot").toFile();
+    savedDataDir = conf.getDataDir();
+    conf.setProperty(RedisConf.CONF_DATA_DIR_PATH, dir.getAbsolutePath());
+    int port;
+    try (ServerSocket ss = new ServerSocket(0)) {
+      port = ss.getLocalPort();
+    }
+    CarrotNodeServer.readyToStartLatch = new CountDownLatch(1);
+    server = new CarrotNodeServer(HOST, port);
+    server.start();
+    // Wait until node accepts connections
+    for (int i = 0; client == null; i++) {
+      try {
+        client = new Socket(HOST, port);
+      } catch (IOException e) {
+        if (i == 100) {
+          throw e;
+        }
+        Thread.sleep(100);
+      }
+    }
+    client.setSoTimeout(30000);
+    os = client.getOutputStream();
+    is = new DataInputStream(client.getInputStream());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    client.close();
+    server.stop();
+    RedisConf.getInstance().setProperty(RedisConf.CONF_DATA_DIR_PATH, savedDataDir);
+    delete(dir);
+  }
+
+  private static void delete(File f) {
+    File[] files = f.listFiles();
+    if (files != null) {
+      for (File ff : files) {
+        delete(ff);
+      }
+    }
+    f.delete();
+  }
+
+  private static String bulk(String s) {
+    return "$" + s.length() + "\r\n" + s + "\r\n";
+  }
+
+  private String read(int size) throws IOException {
+    byte[] buf = new byte[size];
+    is.readFully(buf);
+    return new String(buf);
+  }
+
+  @Test
+  public void testPipelinedRequests() throws IOException {
+    int n = 1000;
+    StringBuilder requests = new StringBuilder();
+    StringBuilder replies = new StringBuilder();
+    for (int i = 0; i < n; i++) {
+      requests.append(Utils.inlineToRedisRequest("SET key" + i + " value" + i));
+      replies.append("+OK\r\n");
+    }
+    for (int i = 0; i < n; i++) {
+      requests.append(Utils.inlineToRedisRequest("GET key" + i));
+      replies.append(bulk("value" + i));
+    }
+    // Inline request in the middle of a pipeline
+    requests.append("GET key0\r\n");
+    replies.append(bulk("value0"));
+    // All requests in one write
+    os.write(requests.toString().getBytes());
+    os.flush();
+    assertEquals(replies.toString(), read(replies.length()));
+  }
+
+  @Test
+  public void testRequestSplitAcrossReads() throws IOException, InterruptedException {
+    String requests =
+        Utils.inlineToRedisRequest("SET key1 value1")
+            + Utils.inlineToRedisRequest("SET key2 value2")
+            + Utils.inlineToRedisRequest("GET key1")
+            + Utils.inlineToRedisRequest("GET key2");
+    String replies = "+OK\r\n+OK\r\n" + bulk("value1") + bulk("value2");
+    byte[] bytes = requests.getBytes();
+    // Split inside the second request's bulk length line, and then inside its value
+    int split1 = requests.indexOf("key2") - 3;
+    int split2 = requests.indexOf("value2") + 2;
+    os.write(bytes, 0, split1);
+    os.flush();
+    // First reply comes back before the second request is complete
+    assertEquals("+OK\r\n", read(5));
+    os.write(bytes, split1, split2 - split1);
+    os.flush();
+    Thread.sleep(100);
+    os.write(bytes, split2, bytes.length - split2);
+    os.flush();
+    assertEquals(replies.substring(5), read(replies.length() - 5));
+  }
+
+  @Test
+  public void testLargeRequestAndReplies() throws IOException {
+    // Value spans several slabs, replies do not fit output buffers
+    int slabSize = BufferPool.getSlabSize();
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; sb.length() < 3 * slabSize; i++) {
+      sb.append(i % 10);
+    }
+    String value = sb.toString();
+    StringBuilder requests = new StringBuilder();
+    requests.append(Utils.inlineToRedisRequest("SET key " + value));
+    StringBuilder replies = new StringBuilder("+OK\r\n");
+    int n = 2 * CarrotNodeServer.maxOutBuffers;
+    for (int i = 0; i < n; i++) {
+      requests.append(Utils.inlineToRedisRequest("GET key"));
+      replies.append(bulk(value));
+    }
+    requests.append(Utils.inlineToRedisRequest("STRLEN key"));
+    replies.append(":" + value.length() + "\r\n");
+    os.write(requests.toString().getBytes());
+    os.flush();
+    assertEquals(replies.toString(), read(replies.length()));
+  }
+}
@@ -0,0 +1,268 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis;
+
+import static org.bigbase.carrot.util.Utils.byteBufferToString;
+import static org.bigbase.carrot.util.Utils.strToByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.EvictionPolicy;
+import org.bigbase.carrot.redis.WriteAheadLog.SyncPolicy;
+import org.bigbase.carrot.redis.lists.Lists;
+import org.bigbase.carrot.redis.util.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestEvictor {
+
+  private BigSortedMap map;
+  private File dir;
+  private ByteBuffer in = ByteBuffer.allocate(1 << 16);
+  private ByteBuffer out = ByteBuffer.allocate(1 << 16);
+  private String value;
+
+  @Before
+  public void setUp() {
+    map = new BigSortedMap(100000000);
+    Lists.registerDeallocator();
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      sb.append((char) ('a' + i % 26));
+    }
+    value = sb.toString();
+  }
+
+  @After
+  public void tearDown() {
+    Evictor.setPolicy(EvictionPolicy.NOEVICTION);
+    Evictor.setSamples(RedisConf.DEFAULT_MAX_MEMORY_SAMPLES);
+    map.dispose();
+    if (dir != null) {
+      File[] files = dir.listFiles();
+      if (files != null) {
+        for (File f : files) {
+          f.delete();
+        }
+      }
+      dir.delete();
+    }
+  }
+
+  private String execute(BigSortedMap map, String inline) {
+    in.clear();
+    out.clear();
+    strToByteBuffer(Utils.inlineToRedisRequest(inline), in);
+    CommandProcessor.process(map, in, out);
+    return byteBufferToString(out);
+  }
+
+  private boolean exists(BigSortedMap map, String key) {
+    return !execute(map, "GET " + key).equals("$-1\r\n");
+  }
+
+  /**
+   * Loads strings
+   *
+   * @param prefix key prefix
+   * @param n number of keys
+   */
+  private void load(String prefix, int n) {
+    for (int i = 0; i < n; i++) {
+      assertEquals("+OK\r\n", execute(map, "SET " + prefix + i + " " + value));
+    }
+  }
+
+  /**
+   * Sets memory limit below current memory usage
+   *
+   * @param toFree memory to free
+   */
+  private void limit(long toFree) {
+    BigSortedMap.setGlobalMemoryLimit(BigSortedMap.getGlobalAllocatedMemory() - toFree);
+  }
+
+  private void testBoundedCache(EvictionPolicy policy) {
+    Evictor.setPolicy(policy);
+    long limit = BigSortedMap.getGlobalAllocatedMemory() + 2000000;
+    BigSortedMap.setGlobalMemoryLimit(limit);
+    long evicted = Evictor.getEvictedKeys();
+    int n = 30000;
+    load("key", n);
+    assertTrue(Evictor.getEvictedKeys() > evicted);
+    assertTrue(BigSortedMap.getGlobalAllocatedMemory() < limit + 100000);
+    // The last key is not evicted
+    assertTrue(exists(map, "key" + (n - 1)));
+    assertTrue(execute(map, "INFO STATS").contains("evicted_keys:" + Evictor.getEvictedKeys()));
+    assertTrue(execute(map, "INFO MEMORY").contains("maxmemory_policy:" + policy.getName()));
+  }
+
+  @Test
+  public void testAllKeysLRUBoundedCache() {
+    testBoundedCache(EvictionPolicy.ALLKEYS_LRU);
+  }
+
+  @Test
+  public void testAllKeysLFUBoundedCache() {
+    testBoundedCache(EvictionPolicy.ALLKEYS_LFU);
+  }
+
+  @Test
+  public void testAllKeysRandomBoundedCache() {
+    testBoundedCache(EvictionPolicy.ALLKEYS_RANDOM);
+  }
+
+  @Test
+  public void testNoEviction() {
+    long evicted = Evictor.getEvictedKeys();
+    load("key", 1000);
+    limit(0);
+    execute(map, "SET extra " + value);
+    assertEquals(evicted, Evictor.getEvictedKeys());
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(exists(map, "key" + i));
+    }
+  }
+
+  @Test
+  public void testAllKeysLRU() throws InterruptedException {
+    int n = 10000;
+    load("key", n);
+    // Access the upper half of the keys (in lexicographical order)
+    Thread.sleep(2100);
+    for (int i = 5; i < 10; i++) {
+      for (int j = 0; j < n / 10; j++) {
+        execute(map, "GET key" + i + j);
+      }
+    }
+    Evictor.setPolicy(EvictionPolicy.ALLKEYS_LRU);
+    // Sample all index blocks
+    Evictor.setSamples(Integer.MAX_VALUE);
+    limit(1000000);
+    long evicted = Evictor.getEvictedKeys();
+    execute(map, "SET zzz " + value);
+    assertTrue(Evictor.getEvictedKeys() > evicted);
+    int lower = 0;
+    for (int i = 0; i < n; i++) {
+      String key = "key" + i;
+      if (!exists(map, key)) {
+        assertTrue(key.compareTo("key5") < 0);
+        lower++;
+      }
+    }
+    assertEquals(Evictor.getEvictedKeys() - evicted, lower);
+  }
+
+  @Test
+  public void testAllKeysLFU() throws InterruptedException {
+    int n = 10000;
+    load("key", n);
+    // Access the lower half of the keys (in lexicographical order) many times
+    for (int k = 0; k < 20; k++) {
+      for (int i = 0; i < 5; i++) {
+        for (int j = 0; j < n / 10; j++) {
+          execute(map, "GET key" + i + j);
+        }
+      }
+    }
+    Evictor.setPolicy(EvictionPolicy.ALLKEYS_LFU);
+    Evictor.setSamples(Integer.MAX_VALUE);
+    limit(1000000);
+    long evicted = Evictor.getEvictedKeys();
+    execute(map, "SET aaa " + value);
+    assertTrue(Evictor.getEvictedKeys() > evicted);
+    for (int i = 0; i < n; i++) {
+      String key = "key" + i;
+      if (!exists(map, key)) {
+        assertTrue(key.compareTo("key5") >= 0);
+      }
+    }
+  }
+
+  @Test
+  public void testVolatileTTL() throws IOException {
+    dir = Files.createTempDirectory("wal").toFile();
+    WriteAheadLog wal = new WriteAheadLog(dir.getAbsolutePath(), SyncPolicy.INTERVAL, 10, 1 << 16);
+    wal.start();
+    map.setWAL(wal);
+    int n = 5000;
+    load("key", n);
+    for (int i = 0; i < 100; i++) {
+      String expire = " PX " + (3600000 + 1000 * i);
+      assertEquals("+OK\r\n", execute(map, "SET volatile" + i + " " + value + expire));
+    }
+    Evictor.setPolicy(EvictionPolicy.VOLATILE_TTL);
+    Evictor.setSamples(Integer.MAX_VALUE);
+    limit(1000000);
+    long evicted = Evictor.getEvictedKeys();
+    execute(map, "SET extra " + value);
+    long count = Evictor.getEvictedKeys() - evicted;
+    assertTrue(count > 0);
+    // Keys are evicted in the order of their expiration
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i >= count, exists(map, "volatile" + i));
+    }
+    // Persistent keys are not evicted
+    for (int i = 0; i < n; i++) {
+      assertTrue(exists(map, "key" + i));
+    }
+    map.setWAL(null);
+    wal.close();
+    // Evictions are logged
+    BigSortedMap restored = new BigSortedMap(100000000);
+    try {
+      new WriteAheadLog(dir.getAbsolutePath(), SyncPolicy.INTERVAL, 10, 1 << 16).replay(restored);
+      for (int i = 0; i < 100; i++) {
+        assertEquals(i >= count, exists(restored, "volatile" + i));
+      }
+    } finally {
+      restored.dispose();
+    }
+  }
+
+  @Test
+  public void testLists() {
+    Evictor.setPolicy(EvictionPolicy.ALLKEYS_RANDOM);
+    long limit = BigSortedMap.getGlobalAllocatedMemory() + 2000000;
+    BigSortedMap.setGlobalMemoryLimit(limit);
+    StringBuilder sb = new StringBuilder();
+    for (int j = 0; j < 50; j++) {
+      sb.append(' ').append(value).append(j);
+    }
+    String elements = sb.toString();
+    int n = 200;
+    for (int i = 0; i < n; i++) {
+      assertEquals(":50\r\n", execute(map, "RPUSH list" + i + elements));
+    }
+    assertTrue(BigSortedMap.getGlobalAllocatedMemory() < limit + 100000);
+    int evicted = 0;
+    for (int i = 0; i < n; i++) {
+      String len = execute(map, "LLEN list" + i);
+      // Lists are evicted as a whole
+      if (len.equals(":0\r\n")) {
+        evicted++;
+      } else {
+        assertEquals(":50\r\n", len);
+      }
+    }
+    assertTrue(evicted > 0);
+  }
+}
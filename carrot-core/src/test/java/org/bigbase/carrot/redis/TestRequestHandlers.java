@@ -0,0 +1,193 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.util.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Request handlers: connection binding, queueing and incomplete requests */
+public class TestRequestHandlers {
+
+  private BigSortedMap map;
+  private RequestHandlers handlers;
+  private ServerSocketChannel serverSocket;
+  private Selector selector;
+  private List<SocketChannel> clients = new ArrayList<>();
+
+  @Before
+  public void setUp() throws IOException {
+    map = new BigSortedMap(100000000);
+    handlers = RequestHandlers.create(map, 2);
+    handlers.start();
+    selector = Selector.open();
+    serverSocket = ServerSocketChannel.open();
+    serverSocket.bind(new InetSocketAddress("localhost", 0));
+  }
+
+  @After
+  public void tearDown() throws IOException, InterruptedException {
+    handlers.shutdown();
+    for (WorkThread w : handlers.workers) {
+      w.join(10000);
+    }
+    for (SocketChannel c : clients) {
+      c.close();
+    }
+    selector.close();
+    serverSocket.close();
+    map.dispose();
+  }
+
+  /**
+   * Opens client connection and registers its server side with the selector
+   *
+   * @return server side selection key
+   */
+  private SelectionKey connect() throws IOException {
+    SocketChannel client = SocketChannel.open(serverSocket.getLocalAddress());
+    clients.add(client);
+    SocketChannel channel = serverSocket.accept();
+    channel.configureBlocking(false);
+    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+    key.attach(null);
+    return key;
+  }
+
+  private SocketChannel client(int index) {
+    return clients.get(index);
+  }
+
+  private void write(SocketChannel client, String s) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(s.getBytes());
+    while (buf.hasRemaining()) {
+      client.write(buf);
+    }
+  }
+
+  private String read(SocketChannel client, int size) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(size);
+    while (buf.hasRemaining()) {
+      if (client.read(buf) < 0) {
+        break;
+      }
+    }
+    return new String(buf.array(), 0, buf.position());
+  }
+
+  /** Waits until data is available and submits the key, the same way as a server does */
+  private void submit(SelectionKey key) throws IOException {
+    while (selector.select(10000) == 0 || !selector.selectedKeys().contains(key)) {
+      selector.selectedKeys().clear();
+    }
+    selector.selectedKeys().clear();
+    handlers.submit(key);
+  }
+
+  /** Waits until a worker releases the key */
+  private void waitForRelease(SelectionKey key) throws InterruptedException {
+    RequestHandlers.Attachment att = (RequestHandlers.Attachment) key.attachment();
+    long deadline = System.currentTimeMillis() + 10000;
+    while ((att.inUse() || key.interestOps() != SelectionKey.OP_READ)
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    assertFalse(att.inUse());
+    assertEquals(SelectionKey.OP_READ, key.interestOps());
+  }
+
+  private String execute(SelectionKey key, SocketChannel client, String inline, int replySize)
+      throws IOException, InterruptedException {
+    write(client, Utils.inlineToRedisRequest(inline));
+    submit(key);
+    String reply = read(client, replySize);
+    waitForRelease(key);
+    return reply;
+  }
+
+  @Test
+  public void testRequestReply() throws IOException, InterruptedException {
+    SelectionKey key = connect();
+    long total = RequestHandlers.totalRequests.sum();
+    assertEquals("+OK\r\n", execute(key, client(0), "SET key value", 5));
+    assertEquals("$5\r\nvalue\r\n", execute(key, client(0), "GET key", 11));
+    assertEquals(total + 2, RequestHandlers.totalRequests.sum());
+    assertEquals(0, RequestHandlers.getQueueDepth());
+    assertTrue(RequestHandlers.getAverageWaitTime() >= 0);
+  }
+
+  @Test
+  public void testConnectionsAreBoundToWorkers() throws IOException, InterruptedException {
+    SelectionKey key1 = connect();
+    SelectionKey key2 = connect();
+    assertEquals("+OK\r\n", execute(key1, client(0), "SET key1 value1", 5));
+    assertEquals("+OK\r\n", execute(key2, client(1), "SET key2 value2", 5));
+    WorkThread w1 = ((RequestHandlers.Attachment) key1.attachment()).worker();
+    WorkThread w2 = ((RequestHandlers.Attachment) key2.attachment()).worker();
+    // Round robin
+    assertNotSame(w1, w2);
+    for (int i = 0; i < 10; i++) {
+      assertEquals("$6\r\nvalue1\r\n", execute(key1, client(0), "GET key1", 12));
+      assertEquals("$6\r\nvalue2\r\n", execute(key2, client(1), "GET key2", 12));
+    }
+    assertSame(w1, ((RequestHandlers.Attachment) key1.attachment()).worker());
+    assertSame(w2, ((RequestHandlers.Attachment) key2.attachment()).worker());
+  }
+
+  @Test
+  public void testIncompleteRequest() throws IOException, InterruptedException {
+    SelectionKey key = connect();
+    String request = Utils.inlineToRedisRequest("SET key value");
+    int split = request.indexOf("value");
+    // First part of a request: worker must not wait for the rest
+    write(client(0), request.substring(0, split));
+    submit(key);
+    waitForRelease(key);
+    assertTrue(((RequestHandlers.Attachment) key.attachment()).hasPartial());
+    // The rest arrives with the next read event
+    write(client(0), request.substring(split));
+    submit(key);
+    assertEquals("+OK\r\n", read(client(0), 5));
+    waitForRelease(key);
+    assertFalse(((RequestHandlers.Attachment) key.attachment()).hasPartial());
+    assertEquals("$5\r\nvalue\r\n", execute(key, client(0), "GET key", 11));
+  }
+
+  @Test
+  public void testShutdown() throws InterruptedException {
+    handlers.shutdown();
+    for (WorkThread w : handlers.workers) {
+      w.join(10000);
+      assertFalse(w.isAlive());
+    }
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis;
+
+import static org.bigbase.carrot.util.Utils.byteBufferToString;
+import static org.bigbase.carrot.util.Utils.strToByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.WriteAheadLog.SyncPolicy;
+import org.bigbase.carrot.redis.util.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestWriteAheadLog {
+
+  private BigSortedMap map;
+  private File dir;
+  private ByteBuffer in = ByteBuffer.allocate(1 << 16);
+  private ByteBuffer out = ByteBuffer.allocate(1 << 22);
+
+  @Before
+  public void setUp() throws IOException {
+    map = new BigSortedMap(100000000);
+    dir = Files.createTempDirectory("wal").toFile();
+  }
+
+  @After
+  public void tearDown() {
+    map.dispose();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  private String execute(BigSortedMap map, String inline) {
+    in.clear();
+    out.clear();
+    strToByteBuffer(Utils.inlineToRedisRequest(inline), in);
+    CommandProcessor.process(map, in, out);
+    return byteBufferToString(out);
+  }
+
+  private WriteAheadLog openLog(SyncPolicy policy, int bufferSize) throws IOException {
+    WriteAheadLog wal = new WriteAheadLog(dir.getAbsolutePath(), policy, 10, bufferSize);
+    wal.start();
+    map.setWAL(wal);
+    return wal;
+  }
+
+  private BigSortedMap replay(int bufferSize) throws IOException {
+    BigSortedMap restored = new BigSortedMap(100000000);
+    WriteAheadLog wal =
+        new WriteAheadLog(dir.getAbsolutePath(), SyncPolicy.INTERVAL, 10, bufferSize);
+    wal.replay(restored);
+    return restored;
+  }
+
+  private void loadAndVerify(SyncPolicy policy, int bufferSize, int n) throws IOException {
+    WriteAheadLog wal = openLog(policy, bufferSize);
+    for (int i = 0; i < n; i++) {
+      assertEquals("+OK\r\n", execute(map, "SET key" + i + " value" + i));
+      assertEquals(":1\r\n", execute(map, "HSET hash field" + i + " value" + i));
+    }
+    // Deleted keys and failed commands
+    assertEquals(":1\r\n", execute(map, "DEL key0"));
+    assertTrue(execute(map, "INCR key1").startsWith("-"));
+    // Read commands are not logged
+    assertEquals("$6\r\nvalue1\r\n", execute(map, "GET key1"));
+    map.setWAL(null);
+    wal.close();
+
+    BigSortedMap restored = replay(bufferSize);
+    try {
+      assertEquals("$-1\r\n", execute(restored, "GET key0"));
+      for (int i = 1; i < n; i++) {
+        String v = "value" + i;
+        String expected = "$" + v.length() + "\r\n" + v + "\r\n";
+        assertEquals(expected, execute(restored, "GET key" + i));
+        assertEquals(expected, execute(restored, "HGET hash field" + i));
+      }
+    } finally {
+      restored.dispose();
+    }
+  }
+
+  @Test
+  public void testReplayIntervalPolicy() throws IOException {
+    loadAndVerify(SyncPolicy.INTERVAL, 1 << 16, 10000);
+  }
+
+  @Test
+  public void testReplayAlwaysPolicy() throws IOException {
+    loadAndVerify(SyncPolicy.ALWAYS, 1 << 16, 1000);
+  }
+
+  @Test
+  public void testReplayOSPolicy() throws IOException {
+    loadAndVerify(SyncPolicy.OS, 1 << 16, 10000);
+  }
+
+  @Test
+  public void testRecordsLargerThanBuffer() throws IOException {
+    WriteAheadLog wal = openLog(SyncPolicy.INTERVAL, 256);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 30000; i++) {
+      sb.append((char) ('a' + i % 26));
+    }
+    String chunk = sb.toString();
+    for (int i = 0; i < 50; i++) {
+      execute(map, "APPEND key " + chunk);
+    }
+    // Reply does not fit into a default buffer (1MB)
+    assertTrue(execute(map, "GETDEL key").startsWith("$1500000\r\n"));
+    map.setWAL(null);
+    wal.close();
+
+    BigSortedMap restored = replay(1 << 16);
+    try {
+      assertEquals("$-1\r\n", execute(restored, "GET key"));
+    } finally {
+      restored.dispose();
+    }
+  }
+
+  @Test
+  public void testTornTail() throws IOException {
+    WriteAheadLog wal = openLog(SyncPolicy.INTERVAL, 1 << 16);
+    for (int i = 0; i < 100; i++) {
+      execute(map, "SET key" + i + " value" + i);
+    }
+    map.setWAL(null);
+    wal.close();
+    // Cut the last record
+    File segment = new File(dir, WriteAheadLog.SEGMENT_PREFIX + wal.getSegmentId());
+    try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+      raf.setLength(raf.length() - 3);
+    }
+    BigSortedMap restored = replay(1 << 16);
+    try {
+      assertEquals("$7\r\nvalue98\r\n", execute(restored, "GET key98"));
+      assertEquals("$-1\r\n", execute(restored, "GET key99"));
+    } finally {
+      restored.dispose();
+    }
+  }
+
+  @Test
+  public void testSnapshotTruncatesLog() throws IOException {
+    WriteAheadLog wal = openLog(SyncPolicy.INTERVAL, 1 << 16);
+    map.setSnapshotDir(dir.getAbsolutePath());
+    for (int i = 0; i < 100; i++) {
+      execute(map, "SET key" + i + " value" + i);
+    }
+    long segment = wal.getSegmentId();
+    map.snapshot();
+    assertTrue(wal.getSegmentId() > segment);
+    assertTrue(!new File(dir, WriteAheadLog.SEGMENT_PREFIX + segment).exists());
+    execute(map, "SET key100 value100");
+    map.setWAL(null);
+    wal.close();
+
+    BigSortedMap restored = replay(1 << 16);
+    try {
+      // Only mutations after the snapshot are in the log
+      assertEquals("$-1\r\n", execute(restored, "GET key0"));
+      assertEquals("$8\r\nvalue100\r\n", execute(restored, "GET key100"));
+    } finally {
+      restored.dispose();
+    }
+  }
+
+  @Test
+  public void testConcurrentWriters() throws Exception {
+    WriteAheadLog wal = openLog(SyncPolicy.INTERVAL, 4096);
+    int numThreads = 4;
+    int n = 5000;
+    Thread[] threads = new Thread[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      final int id = t;
+      threads[t] =
+          new Thread(
+              () -> {
+                ByteBuffer tin = ByteBuffer.allocate(1024);
+                ByteBuffer tout = ByteBuffer.allocate(1024);
+                for (int i = 0; i < n; i++) {
+                  tin.clear();
+                  tout.clear();
+                  strToByteBuffer(Utils.inlineToRedisRequest("INCR counter" + (i % 10)), tin);
+                  CommandProcessor.process(map, tin, tout);
+                  tin.clear();
+                  tout.clear();
+                  String req = "SET key" + id + ":" + i + " value" + i;
+                  strToByteBuffer(Utils.inlineToRedisRequest(req), tin);
+                  CommandProcessor.process(map, tin, tout);
+                }
+              });
+      threads[t].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    map.setWAL(null);
+    wal.close();
+
+    BigSortedMap restored = replay(4096);
+    try {
+      for (int i = 0; i < 10; i++) {
+        assertEquals(execute(map, "GET counter" + i), execute(restored, "GET counter" + i));
+      }
+      for (int t = 0; t < numThreads; t++) {
+        for (int i = 0; i < n; i += 100) {
+          assertEquals(
+              execute(map, "GET key" + t + ":" + i), execute(restored, "GET key" + t + ":" + i));
+        }
+      }
+    } finally {
+      restored.dispose();
+    }
+  }
+}
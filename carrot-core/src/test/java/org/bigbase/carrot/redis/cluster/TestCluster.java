@@ -0,0 +1,131 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.cluster;
+
+import static org.bigbase.carrot.util.Utils.byteBufferToString;
+import static org.bigbase.carrot.util.Utils.strToByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.CommandProcessor;
+import org.bigbase.carrot.redis.RedisConf;
+import org.bigbase.carrot.redis.util.Utils;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCluster {
+
+  private BigSortedMap map;
+  private ByteBuffer in = ByteBuffer.allocate(1 << 16);
+  private ByteBuffer out = ByteBuffer.allocate(1 << 16);
+
+  @Before
+  public void setUp() {
+    map = new BigSortedMap(100000000);
+    Object[] slots =
+        new Object[] {
+          new Object[] {0L, 8192L, new Object[] {"127.0.0.1", 6379L}},
+          new Object[] {8193L, 16383L, new Object[] {"127.0.0.1", 6380L}}
+        };
+    map.setSlotMap(new SlotMap(slots, "127.0.0.1:6379"));
+  }
+
+  @After
+  public void tearDown() {
+    map.dispose();
+  }
+
+  private String execute(String inline) {
+    in.clear();
+    out.clear();
+    strToByteBuffer(Utils.inlineToRedisRequest(inline), in);
+    CommandProcessor.process(map, in, out);
+    return byteBufferToString(out);
+  }
+
+  private int crc16(String s) {
+    long ptr = UnsafeAccess.allocAndCopy(s.getBytes(), 0, s.length());
+    try {
+      return Cluster.crc16(ptr, s.length());
+    } finally {
+      UnsafeAccess.free(ptr);
+    }
+  }
+
+  @Test
+  public void testKeySlot() {
+    assertEquals(0x31C3, crc16("123456789"));
+    assertEquals(12182, Cluster.keySlot("foo".getBytes()));
+    assertEquals(5061, Cluster.keySlot("bar".getBytes()));
+    assertEquals(866, Cluster.keySlot("hello".getBytes()));
+    // Hash tags
+    assertEquals(
+        Cluster.keySlot("{user1000}.following".getBytes()),
+        Cluster.keySlot("{user1000}.followers".getBytes()));
+    assertEquals(Cluster.keySlot("user1000".getBytes()), Cluster.keySlot("a{user1000}".getBytes()));
+    // Empty or not closed hash tag - the whole key is hashed
+    assertEquals(crc16("{}bar") & 16383, Cluster.keySlot("{}bar".getBytes()));
+    assertEquals(crc16("{bar") & 16383, Cluster.keySlot("{bar".getBytes()));
+  }
+
+  @Test
+  public void testSlotMap() {
+    SlotMap slots = map.getSlotMap();
+    assertTrue(slots.isLocal(0));
+    assertTrue(slots.isLocal(8192));
+    assertFalse(slots.isLocal(8193));
+    assertFalse(slots.isLocal(16383));
+    assertEquals("127.0.0.1:6380", slots.getOwner(12182));
+    assertEquals("127.0.0.1:6379", slots.getOwner(5061));
+    // Single node owns all slots
+    assertNull(SlotMap.create(RedisConf.getInstance(), "127.0.0.1", 6379));
+  }
+
+  @Test
+  public void testMoved() {
+    assertEquals("+OK\r\n", execute("SET bar 1"));
+    assertEquals("$1\r\n1\r\n", execute("GET bar"));
+    assertEquals("-MOVED 12182 127.0.0.1:6380\r\n", execute("SET foo 1"));
+    assertEquals("-MOVED 12182 127.0.0.1:6380\r\n", execute("GET foo"));
+    assertEquals("-MOVED 12182 127.0.0.1:6380\r\n", execute("RPOPLPUSH foo {foo}x"));
+    // Key is not written
+    map.setSlotMap(null);
+    assertEquals("$-1\r\n", execute("GET foo"));
+  }
+
+  @Test
+  public void testCrossSlot() {
+    String crossSlot = "-CROSSSLOT Keys in request don't hash to the same slot\r\n";
+    assertEquals(crossSlot, execute("MSET bar 1 hello 2"));
+    assertEquals(crossSlot, execute("MGET bar hello"));
+    assertEquals(crossSlot, execute("DEL bar hello"));
+    assertEquals(crossSlot, execute("SMOVE bar hello x"));
+    assertEquals(crossSlot, execute("ZUNIONSTORE {bar}d 2 {bar}a hello"));
+    assertEquals(crossSlot, execute("BITOP AND {bar}d bar hello"));
+    // Same slot (hash tags)
+    assertEquals("+OK\r\n", execute("MSET {bar}1 1 {bar}2 2"));
+    assertEquals("*2\r\n$1\r\n1\r\n$1\r\n2\r\n", execute("MGET {bar}1 {bar}2"));
+    assertEquals(":2\r\n", execute("DEL {bar}1 {bar}2"));
+    assertEquals(":0\r\n", execute("ZUNIONSTORE {bar}d 2 {bar}a {bar}b"));
+    // Commands without keys
+    assertEquals("$4\r\nPONG\r\n", execute("PING"));
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.commands;
+
+public class TestBITOP extends CommandBase {
+
+  protected String[] validRequests =
+      new String[] {
+        "SET key1 foobar", /* OK */
+        "SET key2 abcdef", /* OK */
+        "BITOP AND dest key1 key2", /* 6 */
+        "GET dest", /* `bc`ab */
+        "BITOP OR dest key1 key2", /* 6 */
+        "GET dest", /* goofev */
+        "bitop xor dest key1 key3", /* 6 */
+        "GET dest", /* foobar */
+        "BITOP NOT dest key1", /* 6 */
+        "BITOP NOT dest dest", /* 6 */
+        "GET dest", /* foobar */
+        "BITOP AND dest key3 key4", /* 0 */
+        "GET dest" /* nil */
+      };
+
+  protected String[] validResponses =
+      new String[] {
+        "+OK\r\n",
+        "+OK\r\n",
+        ":6\r\n",
+        "$6\r\n`bc`ab\r\n",
+        ":6\r\n",
+        "$6\r\ngoofev\r\n",
+        ":6\r\n",
+        "$6\r\nfoobar\r\n",
+        ":6\r\n",
+        ":6\r\n",
+        "$6\r\nfoobar\r\n",
+        ":0\r\n",
+        "$-1\r\n"
+      };
+
+  protected String[] invalidRequests =
+      new String[] {
+        "BITOPS AND x y", /* unsupported command */
+        "BITOP", /* wrong number of arguments */
+        "BITOP AND dest", /* wrong number of arguments */
+        "BITOP NOT dest key1 key2", /* wrong number of arguments */
+        "BITOP NAND dest key1 key2" /* wrong command format */
+      };
+
+  protected String[] invalidResponses =
+      new String[] {
+        "-ERR: Unsupported command: BITOPS\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong command format, unexpected argument: unknown bit operation NAND\r\n"
+      };
+
+  /** Subclasses must override */
+  protected String[] getValidRequests() {
+    return validRequests;
+  }
+
+  protected String[] getValidResponses() {
+    return validResponses;
+  }
+
+  protected String[] getInvalidRequests() {
+    return invalidRequests;
+  }
+
+  protected String[] getInvalidResponses() {
+    return invalidResponses;
+  }
+}
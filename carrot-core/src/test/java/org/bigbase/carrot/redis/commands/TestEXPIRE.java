@@ -0,0 +1,89 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.commands;
+
+public class TestEXPIRE extends CommandBase {
+
+  protected String[] validRequests =
+      new String[] {
+        "SET key value", /* OK */
+        "SET key1 value", /* OK */
+        "EXPIRE key 100", /* 1 */
+        "GETEXPIRE key1", /* 0 */
+        "EXPIRE key2 100", /* 0 */
+        "EXPIRE key1 0", /* 1 */
+        "GET key1", /* nil */
+        "EXPIRE key1 100", /* 0 */
+        "GET key", /* value */
+        "RPUSH list a b", /* 2 */
+        "EXPIRE list 100", /* 1 */
+        "LLEN list", /* 2 */
+        "EXPIRE list 0", /* 1 */
+        "LLEN list", /* 0 */
+        "SADD set a", /* 1 */
+        "EXPIRE set 100", /* not supported */
+        "HSET hash f v", /* 1 */
+        "EXPIRE hash 100", /* not supported */
+      };
+
+  protected String[] validResponses =
+      new String[] {
+        "+OK\r\n",
+        "+OK\r\n",
+        ":1\r\n",
+        ":0\r\n",
+        ":0\r\n",
+        ":1\r\n",
+        "$-1\r\n",
+        ":0\r\n",
+        "$5\r\nvalue\r\n",
+        ":2\r\n",
+        ":1\r\n",
+        ":2\r\n",
+        ":1\r\n",
+        ":0\r\n",
+        ":1\r\n",
+        "-ERR: Expiration is not supported for this data type\r\n",
+        ":1\r\n",
+        "-ERR: Expiration is not supported for this data type\r\n"
+      };
+
+  protected String[] invalidRequests =
+      new String[] {
+        "EXPIRE key", /* wrong number of arguments*/
+        "EXPIRE key 100 NX XX" /* wrong number of arguments*/
+      };
+
+  protected String[] invalidResponses =
+      new String[] {
+        "-ERR: Wrong number of arguments\r\n", "-ERR: Wrong number of arguments\r\n",
+      };
+
+  /** Subclasses must override */
+  protected String[] getValidRequests() {
+    return validRequests;
+  }
+
+  protected String[] getValidResponses() {
+    return validResponses;
+  }
+
+  protected String[] getInvalidRequests() {
+    return invalidRequests;
+  }
+
+  protected String[] getInvalidResponses() {
+    return invalidResponses;
+  }
+}
@@ -21,14 +21,14 @@ public class TestGETEX extends CommandBase {
         "GETEX key", /* VALUE */
         "GETEX key ex 1000", /* VALUE */
         "GETEX key px 10000", /* VALUE */
-        "GETEX key exat 100000", /* VALUE */
-        "GETEX key pxat 1000000", /* VALUE */
+        "GETEX key exat 10000000000", /* VALUE */
+        "GETEX key pxat 10000000000000", /* VALUE */
         "GETEX key persist", /* VALUE */
         "GETEX key1", /* NULL */
         "GETEX key1 EX 1000", /* NULL */
         "GETEX key1 PX 10000", /* NULL */
-        "GETEX key1 EXAT 100000", /* NULL */
-        "GETEX key1 PXAT 1000000", /* NULL */
+        "GETEX key1 EXAT 10000000000", /* NULL */
+        "GETEX key1 PXAT 10000000000000", /* NULL */
         "getex key1 PERSIST" /* NULL */
       };
 
@@ -17,15 +17,29 @@ public class TestGETEXPIRE extends CommandBase {
 
   protected String[] validRequests =
       new String[] {
-        "SET key value PXAT 123456789", /* OK */
+        "SET key value PXAT 10000000000000", /* OK */
         "SET key1 value", /* OK */
-        "GETEXPIRE key", /* 123456789 */
+        "GETEXPIRE key", /* 10000000000000 */
         "GETEXPIRE key1", /* 0 */
         "getexpire key2", /* -1 */
+        "RPUSH list a", /* 1 */
+        "GETEXPIRE list", /* 0 */
+        "PEXPIREAT list 10000000000000", /* 1 */
+        "GETEXPIRE list", /* 10000000000000 */
       };
 
   protected String[] validResponses =
-      new String[] {"+OK\r\n", "+OK\r\n", ":123456789\r\n", ":0\r\n", ":-1\r\n"};
+      new String[] {
+        "+OK\r\n",
+        "+OK\r\n",
+        ":10000000000000\r\n",
+        ":0\r\n",
+        ":-1\r\n",
+        ":1\r\n",
+        ":0\r\n",
+        ":1\r\n",
+        ":10000000000000\r\n"
+      };
 
   protected String[] invalidRequests =
       new String[] {
@@ -15,9 +15,18 @@ package org.bigbase.carrot.redis.commands;
 
 public class TestINFO extends CommandBase {
 
-  protected String[] validRequests = new String[] {"INFO MEMORY" /* OK  */, "info memory"};
+  protected String[] validRequests =
+      new String[] {
+        "INFO MEMORY" /* OK  */,
+        "info memory",
+        "INFO STATS",
+        "info stats",
+        "INFO PERSISTENCE",
+        "info persistence"
+      };
 
-  protected String[] validResponses = new String[] {SKIP_VERIFY, SKIP_VERIFY};
+  protected String[] validResponses =
+      new String[] {SKIP_VERIFY, SKIP_VERIFY, SKIP_VERIFY, SKIP_VERIFY, SKIP_VERIFY, SKIP_VERIFY};
 
   protected String[] invalidRequests =
       new String[] {
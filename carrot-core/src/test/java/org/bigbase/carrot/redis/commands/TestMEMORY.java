@@ -0,0 +1,82 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.commands;
+
+public class TestMEMORY extends CommandBase {
+
+  protected String[] validRequests =
+      new String[] {
+        "SET key1 value1",
+        "SADD key2 a bb ccc",
+        "HSET key3 f1 v1 field2 value2",
+        "ZADD key4 1.0 a 2.0 b",
+        "MEMORY USAGE key1", /* 4 + 6 */
+        "MEMORY USAGE key2", /* 4 + 2 + 3 + 4 */
+        "MEMORY USAGE key3", /* 4 + 6 + 14 */
+        "MEMORY USAGE key4", /* 4 + 10 + 10 */
+        "memory usage key1 SAMPLES 5",
+        "MEMORY USAGE key5",
+        "SREM key2 a bb ccc",
+        "MEMORY USAGE key2"
+      };
+
+  protected String[] validResponses =
+      new String[] {
+        "+OK\r\n",
+        ":3\r\n",
+        ":2\r\n",
+        ":2\r\n",
+        ":10\r\n",
+        ":13\r\n",
+        ":24\r\n",
+        ":24\r\n",
+        ":10\r\n",
+        "$-1\r\n",
+        ":3\r\n",
+        "$-1\r\n"
+      };
+
+  protected String[] invalidRequests =
+      new String[] {
+        "MEMORY", /* wrong number of arguments*/
+        "MEMORY USAGE", /* wrong number of arguments*/
+        "MEMORY USAGE x y", /* wrong number of arguments*/
+        "MEMORY STATS", /* unsupported */
+      };
+
+  protected String[] invalidResponses =
+      new String[] {
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Unsupported command: MEMORY STATS\r\n"
+      };
+
+  /** Subclasses must override */
+  protected String[] getValidRequests() {
+    return validRequests;
+  }
+
+  protected String[] getValidResponses() {
+    return validResponses;
+  }
+
+  protected String[] getInvalidRequests() {
+    return invalidRequests;
+  }
+
+  protected String[] getInvalidResponses() {
+    return invalidResponses;
+  }
+}
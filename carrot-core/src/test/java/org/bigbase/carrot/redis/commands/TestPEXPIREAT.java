@@ -0,0 +1,66 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.commands;
+
+public class TestPEXPIREAT extends CommandBase {
+
+  protected String[] validRequests =
+      new String[] {
+        "SET key value", /* OK */
+        "SET key1 value", /* OK */
+        "PEXPIREAT key 10000000000000", /* 1 */
+        "GETEXPIRE key", /* 10000000000000 */
+        "PEXPIREAT key2 10000000000000", /* 0 */
+        "PEXPIREAT key1 1", /* 1 */
+        "GET key1", /* nil */
+        "GET key", /* value */
+      };
+
+  protected String[] validResponses =
+      new String[] {
+        "+OK\r\n", "+OK\r\n", ":1\r\n", ":10000000000000\r\n", ":0\r\n", ":1\r\n", "$-1\r\n",
+        "$5\r\nvalue\r\n"
+      };
+
+  protected String[] invalidRequests =
+      new String[] {
+        "PEXPIREAT key", /* wrong number of arguments*/
+        "PEXPIREAT key 100 NX", /* wrong number of arguments*/
+        "PEXPIREAT key x" /* wrong number format */
+      };
+
+  protected String[] invalidResponses =
+      new String[] {
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number format: x\r\n"
+      };
+
+  /** Subclasses must override */
+  protected String[] getValidRequests() {
+    return validRequests;
+  }
+
+  protected String[] getValidResponses() {
+    return validResponses;
+  }
+
+  protected String[] getInvalidRequests() {
+    return invalidRequests;
+  }
+
+  protected String[] getInvalidResponses() {
+    return invalidResponses;
+  }
+}
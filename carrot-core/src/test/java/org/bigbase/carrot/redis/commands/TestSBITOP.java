@@ -0,0 +1,94 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.commands;
+
+public class TestSBITOP extends CommandBase {
+
+  protected String[] validRequests =
+      new String[] {
+        "SSETBIT s1 0 1", /* 0 */
+        "SSETBIT s1 100000 1", /* 0 */
+        "SSETBIT s2 7 1", /* 0 */
+        "SSETBIT s2 100000 1", /* 0 */
+        "SBITOP AND dst s1 s2", /* 12501 */
+        "SBITCOUNT dst", /* 1 */
+        "SGETBIT dst 100000", /* 1 */
+        "SBITOP OR dst s1 s2", /* 12501 */
+        "SBITCOUNT dst", /* 3 */
+        "sbitop xor dst s1 s2", /* 12501 */
+        "SBITCOUNT dst", /* 2 */
+        "SBITOP NOT dst s1", /* 12501 */
+        "SBITCOUNT dst", /* 100006 */
+        "SGETBIT dst 0", /* 0 */
+        "SGETBIT dst 1", /* 1 */
+        "SBITOP AND dst s1 s3", /* 12501 */
+        "SBITCOUNT dst" /* 0 */
+      };
+
+  protected String[] validResponses =
+      new String[] {
+        ":0\r\n",
+        ":0\r\n",
+        ":0\r\n",
+        ":0\r\n",
+        ":12501\r\n",
+        ":1\r\n",
+        ":1\r\n",
+        ":12501\r\n",
+        ":3\r\n",
+        ":12501\r\n",
+        ":2\r\n",
+        ":12501\r\n",
+        ":100006\r\n",
+        ":0\r\n",
+        ":1\r\n",
+        ":12501\r\n",
+        ":0\r\n"
+      };
+
+  protected String[] invalidRequests =
+      new String[] {
+        "SBITOPS AND x y", /* unsupported command */
+        "SBITOP", /* wrong number of arguments */
+        "SBITOP AND dst", /* wrong number of arguments */
+        "SBITOP NOT dst s1 s2", /* wrong number of arguments */
+        "SBITOP NAND dst s1 s2" /* wrong command format */
+      };
+
+  protected String[] invalidResponses =
+      new String[] {
+        "-ERR: Unsupported command: SBITOPS\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong command format, unexpected argument: unknown bit operation NAND\r\n"
+      };
+
+  /** Subclasses must override */
+  protected String[] getValidRequests() {
+    return validRequests;
+  }
+
+  protected String[] getValidResponses() {
+    return validResponses;
+  }
+
+  protected String[] getInvalidRequests() {
+    return invalidRequests;
+  }
+
+  protected String[] getInvalidResponses() {
+    return invalidResponses;
+  }
+}
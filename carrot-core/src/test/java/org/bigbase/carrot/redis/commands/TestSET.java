@@ -20,8 +20,8 @@ public class TestSET extends CommandBase {
         "SET key value", /* OK */
         "SET key value EX 1000", /* OK */
         "SET key value PX 10000", /* OK */
-        "SET key value EXAT 100000", /* OK */
-        "SET key value PXAT 1000000", /* OK */
+        "SET key value EXAT 10000000000", /* OK */
+        "SET key value PXAT 10000000000000", /* OK */
         "SET key value KEEPTTL", /* OK */
         "set key value nx", /* NULL */
         "set key value xx", /* OK */
@@ -35,14 +35,14 @@ public class TestSET extends CommandBase {
         "set key value px 1000 xx", /* OK */
         "SET key3 value PX 1000 XX", /* NULL */
         "SET key3 value PX 1000 NX", /* OK */
-        "set key value exat 1000 nx", /* NULL */
-        "set key value exat 1000 xx", /* OK */
-        "SET key4 value EXAT 1000 XX", /* NULL*/
-        "SET key4 value EXAT 1000 NX", /* OK */
-        "set key value pxat 1000 nx", /* NULL */
-        "set key value pxat 1000 xx", /* OK */
-        "SET key5 value PXAT 1000 XX", /* NULL */
-        "SET key5 value PXAT 1000 NX", /* OK */
+        "set key value exat 10000000000 nx", /* NULL */
+        "set key value exat 10000000000 xx", /* OK */
+        "SET key4 value EXAT 10000000000 XX", /* NULL*/
+        "SET key4 value EXAT 10000000000 NX", /* OK */
+        "set key value pxat 10000000000000 nx", /* NULL */
+        "set key value pxat 10000000000000 xx", /* OK */
+        "SET key5 value PXAT 10000000000000 XX", /* NULL */
+        "SET key5 value PXAT 10000000000000 NX", /* OK */
         "set key value keepttl nx", /* NULL */
         "set key value keepttl xx", /* OK */
         "SET key6 value KEEPTTL XX", /* NULL */
@@ -60,14 +60,14 @@ public class TestSET extends CommandBase {
         "set key value px 1000 xx get",
         "SET key9 value PX 1000 NX GET",
         "SET key9 value PX 1000 XX GET",
-        "set key value exat 1000 nx get",
-        "set key value exat 1000 xx get",
-        "SET key10 value EXAT 1000 NX GET",
-        "SET key10 value EXAT 1000 XX GET",
-        "set key value pxat 1000 nx get",
-        "set key value pxat 1000 xx get",
-        "SET key11 value PXAT 1000 NX GET",
-        "SET key11 value PXAT 1000 XX GET",
+        "set key value exat 10000000000 nx get",
+        "set key value exat 10000000000 xx get",
+        "SET key10 value EXAT 10000000000 NX GET",
+        "SET key10 value EXAT 10000000000 XX GET",
+        "set key value pxat 10000000000000 nx get",
+        "set key value pxat 10000000000000 xx get",
+        "SET key11 value PXAT 10000000000000 NX GET",
+        "SET key11 value PXAT 10000000000000 XX GET",
         "set key value keepttl nx get",
         "set key value keepttl xx get",
         "SET key12 value KEEPTTL NX GET",
@@ -145,8 +145,8 @@ public class TestSET extends CommandBase {
         "SET key value EXAT", /* wrong number of arguments*/
         "SET key value PXAT", /* wrong number of arguments*/
         "SET key value PX 10000 bb", /* wrong number of arguments*/
-        "SET key value EXAT 100000 bb", /* wrong number of arguments*/
-        "SET key value PXAT 1000000 bb", /* wrong number of arguments*/
+        "SET key value EXAT 10000000000 bb", /* wrong number of arguments*/
+        "SET key value PXAT 10000000000000 bb", /* wrong number of arguments*/
         "SET key value PX a10", /* wrong number format      */
         "SET key value EXAT bdf", /* wrong number format      */
         "SET key value PXAT sss", /* wrong number format      */
@@ -0,0 +1,66 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.commands;
+
+public class TestSUNION extends CommandBase {
+
+  protected String[] validRequests =
+      new String[] {
+        "SADD key1 a b c d", /* 4 */
+        "SADD key2 c", /* 1 */
+        "SADD key3 a c e", /* 3 */
+        "SUNION key1 key2 key3", /* a b c d e */
+        "SUNION key2 key4", /* c */
+        "sunion key4" /* empty array */
+      };
+
+  protected String[] validResponses =
+      new String[] {
+        ":4\r\n",
+        ":1\r\n",
+        ":3\r\n",
+        "*5\r\n$1\r\na\r\n$1\r\nb\r\n$1\r\nc\r\n$1\r\nd\r\n$1\r\ne\r\n",
+        "*1\r\n$1\r\nc\r\n",
+        "*0\r\n"
+      };
+
+  protected String[] invalidRequests =
+      new String[] {
+        "SUNIO x y", /* unsupported command */
+        "SUNION" /* wrong number of arguments*/
+      };
+
+  protected String[] invalidResponses =
+      new String[] {
+        "-ERR: Unsupported command: SUNIO\r\n",
+        "-ERR: Wrong number of arguments\r\n"
+      };
+
+  /** Subclasses must override */
+  protected String[] getValidRequests() {
+    return validRequests;
+  }
+
+  protected String[] getValidResponses() {
+    return validResponses;
+  }
+
+  protected String[] getInvalidRequests() {
+    return invalidRequests;
+  }
+
+  protected String[] getInvalidResponses() {
+    return invalidResponses;
+  }
+}
@@ -14,10 +14,14 @@
 package org.bigbase.carrot.redis.commands;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bigbase.carrot.redis.util.Utils;
+import org.bigbase.carrot.util.UnsafeAccess;
 import org.junit.Test;
 
 public class TestUtilMethods {
@@ -50,4 +54,40 @@ public class TestUtilMethods {
       assertEquals(expected[i], conv);
     }
   }
+
+  @Test
+  public void testInPlaceConversion() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      sb.append((char) ('a' + i % 26));
+    }
+    String[] requests = new String[expected.length + 1];
+    System.arraycopy(expected, 0, requests, 0, expected.length);
+    requests[expected.length] = Utils.inlineToRedisRequest("SET key " + sb.toString());
+
+    int bufferSize = 1 << 20;
+    ByteBuffer buf = ByteBuffer.allocateDirect(bufferSize);
+    long ptr = UnsafeAccess.malloc(bufferSize);
+    long address = UnsafeAccess.address(buf);
+    try {
+      for (String request : requests) {
+        byte[] data = request.getBytes();
+        buf.clear();
+        buf.put(data);
+        assertTrue(Utils.requestToCarrot(buf, ptr, bufferSize));
+        buf.clear();
+        buf.put(data);
+        long inplace = Utils.requestToCarrotInPlace(buf);
+        assertTrue(inplace > address);
+        int size = (int) (address + data.length - 2 - inplace);
+        assertEquals(0, org.bigbase.carrot.util.Utils.compareTo(ptr, size, inplace, size));
+      }
+      // Inline request can not be converted in place
+      buf.clear();
+      buf.put("SET key value\r\n".getBytes());
+      assertEquals(0, Utils.requestToCarrotInPlace(buf));
+    } finally {
+      UnsafeAccess.free(ptr);
+    }
+  }
 }
@@ -0,0 +1,82 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.commands;
+
+public class TestZDIFFSTORE extends CommandBase {
+
+  protected String[] validRequests =
+      new String[] {
+        "ZADD z1 1 a 2 b 3 c", /* 3 */
+        "ZADD z2 10 b 20 c 30 d", /* 3 */
+        "ZDIFFSTORE dst 2 z1 z2", /* 1 */
+        "ZRANGE dst 0 -1 WITHSCORES", /* a */
+        "ZDIFFSTORE dst 2 z2 z1", /* 1 */
+        "ZRANGE dst 0 -1 WITHSCORES", /* d */
+        "zdiffstore z1 2 z1 z3", /* 3 */
+        "ZRANGE z1 0 -1 WITHSCORES", /* a b c */
+        "ZDIFFSTORE dst 2 z1 z1", /* 0 */
+        "ZCARD dst" /* 0 */
+      };
+
+  protected String[] validResponses =
+      new String[] {
+        ":3\r\n",
+        ":3\r\n",
+        ":1\r\n",
+        "*2\r\n$1\r\na\r\n$3\r\n1.0\r\n",
+        ":1\r\n",
+        "*2\r\n$1\r\nd\r\n$4\r\n30.0\r\n",
+        ":3\r\n",
+        "*6\r\n$1\r\na\r\n$3\r\n1.0\r\n$1\r\nb\r\n$3\r\n2.0\r\n$1\r\nc\r\n$3\r\n3.0\r\n",
+        ":0\r\n",
+        ":0\r\n"
+      };
+
+  protected String[] invalidRequests =
+      new String[] {
+        "ZDIFFSTOR x y", /* unsupported command */
+        "ZDIFFSTORE", /* wrong number of arguments */
+        "ZDIFFSTORE dst 1", /* wrong number of arguments */
+        "ZDIFFSTORE dst 2 z1", /* wrong number of arguments */
+        "ZDIFFSTORE dst 1 z1 z2", /* wrong number of arguments */
+        "ZDIFFSTORE dst a z1" /* wrong number format */
+      };
+
+  protected String[] invalidResponses =
+      new String[] {
+        "-ERR: Unsupported command: ZDIFFSTOR\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number format: a\r\n"
+      };
+
+  /** Subclasses must override */
+  protected String[] getValidRequests() {
+    return validRequests;
+  }
+
+  protected String[] getValidResponses() {
+    return validResponses;
+  }
+
+  protected String[] getInvalidRequests() {
+    return invalidRequests;
+  }
+
+  protected String[] getInvalidResponses() {
+    return invalidResponses;
+  }
+}
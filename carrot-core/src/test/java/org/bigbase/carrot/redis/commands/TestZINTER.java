@@ -0,0 +1,76 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.commands;
+
+public class TestZINTER extends CommandBase {
+
+  protected String[] validRequests =
+      new String[] {
+        "ZADD z1 1 a 2 b 3 c", /* 3 */
+        "ZADD z2 10 b 20 c 30 d", /* 3 */
+        "ZINTER 2 z1 z2", /* b c */
+        "ZINTER 2 z1 z2 WITHSCORES", /* b c */
+        "ZINTER 2 z1 z2 WEIGHTS 1 -1 WITHSCORES", /* c b */
+        "zinter 2 z1 z2 aggregate min withscores", /* b c */
+        "ZINTER 2 z1 z3" /* empty */
+      };
+
+  protected String[] validResponses =
+      new String[] {
+        ":3\r\n",
+        ":3\r\n",
+        "*2\r\n$1\r\nb\r\n$1\r\nc\r\n",
+        "*4\r\n$1\r\nb\r\n$4\r\n12.0\r\n$1\r\nc\r\n$4\r\n23.0\r\n",
+        "*4\r\n$1\r\nc\r\n$5\r\n-17.0\r\n$1\r\nb\r\n$4\r\n-8.0\r\n",
+        "*4\r\n$1\r\nb\r\n$3\r\n2.0\r\n$1\r\nc\r\n$3\r\n3.0\r\n",
+        "*0\r\n"
+      };
+
+  protected String[] invalidRequests =
+      new String[] {
+        "ZINTE x y", /* unsupported command */
+        "ZINTER", /* wrong number of arguments */
+        "ZINTER 2 z1", /* wrong number of arguments */
+        "ZINTER a z1", /* wrong number format */
+        "ZINTER 1 z1 WITHSCORES WEIGHTS 1", /* wrong command format */
+        "ZINTER 1 z1 AGGREGATE AVG" /* wrong command format */
+      };
+
+  protected String[] invalidResponses =
+      new String[] {
+        "-ERR: Unsupported command: ZINTE\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number format: a\r\n",
+        "-ERR: Wrong command format, unexpected argument: WITHSCORES\r\n",
+        "-ERR: Wrong command format, unexpected argument: AVG\r\n"
+      };
+
+  /** Subclasses must override */
+  protected String[] getValidRequests() {
+    return validRequests;
+  }
+
+  protected String[] getValidResponses() {
+    return validResponses;
+  }
+
+  protected String[] getInvalidRequests() {
+    return invalidRequests;
+  }
+
+  protected String[] getInvalidResponses() {
+    return invalidResponses;
+  }
+}
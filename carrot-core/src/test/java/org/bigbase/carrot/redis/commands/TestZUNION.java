@@ -0,0 +1,76 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.commands;
+
+public class TestZUNION extends CommandBase {
+
+  protected String[] validRequests =
+      new String[] {
+        "ZADD z1 1 a 2 b 3 c", /* 3 */
+        "ZADD z2 10 b 20 c 30 d", /* 3 */
+        "ZUNION 2 z1 z2", /* a b c d */
+        "ZUNION 2 z1 z2 WITHSCORES", /* a b c d */
+        "ZUNION 2 z1 z2 WEIGHTS 1 -1 WITHSCORES", /* d c b a */
+        "zunion 2 z1 z2 aggregate max withscores", /* a b c d */
+        "ZUNION 2 z3 z4" /* empty */
+      };
+
+  protected String[] validResponses =
+      new String[] {
+        ":3\r\n",
+        ":3\r\n",
+        "*4\r\n$1\r\na\r\n$1\r\nb\r\n$1\r\nc\r\n$1\r\nd\r\n",
+        "*8\r\n$1\r\na\r\n$3\r\n1.0\r\n$1\r\nb\r\n$4\r\n12.0\r\n$1\r\nc\r\n$4\r\n23.0\r\n$1\r\nd\r\n$4\r\n30.0\r\n",
+        "*8\r\n$1\r\nd\r\n$5\r\n-30.0\r\n$1\r\nc\r\n$5\r\n-17.0\r\n$1\r\nb\r\n$4\r\n-8.0\r\n$1\r\na\r\n$3\r\n1.0\r\n",
+        "*8\r\n$1\r\na\r\n$3\r\n1.0\r\n$1\r\nb\r\n$4\r\n10.0\r\n$1\r\nc\r\n$4\r\n20.0\r\n$1\r\nd\r\n$4\r\n30.0\r\n",
+        "*0\r\n"
+      };
+
+  protected String[] invalidRequests =
+      new String[] {
+        "ZUNIO x y", /* unsupported command */
+        "ZUNION", /* wrong number of arguments */
+        "ZUNION 2 z1", /* wrong number of arguments */
+        "ZUNION a z1", /* wrong number format */
+        "ZUNION 1 z1 WITHSCORES AGGREGATE SUM", /* wrong command format */
+        "ZUNION 1 z1 WITHVALUES" /* wrong command format */
+      };
+
+  protected String[] invalidResponses =
+      new String[] {
+        "-ERR: Unsupported command: ZUNIO\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number format: a\r\n",
+        "-ERR: Wrong command format, unexpected argument: WITHSCORES\r\n",
+        "-ERR: Wrong command format, unexpected argument: WITHVALUES\r\n"
+      };
+
+  /** Subclasses must override */
+  protected String[] getValidRequests() {
+    return validRequests;
+  }
+
+  protected String[] getValidResponses() {
+    return validResponses;
+  }
+
+  protected String[] getInvalidRequests() {
+    return invalidRequests;
+  }
+
+  protected String[] getInvalidResponses() {
+    return invalidResponses;
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.redis.commands;
+
+public class TestZUNIONSTORE extends CommandBase {
+
+  protected String[] validRequests =
+      new String[] {
+        "ZADD z1 1 a 2 b 3 c", /* 3 */
+        "ZADD z2 10 b 20 c 30 d", /* 3 */
+        "ZUNIONSTORE dst 2 z1 z2", /* 4 */
+        "ZRANGE dst 0 -1 WITHSCORES", /* a b c d */
+        "ZUNIONSTORE dst 2 z1 z2 WEIGHTS 2 1 AGGREGATE MAX", /* 4 */
+        "ZRANGE dst 0 -1 WITHSCORES", /* a b c d */
+        "zunionstore z1 2 z1 z3 aggregate min", /* 3 */
+        "ZRANGE z1 0 -1 WITHSCORES", /* a b c */
+        "ZUNIONSTORE dst 2 z3 z4", /* 0 */
+        "ZCARD dst" /* 0 */
+      };
+
+  protected String[] validResponses =
+      new String[] {
+        ":3\r\n",
+        ":3\r\n",
+        ":4\r\n",
+        "*8\r\n$1\r\na\r\n$3\r\n1.0\r\n$1\r\nb\r\n$4\r\n12.0\r\n$1\r\nc\r\n$4\r\n23.0\r\n$1\r\nd\r\n$4\r\n30.0\r\n",
+        ":4\r\n",
+        "*8\r\n$1\r\na\r\n$3\r\n2.0\r\n$1\r\nb\r\n$4\r\n10.0\r\n$1\r\nc\r\n$4\r\n20.0\r\n$1\r\nd\r\n$4\r\n30.0\r\n",
+        ":3\r\n",
+        "*6\r\n$1\r\na\r\n$3\r\n1.0\r\n$1\r\nb\r\n$3\r\n2.0\r\n$1\r\nc\r\n$3\r\n3.0\r\n",
+        ":0\r\n",
+        ":0\r\n"
+      };
+
+  protected String[] invalidRequests =
+      new String[] {
+        "ZUNIONSTOR x y", /* unsupported command */
+        "ZUNIONSTORE", /* wrong number of arguments */
+        "ZUNIONSTORE dst 1", /* wrong number of arguments */
+        "ZUNIONSTORE dst 2 z1", /* wrong number of arguments */
+        "ZUNIONSTORE dst a z1", /* wrong number format */
+        "ZUNIONSTORE dst 1 z1 WEIGHTS", /* wrong command format */
+        "ZUNIONSTORE dst 1 z1 AGGREGATE AVG" /* wrong command format */
+      };
+
+  protected String[] invalidResponses =
+      new String[] {
+        "-ERR: Unsupported command: ZUNIONSTOR\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number of arguments\r\n",
+        "-ERR: Wrong number format: a\r\n",
+        "-ERR: Wrong command format, unexpected argument: WEIGHTS\r\n",
+        "-ERR: Wrong command format, unexpected argument: AVG\r\n"
+      };
+
+  /** Subclasses must override */
+  protected String[] getValidRequests() {
+    return validRequests;
+  }
+
+  protected String[] getValidResponses() {
+    return validResponses;
+  }
+
+  protected String[] getInvalidRequests() {
+    return invalidRequests;
+  }
+
+  protected String[] getInvalidResponses() {
+    return invalidResponses;
+  }
+}
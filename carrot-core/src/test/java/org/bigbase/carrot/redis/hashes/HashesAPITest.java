@@ -22,9 +22,13 @@ import java.util.*;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.CarrotCoreBase;
 import org.bigbase.carrot.ops.OperationFailedException;
+import org.bigbase.carrot.redis.util.CollectionHeader;
+import org.bigbase.carrot.redis.util.DataType;
 import org.bigbase.carrot.util.Pair;
+import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
 import org.junit.Before;
 import org.junit.Test;
@@ -287,6 +291,36 @@ public class HashesAPITest extends CarrotCoreBase {
     }
   }
 
+  @Test
+  public void testHashHeaderPutFailures() {
+    String key = "key";
+    long keyPtr = UnsafeAccess.allocAndCopy(key, 0, key.length());
+    int keySize = key.length();
+    long limit = BigSortedMap.getGlobalMemoryLimit();
+    Random r = new Random();
+    int added = 0, failed = 0;
+    try {
+      // Leave room for a few blocks only
+      BigSortedMap.setGlobalMemoryLimit(BigSortedMap.getGlobalAllocatedMemory() + 200000);
+      while (failed < 100) {
+        String f = Utils.getRandomStr(r, 64);
+        int res = Hashes.HSET(map, key, f, f);
+        added += res;
+        failed += 1 - res;
+        assertEquals(added, (int) Hashes.HLEN(map, key));
+      }
+    } finally {
+      BigSortedMap.setGlobalMemoryLimit(limit);
+    }
+    assertTrue(added > 0);
+    long bytes = Hashes.getHashSizeInBytes(map, keyPtr, keySize);
+    // Missing header: read scans the hash
+    assertTrue(CollectionHeader.delete(map, DataType.HASH, keyPtr, keySize));
+    assertEquals(added, (int) Hashes.HLEN(map, key));
+    assertEquals(bytes, Hashes.getHashSizeInBytes(map, keyPtr, keySize));
+    UnsafeAccess.free(keyPtr);
+  }
+
   @Test
   public void testHashValueLength() {
 
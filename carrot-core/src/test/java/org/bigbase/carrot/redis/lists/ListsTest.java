@@ -14,11 +14,14 @@
 package org.bigbase.carrot.redis.lists;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -26,6 +29,7 @@ import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.CarrotCoreBase;
 import org.bigbase.carrot.DataBlock;
 import org.bigbase.carrot.redis.lists.Lists.Side;
+import org.bigbase.carrot.redis.util.MutationOptions;
 import org.bigbase.carrot.util.Key;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
@@ -1129,4 +1133,123 @@ public class ListsTest extends CarrotCoreBase {
     Lists.DELETE(map, key.address, key.length);
     assertEquals(0, (int) Lists.LLEN(map, key.address, key.length));
   }
+
+  /** Runs active expiration over the whole map */
+  private void sweepExpired() {
+    byte[] lastKey = null;
+    do {
+      lastKey = map.sweepExpired(lastKey, Long.MAX_VALUE);
+    } while (lastKey != null);
+  }
+
+  @Test
+  public void testListExpire() throws InterruptedException {
+
+    Lists.registerDeallocator();
+    Key key = getKey();
+    long externalSize = map.getInstanceExternalDataSize();
+    int n = 1000;
+    for (int i = 0; i < n; i++) {
+      Value v = values.get(i);
+      Lists.RPUSH(map, key.address, key.length, new long[] {v.address}, new int[] {v.length});
+    }
+    assertTrue(map.getInstanceExternalDataSize() > externalSize);
+    assertEquals(0, Lists.GETEXPIRE(map, key.address, key.length));
+
+    long expireAt = System.currentTimeMillis() + 100;
+    assertTrue(Lists.SETEXPIRE(map, key.address, key.length, expireAt, MutationOptions.NONE));
+    assertFalse(
+        Lists.SETEXPIRE(map, key.address, key.length, expireAt + 1, MutationOptions.NX));
+    // List updates keep TTL
+    assertEquals(valueSize, Lists.LPOP(map, key.address, key.length, buffer, bufferSize));
+    Value v = values.get(0);
+    Lists.LSET(map, key.address, key.length, 0, v.address, v.length);
+    assertEquals(expireAt, Lists.GETEXPIRE(map, key.address, key.length));
+
+    Thread.sleep(200);
+    // Lazy expiration
+    assertEquals(0, (int) Lists.LLEN(map, key.address, key.length));
+    assertEquals(-1, Lists.LINDEX(map, key.address, key.length, 0, buffer, bufferSize));
+    assertEquals(-1, Lists.GETEXPIRE(map, key.address, key.length));
+
+    // Active expiration frees list segments
+    sweepExpired();
+    assertEquals(externalSize, map.getInstanceExternalDataSize());
+
+    // New list does not inherit TTL
+    assertEquals(
+        1, Lists.RPUSH(map, key.address, key.length, new long[] {v.address}, new int[] {v.length}));
+    assertEquals(0, Lists.GETEXPIRE(map, key.address, key.length));
+    Lists.DELETE(map, key.address, key.length);
+    assertEquals(externalSize, map.getInstanceExternalDataSize());
+  }
+
+  @Test
+  public void testListExpireConcurrent() throws InterruptedException {
+
+    Lists.registerDeallocator();
+    Lists.registerSerDe();
+    getKey();
+    long externalSize = map.getInstanceExternalDataSize();
+    int numThreads = 4;
+    Key[] keys = new Key[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      keys[i] = getAnotherKey();
+    }
+    AtomicBoolean done = new AtomicBoolean();
+    List<Thread> threads = new ArrayList<>();
+    // List commands set short TTLs, while lists are expired lazily, by active expiration and
+    // snapshots are taken
+    for (int i = 0; i < numThreads; i++) {
+      Key k = keys[i];
+      threads.add(
+          new Thread(
+              () -> {
+                Random r = new Random();
+                long buf = UnsafeAccess.malloc(bufferSize);
+                while (!done.get()) {
+                  Value v = values.get(r.nextInt(nValues));
+                  long[] ptrs = new long[] {v.address};
+                  int[] sizes = new int[] {v.length};
+                  Lists.RPUSH(map, k.address, k.length, ptrs, sizes);
+                  Lists.LPUSH(map, k.address, k.length, ptrs, sizes);
+                  Lists.LSET(map, k.address, k.length, 0, v.address, v.length);
+                  Lists.LPOP(map, k.address, k.length, buf, bufferSize);
+                  if (r.nextInt(100) == 0) {
+                    long expireAt = System.currentTimeMillis() + r.nextInt(10);
+                    Lists.SETEXPIRE(map, k.address, k.length, expireAt, MutationOptions.NONE);
+                  }
+                }
+                UnsafeAccess.free(buf);
+              }));
+    }
+    threads.add(
+        new Thread(
+            () -> {
+              while (!done.get()) {
+                sweepExpired();
+              }
+            }));
+    threads.add(
+        new Thread(
+            () -> {
+              while (!done.get()) {
+                map.snapshot();
+              }
+            }));
+    threads.forEach(Thread::start);
+    Thread.sleep(3000);
+    done.set(true);
+    for (Thread t : threads) {
+      t.join(60000);
+      // Deadlock
+      assertFalse(t.isAlive());
+    }
+    for (Key k : keys) {
+      Lists.DELETE(map, k.address, k.length);
+      UnsafeAccess.free(k.address);
+    }
+    sweepExpired();
+    assertEquals(externalSize, map.getInstanceExternalDataSize());
+  }
 }
@@ -15,11 +15,14 @@ package org.bigbase.carrot.redis.sets;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.CarrotCoreBase;
+import org.bigbase.carrot.redis.util.CollectionHeader;
+import org.bigbase.carrot.redis.util.DataType;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
 import org.junit.Before;
@@ -297,6 +300,162 @@ public class SetsAPITest extends CarrotCoreBase {
     log.debug("total={} time for {}={}ms", total, 1000 * X, end - start);
   }
 
+  @Test
+  public void testCollectionHeaderRepair() {
+    int X = 1000;
+    String key = "key";
+    long keyPtr = UnsafeAccess.allocAndCopy(key, 0, key.length());
+    int keySize = key.length();
+    loadData(key, X);
+    long bytes = Sets.getSetSizeInBytes(map, keyPtr, keySize);
+
+    // Missing header: read scans the set, but does not store the header
+    assertTrue(CollectionHeader.delete(map, DataType.SET, keyPtr, keySize));
+    assertEquals(X, Sets.SCARD(map, key));
+    assertFalse(CollectionHeader.delete(map, DataType.SET, keyPtr, keySize));
+    // Next mutation stores it
+    assertEquals(1, Sets.SADD(map, key, "member"));
+    assertTrue(CollectionHeader.delete(map, DataType.SET, keyPtr, keySize));
+    assertEquals(X + 1, Sets.SCARD(map, key));
+
+    // Removal from a set without header rebuilds it
+    long memberPtr = UnsafeAccess.allocAndCopy("member", 0, 6);
+    assertEquals(1, Sets.SREM(map, keyPtr, keySize, memberPtr, 6));
+    assertTrue(CollectionHeader.delete(map, DataType.SET, keyPtr, keySize));
+    assertEquals(X, Sets.SCARD(map, key));
+    assertEquals(bytes, Sets.getSetSizeInBytes(map, keyPtr, keySize));
+    UnsafeAccess.free(memberPtr);
+    UnsafeAccess.free(keyPtr);
+  }
+
+  /**
+   * Verifies that set header matches set's content: deletes header, so the next read scans the
+   * set, and stores it back
+   */
+  private void verifyHeader(long keyPtr, int keySize) {
+    long count = Sets.SCARD(map, keyPtr, keySize);
+    long bytes = Sets.getSetSizeInBytes(map, keyPtr, keySize);
+    assertEquals(count > 0, CollectionHeader.delete(map, DataType.SET, keyPtr, keySize));
+    assertEquals(count, Sets.SCARD(map, keyPtr, keySize));
+    assertEquals(bytes, Sets.getSetSizeInBytes(map, keyPtr, keySize));
+    if (count > 0) {
+      assertTrue(CollectionHeader.reserve(map, DataType.SET, keyPtr, keySize));
+    }
+  }
+
+  @Test
+  public void testCollectionHeaderConcurrentUpdates() throws InterruptedException {
+    int numThreads = 4;
+    int numKeys = 8;
+    int numMembers = 500;
+    int numOps = memoryDebug ? 2000 : 50000;
+    long seed = new Random().nextLong();
+    log.debug("Test seed={}", seed);
+    AtomicReference<Throwable> error = new AtomicReference<>();
+    Thread[] workers = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      Random r = new Random(seed + i);
+      workers[i] =
+          new Thread(
+              () -> {
+                try {
+                  for (int j = 0; j < numOps; j++) {
+                    String key = "key" + r.nextInt(numKeys);
+                    String member = "member" + r.nextInt(numMembers);
+                    long keyPtr = UnsafeAccess.allocAndCopy(key, 0, key.length());
+                    long memberPtr = UnsafeAccess.allocAndCopy(member, 0, member.length());
+                    if (r.nextInt(3) > 0) {
+                      Sets.SADD(map, keyPtr, key.length(), memberPtr, member.length());
+                    } else {
+                      Sets.SREM(map, keyPtr, key.length(), memberPtr, member.length());
+                    }
+                    UnsafeAccess.free(memberPtr);
+                    UnsafeAccess.free(keyPtr);
+                  }
+                } catch (Throwable t) {
+                  error.compareAndSet(null, t);
+                }
+              });
+      workers[i].start();
+    }
+    for (Thread t : workers) {
+      t.join();
+    }
+    assertNull(error.get());
+    for (int i = 0; i < numKeys; i++) {
+      String key = "key" + i;
+      long keyPtr = UnsafeAccess.allocAndCopy(key, 0, key.length());
+      verifyHeader(keyPtr, key.length());
+      UnsafeAccess.free(keyPtr);
+    }
+  }
+
+  @Test
+  public void testCollectionHeaderPutFailures() {
+    String key = "key";
+    long keyPtr = UnsafeAccess.allocAndCopy(key, 0, key.length());
+    int keySize = key.length();
+    long limit = BigSortedMap.getGlobalMemoryLimit();
+    Random r = new Random();
+    int added = 0, failed = 0;
+    try {
+      // Leave room for a few blocks only
+      BigSortedMap.setGlobalMemoryLimit(BigSortedMap.getGlobalAllocatedMemory() + 200000);
+      for (int i = 0; failed < 100; i++) {
+        String m = Utils.getRandomStr(r, 64);
+        long mPtr = UnsafeAccess.allocAndCopy(m, 0, m.length());
+        int res = Sets.SADD(map, keyPtr, keySize, mPtr, m.length());
+        UnsafeAccess.free(mPtr);
+        added += res;
+        failed += 1 - res;
+        assertEquals(added, (int) Sets.SCARD(map, keyPtr, keySize));
+      }
+      // Set, which can not be created
+      String k = "key1";
+      long kPtr = UnsafeAccess.allocAndCopy(k, 0, k.length());
+      long[] ptrs = new long[] {keyPtr};
+      int[] sizes = new int[] {keySize};
+      Sets.SADD(map, kPtr, k.length(), ptrs, sizes);
+      verifyHeader(kPtr, k.length());
+      UnsafeAccess.free(kPtr);
+    } finally {
+      BigSortedMap.setGlobalMemoryLimit(limit);
+    }
+    assertTrue(added > 0);
+    verifyHeader(keyPtr, keySize);
+    UnsafeAccess.free(keyPtr);
+  }
+
+  @Test
+  public void testSCOUNT() {
+
+    int X = memoryDebug? 2000: 20000;
+    int numIterations = memoryDebug? 100: 1000;
+    String key = "key";
+    Random r = new Random();
+    long seed = r.nextLong();
+    r.setSeed(seed);
+    log.debug("Test seed={}", seed);
+
+    List<String> list = loadData(key, X);
+    Collections.sort(list);
+
+    assertEquals(X, (int) Sets.SCOUNT(map, key, null, null));
+    assertEquals(0, (int) Sets.SCOUNT(map, "absent", null, null));
+
+    for (int i = 0; i < numIterations; i++) {
+      int start = r.nextInt(X);
+      int stop = r.nextInt(X);
+      String startMember = list.get(start);
+      String stopMember = list.get(stop);
+      assertEquals(Math.max(stop - start, 0), (int) Sets.SCOUNT(map, key, startMember, stopMember));
+      assertEquals(stop, (int) Sets.SCOUNT(map, key, null, stopMember));
+      assertEquals(X - start, (int) Sets.SCOUNT(map, key, startMember, null));
+      // Non-existent member right after the start one
+      assertEquals(X - start - 1, (int) Sets.SCOUNT(map, key, startMember + "\u0000", null));
+    }
+  }
+
   private int countMatches(List<String> list, int startIndex, String regex) {
     int total = 0;
     List<String> subList = list.subList(startIndex, list.size());
@@ -714,6 +873,67 @@ public class SetsAPITest extends CarrotCoreBase {
     return total;
   }
 
+  @Test
+  public void testMultiSetOperations() {
+    // Dense, medium and sparse sets with overlapping members
+    int[] steps = new int[] {1, 3, 97};
+    String[] keys = new String[] {"dense", "medium", "sparse"};
+    List<TreeSet<String>> sets = new ArrayList<>();
+    for (int i = 0; i < keys.length; i++) {
+      TreeSet<String> set = new TreeSet<>();
+      List<String> list = new ArrayList<>();
+      for (int j = 0; j < 30000; j += steps[i]) {
+        String m = String.format("member%08d", j);
+        set.add(m);
+        list.add(m);
+      }
+      Sets.SADD(map, keys[i], list.toArray(new String[0]));
+      sets.add(set);
+    }
+    int bufferSize = 1 << 20;
+
+    TreeSet<String> expected = new TreeSet<>(sets.get(0));
+    expected.retainAll(sets.get(1));
+    expected.retainAll(sets.get(2));
+    assertEquals(new ArrayList<>(expected), Sets.SINTER(map, keys, bufferSize));
+    assertEquals(
+        expected.size(),
+        (int) Sets.SINTERSTORE(map, new String[] {"inter", "dense", "medium", "sparse"}));
+    assertEquals(expected.size(), (int) Sets.SCARD(map, "inter"));
+
+    expected = new TreeSet<>(sets.get(0));
+    expected.addAll(sets.get(1));
+    expected.addAll(sets.get(2));
+    assertEquals(new ArrayList<>(expected), Sets.SUNION(map, keys, bufferSize));
+
+    expected = new TreeSet<>(sets.get(1));
+    expected.removeAll(sets.get(2));
+    assertEquals(
+        new ArrayList<>(expected), Sets.SDIFF(map, new String[] {"medium", "sparse"}, bufferSize));
+    expected.removeAll(sets.get(0));
+    assertEquals(0, Sets.SDIFF(map, new String[] {"medium", "dense"}, bufferSize).size());
+
+    // Destination is one of sources
+    expected = new TreeSet<>(sets.get(0));
+    expected.removeAll(sets.get(1));
+    assertEquals(
+        expected.size(), (int) Sets.SDIFFSTORE(map, new String[] {"dense", "dense", "medium"}));
+    List<byte[]> members = Sets.SMEMBERS(map, "dense".getBytes(), bufferSize);
+    assertEquals(expected.size(), members.size());
+    Iterator<String> it = expected.iterator();
+    for (byte[] m : members) {
+      assertEquals(it.next(), new String(m));
+    }
+    // Union of all restores the dense set
+    assertEquals(
+        30000, (int) Sets.SUNIONSTORE(map, new String[] {"dense", "dense", "medium", "inter"}));
+    assertEquals(30000, (int) Sets.SCARD(map, "dense"));
+
+    // Empty result removes destination
+    assertEquals(0, (int) Sets.SINTERSTORE(map, new String[] {"inter", "sparse", "nokey"}));
+    assertEquals(0, (int) Sets.SCARD(map, "inter"));
+  }
+
   @Before
   @Override
   public void setUp() throws IOException {
@@ -24,6 +24,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.CarrotCoreBase;
+import org.bigbase.carrot.redis.util.BitOp;
 import org.bigbase.carrot.redis.util.Commons;
 import org.bigbase.carrot.util.Key;
 import org.bigbase.carrot.util.UnsafeAccess;
@@ -1136,4 +1137,89 @@ public class SparseBitmapsTest extends CarrotCoreBase {
     assertFalse(SparseBitmaps.EXISTS(map, key2.address, key2.length));
     assertEquals(0, (int) map.countRecords());
   }
+
+  @Test
+  public void testBitOp() {
+    Random r = new Random();
+    long seed = r.nextLong();
+    r.setSeed(seed);
+    log.debug("Test seed={}", seed);
+
+    // Sparse bitmaps spanning several chunks with holes of all-zero chunks
+    int numBits = memoryDebug ? 1000 : 10000;
+    int maxBit = SparseBitmaps.BITS_PER_CHUNK * 16;
+    Key[] keys = new Key[] {getKey(), getKey(), getKey()};
+    BitSet[] sets = new BitSet[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      sets[i] = new BitSet();
+      for (int j = 0; j < numBits; j++) {
+        int offset = r.nextInt(maxBit / (i + 1));
+        if ((offset / SparseBitmaps.BITS_PER_CHUNK) % (i + 2) == 0) {
+          // leave this chunk empty
+          continue;
+        }
+        sets[i].set(offset);
+        SparseBitmaps.SSETBIT(map, keys[i].address, keys[i].length, offset, 1);
+      }
+    }
+    Key dst = getKey();
+    long[] keyPtrs = new long[] {dst.address, keys[0].address, keys[1].address, keys[2].address};
+    int[] keySizes = new int[] {dst.length, keys[0].length, keys[1].length, keys[2].length};
+
+    int maxSize = 0;
+    for (BitSet set : sets) {
+      maxSize = Math.max(maxSize, (set.length() + 7) / 8);
+    }
+    for (BitOp op : new BitOp[] {BitOp.AND, BitOp.OR, BitOp.XOR}) {
+      BitSet expected = (BitSet) sets[0].clone();
+      for (int i = 1; i < sets.length; i++) {
+        switch (op) {
+          case AND:
+            expected.and(sets[i]);
+            break;
+          case OR:
+            expected.or(sets[i]);
+            break;
+          default:
+            expected.xor(sets[i]);
+        }
+      }
+      long size = SparseBitmaps.SBITOP(map, op, keyPtrs, keySizes);
+      assertEquals(maxSize, (int) size);
+      verify(dst, expected);
+    }
+    // NOT
+    long[] notPtrs = new long[] {dst.address, keys[1].address};
+    int[] notSizes = new int[] {dst.length, keys[1].length};
+    long size = SparseBitmaps.SBITOP(map, BitOp.NOT, notPtrs, notSizes);
+    int len = (sets[1].length() + 7) / 8;
+    assertEquals(len, (int) size);
+    BitSet expected = (BitSet) sets[1].clone();
+    expected.flip(0, len * Utils.BITS_PER_BYTE);
+    verify(dst, expected);
+
+    // Missing source: AND is empty, OR is a copy
+    Key missing = getKey();
+    long[] ptrs = new long[] {dst.address, keys[0].address, missing.address};
+    int[] lengths = new int[] {dst.length, keys[0].length, missing.length};
+    SparseBitmaps.SBITOP(map, BitOp.AND, ptrs, lengths);
+    assertFalse(SparseBitmaps.EXISTS(map, dst.address, dst.length));
+    SparseBitmaps.SBITOP(map, BitOp.OR, ptrs, lengths);
+    verify(dst, sets[0]);
+
+    for (Key k : keys) {
+      UnsafeAccess.free(k.address);
+    }
+    UnsafeAccess.free(dst.address);
+    UnsafeAccess.free(missing.address);
+  }
+
+  private void verify(Key k, BitSet expected) {
+    long count =
+        SparseBitmaps.SBITCOUNT(map, k.address, k.length, Commons.NULL_LONG, Commons.NULL_LONG);
+    assertEquals(expected.cardinality(), (int) count);
+    for (int i = expected.nextSetBit(0); i >= 0; i = expected.nextSetBit(i + 1)) {
+      assertEquals(1, SparseBitmaps.SGETBIT(map, k.address, k.length, i));
+    }
+  }
 }
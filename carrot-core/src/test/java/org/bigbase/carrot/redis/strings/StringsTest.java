@@ -18,6 +18,7 @@ import org.apache.logging.log4j.Logger;
 import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.CarrotCoreBase;
 import org.bigbase.carrot.ops.OperationFailedException;
+import org.bigbase.carrot.redis.util.BitOp;
 import org.bigbase.carrot.redis.util.Commons;
 import org.bigbase.carrot.redis.util.MutationOptions;
 import org.bigbase.carrot.util.KeyValue;
@@ -163,10 +164,40 @@ public class StringsTest extends CarrotCoreBase {
     assertEquals(exp, expire);
   }
 
+  @Test
+  public void testSetExpire() {
+    KeyValue kv = keyValues.get(0);
+    long exp = System.currentTimeMillis() + 100000;
+
+    assertFalse(Strings.SETEXPIRE(map, kv.keyPtr, kv.keySize, exp, MutationOptions.NONE));
+    boolean res =
+        Strings.SET(
+            map, kv.keyPtr, kv.keySize, kv.valuePtr, kv.valueSize, 0, MutationOptions.NONE, false);
+    assertTrue(res);
+    // XX and GT require an existing expire
+    assertFalse(Strings.SETEXPIRE(map, kv.keyPtr, kv.keySize, exp, MutationOptions.XX));
+    assertFalse(Strings.SETEXPIRE(map, kv.keyPtr, kv.keySize, exp, MutationOptions.GT));
+    assertTrue(Strings.SETEXPIRE(map, kv.keyPtr, kv.keySize, exp, MutationOptions.NX));
+    assertEquals(exp, Strings.GETEXPIRE(map, kv.keyPtr, kv.keySize));
+    assertFalse(Strings.SETEXPIRE(map, kv.keyPtr, kv.keySize, exp + 1, MutationOptions.NX));
+    assertFalse(Strings.SETEXPIRE(map, kv.keyPtr, kv.keySize, exp + 1, MutationOptions.LT));
+    assertTrue(Strings.SETEXPIRE(map, kv.keyPtr, kv.keySize, exp + 1, MutationOptions.GT));
+    assertTrue(Strings.SETEXPIRE(map, kv.keyPtr, kv.keySize, exp, MutationOptions.LT));
+    assertTrue(Strings.SETEXPIRE(map, kv.keyPtr, kv.keySize, exp + 2, MutationOptions.NONE));
+    assertEquals(exp + 2, Strings.GETEXPIRE(map, kv.keyPtr, kv.keySize));
+    // Value is not changed
+    long size = Strings.GET(map, kv.keyPtr, kv.keySize, buffer, bufferSize);
+    assertEquals(kv.valueSize, (int) size);
+    assertEquals(0, Utils.compareTo(kv.valuePtr, kv.valueSize, buffer, (int) size));
+    // Expired key is gone
+    assertTrue(Strings.SETEXPIRE(map, kv.keyPtr, kv.keySize, 1, MutationOptions.NONE));
+    assertEquals(-1, Strings.GETEXPIRE(map, kv.keyPtr, kv.keySize));
+  }
+
   @Test
   public void testSetIfNotExists() {
     KeyValue kv = keyValues.get(0);
-    long exp = 10;
+    long exp = System.currentTimeMillis() + 100000;
 
     boolean res = Strings.SETNX(map, kv.keyPtr, kv.keySize, kv.valuePtr, kv.valueSize, exp);
     assertTrue(res);
@@ -181,7 +212,7 @@ public class StringsTest extends CarrotCoreBase {
   @Test
   public void testSetIfExists() {
     KeyValue kv = keyValues.get(0);
-    long exp = 10;
+    long exp = System.currentTimeMillis() + 100000;
 
     boolean res = Strings.SETXX(map, kv.keyPtr, kv.keySize, kv.valuePtr, kv.valueSize, exp);
     assertFalse(res);
@@ -189,7 +220,7 @@ public class StringsTest extends CarrotCoreBase {
     res = Strings.SETNX(map, kv.keyPtr, kv.keySize, kv.valuePtr, kv.valueSize, exp);
     assertTrue(res);
 
-    exp = 100;
+    exp += 100;
     res = Strings.SETXX(map, kv.keyPtr, kv.keySize, kv.valuePtr, kv.valueSize, exp);
     assertTrue(res);
 
@@ -200,7 +231,7 @@ public class StringsTest extends CarrotCoreBase {
   @Test
   public void testSetWithTTL() {
     KeyValue kv = keyValues.get(0);
-    long exp = 10;
+    long exp = System.currentTimeMillis() + 100000;
 
     boolean res =
         Strings.SET(
@@ -303,7 +334,7 @@ public class StringsTest extends CarrotCoreBase {
     KeyValue kv = keyValues.get(0);
     KeyValue kv1 = keyValues.get(1);
     KeyValue kv2 = keyValues.get(2);
-    long exp = 10;
+    long exp = System.currentTimeMillis() + 100000;
     // long SET_FAILED = -2;
     long GET_FAILED = -1;
 
@@ -694,12 +725,13 @@ public class StringsTest extends CarrotCoreBase {
     int size = Strings.APPEND(map, kv.keyPtr, kv.keySize, kv.valuePtr, kv.valueSize);
     assertEquals(kv.valueSize, size);
 
-    size = Strings.GETEX(map, kv.keyPtr, kv.keySize, 100, buffer, bufferSize);
+    long exp = System.currentTimeMillis() + 100000;
+    size = Strings.GETEX(map, kv.keyPtr, kv.keySize, exp, buffer, bufferSize);
     assertEquals(kv.valueSize, size);
     assertEquals(0, Utils.compareTo(kv.valuePtr, kv.valueSize, buffer, kv.valueSize));
 
     long expire = Strings.GETEXPIRE(map, kv.keyPtr, kv.keySize);
-    assertEquals(100L, expire);
+    assertEquals(exp, expire);
   }
 
   @Test
@@ -737,32 +769,36 @@ public class StringsTest extends CarrotCoreBase {
   public void testSetEx() {
     KeyValue kv = keyValues.get(0);
 
-    boolean res = Strings.SETEX(map, kv.keyPtr, kv.keySize, kv.valuePtr, kv.valueSize, 100);
+    long exp = System.currentTimeMillis() + 100000;
+    boolean res = Strings.SETEX(map, kv.keyPtr, kv.keySize, kv.valuePtr, kv.valueSize, exp);
     assertTrue(res);
 
     long expire = Strings.GETEXPIRE(map, kv.keyPtr, kv.keySize);
-    assertEquals(100L, expire);
+    assertEquals(exp, expire);
 
-    res = Strings.SETEX(map, kv.keyPtr, kv.keySize, kv.valuePtr, kv.valueSize, 200);
+    exp += 100;
+    res = Strings.SETEX(map, kv.keyPtr, kv.keySize, kv.valuePtr, kv.valueSize, exp);
     assertTrue(res);
     expire = Strings.GETEXPIRE(map, kv.keyPtr, kv.keySize);
-    assertEquals(200L, expire);
+    assertEquals(exp, expire);
   }
 
   @Test
   public void testPSetEx() {
     KeyValue kv = keyValues.get(0);
 
-    boolean res = Strings.PSETEX(map, kv.keyPtr, kv.keySize, kv.valuePtr, kv.valueSize, 100);
+    long exp = System.currentTimeMillis() + 100000;
+    boolean res = Strings.PSETEX(map, kv.keyPtr, kv.keySize, kv.valuePtr, kv.valueSize, exp);
     assertTrue(res);
 
     long expire = Strings.GETEXPIRE(map, kv.keyPtr, kv.keySize);
-    assertEquals(100L, expire);
+    assertEquals(exp, expire);
 
-    res = Strings.PSETEX(map, kv.keyPtr, kv.keySize, kv.valuePtr, kv.valueSize, 200);
+    exp += 100;
+    res = Strings.PSETEX(map, kv.keyPtr, kv.keySize, kv.valuePtr, kv.valueSize, exp);
     assertTrue(res);
     expire = Strings.GETEXPIRE(map, kv.keyPtr, kv.keySize);
-    assertEquals(200L, expire);
+    assertEquals(exp, expire);
   }
 
   @Test
@@ -1236,6 +1272,105 @@ public class StringsTest extends CarrotCoreBase {
     }
     UnsafeAccess.free(buffer);
   }
+
+  @Test
+  public void testBitOp() {
+    Random r = new Random();
+    long seed = r.nextLong();
+    r.setSeed(seed);
+    log.debug("Test seed={}", seed);
+
+    // Different lengths (not multiples of 8) and a non-existent key
+    int[] sizes = new int[] {1003, 777, 1021, 0};
+    String[] keys = new String[] {"src1", "src2", "src3", "src4"};
+    byte[][] values = new byte[sizes.length][];
+    int maxSize = 0;
+    for (int i = 0; i < sizes.length; i++) {
+      values[i] = new byte[sizes[i]];
+      r.nextBytes(values[i]);
+      maxSize = Math.max(maxSize, sizes[i]);
+      if (sizes[i] > 0) {
+        long valuePtr = UnsafeAccess.allocAndCopy(values[i], 0, sizes[i]);
+        long keyPtr = UnsafeAccess.allocAndCopy(keys[i], 0, keys[i].length());
+        Strings.APPEND(map, keyPtr, keys[i].length(), valuePtr, sizes[i]);
+        UnsafeAccess.free(keyPtr);
+        UnsafeAccess.free(valuePtr);
+      }
+    }
+
+    for (BitOp op : new BitOp[] {BitOp.AND, BitOp.OR, BitOp.XOR}) {
+      for (int n = 1; n <= keys.length; n++) {
+        String[] src = Arrays.copyOf(keys, n);
+        byte[] expected = new byte[0];
+        for (int i = 0; i < n; i++) {
+          expected = bitop(op, expected, values[i], i == 0);
+        }
+        long size = Strings.BITOP(map, op, "dst", src);
+        assertEquals(expected.length, (int) size);
+        assertArrayEquals(expected, get("dst"));
+      }
+    }
+    // NOT
+    long size = Strings.BITOP(map, BitOp.NOT, "dst", new String[] {"src2"});
+    assertEquals(sizes[1], (int) size);
+    assertArrayEquals(bitop(BitOp.NOT, null, values[1], true), get("dst"));
+
+    // Destination is one of the sources
+    byte[] expected = bitop(BitOp.OR, values[0], values[2], false);
+    size = Strings.BITOP(map, BitOp.OR, "src1", new String[] {"src1", "src3"});
+    assertEquals(expected.length, (int) size);
+    assertArrayEquals(expected, get("src1"));
+
+    // All sources are missing - destination is deleted
+    size = Strings.BITOP(map, BitOp.AND, "dst", new String[] {"src4", "src5"});
+    assertEquals(0, (int) size);
+    assertNull(get("dst"));
+  }
+
+  private byte[] get(String key) {
+    long keyPtr = UnsafeAccess.allocAndCopy(key, 0, key.length());
+    long buf = UnsafeAccess.malloc(4096);
+    try {
+      long size = Strings.GET(map, keyPtr, key.length(), buf, 4096);
+      if (size < 0) {
+        return null;
+      }
+      byte[] value = new byte[(int) size];
+      UnsafeAccess.copy(buf, value, 0, value.length);
+      return value;
+    } finally {
+      UnsafeAccess.free(keyPtr);
+      UnsafeAccess.free(buf);
+    }
+  }
+
+  private byte[] bitop(BitOp op, byte[] v1, byte[] v2, boolean first) {
+    if (first) {
+      byte[] result = v2.clone();
+      if (op == BitOp.NOT) {
+        for (int i = 0; i < result.length; i++) {
+          result[i] = (byte) ~result[i];
+        }
+      }
+      return result;
+    }
+    byte[] result = new byte[Math.max(v1.length, v2.length)];
+    for (int i = 0; i < result.length; i++) {
+      byte b1 = i < v1.length ? v1[i] : 0;
+      byte b2 = i < v2.length ? v2[i] : 0;
+      switch (op) {
+        case AND:
+          result[i] = (byte) (b1 & b2);
+          break;
+        case OR:
+          result[i] = (byte) (b1 | b2);
+          break;
+        default:
+          result[i] = (byte) (b1 ^ b2);
+      }
+    }
+    return result;
+  }
 }
 
 class FakeUserSession {
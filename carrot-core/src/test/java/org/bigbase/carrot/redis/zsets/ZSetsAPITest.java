@@ -26,6 +26,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.CarrotCoreBase;
+import org.bigbase.carrot.redis.util.Aggregate;
 import org.bigbase.carrot.util.Pair;
 import org.bigbase.carrot.util.Utils;
 import org.junit.Before;
@@ -2125,6 +2126,56 @@ public class ZSetsAPITest extends CarrotCoreBase {
     assertEquals(-1L, rank);
   }
 
+  @Test
+  public void testZRANKLarge() {
+
+    String key = "key";
+    int numMembers = memoryDebug? 2000: 20000;
+    Random r = new Random();
+    List<Pair<String>> data = loadDataSortByScore(key, numMembers);
+
+    for (int i = 0; i < data.size(); i += 7) {
+      String member = data.get(i).getFirst();
+      assertEquals(i, (int) ZSets.ZRANK(map, key, member));
+      assertEquals(data.size() - i - 1, (int) ZSets.ZREVRANK(map, key, member));
+    }
+    // Delete random members and verify ranks again
+    for (int i = 0; i < numMembers / 10; i++) {
+      int index = r.nextInt(data.size());
+      assertEquals(1, (int) ZSets.ZREM(map, key, data.remove(index).getFirst()));
+    }
+    for (int i = 0; i < data.size(); i += 7) {
+      String member = data.get(i).getFirst();
+      assertEquals(i, (int) ZSets.ZRANK(map, key, member));
+      assertEquals(data.size() - i - 1, (int) ZSets.ZREVRANK(map, key, member));
+    }
+    assertEquals(-1L, ZSets.ZRANK(map, key, "member"));
+    assertEquals(-1L, ZSets.ZREVRANK(map, key, "member"));
+  }
+
+  @Test
+  public void testZCOUNTNarrowRange() {
+
+    String key = "key";
+    int numMembers = memoryDebug? 2000: 20000;
+    List<Pair<String>> data = loadDataSortByScore(key, numMembers);
+    // Narrow ranges near the end and at the beginning of a multi-chunk set
+    for (int i = 0; i < 100; i++) {
+      for (int start : new int[] {numMembers - 100 + i, i}) {
+        int stop = Math.min(start + i % 5, numMembers - 1);
+        double min = Double.parseDouble(data.get(start).getSecond());
+        double max = Double.parseDouble(data.get(stop).getSecond());
+        assertEquals(stop - start + 1, (int) ZSets.ZCOUNT(map, key, min, true, max, true));
+        assertEquals(stop - start, (int) ZSets.ZCOUNT(map, key, min, false, max, true));
+        assertEquals(Math.max(stop - start - 1, 0),
+            (int) ZSets.ZCOUNT(map, key, min, false, max, false));
+      }
+    }
+    double last = Double.parseDouble(data.get(numMembers - 1).getSecond());
+    assertEquals(1, (int) ZSets.ZCOUNT(map, key, last, true, Double.MAX_VALUE, true));
+    assertEquals(0, (int) ZSets.ZCOUNT(map, key, last, false, Double.MAX_VALUE, true));
+  }
+
   private void testZRANGEBYSCORE_core(
       List<Pair<String>> data, String key, boolean startInclusive, boolean endInclusive) {
     Random r = new Random();
@@ -3255,4 +3306,170 @@ public class ZSetsAPITest extends CarrotCoreBase {
 
     assertEquals(0L, map.countRecords());
   }
+
+  /*
+   * Loads sorted set with members from a shared range and integer scores (sums are exact)
+   */
+  private Map<String, Double> loadRange(String key, int range, int n) {
+    Map<String, Double> model = new HashMap<String, Double>();
+    while (model.size() < n) {
+      model.put("member" + rnd.nextInt(range), (double) (rnd.nextInt(1000) - 500));
+    }
+    String[] members = model.keySet().toArray(new String[0]);
+    double[] scores = new double[members.length];
+    for (int i = 0; i < members.length; i++) {
+      scores[i] = model.get(members[i]);
+    }
+    assertEquals(n, (int) ZSets.ZADD(map, key, members, scores, false));
+    return model;
+  }
+
+  private static double aggregate(Aggregate aggregate, Double v1, double v2) {
+    if (v1 == null) {
+      return v2;
+    }
+    switch (aggregate) {
+      case MIN:
+        return Math.min(v1, v2);
+      case MAX:
+        return Math.max(v1, v2);
+      default:
+        return v1 + v2;
+    }
+  }
+
+  /*
+   * Expected result of a multi sorted set operation sorted by score, member
+   */
+  private List<Pair<String>> expected(
+      List<Map<String, Double>> sets, double[] weights, Aggregate aggregate, String op) {
+    Map<String, Double> result = new HashMap<String, Double>();
+    if (op.equals("DIFF")) {
+      for (Map.Entry<String, Double> e : sets.get(0).entrySet()) {
+        boolean found = false;
+        for (int i = 1; i < sets.size(); i++) {
+          found |= sets.get(i).containsKey(e.getKey());
+        }
+        if (!found) {
+          result.put(e.getKey(), e.getValue());
+        }
+      }
+    } else {
+      for (int i = 0; i < sets.size(); i++) {
+        for (Map.Entry<String, Double> e : sets.get(i).entrySet()) {
+          double v = e.getValue() * (weights == null ? 1 : weights[i]);
+          result.put(e.getKey(), aggregate(aggregate, result.get(e.getKey()), v));
+        }
+      }
+      if (op.equals("INTER")) {
+        for (Map<String, Double> set : sets) {
+          result.keySet().retainAll(set.keySet());
+        }
+      }
+    }
+    List<Map.Entry<String, Double>> entries =
+        new ArrayList<Map.Entry<String, Double>>(result.entrySet());
+    Collections.sort(
+        entries,
+        new Comparator<Map.Entry<String, Double>>() {
+          @Override
+          public int compare(Map.Entry<String, Double> o1, Map.Entry<String, Double> o2) {
+            int res = Double.compare(o1.getValue(), o2.getValue());
+            return res != 0 ? res : o1.getKey().compareTo(o2.getKey());
+          }
+        });
+    List<Pair<String>> list = new ArrayList<Pair<String>>();
+    for (Map.Entry<String, Double> e : entries) {
+      list.add(new Pair<String>(e.getKey(), Double.toString(e.getValue())));
+    }
+    return list;
+  }
+
+  private void verifyStore(String dst, List<Pair<String>> expected) {
+    assertEquals(expected.size(), (int) ZSets.ZCARD(map, dst));
+    assertEquals(expected, ZSets.ZRANGE(map, dst, 0, -1, true, 1 << 20));
+    for (int i = 0; i < expected.size(); i += 97) {
+      Pair<String> p = expected.get(i);
+      Double score = ZSets.ZSCORE(map, dst, p.getFirst());
+      assertNotNull(score);
+      assertEquals(p.getSecond(), score.toString());
+    }
+  }
+
+  @Test
+  public void testMultiSetOperations() {
+    int range = 20000;
+    // normal (with member -> score hash) and compact mode sorted sets
+    String[] keys = new String[] {"large", "medium", "small", "tiny"};
+    List<Map<String, Double>> sets = new ArrayList<Map<String, Double>>();
+    sets.add(loadRange(keys[0], range, 5000));
+    sets.add(loadRange(keys[1], range, 1000));
+    sets.add(loadRange(keys[2], range, 300));
+    sets.add(loadRange(keys[3], range, 10));
+    // make sure intersection is not empty
+    for (int i = 1; i < keys.length; i++) {
+      String member = sets.get(i).keySet().iterator().next();
+      for (int j = 0; j < keys.length; j++) {
+        if (sets.get(j).containsKey(member)) continue;
+        ZSets.ZADD(map, keys[j], new String[] {member}, new double[] {j}, false);
+        sets.get(j).put(member, (double) j);
+      }
+    }
+    double[] weights = new double[] {2, -1, 0.5, 0};
+    int bufSize = 1 << 20;
+    for (Aggregate aggregate : Aggregate.values()) {
+      for (int n = 1; n <= keys.length; n++) {
+        String[] k = Arrays.copyOf(keys, n);
+        double[] w = Arrays.copyOf(weights, n);
+        List<Map<String, Double>> s = sets.subList(0, n);
+
+        List<Pair<String>> expected = expected(s, null, aggregate, "UNION");
+        assertEquals(expected, ZSets.ZUNION(map, k, null, aggregate, true, bufSize));
+        assertEquals(expected.size(), (int) ZSets.ZUNIONSTORE(map, "dst", k, null, aggregate));
+        verifyStore("dst", expected);
+
+        expected = expected(s, w, aggregate, "UNION");
+        assertEquals(expected, ZSets.ZUNION(map, k, w, aggregate, true, bufSize));
+        assertEquals(expected.size(), (int) ZSets.ZUNIONSTORE(map, "dst", k, w, aggregate));
+        verifyStore("dst", expected);
+
+        expected = expected(s, w, aggregate, "INTER");
+        assertTrue(expected.size() > 0);
+        assertEquals(expected, ZSets.ZINTER(map, k, w, aggregate, true, bufSize));
+        assertEquals(expected.size(), (int) ZSets.ZINTERSTORE(map, "dst", k, w, aggregate));
+        verifyStore("dst", expected);
+
+        // reverse order - sparse set drives intersection
+        String[] rk = k.clone();
+        Collections.reverse(Arrays.asList(rk));
+        List<Map<String, Double>> rs = new ArrayList<Map<String, Double>>(s);
+        Collections.reverse(rs);
+        expected = expected(rs, null, aggregate, "INTER");
+        assertEquals(expected, ZSets.ZINTER(map, rk, null, aggregate, true, bufSize));
+
+        expected = expected(s, null, aggregate, "DIFF");
+        assertEquals(expected, ZSets.ZDIFF(map, k, true, bufSize));
+        assertEquals(expected.size(), (int) ZSets.ZDIFFSTORE(map, "dst", k));
+        verifyStore("dst", expected);
+
+        expected = expected(rs, null, aggregate, "DIFF");
+        List<Pair<String>> members = new ArrayList<Pair<String>>();
+        for (Pair<String> p : expected) {
+          members.add(new Pair<String>(p.getFirst(), p.getFirst()));
+        }
+        assertEquals(members, ZSets.ZDIFF(map, rk, false, bufSize));
+      }
+    }
+    // Destination is one of the sources
+    List<Pair<String>> expected = expected(sets, weights, Aggregate.SUM, "UNION");
+    assertEquals(
+        expected.size(), (int) ZSets.ZUNIONSTORE(map, keys[2], keys, weights, Aggregate.SUM));
+    verifyStore(keys[2], expected);
+    // Empty result deletes destination
+    assertEquals(0, (int) ZSets.ZINTERSTORE(map, "dst", new String[] {"dst", "empty"}, null,
+        Aggregate.SUM));
+    assertEquals(0, (int) ZSets.ZCARD(map, "dst"));
+    // Buffer is too small
+    assertEquals(0, ZSets.ZUNION(map, keys, null, Aggregate.SUM, false, 100).size());
+  }
 }
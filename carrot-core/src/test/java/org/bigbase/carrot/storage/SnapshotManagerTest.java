@@ -0,0 +1,158 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.junit.After;
+import org.junit.Test;
+
+public class SnapshotManagerTest {
+
+  private List<BigSortedMap> maps = new ArrayList<BigSortedMap>();
+  private List<File> dirs = new ArrayList<File>();
+  private SnapshotManager manager;
+
+  @After
+  public void tearDown() {
+    if (manager != null) {
+      manager.stopSnapshots();
+    }
+    for (BigSortedMap map : maps) {
+      map.dispose();
+    }
+    for (File dir : dirs) {
+      delete(dir);
+    }
+  }
+
+  private void delete(File f) {
+    File[] files = f.listFiles();
+    if (files != null) {
+      for (File ff : files) {
+        delete(ff);
+      }
+    }
+    f.delete();
+  }
+
+  private BigSortedMap createMap(int n) throws IOException {
+    BigSortedMap map = new BigSortedMap(100000000);
+    File dir = Files.createTempDirectory("snapshot").toFile();
+    map.setSnapshotDir(dir.getAbsolutePath());
+    maps.add(map);
+    dirs.add(dir);
+    for (int i = 0; i < n; i++) {
+      change(map, i);
+    }
+    return map;
+  }
+
+  private void change(BigSortedMap map, int i) {
+    byte[] key = ("KEY" + i).getBytes();
+    byte[] value = ("VALUE" + i).getBytes();
+    long keyPtr = UnsafeAccess.allocAndCopy(key, 0, key.length);
+    long valuePtr = UnsafeAccess.allocAndCopy(value, 0, value.length);
+    map.put(keyPtr, key.length, valuePtr, value.length, 0);
+    map.incrementChanges();
+    UnsafeAccess.free(keyPtr);
+    UnsafeAccess.free(valuePtr);
+  }
+
+  private SnapshotManager start(long[][] savePoints, int maxConcurrent) {
+    manager = new SnapshotManager(savePoints, maxConcurrent);
+    manager.start();
+    return manager;
+  }
+
+  @Test
+  public void testSavePoints() throws Exception {
+    start(new long[][] {{1, 100}}, 1);
+    BigSortedMap map = createMap(50);
+    manager.add(map);
+    // Not enough changes
+    Thread.sleep(1500);
+    assertEquals(0, map.getSnapshotCount());
+    assertEquals(50, map.getChangesSinceLastSnapshot());
+
+    for (int i = 50; i < 100; i++) {
+      change(map, i);
+    }
+    long start = System.currentTimeMillis();
+    while (map.getSnapshotCount() == 0 && System.currentTimeMillis() - start < 10000) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, map.getSnapshotCount());
+    assertEquals(0, map.getChangesSinceLastSnapshot());
+    assertTrue(map.getLastSnapshotStatus());
+    assertTrue(map.getLastSnapshotBytes() > 0);
+    assertTrue(map.getLastSnapshotTimestamp() > 0);
+
+    // No changes - no more snapshots
+    Thread.sleep(1500);
+    assertEquals(1, map.getSnapshotCount());
+    manager.remove(map);
+  }
+
+  @Test
+  public void testMaxConcurrentSnapshots() throws Exception {
+    start(new long[0][], 1);
+    int n = 4;
+    for (int i = 0; i < n; i++) {
+      createMap(50000);
+    }
+    for (BigSortedMap map : maps) {
+      assertTrue(manager.takeSnapshot(map, false));
+    }
+    boolean done = false;
+    while (!done) {
+      assertTrue(manager.getRunningSnapshots() <= 1);
+      done = true;
+      for (BigSortedMap map : maps) {
+        done &= !manager.isSnapshotPending(map);
+      }
+    }
+    for (BigSortedMap map : maps) {
+      assertEquals(1, map.getSnapshotCount());
+      assertFalse(map.isSnapshotInProgress());
+    }
+  }
+
+  @Test
+  public void testSave() throws Exception {
+    start(new long[0][], 2);
+    BigSortedMap map = createMap(10000);
+    assertTrue(manager.takeSnapshot(map, false));
+    // Waits for the background snapshot and takes a new one
+    assertTrue(manager.takeSnapshot(map));
+    assertEquals(2, map.getSnapshotCount());
+    assertFalse(manager.isSnapshotPending(map));
+    assertTrue(manager.takeSnapshot(map, false));
+    // Scheduled after the pending snapshot
+    assertTrue(manager.takeSnapshot(map, true));
+    manager.remove(map);
+    assertTrue(map.getSnapshotCount() >= 3);
+    assertEquals(0, map.getChangesSinceLastSnapshot());
+  }
+}
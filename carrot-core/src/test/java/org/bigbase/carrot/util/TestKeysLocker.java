@@ -0,0 +1,301 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestKeysLocker {
+
+  private static final Logger log = LogManager.getLogger(TestKeysLocker.class);
+
+  Key[] keys;
+
+  @Before
+  public void setUp() {
+    keys = new Key[100];
+    for (int i = 0; i < keys.length; i++) {
+      String s = "key" + i;
+      keys[i] = new Key(UnsafeAccess.allocAndCopy(s, 0, s.length()), s.length());
+    }
+  }
+
+  @After
+  public void tearDown() {
+    Arrays.stream(keys).forEach(x -> UnsafeAccess.free(x.address));
+  }
+
+  /**
+   * Find keys, which share lock stripe
+   *
+   * @param n number of keys
+   * @return keys (must be freed)
+   */
+  private Key[] sameStripeKeys(int n) {
+    Map<Integer, List<Key>> map = new HashMap<>();
+    for (int i = 0; ; i++) {
+      String s = "stripe" + i;
+      Key k = new Key(UnsafeAccess.allocAndCopy(s, 0, s.length()), s.length());
+      List<Key> list =
+          map.computeIfAbsent(KeysLocker.stripe(KeysLocker.lockId(k)), x -> new ArrayList<>());
+      list.add(k);
+      if (list.size() == n) {
+        map.values().stream()
+            .filter(x -> x != list)
+            .forEach(x -> x.forEach(y -> UnsafeAccess.free(y.address)));
+        return list.toArray(new Key[n]);
+      }
+    }
+  }
+
+  @Test
+  public void testNestedLocks() {
+    Key k = keys[0];
+    KeysLocker.writeLock(k);
+    KeysLocker.readLock(k);
+    KeysLocker.writeLock(k);
+    assertTrue(KeysLocker.isWriteLocked(k));
+    assertEquals(3, KeysLocker.getHeldLocksCount());
+    KeysLocker.writeUnlock(k);
+    KeysLocker.readUnlock(k);
+    assertTrue(KeysLocker.isWriteLocked(k));
+    KeysLocker.writeUnlock(k);
+    assertFalse(KeysLocker.isWriteLocked(k));
+    assertEquals(0, KeysLocker.getHeldLocksCount());
+  }
+
+  @Test
+  public void testUpgradeIsRefused() {
+    Key k = keys[1];
+    KeysLocker.readLock(k);
+    assertTrue(KeysLocker.isReadLocked(k));
+    try {
+      KeysLocker.writeLock(k);
+      fail("Upgrade of a read lock must be refused");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertTrue(KeysLocker.isReadLocked(k));
+    assertEquals(1, KeysLocker.getHeldLocksCount());
+    KeysLocker.readUnlock(k);
+    assertFalse(KeysLocker.isReadLocked(k));
+    assertEquals(0, KeysLocker.getHeldLocksCount());
+  }
+
+  @Test
+  public void testSameStripeKeys() throws InterruptedException {
+    Key[] sameStripe = sameStripeKeys(3);
+    Key a = sameStripe[0], b = sameStripe[1], c = sameStripe[2];
+    try {
+      // Write lock of a key under read lock of another key of the same stripe
+      KeysLocker.readLock(a);
+      KeysLocker.writeLock(b);
+      assertTrue(KeysLocker.isReadLocked(a));
+      assertFalse(KeysLocker.isWriteLocked(a));
+      assertTrue(KeysLocker.isWriteLocked(b));
+      // Other threads are blocked by the locked keys only
+      Thread t =
+          new Thread(
+              () -> {
+                KeysLocker.readLock(a);
+                KeysLocker.writeLock(c);
+                KeysLocker.writeUnlock(c);
+                KeysLocker.readUnlock(a);
+              });
+      t.start();
+      t.join(10000);
+      assertFalse(t.isAlive());
+      KeysLocker.writeUnlock(b);
+      KeysLocker.readUnlock(a);
+      assertFalse(KeysLocker.isReadLocked(a));
+      assertFalse(KeysLocker.isWriteLocked(b));
+      assertEquals(0, KeysLocker.getHeldLocksCount());
+    } finally {
+      Arrays.stream(sameStripe).forEach(x -> UnsafeAccess.free(x.address));
+    }
+  }
+
+  @Test
+  public void testGroupLocks() {
+    // Duplicate keys must not dead lock
+    List<Key> list = new ArrayList<Key>(Arrays.asList(keys));
+    list.add(keys[0]);
+    list.add(keys[50]);
+    KeysLocker.writeLockAllKeys(list);
+    for (Key k : keys) {
+      assertTrue(KeysLocker.isWriteLocked(k));
+    }
+    // Nested lock of a member of the group
+    KeysLocker.writeLock(keys[10]);
+    KeysLocker.writeUnlock(keys[10]);
+    KeysLocker.writeUnlockAllKeys(list);
+    for (Key k : keys) {
+      assertFalse(KeysLocker.isWriteLocked(k));
+    }
+    assertEquals(0, KeysLocker.getHeldLocksCount());
+  }
+
+  @Test
+  public void testUnbalancedUnlock() {
+    assumeTrue(KeysLocker.class.desiredAssertionStatus());
+    // Key instance has been modified while it is locked
+    Key k = new Key(keys[2].address, keys[2].length);
+    KeysLocker.writeLock(k);
+    k.address = keys[3].address;
+    k.length = keys[3].length;
+    boolean failed = false;
+    try {
+      KeysLocker.writeUnlock(k);
+    } catch (AssertionError e) {
+      failed = true;
+    }
+    assertTrue(failed);
+    KeysLocker.writeUnlock(keys[2]);
+    assertFalse(KeysLocker.isWriteLocked(keys[2]));
+    assertEquals(0, KeysLocker.getHeldLocksCount());
+  }
+
+  @Test
+  public void testOptimisticRead() throws InterruptedException {
+    Key k = keys[4];
+    long stamp = KeysLocker.tryOptimisticRead(k);
+    assertTrue(KeysLocker.validate(k, stamp));
+    Thread t =
+        new Thread(
+            () -> {
+              KeysLocker.writeLock(k);
+              KeysLocker.writeUnlock(k);
+            });
+    t.start();
+    t.join();
+    assertFalse(KeysLocker.validate(k, stamp));
+  }
+
+  @Test
+  public void testConcurrentGroupLocks() throws InterruptedException {
+    int numThreads = 4;
+    int numIterations = 100000;
+    long[] balances = new long[keys.length];
+    Arrays.fill(balances, 1000);
+    Thread[] workers = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      workers[i] =
+          new Thread(
+              () -> {
+                Random r = new Random();
+                for (int j = 0; j < numIterations; j++) {
+                  int from = r.nextInt(keys.length);
+                  int to = r.nextInt(keys.length);
+                  List<Key> list = Arrays.asList(keys[from], keys[to]);
+                  KeysLocker.writeLockAllKeys(list);
+                  try {
+                    balances[from]--;
+                    balances[to]++;
+                  } finally {
+                    KeysLocker.writeUnlockAllKeys(list);
+                  }
+                }
+              });
+      workers[i].start();
+    }
+    for (Thread t : workers) {
+      t.join();
+    }
+    KeysLocker.readLockAllKeys(Arrays.asList(keys));
+    long total = Arrays.stream(balances).sum();
+    KeysLocker.readUnlockAllKeys(Arrays.asList(keys));
+    assertEquals(1000L * keys.length, total);
+    log.debug("Contended acquisitions: {}", KeysLocker.getContentionCount());
+  }
+
+  @Test
+  public void testGate() throws InterruptedException {
+    int numThreads = 4;
+    int numIterations = 100000;
+    long[] balances = new long[keys.length];
+    Arrays.fill(balances, 1000);
+    Thread[] workers = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      workers[i] =
+          new Thread(
+              () -> {
+                Random r = new Random();
+                for (int j = 0; j < numIterations; j++) {
+                  int from = r.nextInt(keys.length);
+                  int to = r.nextInt(keys.length);
+                  int first = from, second = to;
+                  if (KeysLocker.lockId(keys[first]) > KeysLocker.lockId(keys[second])) {
+                    first = to;
+                    second = from;
+                  }
+                  // Operation, which locks its keys one by one (in key order)
+                  KeysLocker.writeLock(keys[first]);
+                  try {
+                    balances[from]--;
+                    KeysLocker.writeLock(keys[second]);
+                    try {
+                      balances[to]++;
+                    } finally {
+                      KeysLocker.writeUnlock(keys[second]);
+                    }
+                  } finally {
+                    KeysLocker.writeUnlock(keys[first]);
+                  }
+                }
+              });
+      workers[i].start();
+    }
+    int checks = 0;
+    while (Arrays.stream(workers).anyMatch(x -> x.isAlive())) {
+      KeysLocker.lockGate();
+      try {
+        assertEquals(1000L * keys.length, Arrays.stream(balances).sum());
+      } finally {
+        KeysLocker.unlockGate();
+      }
+      checks++;
+    }
+    for (Thread t : workers) {
+      t.join();
+    }
+    assertEquals(1000L * keys.length, Arrays.stream(balances).sum());
+    log.debug("Gate checks: {}", checks);
+
+    KeysLocker.readLock(keys[0]);
+    try {
+      KeysLocker.lockGate();
+      fail("Gate must be refused under a key lock");
+    } catch (IllegalStateException e) {
+      // expected
+    } finally {
+      KeysLocker.readUnlock(keys[0]);
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ Copyright (C) 2021-present Carrot, Inc.
+
+ <p>This program is free software: you can redistribute it and/or modify it under the terms of the
+ Server Side Public License, version 1, as published by MongoDB, Inc.
+
+ <p>This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ Server Side Public License for more details.
+
+ <p>You should have received a copy of the Server Side Public License along with this program. If
+ not, see <http://www.mongodb.com/licensing/server-side-public-license>.
+*/
+package org.bigbase.carrot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+
+public class TestSlabAllocator {
+
+  private static final Logger log = LogManager.getLogger(TestSlabAllocator.class);
+
+  @Test
+  public void testSizeClasses() {
+    assertEquals(-1, SlabAllocator.getSizeClass(0));
+    assertEquals(128, SlabAllocator.getSizeClass(1));
+    assertEquals(128, SlabAllocator.getSizeClass(128));
+    assertEquals(192, SlabAllocator.getSizeClass(129));
+    assertEquals(320, SlabAllocator.getSizeClass(300));
+    assertEquals(512, SlabAllocator.getSizeClass(512));
+    assertEquals(768, SlabAllocator.getSizeClass(513));
+    assertEquals(4096, SlabAllocator.getSizeClass(4000));
+    assertEquals(-1, SlabAllocator.getSizeClass(4097));
+    for (int size : SlabAllocator.SIZE_CLASSES) {
+      assertEquals(size, SlabAllocator.getSizeClass(size));
+    }
+  }
+
+  @Test
+  public void testMallocFree() {
+    long ptr = UnsafeAccess.malloc(1000);
+    assertEquals(1024, SlabAllocator.sizeOf(ptr));
+    long big = UnsafeAccess.malloc(10000);
+    assertEquals(-1, SlabAllocator.sizeOf(big));
+    UnsafeAccess.free(ptr);
+    UnsafeAccess.free(big);
+    // Freed chunk is reused by the same thread
+    long ptr2 = UnsafeAccess.malloc(1024);
+    assertEquals(ptr, ptr2);
+    UnsafeAccess.free(ptr2);
+  }
+
+  @Test
+  public void testNoOverlaps() {
+    Random r = new Random();
+    long seed = r.nextLong();
+    r.setSeed(seed);
+    log.debug("testNoOverlaps seed={}", seed);
+    List<long[]> allocs = new ArrayList<long[]>();
+    Set<Long> addresses = new HashSet<Long>();
+    for (int i = 0; i < 100000; i++) {
+      int size = r.nextInt(4096) + 1;
+      long ptr = UnsafeAccess.malloc(size);
+      assertTrue(addresses.add(ptr));
+      UnsafeAccess.setMemory(ptr, size, (byte) i);
+      allocs.add(new long[] {ptr, size, (byte) i});
+      if (r.nextInt(3) == 0) {
+        long[] a = allocs.remove(r.nextInt(allocs.size()));
+        verify(a);
+        addresses.remove(a[0]);
+        UnsafeAccess.free(a[0]);
+      }
+    }
+    for (long[] a : allocs) {
+      verify(a);
+      UnsafeAccess.free(a[0]);
+    }
+  }
+
+  @Test
+  public void testRealloc() {
+    long ptr = UnsafeAccess.malloc(200);
+    assertEquals(256, SlabAllocator.sizeOf(ptr));
+    UnsafeAccess.setMemory(ptr, 200, (byte) 1);
+    // Same size class
+    assertEquals(ptr, UnsafeAccess.realloc(ptr, 250));
+    // Next size class
+    long ptr2 = UnsafeAccess.reallocZeroed(ptr, 250, 1000);
+    assertEquals(1024, SlabAllocator.sizeOf(ptr2));
+    verify(new long[] {ptr2, 200, 1});
+    for (int i = 250; i < 1000; i++) {
+      assertEquals(0, UnsafeAccess.toByte(ptr2 + i));
+    }
+    // Larger than maximum size class
+    long ptr3 = UnsafeAccess.realloc(ptr2, 10000);
+    assertEquals(-1, SlabAllocator.sizeOf(ptr3));
+    verify(new long[] {ptr3, 200, 1});
+    // Back to slabs
+    long ptr4 = UnsafeAccess.malloc(100);
+    UnsafeAccess.setMemory(ptr4, 100, (byte) 2);
+    long ptr5 = UnsafeAccess.realloc(ptr4, 50);
+    assertEquals(ptr4, ptr5);
+    verify(new long[] {ptr5, 50, 2});
+    UnsafeAccess.free(ptr3);
+    UnsafeAccess.free(ptr5);
+  }
+
+  @Test
+  public void testDisabled() {
+    long ptr = UnsafeAccess.malloc(512);
+    assertEquals(512, SlabAllocator.sizeOf(ptr));
+    SlabAllocator.setEnabled(false);
+    try {
+      assertFalse(SlabAllocator.isEnabled());
+      long ptr2 = UnsafeAccess.malloc(512);
+      assertEquals(-1, SlabAllocator.sizeOf(ptr2));
+      // Slab memory is released to slabs
+      UnsafeAccess.free(ptr);
+      UnsafeAccess.free(ptr2);
+    } finally {
+      SlabAllocator.setEnabled(true);
+    }
+  }
+
+  @Test
+  public void testMultipleThreads() throws InterruptedException {
+    int n = 4;
+    Thread[] workers = new Thread[n];
+    Throwable[] errors = new Throwable[n];
+    // Chunks allocated by one thread are released by another one
+    List<List<long[]>> queues = new ArrayList<List<long[]>>();
+    for (int i = 0; i < n; i++) {
+      queues.add(new ArrayList<long[]>());
+    }
+    for (int i = 0; i < n; i++) {
+      final int id = i;
+      workers[i] =
+          new Thread(
+              () -> {
+                try {
+                  Random r = new Random(id);
+                  List<long[]> own = queues.get(id);
+                  for (int k = 0; k < 50000; k++) {
+                    int size = r.nextInt(4096) + 1;
+                    long ptr = UnsafeAccess.malloc(size);
+                    UnsafeAccess.setMemory(ptr, size, (byte) id);
+                    synchronized (own) {
+                      own.add(new long[] {ptr, size, id});
+                    }
+                    List<long[]> other = queues.get(r.nextInt(n));
+                    long[] a = null;
+                    synchronized (other) {
+                      if (other.size() > 0) {
+                        a = other.remove(other.size() - 1);
+                      }
+                    }
+                    if (a != null) {
+                      verify(a);
+                      UnsafeAccess.free(a[0]);
+                    }
+                  }
+                } catch (Throwable t) {
+                  errors[id] = t;
+                }
+              });
+      workers[i].start();
+    }
+    for (int i = 0; i < n; i++) {
+      workers[i].join();
+      if (errors[i] != null) {
+        throw new AssertionError(errors[i]);
+      }
+    }
+    for (List<long[]> q : queues) {
+      for (long[] a : q) {
+        verify(a);
+        UnsafeAccess.free(a[0]);
+      }
+    }
+  }
+
+  private static void verify(long[] a) {
+    for (int i = 0; i < a[1]; i++) {
+      assertEquals((byte) a[2], UnsafeAccess.toByte(a[0] + i));
+    }
+  }
+}
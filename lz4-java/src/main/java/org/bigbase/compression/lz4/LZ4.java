@@ -118,6 +118,93 @@ public class LZ4 {
   public static native int decompressDirectAddressHC(
       long src, int compressedSize, long dst, int dstCapacity);
 
+  /**
+   * Get maximum size of an LZ4 frame (see compressFrameAddress)
+   *
+   * @param len - number of bytes to compress
+   * @return - maximum frame size
+   */
+  public static native int compressFrameBound(int len);
+
+  /**
+   * Compress block of data into a single LZ4 frame. Frame header keeps content size, frame is
+   * followed by xxhash32 checksum of the content
+   *
+   * @param src - source address
+   * @param len - number of bytes to compress
+   * @param dst - destination address
+   * @param dstCapacity - destination capacity (see compressFrameBound)
+   * @param level - compression level (0 - fast)
+   * @return - frame size or negative value on error
+   */
+  public static native int compressFrameAddress(
+      long src, int len, long dst, int dstCapacity, int level);
+
+  /**
+   * Get content size of an LZ4 frame
+   *
+   * @param src - frame address
+   * @param len - frame size
+   * @return - content size or negative value on error
+   */
+  public static native long getFrameContentSize(long src, int len);
+
+  /**
+   * Decompress single LZ4 frame, verifies content checksum
+   *
+   * @param src - frame address
+   * @param len - frame size
+   * @param dst - destination address
+   * @param dstCapacity - destination capacity
+   * @return - content size or negative value on error (corrupted or incomplete frame)
+   */
+  public static native int decompressFrameAddress(long src, int len, long dst, int dstCapacity);
+
+  /**
+   * Creates compression stream, which is prepared with a dictionary. Dictionary memory must not be
+   * freed or modified while the stream is in use.
+   *
+   * @param dict - dictionary address
+   * @param dictSize - dictionary size (up to 64KB)
+   * @return - stream address or 0 on error
+   */
+  public static native long createDictionaryStream(long dict, int dictSize);
+
+  /**
+   * Frees dictionary stream
+   *
+   * @param stream - stream address (see createDictionaryStream)
+   */
+  public static native void freeDictionaryStream(long stream);
+
+  /**
+   * Compress block of data with a dictionary. Dictionary stream can be used by multiple threads
+   * concurrently.
+   *
+   * @param src - source address
+   * @param len - number of bytes to compress
+   * @param dst - destination address
+   * @param dstCapacity - destination capacity
+   * @param dictStream - dictionary stream (see createDictionaryStream), 0 - no dictionary
+   * @return - compressed size or 0 on error
+   */
+  public static native int compressDirectAddressDict(
+      long src, int len, long dst, int dstCapacity, long dictStream);
+
+  /**
+   * Decompress block of data, which was compressed with a dictionary
+   *
+   * @param src - source address
+   * @param compressedSize - compressed size
+   * @param dst - destination address
+   * @param dstCapacity - destination capacity
+   * @param dict - dictionary address
+   * @param dictSize - dictionary size
+   * @return - decompressed size or negative value on error
+   */
+  public static native int decompressDirectAddressDict(
+      long src, int compressedSize, long dst, int dstCapacity, long dict, int dictSize);
+
   public static void main(String[] args) {
     String test = "TestTest12345678";
 
@@ -17,6 +17,9 @@
 
 
 /* DO NOT EDIT THIS FILE - it is machine generated */
+/* LZ4_attach_dictionary */
+#define LZ4_STATIC_LINKING_ONLY
+#include <string.h>
 #include "org_bigbase_compression_lz4_LZ4.h"
 /* Header for class org_bigbase_compression_lz4_LZ4 */
 
@@ -164,6 +167,165 @@ extern "C" {
         compressedSize, dst, dstCapacity);
     }
 
+    static void initFramePreferences(LZ4F_preferences_t *prefs, jint length, jint level)
+    {
+        memset(prefs, 0, sizeof(LZ4F_preferences_t));
+        prefs->frameInfo.blockSizeID = LZ4F_max4MB;
+        prefs->frameInfo.blockMode = LZ4F_blockLinked;
+        prefs->frameInfo.contentChecksumFlag = LZ4F_contentChecksumEnabled;
+        prefs->frameInfo.contentSize = (unsigned long long) length;
+        prefs->compressionLevel = level;
+    }
+
+    /*
+     * Class:     org_bigbase_compression_lz4_LZ4
+     * Method:    compressFrameBound
+     * Signature: (I)I
+     */
+    JNIEXPORT jint JNICALL Java_org_bigbase_compression_lz4_LZ4_compressFrameBound
+    (JNIEnv *env, jclass clz, jint length)
+    {
+        LZ4F_preferences_t prefs;
+        initFramePreferences(&prefs, length, 0);
+        return (jint) LZ4F_compressFrameBound(length, &prefs);
+    }
+
+    /*
+     * Class:     org_bigbase_compression_lz4_LZ4
+     * Method:    compressFrameAddress
+     * Signature: (JIJII)I
+     */
+    JNIEXPORT jint JNICALL Java_org_bigbase_compression_lz4_LZ4_compressFrameAddress
+    (JNIEnv *env, jclass clz, jlong src, jint length, jlong dst, jint dstCapacity, jint level)
+    {
+        LZ4F_preferences_t prefs;
+        initFramePreferences(&prefs, length, level);
+        size_t r = LZ4F_compressFrame((void *) dst, dstCapacity, (const void *) src, length, &prefs);
+        if (LZ4F_isError(r)) {
+            return -1;
+        }
+        return (jint) r;
+    }
+
+    /*
+     * Class:     org_bigbase_compression_lz4_LZ4
+     * Method:    getFrameContentSize
+     * Signature: (JI)J
+     */
+    JNIEXPORT jlong JNICALL Java_org_bigbase_compression_lz4_LZ4_getFrameContentSize
+    (JNIEnv *env, jclass clz, jlong src, jint length)
+    {
+        LZ4F_dctx *dctx;
+        LZ4F_frameInfo_t info;
+        size_t size = length;
+        jlong result = -1;
+        if (LZ4F_isError(LZ4F_createDecompressionContext(&dctx, LZ4F_VERSION))) {
+            return -1;
+        }
+        memset(&info, 0, sizeof(info));
+        if (!LZ4F_isError(LZ4F_getFrameInfo(dctx, &info, (const void *) src, &size))) {
+            result = (jlong) info.contentSize;
+        }
+        LZ4F_freeDecompressionContext(dctx);
+        return result;
+    }
+
+    /*
+     * Class:     org_bigbase_compression_lz4_LZ4
+     * Method:    decompressFrameAddress
+     * Signature: (JIJI)I
+     */
+    JNIEXPORT jint JNICALL Java_org_bigbase_compression_lz4_LZ4_decompressFrameAddress
+    (JNIEnv *env, jclass clz, jlong src, jint length, jlong dst, jint dstCapacity)
+    {
+        LZ4F_dctx *dctx;
+        const char *source = (const char *) src;
+        char *decompressed = (char *) dst;
+        size_t srcPos = 0, dstPos = 0;
+        size_t r = 1;
+        if (LZ4F_isError(LZ4F_createDecompressionContext(&dctx, LZ4F_VERSION))) {
+            return -1;
+        }
+        /* Frame content checksum is verified at the end of a frame */
+        while (r != 0 && srcPos < (size_t) length) {
+            size_t srcSize = length - srcPos;
+            size_t dstSize = dstCapacity - dstPos;
+            r = LZ4F_decompress(dctx, decompressed + dstPos, &dstSize, source + srcPos, &srcSize, NULL);
+            if (LZ4F_isError(r) || (srcSize == 0 && dstSize == 0 && r != 0)) {
+                LZ4F_freeDecompressionContext(dctx);
+                return -1;
+            }
+            srcPos += srcSize;
+            dstPos += dstSize;
+        }
+        LZ4F_freeDecompressionContext(dctx);
+        /* Incomplete frame */
+        if (r != 0) {
+            return -1;
+        }
+        return (jint) dstPos;
+    }
+
+    /*
+     * Class:     org_bigbase_compression_lz4_LZ4
+     * Method:    createDictionaryStream
+     * Signature: (JI)J
+     */
+    JNIEXPORT jlong JNICALL Java_org_bigbase_compression_lz4_LZ4_createDictionaryStream
+    (JNIEnv *env, jclass clz, jlong dict, jint dictSize)
+    {
+        LZ4_stream_t *stream = LZ4_createStream();
+        if (stream == NULL) {
+            return 0;
+        }
+        /* Stream refers to the dictionary, which must not be freed before the stream */
+        LZ4_loadDict(stream, (const char *) dict, dictSize);
+        return (jlong) stream;
+    }
+
+    /*
+     * Class:     org_bigbase_compression_lz4_LZ4
+     * Method:    freeDictionaryStream
+     * Signature: (J)V
+     */
+    JNIEXPORT void JNICALL Java_org_bigbase_compression_lz4_LZ4_freeDictionaryStream
+    (JNIEnv *env, jclass clz, jlong stream)
+    {
+        LZ4_freeStream((LZ4_stream_t *) stream);
+    }
+
+    /*
+     * Class:     org_bigbase_compression_lz4_LZ4
+     * Method:    compressDirectAddressDict
+     * Signature: (JIJIJ)I
+     */
+    JNIEXPORT jint JNICALL Java_org_bigbase_compression_lz4_LZ4_compressDirectAddressDict
+    (JNIEnv *env, jclass clz, jlong src, jint length, jlong dst, jint dstCapacity, jlong dictStream)
+    {
+        LZ4_stream_t work;
+        if (dictStream == 0) {
+            return LZ4_compress_default((const char *) src, (char *) dst, length, dstCapacity);
+        }
+        /* Dictionary stream is shared by all threads and is not modified */
+        LZ4_initStream(&work, sizeof(work));
+        LZ4_attach_dictionary(&work, (const LZ4_stream_t *) dictStream);
+        return LZ4_compress_fast_continue(&work, (const char *) src, (char *) dst, length,
+            dstCapacity, 1);
+    }
+
+    /*
+     * Class:     org_bigbase_compression_lz4_LZ4
+     * Method:    decompressDirectAddressDict
+     * Signature: (JIJIJI)I
+     */
+    JNIEXPORT jint JNICALL Java_org_bigbase_compression_lz4_LZ4_decompressDirectAddressDict
+    (JNIEnv *env, jclass clz, jlong src, jint compressedSize, jlong dst, jint dstCapacity,
+    jlong dict, jint dictSize)
+    {
+        return LZ4_decompress_safe_usingDict((const char *) src, (char *) dst, compressedSize,
+            dstCapacity, (const char *) dict, dictSize);
+    }
+
 #ifdef __cplusplus
 }
 #endif
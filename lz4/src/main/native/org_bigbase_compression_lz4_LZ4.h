@@ -19,6 +19,7 @@
 #include <jni.h>
 #include "lz4.h"
 #include "lz4hc.h"
+#include "lz4frame.h"
 /* Header for class org_bigbase_compression_lz4_LZ4 */
 
 #ifndef _Included_org_bigbase_compression_lz4_LZ4
@@ -75,6 +76,70 @@ JNIEXPORT jint JNICALL Java_org_bigbase_compression_lz4_LZ4_decompressDirectHC
     JNIEXPORT jint JNICALL Java_org_bigbase_compression_lz4_LZ4_decompressDirectAddressHC
     (JNIEnv *, jclass, jlong, jint, jlong, jint);
 
+/*
+ * Class:     org_bigbase_compression_lz4_LZ4
+ * Method:    compressFrameBound
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_org_bigbase_compression_lz4_LZ4_compressFrameBound
+  (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     org_bigbase_compression_lz4_LZ4
+ * Method:    compressFrameAddress
+ * Signature: (JIJII)I
+ */
+JNIEXPORT jint JNICALL Java_org_bigbase_compression_lz4_LZ4_compressFrameAddress
+  (JNIEnv *, jclass, jlong, jint, jlong, jint, jint);
+
+/*
+ * Class:     org_bigbase_compression_lz4_LZ4
+ * Method:    getFrameContentSize
+ * Signature: (JI)J
+ */
+JNIEXPORT jlong JNICALL Java_org_bigbase_compression_lz4_LZ4_getFrameContentSize
+  (JNIEnv *, jclass, jlong, jint);
+
+/*
+ * Class:     org_bigbase_compression_lz4_LZ4
+ * Method:    decompressFrameAddress
+ * Signature: (JIJI)I
+ */
+JNIEXPORT jint JNICALL Java_org_bigbase_compression_lz4_LZ4_decompressFrameAddress
+  (JNIEnv *, jclass, jlong, jint, jlong, jint);
+
+/*
+ * Class:     org_bigbase_compression_lz4_LZ4
+ * Method:    createDictionaryStream
+ * Signature: (JI)J
+ */
+JNIEXPORT jlong JNICALL Java_org_bigbase_compression_lz4_LZ4_createDictionaryStream
+  (JNIEnv *, jclass, jlong, jint);
+
+/*
+ * Class:     org_bigbase_compression_lz4_LZ4
+ * Method:    freeDictionaryStream
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_org_bigbase_compression_lz4_LZ4_freeDictionaryStream
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     org_bigbase_compression_lz4_LZ4
+ * Method:    compressDirectAddressDict
+ * Signature: (JIJIJ)I
+ */
+JNIEXPORT jint JNICALL Java_org_bigbase_compression_lz4_LZ4_compressDirectAddressDict
+  (JNIEnv *, jclass, jlong, jint, jlong, jint, jlong);
+
+/*
+ * Class:     org_bigbase_compression_lz4_LZ4
+ * Method:    decompressDirectAddressDict
+ * Signature: (JIJIJI)I
+ */
+JNIEXPORT jint JNICALL Java_org_bigbase_compression_lz4_LZ4_decompressDirectAddressDict
+  (JNIEnv *, jclass, jlong, jint, jlong, jint, jlong, jint);
+
 #ifdef __cplusplus
 }
 #endif